@@ -25,6 +25,7 @@ module one.lfa.opdsget.api
   requires transitive com.io7m.jlexing.core;
 
   requires com.io7m.jaffirm.core;
+  requires java.net.http;
   requires java.xml;
   requires org.slf4j;
 
@@ -0,0 +1,39 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.api;
+
+/**
+ * The ways in which output archives are produced. The archives produced are identical in either
+ * case.
+ */
+
+public enum OPDSArchiveMode
+{
+  /**
+   * Every file is read and compressed once the retrieval has otherwise completed.
+   */
+
+  AFTER_RETRIEVAL,
+
+  /**
+   * Files are compressed as soon as they are final during the retrieval, whilst they are still
+   * likely to be cached in memory, and the compressed data is copied into the archive once the
+   * retrieval has completed.
+   */
+
+  DURING_RETRIEVAL
+}
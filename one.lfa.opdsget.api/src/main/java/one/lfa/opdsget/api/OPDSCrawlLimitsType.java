@@ -0,0 +1,72 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.api;
+
+import org.immutables.value.Value;
+
+/**
+ * Limits on the amount of work that a retrieval keeps in memory.
+ */
+
+@ImmutableStyleType
+@Value.Immutable
+public interface OPDSCrawlLimitsType
+{
+  /**
+   * The number of downloads that may wait in the queue before feeds stop being expanded. Once
+   * this many downloads are waiting, no further feeds are fetched until downloads catch up.
+   *
+   * @return The maximum number of queued downloads
+   */
+
+  @Value.Default
+  default int maximumQueuedDownloads()
+  {
+    return 10_000;
+  }
+
+  /**
+   * @return The maximum number of feeds and downloads that may be in progress at any one time
+   */
+
+  @Value.Default
+  default int maximumActiveTasks()
+  {
+    return 64;
+  }
+
+  /**
+   * Check preconditions for the type.
+   */
+
+  @Value.Check
+  default void checkPreconditions()
+  {
+    if (this.maximumQueuedDownloads() < 1) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Maximum queued downloads %d must be at least 1",
+          Integer.valueOf(this.maximumQueuedDownloads())));
+    }
+    if (this.maximumActiveTasks() < 1) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Maximum active tasks %d must be at least 1",
+          Integer.valueOf(this.maximumActiveTasks())));
+    }
+  }
+}
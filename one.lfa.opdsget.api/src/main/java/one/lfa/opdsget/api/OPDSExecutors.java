@@ -0,0 +1,132 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.api;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Functions to create executors suitable for use with retrievers.
+ *
+ * @see OPDSRetrieverProviderType#create(ExecutorService)
+ */
+
+public final class OPDSExecutors
+{
+  private static final Optional<MethodHandle> VIRTUAL_PER_TASK = findVirtualPerTask();
+
+  private OPDSExecutors()
+  {
+
+  }
+
+  /*
+   * Virtual threads are only available on Java 21 and newer, whilst this
+   * code is compiled for Java 11, so the factory method has to be located
+   * at run-time.
+   */
+
+  private static Optional<MethodHandle> findVirtualPerTask()
+  {
+    try {
+      return Optional.of(
+        MethodHandles.publicLookup()
+          .findStatic(
+            Executors.class,
+            "newVirtualThreadPerTaskExecutor",
+            MethodType.methodType(ExecutorService.class)));
+    } catch (final NoSuchMethodException | IllegalAccessException e) {
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Create an executor backed by a fixed pool of platform threads.
+   *
+   * @param threads The number of threads
+   *
+   * @return A new executor
+   */
+
+  public static ExecutorService fixedThreadPool(
+    final int threads)
+  {
+    if (threads < 1) {
+      throw new IllegalArgumentException(
+        String.format("Thread count %d must be at least 1", Integer.valueOf(threads)));
+    }
+
+    return Executors.newFixedThreadPool(
+      threads,
+      runnable -> {
+        final var th = new Thread(runnable);
+        th.setName("one.lfa.opdsget.io[" + th.getId() + "]");
+        return th;
+      });
+  }
+
+  /**
+   * @return {@code true} if the running JVM supports virtual threads
+   *
+   * @see #virtualThreadPerTask()
+   */
+
+  public static boolean virtualThreadsSupported()
+  {
+    return VIRTUAL_PER_TASK.isPresent();
+  }
+
+  /**
+   * Create an executor that starts a new virtual thread for each task. Blocking I/O performed by
+   * a task does not occupy a platform thread, so thousands of downloads can be in progress at once.
+   * The executor does not hold any threads between tasks and so does not strictly need to be shut
+   * down.
+   *
+   * @return A new executor
+   *
+   * @throws UnsupportedOperationException If the running JVM does not support virtual threads
+   * @see #virtualThreadsSupported()
+   */
+
+  public static ExecutorService virtualThreadPerTask()
+    throws UnsupportedOperationException
+  {
+    final var handle =
+      VIRTUAL_PER_TASK.orElseThrow(() -> new UnsupportedOperationException(
+        new StringBuilder(128)
+          .append("Virtual threads are not supported by this JVM")
+          .append(System.lineSeparator())
+          .append("  Java version: ")
+          .append(Runtime.version())
+          .append(System.lineSeparator())
+          .append("  Required: 21 or newer")
+          .append(System.lineSeparator())
+          .toString()));
+
+    try {
+      return (ExecutorService) handle.invokeExact();
+    } catch (final RuntimeException | Error e) {
+      throw e;
+    } catch (final Throwable e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -19,6 +19,8 @@ package one.lfa.opdsget.api;
 import java.net.URI;
 import java.nio.file.Path;
 import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.OptionalDouble;
@@ -49,6 +51,16 @@ public interface OPDSGetConfigurationType
   @Value.Parameter
   Optional<Path> outputArchive();
 
+  /**
+   * @return The way in which the output archive, if any, is produced
+   */
+
+  @Value.Default
+  default OPDSArchiveMode outputArchiveMode()
+  {
+    return OPDSArchiveMode.DURING_RETRIEVAL;
+  }
+
   /**
    * @return The starting URI for the OPDS feed
    */
@@ -231,6 +243,19 @@ public interface OPDSGetConfigurationType
     return this.typedDirectory("books");
   }
 
+  /**
+   * The directory containing state that is kept between runs, such as the validators used to
+   * make conditional requests for content that has already been fetched. The directory is not
+   * included in output archives.
+   *
+   * @return The state directory
+   */
+
+  default Path stateDirectory()
+  {
+    return this.output().resolve(".opdsget");
+  }
+
   /**
    * @return The set of feed content kinds that will be fetched
    */
@@ -255,6 +280,127 @@ public interface OPDSGetConfigurationType
 
   OptionalDouble scaleImages();
 
+  /**
+   * If enabled, a binary search index, {@code index.bin}, is written alongside the text search
+   * index. The binary index holds the same terms and documents, and can be memory-mapped and
+   * searched without being parsed. A binary search index is also written if {@link
+   * #searchIndexNGrams()} is enabled.
+   *
+   * @return {@code true} if a binary search index is written
+   */
+
+  @Value.Default
+  default boolean searchIndexBinary()
+  {
+    return false;
+  }
+
+  /**
+   * If enabled, an n-gram search index, {@code index-ngrams.bin}, is written alongside the binary
+   * search index. The n-gram index records the terms of the binary index in which each sequence
+   * of three characters occurs, so that terms containing a given substring can be found without
+   * examining every term.
+   *
+   * @return {@code true} if an n-gram search index is written
+   */
+
+  @Value.Default
+  default boolean searchIndexNGrams()
+  {
+    return false;
+  }
+
+  /**
+   * @return The kind of processor used to rewrite fetched feeds
+   */
+
+  @Value.Default
+  default OPDSFeedProcessorKind feedProcessor()
+  {
+    return OPDSFeedProcessorKind.STREAMING;
+  }
+
+  /**
+   * @return The limits on the amount of work queued and in progress during a retrieval
+   */
+
+  @Value.Default
+  default OPDSCrawlLimits crawlLimits()
+  {
+    return OPDSCrawlLimits.builder().build();
+  }
+
+  /**
+   * If enabled, the outputs of squashing books and scaling images are kept in the state directory,
+   * and a file with the same content as one that was transformed in an earlier run is replaced by
+   * the earlier output rather than being transformed again.
+   *
+   * @return {@code true} if the outputs of transforms are cached between runs
+   */
+
+  @Value.Default
+  default boolean transformCache()
+  {
+    return true;
+  }
+
+  /**
+   * @return The points at which retrieved books and images are transformed
+   */
+
+  @Value.Default
+  default OPDSTransformMode transformMode()
+  {
+    return OPDSTransformMode.AFTER_RETRIEVAL;
+  }
+
+  /**
+   * @return The limits on the resources used to transform retrieved content
+   */
+
+  @Value.Default
+  default OPDSTransformLimits transformLimits()
+  {
+    return OPDSTransformLimits.builder().build();
+  }
+
+  /**
+   * @return The limits applied to requests made to hosts that do not appear in {@link
+   *   #hostLimits()}
+   */
+
+  @Value.Default
+  default OPDSHostLimits hostLimitsDefault()
+  {
+    return OPDSHostLimits.builder().build();
+  }
+
+  /**
+   * @return The limits applied to requests made to specific hosts, keyed by lowercase host name
+   */
+
+  Map<String, OPDSHostLimits> hostLimits();
+
+  /**
+   * @param uri The URI of a request
+   *
+   * @return The limits applied to requests made to the host of the given URI
+   */
+
+  default OPDSHostLimits hostLimitsFor(final URI uri)
+  {
+    Objects.requireNonNull(uri, "uri");
+
+    final var host = uri.getHost();
+    if (host != null) {
+      final var limits = this.hostLimits().get(host.toLowerCase(Locale.ROOT));
+      if (limits != null) {
+        return limits;
+      }
+    }
+    return this.hostLimitsDefault();
+  }
+
   /**
    * Check preconditions for the type.
    */
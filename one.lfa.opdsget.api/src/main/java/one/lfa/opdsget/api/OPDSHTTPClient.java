@@ -0,0 +1,441 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.api;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * An implementation of the {@link OPDSHTTPType} interface based on the {@link HttpClient} API.
+ * Unlike {@link OPDSHTTPDefault}, a single client (and therefore a single connection pool) is
+ * shared between all requests, so connections to a given server are reused, and multiplexed over
+ * HTTP/2 where the server supports it. Requests are executed without blocking: no thread is held
+ * while waiting for a response or between retry attempts. If the connection fails whilst the
+ * content is being read, and the server provided a validator for the content, the thread reading
+ * the content requests the rest of it with a byte range under the same retry policy.
+ */
+
+public final class OPDSHTTPClient implements OPDSHTTPType
+{
+  private static final Logger LOG = LoggerFactory.getLogger(OPDSHTTPClient.class);
+  private static final int REDIRECT_MAX = 16;
+  private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+  private final OPDSHTTPClientConfiguration configuration;
+  private final HttpClient client;
+
+  private OPDSHTTPClient(
+    final OPDSHTTPClientConfiguration inConfiguration,
+    final HttpClient inClient)
+  {
+    this.configuration =
+      Objects.requireNonNull(inConfiguration, "configuration");
+    this.client =
+      Objects.requireNonNull(inClient, "client");
+  }
+
+  /**
+   * Create an http provider using the default configuration.
+   *
+   * @return An http provider
+   */
+
+  public static OPDSHTTPType create()
+  {
+    return create(OPDSHTTPClientConfiguration.builder().build());
+  }
+
+  /**
+   * Create an http provider.
+   *
+   * @param configuration The client configuration
+   *
+   * @return An http provider
+   */
+
+  public static OPDSHTTPType create(
+    final OPDSHTTPClientConfiguration configuration)
+  {
+    Objects.requireNonNull(configuration, "configuration");
+
+    final var version =
+      configuration.preferHTTP2() ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1;
+
+    final var client =
+      HttpClient.newBuilder()
+        .connectTimeout(configuration.connectTimeout())
+        .followRedirects(HttpClient.Redirect.NEVER)
+        .version(version)
+        .build();
+
+    return new OPDSHTTPClient(configuration, client);
+  }
+
+  private static boolean isRedirect(final int code)
+  {
+    switch (code) {
+      case HttpURLConnection.HTTP_MOVED_PERM:
+      case HttpURLConnection.HTTP_MOVED_TEMP:
+      case HttpURLConnection.HTTP_SEE_OTHER:
+      case 307:
+      case 308:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private static URI redirectTarget(
+    final URI uri,
+    final HttpResponse<InputStream> response)
+    throws OPDSHTTPException
+  {
+    final var header =
+      response.headers()
+        .firstValue("Location")
+        .orElseThrow(() -> new OPDSHTTPException(
+          OPDSHTTPHeaders.failureMessage(uri, response.statusCode(), "Missing Location header"),
+          response.statusCode(),
+          "Missing Location header"));
+
+    try {
+      final var location = URLDecoder.decode(header, StandardCharsets.UTF_8);
+      final var next = new URL(uri.toURL(), location);
+      return new URI(
+        next.getProtocol(),
+        next.getUserInfo(),
+        next.getHost(),
+        next.getPort(),
+        next.getPath(),
+        next.getQuery(),
+        null);
+    } catch (final MalformedURLException | URISyntaxException e) {
+      throw new OPDSHTTPException(e, -1, "");
+    }
+  }
+
+  private static void discard(
+    final HttpResponse<InputStream> response)
+  {
+    try {
+      response.body().close();
+    } catch (final IOException e) {
+      LOG.debug("failed to close response body: ", e);
+    }
+  }
+
+  private static Throwable unwrap(
+    final Throwable error)
+  {
+    if (error instanceof CompletionException || error instanceof ExecutionException) {
+      final var cause = error.getCause();
+      if (cause != null) {
+        return cause;
+      }
+    }
+    return error;
+  }
+
+  @Override
+  public OPDSHTTPData get(
+    final URI uri,
+    final Optional<OPDSAuthenticationType> auth)
+    throws OPDSHTTPException
+  {
+    return this.get(OPDSHTTPRequest.of(uri, auth));
+  }
+
+  @Override
+  public OPDSHTTPData get(
+    final OPDSHTTPRequest request)
+    throws OPDSHTTPException
+  {
+    return this.resumable(request, this.getDirect(Objects.requireNonNull(request, "request")));
+  }
+
+  /**
+   * The returned implementation shares this implementation's underlying client.
+   */
+
+  @Override
+  public OPDSHTTPType forRetrieval()
+  {
+    return new OPDSHTTPClient(
+      OPDSHTTPClientConfiguration.builder()
+        .from(this.configuration)
+        .setRetryPolicy(this.configuration.retryPolicy().forRetrieval())
+        .build(),
+      this.client);
+  }
+
+  private OPDSHTTPData resumable(
+    final OPDSHTTPRequest request,
+    final OPDSHTTPData data)
+  {
+    return OPDSHTTPResumingStream.wrap(
+      request, data, this.configuration.retryPolicy(), this::getDirect);
+  }
+
+  private OPDSHTTPData getDirect(
+    final OPDSHTTPRequest request)
+    throws OPDSHTTPException
+  {
+    try {
+      return this.getFollowing(request, 0).get();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new OPDSHTTPException(e, -1, "");
+    } catch (final ExecutionException e) {
+      final var cause = unwrap(e);
+      if (cause instanceof OPDSHTTPException) {
+        throw (OPDSHTTPException) cause;
+      }
+      throw new OPDSHTTPException(cause, -1, "");
+    }
+  }
+
+  @Override
+  public CompletableFuture<OPDSHTTPData> getAsync(
+    final URI uri,
+    final Optional<OPDSAuthenticationType> auth,
+    final Executor executor)
+  {
+    return this.getAsync(OPDSHTTPRequest.of(uri, auth), executor);
+  }
+
+  @Override
+  public CompletableFuture<OPDSHTTPData> getAsync(
+    final OPDSHTTPRequest request,
+    final Executor executor)
+  {
+    Objects.requireNonNull(request, "request");
+    Objects.requireNonNull(executor, "executor");
+    return this.getFollowing(request, 0)
+      .thenApply(data -> this.resumable(request, data));
+  }
+
+  private CompletableFuture<OPDSHTTPData> getFollowing(
+    final OPDSHTTPRequest source,
+    final int redirects)
+  {
+    final var uri = source.uri();
+    LOG.debug("GET {}", uri);
+
+    if (redirects > REDIRECT_MAX) {
+      return CompletableFuture.failedFuture(new OPDSHTTPException(
+        OPDSHTTPHeaders.failureMessage(uri, -1, "Too many redirects"),
+        -1,
+        "Too many redirects"));
+    }
+
+    final HttpRequest request;
+    try {
+      final var builder =
+        HttpRequest.newBuilder(uri)
+          .GET()
+          .timeout(this.configuration.requestTimeout())
+          .header("User-Agent", OPDSHTTPHeaders.USER_AGENT);
+
+      source.authentication().ifPresent(auth -> builder.header(
+        "Authorization", OPDSHTTPHeaders.authorization(auth)));
+      source.ifNoneMatch().ifPresent(tag -> builder.header("If-None-Match", tag));
+      source.ifModifiedSince().ifPresent(date -> builder.header("If-Modified-Since", date));
+      source.rangeStart().ifPresent(start -> builder.header("Range", OPDSHTTPHeaders.range(start)));
+      source.ifRange().ifPresent(value -> builder.header("If-Range", value));
+      request = builder.build();
+    } catch (final IllegalArgumentException e) {
+      return CompletableFuture.failedFuture(new OPDSHTTPException(e, -1, ""));
+    }
+
+    return this.attempt(source, request, 0, redirects);
+  }
+
+  private CompletableFuture<OPDSHTTPData> attempt(
+    final OPDSHTTPRequest source,
+    final HttpRequest request,
+    final int attempt,
+    final int redirects)
+  {
+    final var uri = source.uri();
+    return this.client.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream())
+      .handle((response, error) -> {
+        if (error != null) {
+          final var cause = unwrap(error);
+          if (cause instanceof IOException) {
+            LOG.error("i/o error: GET {}: ", uri, cause);
+            return this.retryLater(source, request, attempt, redirects, -1, Optional.empty());
+          }
+          return CompletableFuture.<OPDSHTTPData>failedFuture(cause);
+        }
+        return this.onResponse(source, request, response, attempt, redirects);
+      })
+      .thenCompose(Function.identity());
+  }
+
+  private CompletableFuture<OPDSHTTPData> onResponse(
+    final OPDSHTTPRequest source,
+    final HttpRequest request,
+    final HttpResponse<InputStream> response,
+    final int attempt,
+    final int redirects)
+  {
+    final var uri = source.uri();
+    final var code = response.statusCode();
+    final var headers = response.headers();
+
+    if (LOG.isDebugEnabled()) {
+      LOG.debug(
+        "GET {} -> {} {} (attempt {})",
+        uri,
+        Integer.valueOf(code),
+        response.version(),
+        Integer.valueOf(attempt + 1));
+    }
+
+    if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+      discard(response);
+      return CompletableFuture.completedFuture(OPDSHTTPHeaders.notModified(
+        headers.firstValue("ETag"),
+        headers.firstValue("Last-Modified")));
+    }
+
+    if (isRedirect(code)) {
+      discard(response);
+      try {
+        final var next =
+          OPDSHTTPHeaders.redirected(source, redirectTarget(uri, response));
+        return this.getFollowing(next, redirects + 1);
+      } catch (final OPDSHTTPException e) {
+        return CompletableFuture.failedFuture(e);
+      }
+    }
+
+    return this.onContent(source, request, response, attempt, redirects);
+  }
+
+  private CompletableFuture<OPDSHTTPData> onContent(
+    final OPDSHTTPRequest source,
+    final HttpRequest request,
+    final HttpResponse<InputStream> response,
+    final int attempt,
+    final int redirects)
+  {
+    final var uri = source.uri();
+    final var code = response.statusCode();
+    final var headers = response.headers();
+
+    /*
+     * If the requested range can't be satisfied, or the server returned a part of the content
+     * that can't be understood, request the entire content instead.
+     */
+
+    final var offset =
+      code == HttpURLConnection.HTTP_PARTIAL
+        ? OPDSHTTPHeaders.contentRangeStart(headers.firstValue("Content-Range"))
+        : OptionalLong.of(0L);
+
+    if (source.rangeStart().isPresent()
+      && (code == HTTP_RANGE_NOT_SATISFIABLE || offset.isEmpty())) {
+      discard(response);
+      LOG.debug("GET {}: range not usable; requesting entire content", uri);
+      return this.getFollowing(OPDSHTTPHeaders.withoutRange(source), redirects);
+    }
+
+    if (OPDSHTTPHeaders.isRetryable(code)) {
+      discard(response);
+      LOG.error("{}", OPDSHTTPHeaders.failureMessage(uri, code, ""));
+      final var retryAfter =
+        OPDSHTTPHeaders.retryAfter(headers.firstValue("Retry-After"), Instant.now());
+      return this.retryLater(source, request, attempt, redirects, code, retryAfter);
+    }
+
+    if (code >= 400) {
+      discard(response);
+      return CompletableFuture.failedFuture(new OPDSHTTPException(
+        OPDSHTTPHeaders.failureMessage(uri, code, ""), code, ""));
+    }
+
+    return CompletableFuture.completedFuture(
+      OPDSHTTPData.builder()
+        .setSize(headers.firstValueAsLong("Content-Length").orElse(-1L))
+        .setContentType(headers.firstValue("Content-Type").orElse("application/octet-stream"))
+        .setStream(response.body())
+        .setOffset(offset.orElse(0L))
+        .setEntityTag(headers.firstValue("ETag"))
+        .setLastModified(headers.firstValue("Last-Modified"))
+        .build());
+  }
+
+  /**
+   * Schedule another attempt after the delay chosen by the retry policy. No thread is blocked
+   * during the delay.
+   */
+
+  private CompletableFuture<OPDSHTTPData> retryLater(
+    final OPDSHTTPRequest source,
+    final HttpRequest request,
+    final int attempt,
+    final int redirects,
+    final int code,
+    final Optional<Duration> retryAfter)
+  {
+    final var uri = source.uri();
+    final var attempts = attempt + 1;
+    final var waitOpt =
+      this.configuration.retryPolicy().retryDelay(uri, attempts, code, retryAfter);
+
+    if (waitOpt.isEmpty()) {
+      return CompletableFuture.failedFuture(new OPDSHTTPException(
+        OPDSHTTPHeaders.failureMessageAttempts(uri, attempts),
+        code,
+        ""));
+    }
+
+    final var wait = waitOpt.get();
+    LOG.debug("retrying {} in {}", uri, wait);
+
+    final var delayed =
+      CompletableFuture.delayedExecutor(wait.toMillis(), TimeUnit.MILLISECONDS);
+
+    return CompletableFuture.runAsync(() -> { }, delayed)
+      .thenCompose(ignored -> this.attempt(source, request, attempts, redirects));
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.api;
+
+import org.immutables.value.Value;
+
+import java.time.Duration;
+
+/**
+ * Configuration values for the pooled HTTP client.
+ *
+ * @see OPDSHTTPClient
+ */
+
+@ImmutableStyleType
+@Value.Immutable
+public interface OPDSHTTPClientConfigurationType
+{
+  /**
+   * @return The maximum time allowed to establish a connection to a server
+   */
+
+  @Value.Default
+  default Duration connectTimeout()
+  {
+    return Duration.ofSeconds(30L);
+  }
+
+  /**
+   * @return The maximum time allowed between sending a request and receiving the response headers
+   */
+
+  @Value.Default
+  default Duration requestTimeout()
+  {
+    return Duration.ofSeconds(60L);
+  }
+
+  /**
+   * @return {@code true} if HTTP/2 should be negotiated with servers that support it
+   */
+
+  @Value.Default
+  default boolean preferHTTP2()
+  {
+    return true;
+  }
+
+  /**
+   * @return The policy that decides when failed requests are retried
+   */
+
+  @Value.Default
+  default OPDSHTTPRetryPolicyType retryPolicy()
+  {
+    return OPDSHTTPRetryPolicies.exponential();
+  }
+
+  /**
+   * Check preconditions for the type.
+   */
+
+  @Value.Check
+  default void checkPreconditions()
+  {
+    if (this.connectTimeout().isNegative() || this.connectTimeout().isZero()) {
+      throw new IllegalArgumentException(
+        String.format("Connect timeout %s must be positive", this.connectTimeout()));
+    }
+    if (this.requestTimeout().isNegative() || this.requestTimeout().isZero()) {
+      throw new IllegalArgumentException(
+        String.format("Request timeout %s must be positive", this.requestTimeout()));
+    }
+  }
+}
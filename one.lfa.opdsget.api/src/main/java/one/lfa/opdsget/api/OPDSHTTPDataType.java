@@ -19,6 +19,7 @@ package one.lfa.opdsget.api;
 import org.immutables.value.Value;
 
 import java.io.InputStream;
+import java.util.Optional;
 
 /**
  * The type of remote HTTP data.
@@ -29,7 +30,7 @@ import java.io.InputStream;
 public interface OPDSHTTPDataType
 {
   /**
-   * @return The size of the remote content
+   * @return The size of the remote content, or of the part of it that was returned
    */
 
   @Value.Parameter
@@ -48,4 +49,62 @@ public interface OPDSHTTPDataType
 
   @Value.Parameter
   InputStream stream();
+
+  /**
+   * @return {@code true} if the request was conditional and the server indicated that the content
+   *   has not been modified, in which case the stream is empty
+   *
+   * @see OPDSHTTPRequestType#ifNoneMatch()
+   * @see OPDSHTTPRequestType#ifModifiedSince()
+   */
+
+  @Value.Default
+  default boolean notModified()
+  {
+    return false;
+  }
+
+  /**
+   * @return The offset within the remote content of the first byte of the stream; this is
+   *   non-zero only if a range was requested and the server returned part of the content
+   *
+   * @see OPDSHTTPRequestType#rangeStart()
+   */
+
+  @Value.Default
+  default long offset()
+  {
+    return 0L;
+  }
+
+  /**
+   * @return The entity tag of the remote content, if the server provided one
+   */
+
+  Optional<String> entityTag();
+
+  /**
+   * @return The modification date of the remote content, if the server provided one
+   */
+
+  Optional<String> lastModified();
+
+  /**
+   * Weak entity tags cannot be used to validate a byte range, so the modification date is used
+   * instead when the server only provided a weak tag.
+   *
+   * @return A value suitable for use in an {@code If-Range} header, if the server provided one
+   *
+   * @see OPDSHTTPRequestType#ifRange()
+   */
+
+  default Optional<String> rangeValidator()
+  {
+    final var strong =
+      this.entityTag().filter(tag -> !tag.startsWith("W/"));
+    if (strong.isPresent()) {
+      return strong;
+    }
+    return this.lastModified();
+  }
 }
@@ -26,9 +26,15 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLDecoder;
-import java.nio.charset.StandardCharsets;
-import java.util.Base64;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The default implementation of the {@link OPDSHTTPType} interface.
@@ -37,68 +43,213 @@ import java.util.Optional;
 public final class OPDSHTTPDefault implements OPDSHTTPType
 {
   private static final Logger LOG = LoggerFactory.getLogger(OPDSHTTPDefault.class);
-  private static final long RETRY_WAIT_SECONDS = 6L;
-  private static final int RETRY_MAX_ATTEMPTS = 10;
+  private static final int REDIRECT_MAX = 16;
+  private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+  private final OPDSHTTPRetryPolicyType retryPolicy;
 
   /**
-   * Create an http provider.
+   * Create an http provider using the default retry policy.
+   *
+   * @see OPDSHTTPRetryPolicies#exponential()
    */
 
   public OPDSHTTPDefault()
   {
+    this(OPDSHTTPRetryPolicies.exponential());
+  }
+
+  /**
+   * Create an http provider.
+   *
+   * @param inRetryPolicy The policy that decides when failed requests are retried
+   */
 
+  public OPDSHTTPDefault(
+    final OPDSHTTPRetryPolicyType inRetryPolicy)
+  {
+    this.retryPolicy = Objects.requireNonNull(inRetryPolicy, "retryPolicy");
   }
 
-  private static void configureConnectionAuth(
-    final HttpURLConnection connection,
-    final OPDSAuthenticationType auth)
+  private static OPDSHTTPException tooManyRedirects(
+    final URI uri)
   {
-    switch (auth.kind()) {
-      case AUTHENTICATION_BASIC: {
-        final var basic = (OPDSAuthenticationBasic) auth;
-        final var text =
-          new StringBuilder(64)
-            .append(basic.user())
-            .append(":")
-            .append(basic.password())
-            .toString();
-
-        final var encoded =
-          Base64.getEncoder()
-            .encodeToString(text.getBytes(StandardCharsets.US_ASCII));
-
-        connection.addRequestProperty("Authorization", "Basic " + encoded);
-        break;
+    return new OPDSHTTPException(
+      OPDSHTTPHeaders.failureMessage(uri, -1, "Too many redirects"),
+      -1,
+      "Too many redirects");
+  }
+
+  /**
+   * Make a single attempt to fetch the given URI.
+   */
+
+  private static Attempt attemptOnce(
+    final OPDSHTTPRequest request,
+    final int attempt)
+    throws OPDSHTTPException
+  {
+    final var uri = request.uri();
+    LOG.debug("GET {}", uri);
+
+    final URL url;
+    try {
+      url = uri.toURL();
+    } catch (final MalformedURLException | IllegalArgumentException e) {
+      throw new OPDSHTTPException(e, -1, "");
+    }
+
+    try {
+      final var connection = (HttpURLConnection) url.openConnection();
+      connection.setInstanceFollowRedirects(false);
+      connection.setRequestMethod("GET");
+      connection.setRequestProperty("User-Agent", OPDSHTTPHeaders.USER_AGENT);
+
+      request.authentication().ifPresent(auth -> connection.addRequestProperty(
+        "Authorization", OPDSHTTPHeaders.authorization(auth)));
+      request.ifNoneMatch().ifPresent(tag -> connection.addRequestProperty(
+        "If-None-Match", tag));
+      request.ifModifiedSince().ifPresent(date -> connection.addRequestProperty(
+        "If-Modified-Since", date));
+      request.rangeStart().ifPresent(start -> connection.addRequestProperty(
+        "Range", OPDSHTTPHeaders.range(start)));
+      request.ifRange().ifPresent(value -> connection.addRequestProperty(
+        "If-Range", value));
+
+      final var code = connection.getResponseCode();
+      if (LOG.isDebugEnabled()) {
+        LOG.debug(
+          "GET {} -> {} (attempt {})",
+          uri,
+          Integer.valueOf(code),
+          Integer.valueOf(attempt + 1));
       }
+
+      switch (code) {
+        case HttpURLConnection.HTTP_NOT_MODIFIED:
+          return Attempt.success(OPDSHTTPHeaders.notModified(
+            Optional.ofNullable(connection.getHeaderField("ETag")),
+            Optional.ofNullable(connection.getHeaderField("Last-Modified"))));
+        case HttpURLConnection.HTTP_MOVED_PERM:
+        case HttpURLConnection.HTTP_MOVED_TEMP:
+          final var location = URLDecoder.decode(
+            connection.getHeaderField("Location"),
+            "UTF-8");
+          final var base = new URL(url.toString());
+          final var next = new URL(base, location);
+
+          try {
+            return Attempt.redirect(
+              new URI(
+                next.getProtocol(),
+                next.getUserInfo(),
+                next.getHost(),
+                next.getPort(),
+                next.getPath(),
+                next.getQuery(),
+                null));
+          } catch (final URISyntaxException e) {
+            throw new OPDSHTTPException(e, -1, "");
+          }
+        default:
+          break;
+      }
+
+      return onContent(request, connection, code, attempt);
+    } catch (final OPDSHTTPException e) {
+      throw e;
+    } catch (final IOException e) {
+      LOG.error("i/o error: GET {}: ", uri, e);
+      return Attempt.retry(-1, Optional.empty());
     }
   }
 
-  private static void delay()
+  private static Attempt onContent(
+    final OPDSHTTPRequest request,
+    final HttpURLConnection connection,
+    final int code,
+    final int attempt)
+    throws IOException
   {
-    try {
-      final var seconds = RETRY_WAIT_SECONDS;
-      LOG.debug("waiting for {} seconds", Long.valueOf(seconds));
-      Thread.sleep(seconds * 1000L);
-    } catch (final InterruptedException e) {
-      LOG.error("delay interrupted: ", e);
+    final var uri = request.uri();
+
+    /*
+     * If the requested range can't be satisfied, or the server returned a part of the content
+     * that can't be understood, request the entire content instead.
+     */
+
+    final var offset = offsetOf(connection, code);
+    if (request.rangeStart().isPresent()
+      && (code == HTTP_RANGE_NOT_SATISFIABLE || offset.isEmpty())) {
+      LOG.debug("GET {}: range not usable; requesting entire content", uri);
+      connection.disconnect();
+      return attemptOnce(OPDSHTTPHeaders.withoutRange(request), attempt);
+    }
+
+    if (OPDSHTTPHeaders.isRetryable(code)) {
+      final var message = connection.getResponseMessage();
+      LOG.error("{}", OPDSHTTPHeaders.failureMessage(uri, code, message));
+      final var retryAfter =
+        OPDSHTTPHeaders.retryAfter(
+          Optional.ofNullable(connection.getHeaderField("Retry-After")),
+          Instant.now());
+      return Attempt.retry(code, retryAfter);
     }
+
+    if (code >= 400) {
+      final var message = connection.getResponseMessage();
+      final var failure_message = OPDSHTTPHeaders.failureMessage(uri, code, message);
+      throw new OPDSHTTPException(failure_message, code, message);
+    }
+
+    return Attempt.success(
+      OPDSHTTPData.builder()
+        .setSize(connection.getContentLengthLong())
+        .setContentType(connection.getContentType())
+        .setStream(connection.getInputStream())
+        .setOffset(offset.orElse(0L))
+        .setEntityTag(Optional.ofNullable(connection.getHeaderField("ETag")))
+        .setLastModified(Optional.ofNullable(connection.getHeaderField("Last-Modified")))
+        .build());
   }
 
-  private static String failureMessage(
+  private static OptionalLong offsetOf(
+    final HttpURLConnection connection,
+    final int code)
+  {
+    if (code == HttpURLConnection.HTTP_PARTIAL) {
+      return OPDSHTTPHeaders.contentRangeStart(
+        Optional.ofNullable(connection.getHeaderField("Content-Range")));
+    }
+    return OptionalLong.of(0L);
+  }
+
+  /**
+   * Consult the retry policy after a failed attempt.
+   *
+   * @return The time to wait before the next attempt
+   *
+   * @throws OPDSHTTPException If the request should not be retried
+   */
+
+  private Duration retryDelay(
     final URI uri,
-    final int code,
-    final String message)
+    final int attempts,
+    final Attempt result)
+    throws OPDSHTTPException
   {
-    return new StringBuilder(128)
-      .append("GET failed: ")
-      .append(code)
-      .append(" ")
-      .append(message)
-      .append(System.lineSeparator())
-      .append("  URI: ")
-      .append(uri)
-      .append(System.lineSeparator())
-      .toString();
+    final var delay =
+      this.retryPolicy.retryDelay(uri, attempts, result.code, result.retryAfter);
+
+    if (delay.isEmpty()) {
+      throw new OPDSHTTPException(
+        OPDSHTTPHeaders.failureMessageAttempts(uri, attempts),
+        result.code,
+        "");
+    }
+
+    LOG.debug("retrying {} in {}", uri, delay.get());
+    return delay.get();
   }
 
   @Override
@@ -107,93 +258,183 @@ public final class OPDSHTTPDefault implements OPDSHTTPType
     final Optional<OPDSAuthenticationType> auth_opt)
     throws OPDSHTTPException
   {
-    try {
-      LOG.debug("GET {}", uri);
+    return this.get(OPDSHTTPRequest.of(uri, auth_opt));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * The calling thread sleeps between failed attempts. Use {@link #getAsync(OPDSHTTPRequest,
+   * Executor)} to avoid holding a thread whilst waiting to retry. If the connection fails whilst
+   * the content is being read, and the server provided a validator for the content, the rest of
+   * the content is requested with a byte range under the same retry policy.
+   */
+
+  @Override
+  public OPDSHTTPData get(
+    final OPDSHTTPRequest request)
+    throws OPDSHTTPException
+  {
+    final var data = this.getDirect(Objects.requireNonNull(request, "request"));
+    return OPDSHTTPResumingStream.wrap(request, data, this.retryPolicy, this::getDirect);
+  }
+
+  @Override
+  public OPDSHTTPType forRetrieval()
+  {
+    return new OPDSHTTPDefault(this.retryPolicy.forRetrieval());
+  }
+
+  private OPDSHTTPData getDirect(
+    final OPDSHTTPRequest request)
+    throws OPDSHTTPException
+  {
+    var target = request;
+    var attempts = 0;
+    var redirects = 0;
 
-      final URL url;
+    while (true) {
+      final var result = attemptOnce(target, attempts);
+      if (result.data != null) {
+        return result.data;
+      }
+
+      if (result.redirect != null) {
+        redirects += 1;
+        if (redirects > REDIRECT_MAX) {
+          throw tooManyRedirects(target.uri());
+        }
+        target = OPDSHTTPHeaders.redirected(target, result.redirect);
+        attempts = 0;
+        continue;
+      }
+
+      attempts += 1;
+      final var delay = this.retryDelay(target.uri(), attempts, result);
       try {
-        url = uri.toURL();
-      } catch (final MalformedURLException e) {
+        Thread.sleep(delay.toMillis());
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
         throw new OPDSHTTPException(e, -1, "");
       }
+    }
+  }
 
-      for (var attempt = 0; attempt < RETRY_MAX_ATTEMPTS; ++attempt) {
-        try {
-          final var connection = (HttpURLConnection) url.openConnection();
-          connection.setInstanceFollowRedirects(false);
-          connection.setRequestMethod("GET");
-          connection.setRequestProperty("User-Agent", "one.lfa.opdsget");
-
-          auth_opt.ifPresent(auth -> configureConnectionAuth(connection, auth));
-
-          final var code = connection.getResponseCode();
-          if (LOG.isDebugEnabled()) {
-            LOG.debug(
-              "GET {} -> {} ({} of {})",
-              uri,
-              Integer.valueOf(code),
-              Integer.valueOf(attempt + 1),
-              Integer.valueOf(RETRY_MAX_ATTEMPTS));
-          }
+  @Override
+  public CompletableFuture<OPDSHTTPData> getAsync(
+    final URI uri,
+    final Optional<OPDSAuthenticationType> auth,
+    final Executor executor)
+  {
+    return this.getAsync(OPDSHTTPRequest.of(uri, auth), executor);
+  }
 
-          switch (connection.getResponseCode()) {
-            case HttpURLConnection.HTTP_MOVED_PERM:
-            case HttpURLConnection.HTTP_MOVED_TEMP:
-              final var location = URLDecoder.decode(
-                connection.getHeaderField("Location"),
-                "UTF-8");
-              final var base = new URL(url.toString());
-              final var next = new URL(base, location);
-
-              try {
-                return this.get(
-                  new URI(next.getProtocol(), next.getHost(), next.getPath(), next.getQuery()),
-                  Optional.empty());
-              } catch (final URISyntaxException e) {
-                throw new OPDSHTTPException(e, -1, "");
-              }
-          }
+  /**
+   * {@inheritDoc}
+   *
+   * Each attempt is executed on the given executor. Waits between failed attempts are scheduled,
+   * and do not hold a thread of the executor.
+   */
 
-          if (code >= 500) {
-            final var message = connection.getResponseMessage();
-            final var failure_message = failureMessage(uri, code, message);
-            LOG.error("{}", failure_message);
-            delay();
-            continue;
-          }
+  @Override
+  public CompletableFuture<OPDSHTTPData> getAsync(
+    final OPDSHTTPRequest request,
+    final Executor executor)
+  {
+    Objects.requireNonNull(request, "request");
+    Objects.requireNonNull(executor, "executor");
+    return this.attemptAsync(request, 0, 0, executor, executor);
+  }
 
-          if (code >= 400) {
-            final var message = connection.getResponseMessage();
-            final var failure_message = failureMessage(uri, code, message);
-            throw new OPDSHTTPException(failure_message, code, message);
-          }
+  private CompletableFuture<OPDSHTTPData> attemptAsync(
+    final OPDSHTTPRequest request,
+    final int attempts,
+    final int redirects,
+    final Executor executor,
+    final Executor start)
+  {
+    final var uri = request.uri();
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return attemptOnce(request, attempts);
+      } catch (final OPDSHTTPException e) {
+        throw new CompletionException(e);
+      }
+    }, start).thenCompose(result -> {
+      if (result.data != null) {
+        return CompletableFuture.completedFuture(
+          OPDSHTTPResumingStream.wrap(request, result.data, this.retryPolicy, this::getDirect));
+      }
 
-          return OPDSHTTPData.of(
-            connection.getContentLengthLong(),
-            connection.getContentType(),
-            connection.getInputStream());
-        } catch (final IOException e) {
-          LOG.error("i/o error: GET {}: ", uri, e);
-          delay();
+      if (result.redirect != null) {
+        if (redirects + 1 > REDIRECT_MAX) {
+          return CompletableFuture.failedFuture(tooManyRedirects(uri));
         }
+        return this.attemptAsync(
+          OPDSHTTPHeaders.redirected(request, result.redirect),
+          0,
+          redirects + 1,
+          executor,
+          executor);
       }
 
-      throw new OPDSHTTPException(
-        new StringBuilder(128)
-          .append("Failed to retrieve URI after repeated attempts")
-          .append(System.lineSeparator())
-          .append("  URI: ")
-          .append(uri)
-          .append(System.lineSeparator())
-          .append("  Attempts: ")
-          .append(RETRY_MAX_ATTEMPTS)
-          .append(System.lineSeparator())
-          .toString(),
-        -1,
-        "");
+      final var next = attempts + 1;
+      final Duration delay;
+      try {
+        delay = this.retryDelay(uri, next, result);
+      } catch (final OPDSHTTPException e) {
+        return CompletableFuture.failedFuture(e);
+      }
 
-    } catch (final OPDSHTTPException e) {
-      throw e;
+      return this.attemptAsync(
+        request,
+        next,
+        redirects,
+        executor,
+        CompletableFuture.delayedExecutor(delay.toMillis(), TimeUnit.MILLISECONDS, executor));
+    });
+  }
+
+  /**
+   * The result of a single attempt: exactly one of the data, a redirect, or a retryable failure.
+   */
+
+  private static final class Attempt
+  {
+    private final OPDSHTTPData data;
+    private final URI redirect;
+    private final int code;
+    private final Optional<Duration> retryAfter;
+
+    private Attempt(
+      final OPDSHTTPData inData,
+      final URI inRedirect,
+      final int inCode,
+      final Optional<Duration> inRetryAfter)
+    {
+      this.data = inData;
+      this.redirect = inRedirect;
+      this.code = inCode;
+      this.retryAfter = Objects.requireNonNull(inRetryAfter, "retryAfter");
+    }
+
+    static Attempt success(
+      final OPDSHTTPData data)
+    {
+      return new Attempt(Objects.requireNonNull(data, "data"), null, 0, Optional.empty());
+    }
+
+    static Attempt redirect(
+      final URI uri)
+    {
+      return new Attempt(null, Objects.requireNonNull(uri, "uri"), 0, Optional.empty());
+    }
+
+    static Attempt retry(
+      final int code,
+      final Optional<Duration> retryAfter)
+    {
+      return new Attempt(null, null, code, retryAfter);
     }
   }
 }
@@ -0,0 +1,255 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.api;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.regex.Pattern;
+
+/**
+ * Functions shared between the HTTP implementations.
+ */
+
+final class OPDSHTTPHeaders
+{
+  static final String USER_AGENT = "one.lfa.opdsget";
+
+  private static final Pattern CONTENT_RANGE =
+    Pattern.compile("bytes\\s+([0-9]+)-([0-9]+)/([0-9]+|\\*)");
+
+  private OPDSHTTPHeaders()
+  {
+
+  }
+
+  /**
+   * @param auth The authentication data
+   *
+   * @return The value of an {@code Authorization} header for the given authentication data
+   */
+
+  static String authorization(
+    final OPDSAuthenticationType auth)
+  {
+    switch (auth.kind()) {
+      case AUTHENTICATION_BASIC: {
+        final var basic = (OPDSAuthenticationBasic) auth;
+        final var text =
+          new StringBuilder(64)
+            .append(basic.user())
+            .append(":")
+            .append(basic.password())
+            .toString();
+
+        final var encoded =
+          Base64.getEncoder()
+            .encodeToString(text.getBytes(StandardCharsets.US_ASCII));
+
+        return "Basic " + encoded;
+      }
+    }
+
+    throw new IllegalStateException("Unreachable code");
+  }
+
+  /**
+   * @param code An HTTP status code
+   *
+   * @return {@code true} if a request that failed with the given code may succeed if retried
+   */
+
+  static boolean isRetryable(
+    final int code)
+  {
+    return code >= 500 || code == 429;
+  }
+
+  /**
+   * Parse the value of a {@code Retry-After} header, which may be either a number of seconds or
+   * an HTTP date.
+   *
+   * @param value The header value, if any
+   * @param now   The current time
+   *
+   * @return The requested delay, or nothing if the header is missing or unparseable
+   */
+
+  static Optional<Duration> retryAfter(
+    final Optional<String> value,
+    final Instant now)
+  {
+    if (value.isEmpty()) {
+      return Optional.empty();
+    }
+
+    final var text = value.get().trim();
+    try {
+      return Optional.of(Duration.ofSeconds(Math.max(0L, Long.parseLong(text))));
+    } catch (final NumberFormatException e) {
+      /*
+       * The value is not a number of seconds, so it may be a date.
+       */
+    }
+
+    try {
+      final var date =
+        ZonedDateTime.parse(text, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+      final var delay = Duration.between(now, date);
+      return Optional.of(delay.isNegative() ? Duration.ZERO : delay);
+    } catch (final DateTimeParseException e) {
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * @param entityTag    The entity tag returned with the response, if any
+   * @param lastModified The modification date returned with the response, if any
+   *
+   * @return The data for a {@code 304 Not Modified} response
+   */
+
+  static OPDSHTTPData notModified(
+    final Optional<String> entityTag,
+    final Optional<String> lastModified)
+  {
+    return OPDSHTTPData.builder()
+      .setSize(0L)
+      .setContentType("application/octet-stream")
+      .setStream(InputStream.nullInputStream())
+      .setNotModified(true)
+      .setEntityTag(entityTag)
+      .setLastModified(lastModified)
+      .build();
+  }
+
+  /**
+   * @param request The original request
+   * @param target  The redirect target
+   *
+   * @return The request that should be made to follow a redirect; authentication data is never
+   *   forwarded to the target
+   */
+
+  static OPDSHTTPRequest redirected(
+    final OPDSHTTPRequest request,
+    final URI target)
+  {
+    return OPDSHTTPRequest.builder()
+      .from(request)
+      .setUri(target)
+      .setAuthentication(Optional.empty())
+      .build();
+  }
+
+  /**
+   * @param request The original request
+   *
+   * @return The given request without any byte range
+   */
+
+  static OPDSHTTPRequest withoutRange(
+    final OPDSHTTPRequest request)
+  {
+    return OPDSHTTPRequest.builder()
+      .from(request)
+      .setRangeStart(OptionalLong.empty())
+      .setIfRange(Optional.empty())
+      .build();
+  }
+
+  /**
+   * @param start The offset of the first requested byte
+   *
+   * @return The value of a {@code Range} header requesting all content from the given offset
+   */
+
+  static String range(
+    final long start)
+  {
+    return "bytes=" + start + "-";
+  }
+
+  /**
+   * Parse the value of a {@code Content-Range} header.
+   *
+   * @param value The header value, if any
+   *
+   * @return The offset of the first byte of the returned part, or nothing if the header is
+   *   missing or unparseable
+   */
+
+  static OptionalLong contentRangeStart(
+    final Optional<String> value)
+  {
+    if (value.isEmpty()) {
+      return OptionalLong.empty();
+    }
+
+    final var matcher = CONTENT_RANGE.matcher(value.get().trim());
+    if (!matcher.matches()) {
+      return OptionalLong.empty();
+    }
+
+    try {
+      return OptionalLong.of(Long.parseLong(matcher.group(1)));
+    } catch (final NumberFormatException e) {
+      return OptionalLong.empty();
+    }
+  }
+
+  static String failureMessage(
+    final URI uri,
+    final int code,
+    final String message)
+  {
+    return new StringBuilder(128)
+      .append("GET failed: ")
+      .append(code)
+      .append(" ")
+      .append(message)
+      .append(System.lineSeparator())
+      .append("  URI: ")
+      .append(uri)
+      .append(System.lineSeparator())
+      .toString();
+  }
+
+  static String failureMessageAttempts(
+    final URI uri,
+    final int attempts)
+  {
+    return new StringBuilder(128)
+      .append("Failed to retrieve URI after repeated attempts")
+      .append(System.lineSeparator())
+      .append("  URI: ")
+      .append(uri)
+      .append(System.lineSeparator())
+      .append("  Attempts: ")
+      .append(attempts)
+      .append(System.lineSeparator())
+      .toString();
+  }
+}
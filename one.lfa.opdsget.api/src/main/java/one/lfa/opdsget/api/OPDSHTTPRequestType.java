@@ -0,0 +1,107 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.api;
+
+import org.immutables.value.Value;
+
+import java.net.URI;
+import java.util.Optional;
+import java.util.OptionalLong;
+
+/**
+ * An HTTP GET request.
+ */
+
+@ImmutableStyleType
+@Value.Immutable
+public interface OPDSHTTPRequestType
+{
+  /**
+   * @return The URI
+   */
+
+  @Value.Parameter
+  URI uri();
+
+  /**
+   * @return The authentication data, if any
+   */
+
+  @Value.Parameter
+  Optional<OPDSAuthenticationType> authentication();
+
+  /**
+   * An entity tag previously returned by the server for the URI. If present, the request is
+   * conditional, and the server may respond that the content is not modified.
+   *
+   * @return The value of the {@code If-None-Match} header, if any
+   *
+   * @see OPDSHTTPDataType#entityTag()
+   * @see OPDSHTTPDataType#notModified()
+   */
+
+  Optional<String> ifNoneMatch();
+
+  /**
+   * A modification date previously returned by the server for the URI, in the form that the
+   * server returned it. If present, the request is conditional, and the server may respond that
+   * the content is not modified.
+   *
+   * @return The value of the {@code If-Modified-Since} header, if any
+   *
+   * @see OPDSHTTPDataType#lastModified()
+   * @see OPDSHTTPDataType#notModified()
+   */
+
+  Optional<String> ifModifiedSince();
+
+  /**
+   * The offset of the first byte of the content that should be returned. If present, the server
+   * may respond with only the part of the content that begins at the offset, in which case
+   * {@link OPDSHTTPDataType#offset()} is equal to this value.
+   *
+   * @return The start of the requested byte range, if any
+   */
+
+  OptionalLong rangeStart();
+
+  /**
+   * A strong entity tag or modification date that the content must still have for the requested
+   * range to be returned. If the content has changed, the server returns the entire content.
+   *
+   * @return The value of the {@code If-Range} header, if any
+   *
+   * @see #rangeStart()
+   */
+
+  Optional<String> ifRange();
+
+  /**
+   * Check preconditions for the type.
+   */
+
+  @Value.Check
+  default void checkPreconditions()
+  {
+    this.rangeStart().ifPresent(start -> {
+      if (start < 0L) {
+        throw new IllegalArgumentException(
+          String.format("Range start %d must be non-negative", Long.valueOf(start)));
+      }
+    });
+  }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.api;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * A response stream that, if the connection fails part way through the content, requests the
+ * rest of the content with a byte range and continues from where it stopped. Each resumption
+ * counts as an attempt under the retry policy, and the range is only accepted if the server
+ * confirms that the content has not changed.
+ */
+
+final class OPDSHTTPResumingStream extends InputStream
+{
+  private static final Logger LOG = LoggerFactory.getLogger(OPDSHTTPResumingStream.class);
+
+  private final OPDSHTTPRequest request;
+  private final String validator;
+  private final OPDSHTTPRetryPolicyType retryPolicy;
+  private final FetcherType fetcher;
+  private final long expected;
+  private InputStream delegate;
+  private long position;
+  private int attempts;
+
+  private OPDSHTTPResumingStream(
+    final OPDSHTTPRequest inRequest,
+    final OPDSHTTPData inData,
+    final String inValidator,
+    final OPDSHTTPRetryPolicyType inRetryPolicy,
+    final FetcherType inFetcher)
+  {
+    this.request = Objects.requireNonNull(inRequest, "request");
+    this.validator = Objects.requireNonNull(inValidator, "validator");
+    this.retryPolicy = Objects.requireNonNull(inRetryPolicy, "retryPolicy");
+    this.fetcher = Objects.requireNonNull(inFetcher, "fetcher");
+    this.delegate = inData.stream();
+    this.position = inData.offset();
+    this.expected = inData.size() >= 0L ? inData.offset() + inData.size() : -1L;
+    this.attempts = 0;
+  }
+
+  /**
+   * Make the stream of the given data resumable, if the server provided a validator that allows
+   * a range of the content to be requested safely.
+   *
+   * @param request     The request that produced the data
+   * @param data        The data
+   * @param retryPolicy The policy that decides how often the stream may be resumed
+   * @param fetcher     A function that executes a request
+   *
+   * @return The data with a resumable stream, or the data unchanged
+   */
+
+  static OPDSHTTPData wrap(
+    final OPDSHTTPRequest request,
+    final OPDSHTTPData data,
+    final OPDSHTTPRetryPolicyType retryPolicy,
+    final FetcherType fetcher)
+  {
+    if (data.notModified()) {
+      return data;
+    }
+
+    final var validator = data.rangeValidator();
+    if (validator.isEmpty()) {
+      return data;
+    }
+
+    return OPDSHTTPData.builder()
+      .from(data)
+      .setStream(new OPDSHTTPResumingStream(
+        request, data, validator.get(), retryPolicy, fetcher))
+      .build();
+  }
+
+  @Override
+  public int read()
+    throws IOException
+  {
+    while (true) {
+      try {
+        final var r = this.delegate.read();
+        if (r >= 0) {
+          this.position += 1L;
+        } else {
+          this.checkComplete();
+        }
+        return r;
+      } catch (final InterruptedIOException e) {
+        throw e;
+      } catch (final IOException e) {
+        this.resume(e);
+      }
+    }
+  }
+
+  @Override
+  public int read(
+    final byte[] buffer,
+    final int offset,
+    final int length)
+    throws IOException
+  {
+    while (true) {
+      try {
+        final var r = this.delegate.read(buffer, offset, length);
+        if (r > 0) {
+          this.position += r;
+        } else if (r < 0) {
+          this.checkComplete();
+        }
+        return r;
+      } catch (final InterruptedIOException e) {
+        throw e;
+      } catch (final IOException e) {
+        this.resume(e);
+      }
+    }
+  }
+
+  @Override
+  public void close()
+    throws IOException
+  {
+    this.delegate.close();
+  }
+
+  /**
+   * A connection that is closed early may look like the end of the content, so the end of the
+   * stream is only accepted if all of the content that the server announced has been received.
+   */
+
+  private void checkComplete()
+    throws IOException
+  {
+    if (this.expected >= 0L && this.position < this.expected) {
+      throw new EOFException(
+        String.format(
+          "Premature end of content at offset %d (expected %d bytes)",
+          Long.valueOf(this.position),
+          Long.valueOf(this.expected)));
+    }
+  }
+
+  private void resume(
+    final IOException failure)
+    throws IOException
+  {
+    final var uri = this.request.uri();
+    LOG.error("i/o error: GET {} at offset {}: ", uri, Long.valueOf(this.position), failure);
+
+    this.attempts += 1;
+    final var delay =
+      this.retryPolicy.retryDelay(uri, this.attempts, -1, Optional.empty());
+    if (delay.isEmpty()) {
+      throw failure;
+    }
+
+    try {
+      Thread.sleep(delay.get().toMillis());
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      final var ex = new InterruptedIOException();
+      ex.addSuppressed(failure);
+      throw ex;
+    }
+
+    final var rangeRequest =
+      OPDSHTTPRequest.builder()
+        .from(this.request)
+        .setIfNoneMatch(Optional.empty())
+        .setIfModifiedSince(Optional.empty())
+        .setRangeStart(this.position)
+        .setIfRange(this.validator)
+        .build();
+
+    final OPDSHTTPData data;
+    try {
+      data = this.fetcher.fetch(rangeRequest);
+    } catch (final OPDSHTTPException e) {
+      failure.addSuppressed(e);
+      throw failure;
+    }
+
+    /*
+     * If the server ignored the range, or the content changed, the content can't be resumed.
+     */
+
+    if (data.offset() != this.position) {
+      LOG.error(
+        "GET {}: server did not resume at offset {} (returned offset {})",
+        uri,
+        Long.valueOf(this.position),
+        Long.valueOf(data.offset()));
+      data.stream().close();
+      throw failure;
+    }
+
+    LOG.debug("resuming {} at offset {}", uri, Long.valueOf(this.position));
+
+    try {
+      this.delegate.close();
+    } catch (final IOException e) {
+      LOG.debug("failed to close failed stream: ", e);
+    }
+    this.delegate = data.stream();
+  }
+
+  /**
+   * A function that executes a request.
+   */
+
+  @FunctionalInterface
+  interface FetcherType
+  {
+    /**
+     * Execute the request.
+     *
+     * @param request The request
+     *
+     * @return The data
+     *
+     * @throws OPDSHTTPException On errors
+     */
+
+    OPDSHTTPData fetch(OPDSHTTPRequest request)
+      throws OPDSHTTPException;
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.api;
+
+import org.immutables.value.Value;
+
+import java.time.Duration;
+
+/**
+ * Configuration values for the exponential backoff retry policy.
+ *
+ * @see OPDSHTTPRetryPolicies#exponential(OPDSHTTPRetryConfiguration)
+ */
+
+@ImmutableStyleType
+@Value.Immutable
+public interface OPDSHTTPRetryConfigurationType
+{
+  /**
+   * @return The maximum number of attempts made for each request
+   */
+
+  @Value.Default
+  default int maximumAttempts()
+  {
+    return 10;
+  }
+
+  /**
+   * @return The time to wait after the first failed attempt
+   */
+
+  @Value.Default
+  default Duration initialDelay()
+  {
+    return Duration.ofSeconds(1L);
+  }
+
+  /**
+   * @return The factor by which the delay grows after each failed attempt
+   */
+
+  @Value.Default
+  default double multiplier()
+  {
+    return 2.0;
+  }
+
+  /**
+   * @return The maximum time to wait between attempts, before jitter is applied
+   */
+
+  @Value.Default
+  default Duration maximumDelay()
+  {
+    return Duration.ofSeconds(16L);
+  }
+
+  /**
+   * The fraction of each delay that is randomized. A value of {@code 0.0} yields exact delays,
+   * whilst a value of {@code 0.5} yields delays uniformly distributed between half of and the
+   * whole computed delay. Randomizing delays prevents many requests that failed at the same time
+   * from all being retried at the same time.
+   *
+   * @return The jitter fraction in the range {@code [0.0, 1.0]}
+   */
+
+  @Value.Default
+  default double jitter()
+  {
+    return 0.5;
+  }
+
+  /**
+   * @return The longest {@code Retry-After} delay that will be honoured; requests for which the
+   *   server asks for a longer delay fail immediately
+   */
+
+  @Value.Default
+  default Duration maximumRetryAfter()
+  {
+    return Duration.ofMinutes(5L);
+  }
+
+  /**
+   * The total number of retries that may be made across all requests that use the policy. Once
+   * the budget is exhausted, failed requests are not retried. This prevents a run against a
+   * server that is down from spending hours in backoff.
+   *
+   * @return The retry budget
+   */
+
+  @Value.Default
+  default int retryBudget()
+  {
+    return 1000;
+  }
+
+  /**
+   * Check preconditions for the type.
+   */
+
+  @Value.Check
+  default void checkPreconditions()
+  {
+    if (this.maximumAttempts() < 1) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Maximum attempts %d must be at least 1",
+          Integer.valueOf(this.maximumAttempts())));
+    }
+    if (this.initialDelay().isNegative()) {
+      throw new IllegalArgumentException(
+        String.format("Initial delay %s must be non-negative", this.initialDelay()));
+    }
+    if (this.maximumDelay().compareTo(this.initialDelay()) < 0) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Maximum delay %s must be at least the initial delay %s",
+          this.maximumDelay(),
+          this.initialDelay()));
+    }
+    if (!(this.multiplier() >= 1.0)) {
+      throw new IllegalArgumentException(
+        String.format("Multiplier %f must be at least 1.0", Double.valueOf(this.multiplier())));
+    }
+    if (!(this.jitter() >= 0.0 && this.jitter() <= 1.0)) {
+      throw new IllegalArgumentException(
+        String.format("Jitter %f must be in the range [0.0, 1.0]", Double.valueOf(this.jitter())));
+    }
+    if (this.maximumRetryAfter().isNegative()) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Maximum Retry-After %s must be non-negative",
+          this.maximumRetryAfter()));
+    }
+    if (this.retryBudget() < 0) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Retry budget %d must be non-negative",
+          Integer.valueOf(this.retryBudget())));
+    }
+  }
+}
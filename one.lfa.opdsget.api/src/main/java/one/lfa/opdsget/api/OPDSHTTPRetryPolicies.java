@@ -0,0 +1,142 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.api;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Standard retry policies.
+ */
+
+public final class OPDSHTTPRetryPolicies
+{
+  private OPDSHTTPRetryPolicies()
+  {
+
+  }
+
+  /**
+   * Create a policy that waits for an exponentially increasing, randomized delay between
+   * attempts, honours {@code Retry-After} headers, and gives up once the configured number of
+   * attempts or the configured retry budget has been used. The budget is shared between all
+   * requests made during a single retrieval, and is reset by {@link
+   * OPDSHTTPRetryPolicyType#forRetrieval()}.
+   *
+   * @param configuration The policy configuration
+   *
+   * @return A new policy
+   */
+
+  public static OPDSHTTPRetryPolicyType exponential(
+    final OPDSHTTPRetryConfiguration configuration)
+  {
+    return new Exponential(configuration);
+  }
+
+  /**
+   * Create a policy using the default configuration.
+   *
+   * @return A new policy
+   *
+   * @see #exponential(OPDSHTTPRetryConfiguration)
+   */
+
+  public static OPDSHTTPRetryPolicyType exponential()
+  {
+    return exponential(OPDSHTTPRetryConfiguration.builder().build());
+  }
+
+  private static final class Exponential implements OPDSHTTPRetryPolicyType
+  {
+    private static final Logger LOG = LoggerFactory.getLogger(Exponential.class);
+
+    private final OPDSHTTPRetryConfiguration configuration;
+    private final AtomicInteger budget;
+
+    Exponential(
+      final OPDSHTTPRetryConfiguration inConfiguration)
+    {
+      this.configuration =
+        Objects.requireNonNull(inConfiguration, "configuration");
+      this.budget =
+        new AtomicInteger(inConfiguration.retryBudget());
+    }
+
+    @Override
+    public Optional<Duration> retryDelay(
+      final URI uri,
+      final int attempts,
+      final int code,
+      final Optional<Duration> retryAfter)
+    {
+      Objects.requireNonNull(uri, "uri");
+      Objects.requireNonNull(retryAfter, "retryAfter");
+
+      if (attempts >= this.configuration.maximumAttempts()) {
+        return Optional.empty();
+      }
+
+      if (retryAfter.isPresent()) {
+        final var maximum = this.configuration.maximumRetryAfter();
+        if (retryAfter.get().compareTo(maximum) > 0) {
+          LOG.error(
+            "server requested a retry delay of {} for {}, exceeding the maximum {}",
+            retryAfter.get(),
+            uri,
+            maximum);
+          return Optional.empty();
+        }
+      }
+
+      if (this.budget.getAndUpdate(x -> Math.max(0, x - 1)) <= 0) {
+        LOG.error("retry budget exhausted; not retrying {}", uri);
+        return Optional.empty();
+      }
+
+      final var backoff = this.backoff(attempts);
+      return Optional.of(retryAfter.filter(d -> d.compareTo(backoff) > 0).orElse(backoff));
+    }
+
+    @Override
+    public OPDSHTTPRetryPolicyType forRetrieval()
+    {
+      return new Exponential(this.configuration);
+    }
+
+    private Duration backoff(
+      final int attempts)
+    {
+      final var initial = (double) this.configuration.initialDelay().toMillis();
+      final var maximum = (double) this.configuration.maximumDelay().toMillis();
+      final var exponent = (double) Math.max(0, attempts - 1);
+      final var base =
+        Math.min(maximum, initial * Math.pow(this.configuration.multiplier(), exponent));
+
+      final var jitter = this.configuration.jitter();
+      final var random = ThreadLocalRandom.current().nextDouble();
+      return Duration.ofMillis((long) (base * (1.0 - (jitter * random))));
+    }
+  }
+}
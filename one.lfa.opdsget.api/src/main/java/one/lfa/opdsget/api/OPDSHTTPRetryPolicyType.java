@@ -0,0 +1,60 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.api;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.Optional;
+
+/**
+ * A policy that decides whether, and when, a failed HTTP request should be attempted again.
+ * Policies may keep state (such as a retry budget) that is shared between all requests made
+ * during a single retrieval, and must therefore be thread-safe.
+ */
+
+public interface OPDSHTTPRetryPolicyType
+{
+  /**
+   * Decide whether a failed request should be attempted again.
+   *
+   * @param uri        The URI of the failed request
+   * @param attempts   The number of attempts that have been made so far, including the failed one
+   * @param code       The HTTP status code of the failed attempt, or {@code -1} if the attempt
+   *                   failed with an I/O error
+   * @param retryAfter The delay requested by the server with a {@code Retry-After} header, if any
+   *
+   * @return The time to wait before the next attempt, or nothing if the request should fail
+   */
+
+  Optional<Duration> retryDelay(
+    URI uri,
+    int attempts,
+    int code,
+    Optional<Duration> retryAfter);
+
+  /**
+   * Obtain a policy for a single retrieval. Policies that keep state between requests return a
+   * new policy with that state reset. The default implementation returns this policy.
+   *
+   * @return A policy for a single retrieval
+   */
+
+  default OPDSHTTPRetryPolicyType forRetrieval()
+  {
+    return this;
+  }
+}
@@ -18,6 +18,9 @@ package one.lfa.opdsget.api;
 
 import java.net.URI;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 /**
  * An abstraction over HTTP requests.
@@ -40,4 +43,96 @@ public interface OPDSHTTPType
     URI uri,
     Optional<OPDSAuthenticationType> auth)
     throws OPDSHTTPException;
+
+  /**
+   * Make a GET request asynchronously. The returned future is completed when the response headers
+   * have been received; the content is then read from the returned data's stream. The future
+   * fails with an {@link OPDSHTTPException} on errors such as I/O errors or error codes from the
+   * server.
+   *
+   * The default implementation simply executes {@link #get(URI, Optional)} on the given executor.
+   * Implementations that are capable of non-blocking I/O should override this method so that no
+   * thread is held while waiting on the network.
+   *
+   * @param uri      The URI
+   * @param auth     The authentication data, if any
+   * @param executor An executor that may be used for any blocking work
+   *
+   * @return The remote HTTP data
+   */
+
+  default CompletableFuture<OPDSHTTPData> getAsync(
+    final URI uri,
+    final Optional<OPDSAuthenticationType> auth,
+    final Executor executor)
+  {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return this.get(uri, auth);
+      } catch (final OPDSHTTPException e) {
+        throw new CompletionException(e);
+      }
+    }, executor);
+  }
+
+  /**
+   * Make a GET request.
+   *
+   * The default implementation ignores any conditional headers specified by the request, and
+   * delegates to {@link #get(URI, Optional)}.
+   *
+   * @param request The request
+   *
+   * @return The remote HTTP data
+   *
+   * @throws OPDSHTTPException On errors such as I/O errors or error codes from the server
+   */
+
+  default OPDSHTTPData get(
+    final OPDSHTTPRequest request)
+    throws OPDSHTTPException
+  {
+    return this.get(request.uri(), request.authentication());
+  }
+
+  /**
+   * Make a GET request asynchronously.
+   *
+   * The default implementation simply executes {@link #get(OPDSHTTPRequest)} on the given
+   * executor.
+   *
+   * @param request  The request
+   * @param executor An executor that may be used for any blocking work
+   *
+   * @return The remote HTTP data
+   *
+   * @see #getAsync(URI, Optional, Executor)
+   */
+
+  default CompletableFuture<OPDSHTTPData> getAsync(
+    final OPDSHTTPRequest request,
+    final Executor executor)
+  {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return this.get(request);
+      } catch (final OPDSHTTPException e) {
+        throw new CompletionException(e);
+      }
+    }, executor);
+  }
+
+  /**
+   * Obtain an HTTP implementation for a single retrieval. Implementations with retry policies
+   * that keep state between requests return an implementation that uses {@link
+   * OPDSHTTPRetryPolicyType#forRetrieval()}. The default implementation returns this
+   * implementation.
+   *
+   * @return An HTTP implementation for a single retrieval
+   */
+
+  default OPDSHTTPType forRetrieval()
+  {
+    return this;
+  }
 }
@@ -0,0 +1,71 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.api;
+
+import org.immutables.value.Value;
+
+import java.time.Duration;
+
+/**
+ * Limits on the requests made to a single host.
+ */
+
+@ImmutableStyleType
+@Value.Immutable
+public interface OPDSHostLimitsType
+{
+  /**
+   * @return The maximum number of requests that may be in progress at any one time
+   */
+
+  @Value.Default
+  default int maximumConcurrentRequests()
+  {
+    return 8;
+  }
+
+  /**
+   * @return The minimum time between the starts of consecutive requests
+   */
+
+  @Value.Default
+  default Duration minimumRequestInterval()
+  {
+    return Duration.ZERO;
+  }
+
+  /**
+   * Check preconditions for the type.
+   */
+
+  @Value.Check
+  default void checkPreconditions()
+  {
+    if (this.maximumConcurrentRequests() < 1) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Maximum concurrent requests %d must be at least 1",
+          Integer.valueOf(this.maximumConcurrentRequests())));
+    }
+    if (this.minimumRequestInterval().isNegative()) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Minimum request interval %s must be non-negative",
+          this.minimumRequestInterval()));
+    }
+  }
+}
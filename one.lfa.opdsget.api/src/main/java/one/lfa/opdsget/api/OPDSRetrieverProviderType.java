@@ -35,4 +35,20 @@ public interface OPDSRetrieverProviderType
    */
 
   OPDSRetrieverType create(ExecutorService executor);
+
+  /**
+   * Create a new OPDS retriever that performs all of its work on virtual threads, with a new
+   * virtual thread for each task.
+   *
+   * @return A new retriever
+   *
+   * @throws UnsupportedOperationException If the running JVM does not support virtual threads
+   * @see OPDSExecutors#virtualThreadPerTask()
+   */
+
+  default OPDSRetrieverType createWithVirtualThreads()
+    throws UnsupportedOperationException
+  {
+    return this.create(OPDSExecutors.virtualThreadPerTask());
+  }
 }
@@ -0,0 +1,52 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.api;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+
+/**
+ * A processor for a single OPDS document that reads and writes the document as a stream.
+ *
+ * @see OPDSDocumentProcessorType
+ */
+
+public interface OPDSStreamingDocumentProcessorType
+{
+  /**
+   * Process an input document, writing the processed document to the given output stream. The
+   * processing performed is the same as that performed by {@link OPDSDocumentProcessorType}.
+   * Neither stream is closed.
+   *
+   * @param configuration The OPDS retriever configuration
+   * @param uri           The URI of the input document, against which relative links are resolved
+   * @param input         The input document
+   * @param output        The output stream
+   *
+   * @return A processed document
+   *
+   * @throws Exception On errors
+   */
+
+  OPDSDocumentProcessed process(
+    OPDSGetConfiguration configuration,
+    URI uri,
+    InputStream input,
+    OutputStream output)
+    throws Exception;
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.api;
+
+import org.immutables.value.Value;
+
+/**
+ * Limits on the resources used to transform content, such as squashing books and scaling cover
+ * images, once it has been retrieved.
+ */
+
+@ImmutableStyleType
+@Value.Immutable
+public interface OPDSTransformLimitsType
+{
+  /**
+   * @return The number of threads used to scale cover images
+   */
+
+  @Value.Default
+  default int imageScaleThreads()
+  {
+    return Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * A decoded image can occupy many times the size of the file from which it was read, so the
+   * number of images that are decoded at any one time is limited separately from the number of
+   * threads.
+   *
+   * @return The maximum number of cover images that may be decoded at any one time
+   */
+
+  @Value.Default
+  default int maximumDecodedImages()
+  {
+    return this.imageScaleThreads();
+  }
+
+  /**
+   * @return The number of threads used to squash books
+   */
+
+  @Value.Default
+  default int squashThreads()
+  {
+    return Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * Check preconditions for the type.
+   */
+
+  @Value.Check
+  default void checkPreconditions()
+  {
+    if (this.imageScaleThreads() < 1) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Image scale thread count %d must be at least 1",
+          Integer.valueOf(this.imageScaleThreads())));
+    }
+    if (this.squashThreads() < 1) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Squash thread count %d must be at least 1",
+          Integer.valueOf(this.squashThreads())));
+    }
+    if (this.maximumDecodedImages() < 1) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Maximum decoded images %d must be at least 1",
+          Integer.valueOf(this.maximumDecodedImages())));
+    }
+  }
+}
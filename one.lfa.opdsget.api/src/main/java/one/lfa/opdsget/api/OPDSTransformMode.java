@@ -0,0 +1,39 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.api;
+
+/**
+ * The points at which retrieved books are squashed and images are scaled. The files produced are
+ * identical in either case.
+ */
+
+public enum OPDSTransformMode
+{
+  /**
+   * Every book and image is transformed once all files have been retrieved.
+   */
+
+  AFTER_RETRIEVAL,
+
+  /**
+   * Each book and image is transformed as soon as it has been retrieved, whilst other files are
+   * still being retrieved. A file that cannot be transformed during the retrieval is transformed
+   * again once all files have been retrieved.
+   */
+
+  DURING_RETRIEVAL
+}
@@ -28,23 +28,39 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.ParseException;
+import java.time.Duration;
 import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.OptionalDouble;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
 import java.util.function.Function;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import one.lfa.epubsquash.vanilla.EPUBSquashers;
 import one.lfa.opdsget.api.OPDSAuthenticationPatternMappedParser;
 import one.lfa.opdsget.api.OPDSAuthenticationType;
+import one.lfa.opdsget.api.OPDSArchiveMode;
+import one.lfa.opdsget.api.OPDSCrawlLimits;
+import one.lfa.opdsget.api.OPDSExecutors;
+import one.lfa.opdsget.api.OPDSFeedProcessorKind;
 import one.lfa.opdsget.api.OPDSGetConfiguration;
 import one.lfa.opdsget.api.OPDSGetKind;
+import one.lfa.opdsget.api.OPDSHTTPClient;
+import one.lfa.opdsget.api.OPDSHTTPClientConfiguration;
 import one.lfa.opdsget.api.OPDSHTTPDefault;
+import one.lfa.opdsget.api.OPDSHTTPRetryConfiguration;
+import one.lfa.opdsget.api.OPDSHTTPRetryPolicies;
+import one.lfa.opdsget.api.OPDSHTTPType;
+import one.lfa.opdsget.api.OPDSHostLimits;
 import one.lfa.opdsget.api.OPDSSquashConfiguration;
+import one.lfa.opdsget.api.OPDSTransformLimits;
+import one.lfa.opdsget.api.OPDSTransformMode;
 import one.lfa.opdsget.api.OPDSURIRewriterType;
 import one.lfa.opdsget.api.OPDSURIRewriters;
 import one.lfa.opdsget.vanilla.OPDSManifestWriters;
@@ -60,6 +76,9 @@ public final class Main
 {
   private static final Logger LOG = LoggerFactory.getLogger(Main.class);
 
+  private static final Pattern HOST_LIMIT =
+    Pattern.compile("([^=\\s]+)=([0-9]+)(?:/([0-9]+))?");
+
   private Main()
   {
 
@@ -125,50 +144,23 @@ public final class Main
     LOG.debug("excluding content kinds: {}", excluded_kinds);
     LOG.debug("including content kinds: {}", included_kinds);
 
-    final var exec =
-      Executors.newFixedThreadPool(
-        4,
-        runnable -> {
-          final var th = new Thread(runnable);
-          th.setName("one.lfa.opdsget.io[" + th.getId() + "]");
-          return th;
-        });
-
+    final ExecutorService exec;
     try {
-      final var builder =
-        OPDSGetConfiguration.builder()
-          .setOutput(parsed_arguments.output_directory.toAbsolutePath())
-          .setOutputManifestBaseURI(Optional.ofNullable(parsed_arguments.output_manifest_base_uri))
-          .setOutputManifestID(parsed_arguments.output_manifest_uuid)
-          .setOutputManifestTitle(parsed_arguments.output_manifest_title)
-          .setRemoteURI(parsed_arguments.feed)
-          .setFetchedKinds(included_kinds)
-          .setUriRewriter(uriRewriterStrategy(
-            parsed_arguments,
-            parsed_arguments.uri_rewrite_strategy))
-          .setOutputArchive(
-            Optional.ofNullable(parsed_arguments.output_archive)
-              .map(Paths::get)
-              .map(Path::toAbsolutePath))
-          .setScaleImages(OptionalDouble.of(parsed_arguments.scaleCoverImages))
-          .setAuthenticationSupplier(loadAuth(parsed_arguments.auth));
-
-      if (parsed_arguments.squash) {
-        builder.setSquash(
-          OPDSSquashConfiguration.builder()
-            .setMaximumImageHeight(parsed_arguments.image_max_height)
-            .setMaximumImageWidth(parsed_arguments.image_max_width)
-            .setScaleFactor(parsed_arguments.image_scale)
-            .build());
-      }
+      exec = executor(parsed_arguments);
+    } catch (final Exception e) {
+      LOG.error("could not create executor: {}", e.getMessage());
+      System.exit(1);
+      return;
+    }
 
-      final var config = builder.build();
+    try {
+      final var config = configuration(parsed_arguments, included_kinds);
 
       final var retriever =
         OPDSRetrievers.providerWith(
           new EPUBSquashers(),
           new OPDSManifestWriters(),
-          new OPDSHTTPDefault())
+          httpClient(parsed_arguments))
           .create(exec);
 
       retriever.retrieve(config).get();
@@ -186,6 +178,143 @@ public final class Main
     }
   }
 
+  private static OPDSGetConfiguration configuration(
+    final Arguments arguments,
+    final Set<OPDSGetKind> included_kinds)
+    throws IOException, ParseException
+  {
+    final var builder =
+      OPDSGetConfiguration.builder()
+        .setOutput(arguments.output_directory.toAbsolutePath())
+        .setOutputManifestBaseURI(Optional.ofNullable(arguments.output_manifest_base_uri))
+        .setOutputManifestID(arguments.output_manifest_uuid)
+        .setOutputManifestTitle(arguments.output_manifest_title)
+        .setRemoteURI(arguments.feed)
+        .setFetchedKinds(included_kinds)
+        .setUriRewriter(uriRewriterStrategy(
+          arguments,
+          arguments.uri_rewrite_strategy))
+        .setOutputArchive(
+          Optional.ofNullable(arguments.output_archive)
+            .map(Paths::get)
+            .map(Path::toAbsolutePath))
+        .setOutputArchiveMode(arguments.output_archive_mode)
+        .setScaleImages(OptionalDouble.of(arguments.scaleCoverImages))
+        .setAuthenticationSupplier(loadAuth(arguments.auth))
+        .setFeedProcessor(arguments.feed_processor)
+        .setCrawlLimits(
+          OPDSCrawlLimits.builder()
+            .setMaximumActiveTasks(arguments.crawl_max_active)
+            .setMaximumQueuedDownloads(arguments.crawl_max_queued_downloads)
+            .build())
+        .setTransformLimits(transformLimits(arguments))
+        .setTransformCache(!arguments.disable_transform_cache)
+        .setTransformMode(arguments.transform_mode)
+        .setSearchIndexBinary(arguments.search_index_binary)
+        .setSearchIndexNGrams(arguments.search_index_ngrams)
+        .setHostLimitsDefault(
+          OPDSHostLimits.builder()
+            .setMaximumConcurrentRequests(arguments.host_max_requests)
+            .setMinimumRequestInterval(Duration.ofMillis(arguments.host_request_interval))
+            .build());
+
+    for (final var limit : arguments.host_limits) {
+      hostLimit(builder, limit);
+    }
+
+    if (arguments.squash) {
+      builder.setSquash(
+        OPDSSquashConfiguration.builder()
+          .setMaximumImageHeight(arguments.image_max_height)
+          .setMaximumImageWidth(arguments.image_max_width)
+          .setScaleFactor(arguments.image_scale)
+          .build());
+    }
+
+    return builder.build();
+  }
+
+  private static OPDSTransformLimits transformLimits(
+    final Arguments arguments)
+  {
+    final var builder = OPDSTransformLimits.builder();
+    if (arguments.image_scale_threads != null) {
+      builder.setImageScaleThreads(arguments.image_scale_threads.intValue());
+    }
+    if (arguments.image_max_decoded != null) {
+      builder.setMaximumDecodedImages(arguments.image_max_decoded.intValue());
+    }
+    if (arguments.squash_threads != null) {
+      builder.setSquashThreads(arguments.squash_threads.intValue());
+    }
+    return builder.build();
+  }
+
+  /**
+   * Parse a host limit of the form {@code HOST=REQUESTS[/INTERVAL-MILLISECONDS]}.
+   */
+
+  private static void hostLimit(
+    final OPDSGetConfiguration.Builder builder,
+    final String text)
+  {
+    final var matcher = HOST_LIMIT.matcher(text.trim());
+    if (!matcher.matches()) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Could not parse host limit '%s' (expected HOST=REQUESTS[/INTERVAL-MILLISECONDS])",
+          text));
+    }
+
+    final var limits = OPDSHostLimits.builder();
+    limits.setMaximumConcurrentRequests(Integer.parseInt(matcher.group(2)));
+    if (matcher.group(3) != null) {
+      limits.setMinimumRequestInterval(Duration.ofMillis(Long.parseLong(matcher.group(3))));
+    }
+
+    builder.putHostLimits(matcher.group(1).toLowerCase(Locale.ROOT), limits.build());
+  }
+
+  private static ExecutorService executor(
+    final Arguments arguments)
+  {
+    switch (arguments.executor) {
+      case FIXED:
+        return OPDSExecutors.fixedThreadPool(arguments.threads);
+      case VIRTUAL:
+        return OPDSExecutors.virtualThreadPerTask();
+    }
+
+    throw new IllegalStateException("Unreachable code");
+  }
+
+  private static OPDSHTTPType httpClient(
+    final Arguments arguments)
+  {
+    final var retryPolicy =
+      OPDSHTTPRetryPolicies.exponential(
+        OPDSHTTPRetryConfiguration.builder()
+          .setMaximumAttempts(arguments.http_retry_attempts)
+          .setMaximumDelay(Duration.ofSeconds(arguments.http_retry_max_delay))
+          .setRetryBudget(arguments.http_retry_budget)
+          .build());
+
+    switch (arguments.http_client) {
+      case URLCONNECTION:
+        return new OPDSHTTPDefault(retryPolicy);
+      case POOLED:
+        return OPDSHTTPClient.create(
+          OPDSHTTPClientConfiguration.builder()
+            .setConnectTimeout(Duration.ofSeconds(arguments.http_connect_timeout))
+            .setRequestTimeout(Duration.ofSeconds(arguments.http_request_timeout))
+            .setPreferHTTP2(!arguments.http_disable_http2)
+            .setRetryPolicy(retryPolicy)
+            .build());
+    }
+
+    throw new IllegalStateException("Unreachable code");
+  }
+
   private static OPDSURIRewriterType uriRewriterStrategy(
     final Arguments arguments,
     final OPDSURIRewriteStrategy strategy)
@@ -271,6 +400,36 @@ public final class Main
     RELATIVE
   }
 
+  enum OPDSExecutorKind
+  {
+    /**
+     * Work is performed on a fixed-size pool of platform threads.
+     */
+
+    FIXED,
+
+    /**
+     * Work is performed on a new virtual thread per task.
+     */
+
+    VIRTUAL
+  }
+
+  enum OPDSHTTPClientKind
+  {
+    /**
+     * A new {@code HttpURLConnection} is opened for each request.
+     */
+
+    URLCONNECTION,
+
+    /**
+     * A single pooled {@code HttpClient} is used for all requests.
+     */
+
+    POOLED
+  }
+
   private static final class Arguments
   {
     @Parameter(
@@ -298,6 +457,12 @@ public final class Main
       required = false)
     private String output_archive;
 
+    @Parameter(
+      names = "--output-archive-mode",
+      description = "Whether files are compressed into the zip archive during or after retrieval",
+      required = false)
+    private OPDSArchiveMode output_archive_mode = OPDSArchiveMode.DURING_RETRIEVAL;
+
     @Parameter(
       names = "--output-manifest-base-uri",
       description = "The base URI that will be placed into manifest files",
@@ -359,18 +524,151 @@ public final class Main
       description = "The image scale value")
     private double image_scale = 1.0;
 
+    @Parameter(
+      names = "--search-index-binary",
+      required = false,
+      description = "True if a binary search index should be written alongside index.txt")
+    private boolean search_index_binary;
+
+    @Parameter(
+      names = "--search-index-ngrams",
+      required = false,
+      description = "True if an n-gram search index should be written for substring searches")
+    private boolean search_index_ngrams;
+
     @Parameter(
       names = "--squash",
       required = false,
       description = "True if EPUB files should be squashed to reduce their size")
     private boolean squash;
 
+    @Parameter(
+      names = "--squash-threads",
+      required = false,
+      description = "The number of threads used to squash EPUB files (Defaults to the number of processors)")
+    private Integer squash_threads;
+
     @Parameter(
       names = "--scale-cover-images",
       required = false,
       description = "A scale value in the range (0.0, 1.0] by which to scale cover images")
     private double scaleCoverImages = 1.0;
 
+    @Parameter(
+      names = "--scale-cover-images-threads",
+      required = false,
+      description = "The number of threads used to scale cover images (Defaults to the number of processors)")
+    private Integer image_scale_threads;
+
+    @Parameter(
+      names = "--scale-cover-images-max-decoded",
+      required = false,
+      description = "The maximum number of cover images decoded at any one time (Defaults to the number of threads)")
+    private Integer image_max_decoded;
+
+    @Parameter(
+      names = "--disable-transform-cache",
+      required = false,
+      description = "True if squashed books and scaled images should not be cached between runs")
+    private boolean disable_transform_cache;
+
+    @Parameter(
+      names = "--transform-mode",
+      description = "Whether books are squashed and images scaled during or after retrieval",
+      required = false)
+    private OPDSTransformMode transform_mode = OPDSTransformMode.AFTER_RETRIEVAL;
+
+    @Parameter(
+      names = "--feed-processor",
+      required = false,
+      description = "The implementation used to rewrite feeds")
+    private OPDSFeedProcessorKind feed_processor = OPDSFeedProcessorKind.STREAMING;
+
+    @Parameter(
+      names = "--executor",
+      required = false,
+      description = "The kind of executor used to perform I/O (VIRTUAL requires Java 21+)")
+    private OPDSExecutorKind executor = OPDSExecutorKind.FIXED;
+
+    @Parameter(
+      names = "--threads",
+      required = false,
+      description = "The number of threads used to perform I/O (FIXED only)")
+    private int threads = 4;
+
+    @Parameter(
+      names = "--crawl-max-active",
+      required = false,
+      description = "The maximum number of feeds and downloads in progress at any one time")
+    private int crawl_max_active = 64;
+
+    @Parameter(
+      names = "--crawl-max-queued-downloads",
+      required = false,
+      description = "The number of queued downloads at which feeds stop being expanded")
+    private int crawl_max_queued_downloads = 10_000;
+
+    @Parameter(
+      names = "--host-max-requests",
+      required = false,
+      description = "The maximum number of requests in progress to a single host")
+    private int host_max_requests = 8;
+
+    @Parameter(
+      names = "--host-request-interval",
+      required = false,
+      description = "The minimum number of milliseconds between the starts of requests to a single host")
+    private long host_request_interval;
+
+    @Parameter(
+      names = "--host-limit",
+      required = false,
+      description = "Limits for a specific host, as HOST=REQUESTS[/INTERVAL-MILLISECONDS] "
+        + "(Specify multiple times for multiple hosts)")
+    private List<String> host_limits = List.of();
+
+    @Parameter(
+      names = "--http-client",
+      required = false,
+      description = "The HTTP client implementation that will be used to fetch content")
+    private OPDSHTTPClientKind http_client = OPDSHTTPClientKind.POOLED;
+
+    @Parameter(
+      names = "--http-connect-timeout",
+      required = false,
+      description = "The maximum number of seconds allowed to establish a connection (POOLED only)")
+    private long http_connect_timeout = 30L;
+
+    @Parameter(
+      names = "--http-request-timeout",
+      required = false,
+      description = "The maximum number of seconds allowed to wait for a response (POOLED only)")
+    private long http_request_timeout = 60L;
+
+    @Parameter(
+      names = "--http-disable-http2",
+      required = false,
+      description = "True if HTTP/2 should not be negotiated with servers (POOLED only)")
+    private boolean http_disable_http2;
+
+    @Parameter(
+      names = "--http-retry-attempts",
+      required = false,
+      description = "The maximum number of attempts made for each request")
+    private int http_retry_attempts = 10;
+
+    @Parameter(
+      names = "--http-retry-max-delay",
+      required = false,
+      description = "The maximum number of seconds to wait between attempts")
+    private long http_retry_max_delay = 16L;
+
+    @Parameter(
+      names = "--http-retry-budget",
+      required = false,
+      description = "The maximum number of retries made across all requests")
+    private int http_retry_budget = 1000;
+
     Arguments()
     {
 
@@ -0,0 +1,68 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.tests.api;
+
+import one.lfa.opdsget.api.OPDSExecutors;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+
+public final class OPDSExecutorsTest
+{
+  @Test
+  public void testFixedInvalid()
+  {
+    Assert.assertThrows(
+      IllegalArgumentException.class,
+      () -> OPDSExecutors.fixedThreadPool(0));
+  }
+
+  @Test
+  public void testFixed()
+    throws Exception
+  {
+    final var exec = OPDSExecutors.fixedThreadPool(2);
+    try {
+      final var name =
+        CompletableFuture.supplyAsync(() -> Thread.currentThread().getName(), exec).get();
+      Assert.assertTrue(name, name.startsWith("one.lfa.opdsget.io["));
+    } finally {
+      exec.shutdown();
+    }
+  }
+
+  @Test
+  public void testVirtual()
+    throws Exception
+  {
+    if (!OPDSExecutors.virtualThreadsSupported()) {
+      Assert.assertThrows(
+        UnsupportedOperationException.class,
+        OPDSExecutors::virtualThreadPerTask);
+      return;
+    }
+
+    final var exec = OPDSExecutors.virtualThreadPerTask();
+    try {
+      final var value = CompletableFuture.supplyAsync(() -> Integer.valueOf(23), exec).get();
+      Assert.assertEquals(Integer.valueOf(23), value);
+    } finally {
+      exec.shutdown();
+    }
+  }
+}
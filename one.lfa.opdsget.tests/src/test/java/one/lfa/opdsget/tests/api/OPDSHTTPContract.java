@@ -17,6 +17,7 @@
 package one.lfa.opdsget.tests.api;
 
 import one.lfa.opdsget.api.OPDSHTTPException;
+import one.lfa.opdsget.api.OPDSHTTPRequest;
 import one.lfa.opdsget.api.OPDSHTTPType;
 import fi.iki.elonen.NanoHTTPD;
 import org.junit.After;
@@ -25,8 +26,16 @@ import org.junit.Before;
 import org.junit.Test;
 import org.slf4j.Logger;
 
+import java.io.ByteArrayInputStream;
 import java.net.URI;
+import java.time.Duration;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 public abstract class OPDSHTTPContract
 {
@@ -77,6 +86,453 @@ public abstract class OPDSHTTPContract
     });
   }
 
+  @Test(timeout = 90_000L)
+  public final void testRetryAfterTooManyRequests()
+    throws Exception
+  {
+    final var requests = new AtomicInteger();
+
+    this.httpd =
+      new NanoHTTPD(20000)
+      {
+        @Override
+        public Response serve(final IHTTPSession session)
+        {
+          OPDSHTTPContract.this.logger.debug("request: {}", session);
+          if (requests.incrementAndGet() == 1) {
+            final var response =
+              NanoHTTPD.newFixedLengthResponse(
+                Response.Status.TOO_MANY_REQUESTS,
+                "text/plain",
+                "Slow down");
+            response.addHeader("Retry-After", "1");
+            return response;
+          }
+          return NanoHTTPD.newFixedLengthResponse(
+            Response.Status.OK,
+            "text/plain",
+            "Good news");
+        }
+      };
+
+    this.httpd.start();
+
+    final var http = this.http();
+    final var timeThen = System.nanoTime();
+    final var data =
+      http.get(URI.create("http://localhost:20000/index.html"), Optional.empty());
+    final var elapsed = Duration.ofNanos(System.nanoTime() - timeThen);
+
+    try (var stream = data.stream()) {
+      Assert.assertEquals("Good news", new String(stream.readAllBytes(), UTF_8));
+    }
+    Assert.assertEquals(2, requests.get());
+    Assert.assertTrue(
+      "Must have waited for the Retry-After delay: " + elapsed,
+      elapsed.compareTo(Duration.ofMillis(950L)) >= 0);
+  }
+
+  @Test(timeout = 90_000L)
+  public final void testGetAsyncRetryOK()
+    throws Exception
+  {
+    final var requests = new AtomicInteger();
+
+    this.httpd =
+      new NanoHTTPD(20000)
+      {
+        @Override
+        public Response serve(final IHTTPSession session)
+        {
+          OPDSHTTPContract.this.logger.debug("request: {}", session);
+          if (requests.incrementAndGet() <= 2) {
+            return NanoHTTPD.newFixedLengthResponse(
+              Response.Status.SERVICE_UNAVAILABLE,
+              "text/plain",
+              "Bad news");
+          }
+          return NanoHTTPD.newFixedLengthResponse(
+            Response.Status.OK,
+            "text/plain",
+            "Good news");
+        }
+      };
+
+    this.httpd.start();
+
+    final var http = this.http();
+    final var exec = Executors.newSingleThreadExecutor();
+    try {
+      final var data =
+        http.getAsync(
+          URI.create("http://localhost:20000/index.html"),
+          Optional.empty(),
+          exec).get();
+
+      try (var stream = data.stream()) {
+        Assert.assertEquals("Good news", new String(stream.readAllBytes(), UTF_8));
+      }
+      Assert.assertEquals(3, requests.get());
+    } finally {
+      exec.shutdown();
+    }
+  }
+
+  @Test(timeout = 90_000L)
+  public final void testConditionalNotModified()
+    throws Exception
+  {
+    this.httpd =
+      new NanoHTTPD(20000)
+      {
+        @Override
+        public Response serve(final IHTTPSession session)
+        {
+          OPDSHTTPContract.this.logger.debug("request: {}", session);
+
+          final Response response;
+          if (Objects.equals(session.getHeaders().get("if-none-match"), "\"v1\"")) {
+            response = NanoHTTPD.newFixedLengthResponse(
+              Response.Status.NOT_MODIFIED,
+              "text/plain",
+              "");
+          } else {
+            response = NanoHTTPD.newFixedLengthResponse(
+              Response.Status.OK,
+              "text/plain",
+              "Good news");
+          }
+          response.addHeader("ETag", "\"v1\"");
+          response.addHeader("Last-Modified", "Sat, 01 Jan 2000 00:00:00 GMT");
+          return response;
+        }
+      };
+
+    this.httpd.start();
+
+    final var http = this.http();
+    final var uri = URI.create("http://localhost:20000/index.html");
+
+    final var first = http.get(OPDSHTTPRequest.of(uri, Optional.empty()));
+    try (var stream = first.stream()) {
+      Assert.assertEquals("Good news", new String(stream.readAllBytes(), UTF_8));
+    }
+    Assert.assertFalse(first.notModified());
+    Assert.assertEquals(Optional.of("\"v1\""), first.entityTag());
+    Assert.assertEquals(Optional.of("Sat, 01 Jan 2000 00:00:00 GMT"), first.lastModified());
+
+    final var second =
+      http.get(
+        OPDSHTTPRequest.builder()
+          .setUri(uri)
+          .setIfNoneMatch(first.entityTag())
+          .setIfModifiedSince(first.lastModified())
+          .build());
+    try (var stream = second.stream()) {
+      Assert.assertEquals(0, stream.readAllBytes().length);
+    }
+    Assert.assertTrue(second.notModified());
+  }
+
+  /**
+   * A server that supports byte ranges on a single resource. If {@code truncate} is true, full
+   * responses stop half way through the content and close the connection.
+   */
+
+  private static NanoHTTPD rangeServer(
+    final Logger logger,
+    final String content,
+    final AtomicInteger ranges,
+    final boolean truncate)
+  {
+    return new NanoHTTPD(20000)
+    {
+      @Override
+      public Response serve(final IHTTPSession session)
+      {
+        logger.debug("request: {}", session);
+
+        final var bytes = content.getBytes(UTF_8);
+        final var range = session.getHeaders().get("range");
+        final var ifRange = session.getHeaders().get("if-range");
+
+        final Response response;
+        if (range != null && Objects.equals(ifRange, "\"v1\"")) {
+          ranges.incrementAndGet();
+          final var start = Integer.parseInt(range.replace("bytes=", "").replace("-", ""));
+          if (start >= bytes.length) {
+            response = NanoHTTPD.newFixedLengthResponse(
+              Response.Status.RANGE_NOT_SATISFIABLE, "text/plain", "");
+          } else {
+            response = NanoHTTPD.newFixedLengthResponse(
+              Response.Status.PARTIAL_CONTENT,
+              "text/plain",
+              new ByteArrayInputStream(bytes, start, bytes.length - start),
+              (long) (bytes.length - start));
+            response.addHeader(
+              "Content-Range",
+              String.format("bytes %d-%d/%d", start, bytes.length - 1, bytes.length));
+          }
+        } else if (truncate) {
+          response = NanoHTTPD.newFixedLengthResponse(
+            Response.Status.OK,
+            "text/plain",
+            new ByteArrayInputStream(bytes, 0, bytes.length / 2),
+            (long) bytes.length);
+          response.addHeader("Connection", "close");
+        } else {
+          response = NanoHTTPD.newFixedLengthResponse(
+            Response.Status.OK,
+            "text/plain",
+            new ByteArrayInputStream(bytes),
+            (long) bytes.length);
+        }
+        response.addHeader("ETag", "\"v1\"");
+        return response;
+      }
+    };
+  }
+
+  @Test(timeout = 90_000L)
+  public final void testRangeOK()
+    throws Exception
+  {
+    final var ranges = new AtomicInteger();
+    this.httpd = rangeServer(this.logger, "Good news", ranges, false);
+    this.httpd.start();
+
+    final var http = this.http();
+    final var data =
+      http.get(
+        OPDSHTTPRequest.builder()
+          .setUri(URI.create("http://localhost:20000/index.html"))
+          .setRangeStart(5L)
+          .setIfRange("\"v1\"")
+          .build());
+
+    Assert.assertEquals(5L, data.offset());
+    try (var stream = data.stream()) {
+      Assert.assertEquals("news", new String(stream.readAllBytes(), UTF_8));
+    }
+    Assert.assertEquals(1, ranges.get());
+  }
+
+  @Test(timeout = 90_000L)
+  public final void testRangeNotSatisfiable()
+    throws Exception
+  {
+    final var ranges = new AtomicInteger();
+    this.httpd = rangeServer(this.logger, "Good news", ranges, false);
+    this.httpd.start();
+
+    final var http = this.http();
+    final var data =
+      http.get(
+        OPDSHTTPRequest.builder()
+          .setUri(URI.create("http://localhost:20000/index.html"))
+          .setRangeStart(100L)
+          .setIfRange("\"v1\"")
+          .build());
+
+    Assert.assertEquals(0L, data.offset());
+    try (var stream = data.stream()) {
+      Assert.assertEquals("Good news", new String(stream.readAllBytes(), UTF_8));
+    }
+    Assert.assertEquals(1, ranges.get());
+  }
+
+  @Test(timeout = 90_000L)
+  public final void testInterruptedContentResumed()
+    throws Exception
+  {
+    final var content = "0123456789".repeat(1000);
+    final var ranges = new AtomicInteger();
+    this.httpd = rangeServer(this.logger, content, ranges, true);
+    this.httpd.start();
+
+    final var http = this.http();
+    final var data =
+      http.get(URI.create("http://localhost:20000/index.html"), Optional.empty());
+
+    Assert.assertEquals(0L, data.offset());
+    try (var stream = data.stream()) {
+      Assert.assertEquals(content, new String(stream.readAllBytes(), UTF_8));
+    }
+    Assert.assertEquals(1, ranges.get());
+  }
+
+  @Test(timeout = 90_000L)
+  public final void testGetOK()
+    throws Exception
+  {
+    this.httpd =
+      new NanoHTTPD(20000)
+      {
+        @Override
+        public Response serve(final IHTTPSession session)
+        {
+          OPDSHTTPContract.this.logger.debug("request: {}", session);
+          return NanoHTTPD.newFixedLengthResponse(
+            Response.Status.OK,
+            "text/plain",
+            "Good news");
+        }
+      };
+
+    this.httpd.start();
+
+    final var http = this.http();
+    final var data =
+      http.get(URI.create("http://localhost:20000/index.html"), Optional.empty());
+
+    try (var stream = data.stream()) {
+      Assert.assertEquals("Good news", new String(stream.readAllBytes(), UTF_8));
+    }
+    Assert.assertEquals(9L, data.size());
+    Assert.assertTrue(data.contentType().startsWith("text/plain"));
+  }
+
+  @Test(timeout = 90_000L)
+  public final void testGetAsyncOK()
+    throws Exception
+  {
+    this.httpd =
+      new NanoHTTPD(20000)
+      {
+        @Override
+        public Response serve(final IHTTPSession session)
+        {
+          OPDSHTTPContract.this.logger.debug("request: {}", session);
+          return NanoHTTPD.newFixedLengthResponse(
+            Response.Status.OK,
+            "text/plain",
+            "Good news");
+        }
+      };
+
+    this.httpd.start();
+
+    final var http = this.http();
+    final var exec = Executors.newSingleThreadExecutor();
+    try {
+      final var data =
+        http.getAsync(
+          URI.create("http://localhost:20000/index.html"),
+          Optional.empty(),
+          exec).get();
+
+      try (var stream = data.stream()) {
+        Assert.assertEquals("Good news", new String(stream.readAllBytes(), UTF_8));
+      }
+    } finally {
+      exec.shutdown();
+    }
+  }
+
+  @Test(timeout = 90_000L)
+  public final void testGetAsyncNotFound()
+    throws Exception
+  {
+    this.httpd =
+      new NanoHTTPD(20000)
+      {
+        @Override
+        public Response serve(final IHTTPSession session)
+        {
+          OPDSHTTPContract.this.logger.debug("request: {}", session);
+          return NanoHTTPD.newFixedLengthResponse(
+            Response.Status.NOT_FOUND,
+            "text/plain",
+            "Missing");
+        }
+      };
+
+    this.httpd.start();
+
+    final var http = this.http();
+    final var exec = Executors.newSingleThreadExecutor();
+    try {
+      final var future =
+        http.getAsync(
+          URI.create("http://localhost:20000/index.html"),
+          Optional.empty(),
+          exec);
+
+      final var ex = Assert.assertThrows(ExecutionException.class, future::get);
+      Assert.assertTrue(ex.getCause() instanceof OPDSHTTPException);
+      Assert.assertEquals(404, ((OPDSHTTPException) ex.getCause()).responseCode());
+    } finally {
+      exec.shutdown();
+    }
+  }
+
+  @Test(timeout = 90_000L)
+  public final void testRedirect()
+    throws Exception
+  {
+    this.httpd =
+      new NanoHTTPD(20000)
+      {
+        @Override
+        public Response serve(final IHTTPSession session)
+        {
+          OPDSHTTPContract.this.logger.debug("request: {}", session);
+
+          if (Objects.equals(session.getUri(), "/index.html")) {
+            final var response =
+              NanoHTTPD.newFixedLengthResponse(
+                Response.Status.REDIRECT,
+                "text/plain",
+                "Moved");
+            response.addHeader("Location", "/other.html");
+            return response;
+          }
+
+          return NanoHTTPD.newFixedLengthResponse(
+            Response.Status.OK,
+            "text/plain",
+            "Moved news");
+        }
+      };
+
+    this.httpd.start();
+
+    final var http = this.http();
+    final var data =
+      http.get(URI.create("http://localhost:20000/index.html"), Optional.empty());
+
+    try (var stream = data.stream()) {
+      Assert.assertEquals("Moved news", new String(stream.readAllBytes(), UTF_8));
+    }
+  }
+
+  @Test(timeout = 90_000L)
+  public final void testNotFound()
+    throws Exception
+  {
+    this.httpd =
+      new NanoHTTPD(20000)
+      {
+        @Override
+        public Response serve(final IHTTPSession session)
+        {
+          OPDSHTTPContract.this.logger.debug("request: {}", session);
+          return NanoHTTPD.newFixedLengthResponse(
+            Response.Status.NOT_FOUND,
+            "text/plain",
+            "Missing");
+        }
+      };
+
+    this.httpd.start();
+
+    final var http = this.http();
+    final var ex = Assert.assertThrows(OPDSHTTPException.class, () -> {
+      http.get(URI.create("http://localhost:20000/index.html"), Optional.empty());
+    });
+    Assert.assertEquals(404, ex.responseCode());
+  }
+
   @Test(timeout = 90_000L)
   public final void testRetryIOException()
   {
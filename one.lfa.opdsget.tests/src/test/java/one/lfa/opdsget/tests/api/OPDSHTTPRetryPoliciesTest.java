@@ -0,0 +1,154 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.tests.api;
+
+import one.lfa.opdsget.api.OPDSHTTPRetryConfiguration;
+import one.lfa.opdsget.api.OPDSHTTPRetryPolicies;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.Optional;
+
+public final class OPDSHTTPRetryPoliciesTest
+{
+  private static final URI URI_0 = URI.create("http://example.com/0");
+
+  @Test
+  public void testExponentialNoJitter()
+  {
+    final var policy =
+      OPDSHTTPRetryPolicies.exponential(
+        OPDSHTTPRetryConfiguration.builder()
+          .setInitialDelay(Duration.ofSeconds(1L))
+          .setMaximumDelay(Duration.ofSeconds(5L))
+          .setJitter(0.0)
+          .build());
+
+    Assert.assertEquals(
+      Optional.of(Duration.ofSeconds(1L)),
+      policy.retryDelay(URI_0, 1, 503, Optional.empty()));
+    Assert.assertEquals(
+      Optional.of(Duration.ofSeconds(2L)),
+      policy.retryDelay(URI_0, 2, 503, Optional.empty()));
+    Assert.assertEquals(
+      Optional.of(Duration.ofSeconds(4L)),
+      policy.retryDelay(URI_0, 3, 503, Optional.empty()));
+    Assert.assertEquals(
+      Optional.of(Duration.ofSeconds(5L)),
+      policy.retryDelay(URI_0, 4, 503, Optional.empty()));
+  }
+
+  @Test
+  public void testExponentialJitter()
+  {
+    final var policy =
+      OPDSHTTPRetryPolicies.exponential(
+        OPDSHTTPRetryConfiguration.builder()
+          .setInitialDelay(Duration.ofSeconds(8L))
+          .setMaximumDelay(Duration.ofSeconds(8L))
+          .setJitter(0.5)
+          .build());
+
+    for (int index = 0; index < 100; ++index) {
+      final var delay = policy.retryDelay(URI_0, 1, -1, Optional.empty()).orElseThrow();
+      Assert.assertTrue(delay.toString(), delay.compareTo(Duration.ofSeconds(4L)) >= 0);
+      Assert.assertTrue(delay.toString(), delay.compareTo(Duration.ofSeconds(8L)) <= 0);
+    }
+  }
+
+  @Test
+  public void testExponentialAttemptsExhausted()
+  {
+    final var policy =
+      OPDSHTTPRetryPolicies.exponential(
+        OPDSHTTPRetryConfiguration.builder()
+          .setMaximumAttempts(3)
+          .build());
+
+    Assert.assertTrue(policy.retryDelay(URI_0, 2, 503, Optional.empty()).isPresent());
+    Assert.assertEquals(Optional.empty(), policy.retryDelay(URI_0, 3, 503, Optional.empty()));
+  }
+
+  @Test
+  public void testExponentialBudgetExhausted()
+  {
+    final var policy =
+      OPDSHTTPRetryPolicies.exponential(
+        OPDSHTTPRetryConfiguration.builder()
+          .setRetryBudget(2)
+          .build());
+
+    Assert.assertTrue(policy.retryDelay(URI_0, 1, 503, Optional.empty()).isPresent());
+    Assert.assertTrue(policy.retryDelay(URI_0, 1, 503, Optional.empty()).isPresent());
+    Assert.assertEquals(Optional.empty(), policy.retryDelay(URI_0, 1, 503, Optional.empty()));
+  }
+
+  @Test
+  public void testExponentialBudgetResetForRetrieval()
+  {
+    final var policy =
+      OPDSHTTPRetryPolicies.exponential(
+        OPDSHTTPRetryConfiguration.builder()
+          .setRetryBudget(1)
+          .build());
+
+    Assert.assertTrue(policy.retryDelay(URI_0, 1, 503, Optional.empty()).isPresent());
+    Assert.assertEquals(Optional.empty(), policy.retryDelay(URI_0, 1, 503, Optional.empty()));
+
+    final var retrieval = policy.forRetrieval();
+    Assert.assertTrue(retrieval.retryDelay(URI_0, 1, 503, Optional.empty()).isPresent());
+    Assert.assertEquals(Optional.empty(), retrieval.retryDelay(URI_0, 1, 503, Optional.empty()));
+  }
+
+  @Test
+  public void testExponentialRetryAfter()
+  {
+    final var policy =
+      OPDSHTTPRetryPolicies.exponential(
+        OPDSHTTPRetryConfiguration.builder()
+          .setInitialDelay(Duration.ofSeconds(1L))
+          .setMaximumRetryAfter(Duration.ofSeconds(60L))
+          .setJitter(0.0)
+          .build());
+
+    Assert.assertEquals(
+      Optional.of(Duration.ofSeconds(30L)),
+      policy.retryDelay(URI_0, 1, 429, Optional.of(Duration.ofSeconds(30L))));
+    Assert.assertEquals(
+      Optional.empty(),
+      policy.retryDelay(URI_0, 1, 429, Optional.of(Duration.ofSeconds(61L))));
+  }
+
+  @Test
+  public void testConfigurationInvalid()
+  {
+    Assert.assertThrows(
+      IllegalArgumentException.class,
+      () -> OPDSHTTPRetryConfiguration.builder().setJitter(1.5).build());
+    Assert.assertThrows(
+      IllegalArgumentException.class,
+      () -> OPDSHTTPRetryConfiguration.builder().setMaximumAttempts(0).build());
+    Assert.assertThrows(
+      IllegalArgumentException.class,
+      () -> OPDSHTTPRetryConfiguration.builder()
+        .setInitialDelay(Duration.ofSeconds(10L))
+        .setMaximumDelay(Duration.ofSeconds(1L))
+        .build());
+  }
+}
@@ -19,19 +19,29 @@ package one.lfa.opdsget.tests.api;
 import fi.iki.elonen.NanoHTTPD;
 import junit.framework.AssertionFailedError;
 import one.lfa.opdsget.api.FileEntry;
+import one.lfa.opdsget.api.OPDSArchiveMode;
 import one.lfa.opdsget.api.OPDSAuthenticationType;
+import one.lfa.opdsget.api.OPDSCrawlLimits;
+import one.lfa.opdsget.api.OPDSFeedProcessorKind;
 import one.lfa.opdsget.api.OPDSGetConfiguration;
+import one.lfa.opdsget.api.OPDSHTTPClient;
 import one.lfa.opdsget.api.OPDSHTTPData;
 import one.lfa.opdsget.api.OPDSHTTPDefault;
 import one.lfa.opdsget.api.OPDSHTTPException;
+import one.lfa.opdsget.api.OPDSHTTPRequest;
 import one.lfa.opdsget.api.OPDSHTTPType;
+import one.lfa.opdsget.api.OPDSHostLimits;
 import one.lfa.opdsget.api.OPDSManifestDescription;
 import one.lfa.opdsget.api.OPDSManifestReaderErrorReceiverType;
 import one.lfa.opdsget.api.OPDSRetrieverProviderType;
 import one.lfa.opdsget.api.OPDSSquashConfiguration;
+import one.lfa.opdsget.api.OPDSTransformLimits;
+import one.lfa.opdsget.api.OPDSTransformMode;
 import one.lfa.opdsget.tests.TestDirectories;
 import one.lfa.opdsget.tests.vanilla.OPDSDocumentProcessorTest;
 import one.lfa.opdsget.vanilla.OPDSManifestReaders;
+import one.lfa.opdsget.vanilla.OPDSSearchIndexReader;
+import one.lfa.opdsget.vanilla.OPDSSearchNGramIndexReader;
 import org.apache.commons.codec.binary.Hex;
 import org.hamcrest.core.StringContains;
 import org.junit.After;
@@ -49,6 +59,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.SequenceInputStream;
 import java.io.UncheckedIOException;
 import java.net.URI;
 import java.nio.file.FileVisitResult;
@@ -56,21 +67,33 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.OptionalDouble;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
@@ -425,6 +448,710 @@ public abstract class OPDSRetrieverContract
     );
   }
 
+  /**
+   * The DOM feed processor produces the same files as the default streaming processor.
+   *
+   * @throws Throwable On errors
+   */
+
+  @Test
+  public void testDownloadBooksAndCoversFromMockedServerDOM()
+    throws Throwable
+  {
+    final var mock_http = booksAndCoversHTTP();
+
+    final var retrievers =
+      this.retrievers(mock_http);
+    final var retriever =
+      retrievers.create(this.exec);
+
+    final var config =
+      OPDSGetConfiguration.builder()
+        .setOutput(this.output)
+        .setRemoteURI(URI.create("https://example.com/1.atom"))
+        .setFeedProcessor(OPDSFeedProcessorKind.DOM)
+        .build();
+
+    try {
+      retriever.retrieve(config).get();
+    } catch (final InterruptedException e) {
+      throw e;
+    } catch (final ExecutionException e) {
+      throw e.getCause();
+    }
+
+    mock_http.checkAllCalled();
+
+    final var manifest = this.parseManifest(this.output.resolve("manifest.xml"));
+    this.verifyManifest(
+      manifest,
+      "feeds/EC7DD5867707ED7B2A7E3A57BCF9994E1178AEF0B8C18977FB1011AD10709FA0.atom",
+      "images/C20256EE994470033BCC12D37F08898A06304557FECA4849BF09DBFAFD9E4B12",
+      "images/AA739188B2729F243D0E679A9B76E71957CED3F3E7A59B567B47C4A35C7B4B20",
+      "images/36AD7C41A6CDBF7CBD9D6165FFA469A1B142E233F772AFCDA9443716C24E8737",
+      "images/1607A41005DB48491D47DDAA77A7BF7979CF25714DF07D06EA358880967015D2",
+      "books/CC6BAB78A232CC63D8DE8D8F2F2FFFB452762C0464478409982DB78034FAC80E.epub",
+      "books/E6CAB9F69F8408D271A7605C86857F63D38E9AB80964A7BEF9B13053D5B8305E.epub",
+      "index.txt"
+    );
+  }
+
+  private static String pageOf(
+    final int page,
+    final boolean hasNext)
+  {
+    final var next =
+      hasNext
+        ? "<link rel='next' type='application/atom+xml' href='https://example.com/page"
+        + (page + 1) + ".atom'/>"
+        : "";
+
+    return "<feed xmlns='http://www.w3.org/2005/Atom'>"
+      + "<title>Page " + page + "</title>"
+      + next
+      + "<entry><title>Entry " + page + "</title>"
+      + "<link rel='http://opds-spec.org/acquisition' type='application/epub+zip' "
+      + "href='https://example.com/" + page + ".epub'/>"
+      + "<link rel='http://opds-spec.org/image' type='image/png' "
+      + "href='https://example.com/" + page + ".png'/>"
+      + "</entry></feed>";
+  }
+
+  private CopyOnWriteArrayList<String> crawlOrder(
+    final OPDSCrawlLimits limits)
+    throws Throwable
+  {
+    final var order = new CopyOnWriteArrayList<String>();
+    final var content = Map.of(
+      "https://example.com/page1.atom", pageOf(1, true),
+      "https://example.com/page2.atom", pageOf(2, false),
+      "https://example.com/1.png", "image 1",
+      "https://example.com/2.png", "image 2",
+      "https://example.com/1.epub", "book 1",
+      "https://example.com/2.epub", "book 2"
+    );
+
+    final OPDSHTTPType http = new OPDSHTTPType()
+    {
+      @Override
+      public OPDSHTTPData get(
+        final URI uri,
+        final Optional<OPDSAuthenticationType> auth)
+      {
+        final var text = uri.toString();
+        order.add(text.replace("https://example.com/", ""));
+        return httpDataOf(stringStream(Objects.requireNonNull(content.get(text), text)));
+      }
+    };
+
+    final var config =
+      OPDSGetConfiguration.builder()
+        .setOutput(this.output)
+        .setRemoteURI(URI.create("https://example.com/page1.atom"))
+        .setCrawlLimits(limits)
+        .build();
+
+    try {
+      this.retrievers(http).create(this.exec).retrieve(config).get();
+    } catch (final InterruptedException e) {
+      throw e;
+    } catch (final ExecutionException e) {
+      throw e.getCause();
+    }
+    return order;
+  }
+
+  /**
+   * Feeds are expanded before downloads, and images are downloaded before books.
+   *
+   * @throws Throwable On errors
+   */
+
+  @Test(timeout = 20_000L)
+  public void testCrawlPriorities()
+    throws Throwable
+  {
+    final var order =
+      this.crawlOrder(
+        OPDSCrawlLimits.builder()
+          .setMaximumActiveTasks(1)
+          .build());
+
+    Assert.assertEquals(
+      List.of("page1.atom", "page2.atom", "1.png", "2.png", "1.epub", "2.epub"),
+      order);
+  }
+
+  /**
+   * Feeds are not expanded whilst too many downloads are waiting.
+   *
+   * @throws Throwable On errors
+   */
+
+  @Test(timeout = 20_000L)
+  public void testCrawlBackpressure()
+    throws Throwable
+  {
+    final var order =
+      this.crawlOrder(
+        OPDSCrawlLimits.builder()
+          .setMaximumActiveTasks(1)
+          .setMaximumQueuedDownloads(1)
+          .build());
+
+    Assert.assertEquals(
+      List.of("page1.atom", "1.png", "1.epub", "page2.atom", "2.png", "2.epub"),
+      order);
+  }
+
+  private static MockingHTTP booksAndCoversHTTP()
+  {
+    return new MockingHTTP(Map.of(
+      "https://example.com/1.atom",
+      () -> httpDataOf(resourceStream("books_and_covers.xml")),
+      "https://example.com/thumbnail_0.png",
+      () -> httpDataOf(stringStream("thumbnail_0.txt")),
+      "https://example.com/thumbnail_1.png",
+      () -> httpDataOf(stringStream("thumbnail_1.txt")),
+      "https://example.com/cover_0.png",
+      () -> httpDataOf(stringStream("cover_0.txt")),
+      "https://example.com/cover_1.png",
+      () -> httpDataOf(stringStream("cover_1.txt")),
+      "https://example.com/0.epub",
+      () -> httpDataOf(stringStream("henry_v.epub")),
+      "https://example.com/1.epub",
+      () -> httpDataOf(stringStream("henry_v.epub"))
+    ));
+  }
+
+  private static MockingHTTP squashableBooksAndCoversHTTP()
+  {
+    return new MockingHTTP(Map.of(
+      "https://example.com/1.atom",
+      () -> httpDataOf(resourceStream("books_and_covers.xml")),
+      "https://example.com/thumbnail_0.png",
+      () -> httpDataOf(stringStream("thumbnail_0.txt")),
+      "https://example.com/thumbnail_1.png",
+      () -> httpDataOf(stringStream("thumbnail_1.txt")),
+      "https://example.com/cover_0.png",
+      () -> httpDataOf(stringStream("cover_0.txt")),
+      "https://example.com/cover_1.png",
+      () -> httpDataOf(stringStream("cover_1.txt")),
+      "https://example.com/0.epub",
+      () -> httpDataOf(resourceStream("henry_v.epub")),
+      "https://example.com/1.epub",
+      () -> httpDataOf(resourceStream("henry_v.epub"))
+    ));
+  }
+
+  /**
+   * The number of requests in progress to a single host is limited.
+   *
+   * @throws Throwable On errors
+   */
+
+  @Test(timeout = 20_000L)
+  public void testHostConcurrencyLimited()
+    throws Throwable
+  {
+    final var mock_http = booksAndCoversHTTP();
+    final var delaying_http = new DelayingHTTP(mock_http, 100L);
+
+    final var retrievers =
+      this.retrievers(delaying_http);
+    final var retriever =
+      retrievers.create(this.exec);
+
+    final var config =
+      OPDSGetConfiguration.builder()
+        .setOutput(this.output)
+        .setRemoteURI(URI.create("https://example.com/1.atom"))
+        .putHostLimits(
+          "example.com",
+          OPDSHostLimits.builder()
+            .setMaximumConcurrentRequests(2)
+            .build())
+        .build();
+
+    try {
+      retriever.retrieve(config).get();
+    } catch (final InterruptedException e) {
+      throw e;
+    } catch (final ExecutionException e) {
+      throw e.getCause();
+    }
+
+    mock_http.checkAllCalled();
+    Assert.assertEquals(2, delaying_http.maximumInProgress());
+  }
+
+  /**
+   * The minimum interval between requests to a single host is respected.
+   *
+   * @throws Throwable On errors
+   */
+
+  @Test(timeout = 20_000L)
+  public void testHostIntervalRespected()
+    throws Throwable
+  {
+    final var mock_http = booksAndCoversHTTP();
+    final var delaying_http = new DelayingHTTP(mock_http, 0L);
+
+    final var retrievers =
+      this.retrievers(delaying_http);
+    final var retriever =
+      retrievers.create(this.exec);
+
+    final var config =
+      OPDSGetConfiguration.builder()
+        .setOutput(this.output)
+        .setRemoteURI(URI.create("https://example.com/1.atom"))
+        .setHostLimitsDefault(
+          OPDSHostLimits.builder()
+            .setMinimumRequestInterval(Duration.ofMillis(100L))
+            .build())
+        .build();
+
+    try {
+      retriever.retrieve(config).get();
+    } catch (final InterruptedException e) {
+      throw e;
+    } catch (final ExecutionException e) {
+      throw e.getCause();
+    }
+
+    mock_http.checkAllCalled();
+
+    final var starts = delaying_http.starts();
+    Assert.assertEquals(7L, (long) starts.size());
+    for (int index = 1; index < starts.size(); ++index) {
+      final var delta = starts.get(index).longValue() - starts.get(index - 1).longValue();
+      Assert.assertTrue(
+        String.format("Interval %dns must be at least 100ms", Long.valueOf(delta)),
+        delta >= Duration.ofMillis(95L).toNanos());
+    }
+  }
+
+  /**
+   * Running a retrieval a second time into the same directory makes conditional requests for
+   * images and books, and keeps the existing files when they have not been modified.
+   *
+   * @throws Throwable On errors
+   */
+
+  @Test(timeout = 20_000L)
+  public void testConditionalRerun()
+    throws Throwable
+  {
+    final var conditional_http =
+      new ConditionalHTTP(Map.of(
+        "https://example.com/1.atom",
+        () -> resourceStream("books_and_covers.xml"),
+        "https://example.com/thumbnail_0.png",
+        () -> stringStream("thumbnail_0.txt"),
+        "https://example.com/thumbnail_1.png",
+        () -> stringStream("thumbnail_1.txt"),
+        "https://example.com/cover_0.png",
+        () -> stringStream("cover_0.txt"),
+        "https://example.com/cover_1.png",
+        () -> stringStream("cover_1.txt"),
+        "https://example.com/0.epub",
+        () -> stringStream("henry_v.epub"),
+        "https://example.com/1.epub",
+        () -> stringStream("henry_v.epub")
+      ));
+
+    final var retrievers =
+      this.retrievers(conditional_http);
+    final var archive =
+      TestDirectories.temporaryDirectory().resolve("output.zip");
+
+    final var config =
+      OPDSGetConfiguration.builder()
+        .setOutput(this.output)
+        .setOutputArchive(archive)
+        .setRemoteURI(URI.create("https://example.com/1.atom"))
+        .build();
+
+    retrievers.create(this.exec).retrieve(config).get();
+    Assert.assertEquals(0, conditional_http.notModified());
+    assertFileExists(config.stateDirectory().resolve("validators.tsv"));
+
+    retrievers.create(this.exec).retrieve(config).get();
+    Assert.assertEquals(6, conditional_http.notModified());
+
+    final var manifest = this.parseManifest(this.output.resolve("manifest.xml"));
+    this.verifyManifest(
+      manifest,
+      "feeds/EC7DD5867707ED7B2A7E3A57BCF9994E1178AEF0B8C18977FB1011AD10709FA0.atom",
+      "images/C20256EE994470033BCC12D37F08898A06304557FECA4849BF09DBFAFD9E4B12",
+      "images/AA739188B2729F243D0E679A9B76E71957CED3F3E7A59B567B47C4A35C7B4B20",
+      "images/36AD7C41A6CDBF7CBD9D6165FFA469A1B142E233F772AFCDA9443716C24E8737",
+      "images/1607A41005DB48491D47DDAA77A7BF7979CF25714DF07D06EA358880967015D2",
+      "books/CC6BAB78A232CC63D8DE8D8F2F2FFFB452762C0464478409982DB78034FAC80E.epub",
+      "books/E6CAB9F69F8408D271A7605C86857F63D38E9AB80964A7BEF9B13053D5B8305E.epub",
+      "index.txt"
+    );
+
+    try (var zip = new ZipFile(archive.toFile())) {
+      final var names =
+        zip.stream()
+          .map(ZipEntry::getName)
+          .collect(Collectors.toList());
+      Assert.assertTrue(names.toString(), names.contains("manifest.xml"));
+      Assert.assertTrue(
+        names.toString(),
+        names.stream().noneMatch(name -> name.startsWith(".opdsget")));
+    }
+  }
+
+  /**
+   * Books retrieved by a run that did not squash them are retrieved again, and squashed, by a
+   * later run that squashes books, even though the server would report them as not modified.
+   *
+   * @throws Throwable On errors
+   */
+
+  @Test(timeout = 20_000L)
+  public void testConditionalRerunSquashAdded()
+    throws Throwable
+  {
+    final var conditional_http =
+      new ConditionalHTTP(Map.of(
+        "https://example.com/1.atom",
+        () -> resourceStream("books_and_covers.xml"),
+        "https://example.com/thumbnail_0.png",
+        () -> stringStream("thumbnail_0.txt"),
+        "https://example.com/thumbnail_1.png",
+        () -> stringStream("thumbnail_1.txt"),
+        "https://example.com/cover_0.png",
+        () -> stringStream("cover_0.txt"),
+        "https://example.com/cover_1.png",
+        () -> stringStream("cover_1.txt"),
+        "https://example.com/0.epub",
+        () -> resourceStream("henry_v.epub"),
+        "https://example.com/1.epub",
+        () -> resourceStream("henry_v.epub")
+      ));
+
+    final var retrievers =
+      this.retrievers(conditional_http);
+
+    final var config =
+      OPDSGetConfiguration.builder()
+        .setOutput(this.output)
+        .setRemoteURI(URI.create("https://example.com/1.atom"))
+        .build();
+
+    final var squashConfig =
+      OPDSGetConfiguration.builder()
+        .from(config)
+        .setSquash(
+          OPDSSquashConfiguration.builder()
+            .setMaximumImageWidth(1024.0)
+            .setMaximumImageHeight(1024.0)
+            .setScaleFactor(0.5)
+            .build())
+        .build();
+
+    final byte[] original;
+    try (var stream = resourceStream("henry_v.epub")) {
+      original = stream.readAllBytes();
+    }
+
+    retrievers.create(this.exec).retrieve(config).get();
+    Assert.assertEquals(0, conditional_http.notModified());
+
+    /*
+     * Only the images are unmodified, as the books were not squashed by the first run.
+     */
+
+    retrievers.create(this.exec).retrieve(squashConfig).get();
+    Assert.assertEquals(4, conditional_http.notModified());
+
+    for (final var name : List.of("0.epub", "1.epub")) {
+      final var file = squashConfig.bookFileHashed(URI.create("https://example.com/" + name));
+      Assert.assertFalse(Arrays.equals(original, Files.readAllBytes(file)));
+    }
+
+    /*
+     * The books were squashed by the second run, so are unmodified in the third.
+     */
+
+    final var squashed =
+      Files.readAllBytes(squashConfig.bookFileHashed(URI.create("https://example.com/0.epub")));
+
+    retrievers.create(this.exec).retrieve(squashConfig).get();
+    Assert.assertEquals(4 + 6, conditional_http.notModified());
+    Assert.assertArrayEquals(
+      squashed,
+      Files.readAllBytes(squashConfig.bookFileHashed(URI.create("https://example.com/0.epub"))));
+
+    final var manifest = this.parseManifest(this.output.resolve("manifest.xml"));
+    for (final var file : manifest.files().values()) {
+      this.verifyManifestFile(file);
+    }
+  }
+
+  /**
+   * A book download that is interrupted part way through is resumed from where it stopped on the
+   * next run.
+   *
+   * @throws Throwable On errors
+   */
+
+  @Test(timeout = 20_000L)
+  public void testInterruptedDownloadResumed()
+    throws Throwable
+  {
+    final var book = new byte[10_000];
+    for (var index = 0; index < book.length; ++index) {
+      book[index] = (byte) index;
+    }
+
+    final var resuming_http = new ResumingHTTP(book);
+    final var retrievers = this.retrievers(resuming_http);
+
+    final var config =
+      OPDSGetConfiguration.builder()
+        .setOutput(this.output)
+        .setRemoteURI(URI.create("https://example.com/1.atom"))
+        .build();
+
+    final var first =
+      Assert.assertThrows(
+        ExecutionException.class,
+        () -> retrievers.create(this.exec).retrieve(config).get());
+    this.logger().debug("first run failed: ", first);
+
+    final var bookFile = config.bookFileHashed(URI.create("https://example.com/0.epub"));
+    Assert.assertFalse(Files.exists(bookFile));
+
+    resuming_http.interrupt.set(false);
+    retrievers.create(this.exec).retrieve(config).get();
+
+    Assert.assertArrayEquals(book, Files.readAllBytes(bookFile));
+    Assert.assertEquals(List.of(Long.valueOf(5_000L)), resuming_http.ranges);
+
+    final var manifest = this.parseManifest(this.output.resolve("manifest.xml"));
+    for (final var file : manifest.files().values()) {
+      this.verifyManifestFile(file);
+    }
+  }
+
+  /**
+   * A retrieval that fails part way through is resumed by the next retrieval, which does not
+   * download the files that were completed by the failed retrieval.
+   *
+   * @throws Throwable On errors
+   */
+
+  @Test(timeout = 20_000L)
+  public void testFailedRetrievalResumedFromJournal()
+    throws Throwable
+  {
+    final var counting_http = new FailingOnceHTTP("https://example.com/1.epub");
+    final var retrievers = this.retrievers(counting_http);
+
+    final var config =
+      OPDSGetConfiguration.builder()
+        .setOutput(this.output)
+        .setRemoteURI(URI.create("https://example.com/1.atom"))
+        .build();
+
+    final var journal = config.stateDirectory().resolve("journal.tsv");
+
+    Assert.assertThrows(
+      ExecutionException.class,
+      () -> retrievers.create(this.exec).retrieve(config).get());
+    assertFileExists(journal);
+    Assert.assertEquals(1, counting_http.requests("https://example.com/0.epub"));
+
+    retrievers.create(this.exec).retrieve(config).get();
+
+    Assert.assertEquals(2, counting_http.requests("https://example.com/1.atom"));
+    Assert.assertEquals(2, counting_http.requests("https://example.com/1.epub"));
+    Assert.assertEquals(1, counting_http.requests("https://example.com/0.epub"));
+    Assert.assertEquals(1, counting_http.requests("https://example.com/cover_0.png"));
+    Assert.assertFalse(Files.exists(journal));
+
+    final var manifest = this.parseManifest(this.output.resolve("manifest.xml"));
+    this.verifyManifest(
+      manifest,
+      "feeds/EC7DD5867707ED7B2A7E3A57BCF9994E1178AEF0B8C18977FB1011AD10709FA0.atom",
+      "images/C20256EE994470033BCC12D37F08898A06304557FECA4849BF09DBFAFD9E4B12",
+      "images/AA739188B2729F243D0E679A9B76E71957CED3F3E7A59B567B47C4A35C7B4B20",
+      "images/36AD7C41A6CDBF7CBD9D6165FFA469A1B142E233F772AFCDA9443716C24E8737",
+      "images/1607A41005DB48491D47DDAA77A7BF7979CF25714DF07D06EA358880967015D2",
+      "books/CC6BAB78A232CC63D8DE8D8F2F2FFFB452762C0464478409982DB78034FAC80E.epub",
+      "books/E6CAB9F69F8408D271A7605C86857F63D38E9AB80964A7BEF9B13053D5B8305E.epub",
+      "index.txt"
+    );
+  }
+
+  /**
+   * A line that was only partially written to the journal when a retrieval stopped is discarded,
+   * and does not prevent the rest of the journal from being replayed.
+   *
+   * @throws Throwable On errors
+   */
+
+  @Test(timeout = 20_000L)
+  public void testFailedRetrievalTornJournalLine()
+    throws Throwable
+  {
+    final var counting_http = new FailingOnceHTTP("https://example.com/1.epub");
+    final var retrievers = this.retrievers(counting_http);
+
+    final var config =
+      OPDSGetConfiguration.builder()
+        .setOutput(this.output)
+        .setRemoteURI(URI.create("https://example.com/1.atom"))
+        .build();
+
+    final var journal = config.stateDirectory().resolve("journal.tsv");
+
+    Assert.assertThrows(
+      ExecutionException.class,
+      () -> retrievers.create(this.exec).retrieve(config).get());
+    Files.write(journal, "T\tbooks/".getBytes(UTF_8), StandardOpenOption.APPEND);
+
+    retrievers.create(this.exec).retrieve(config).get();
+
+    Assert.assertEquals(1, counting_http.requests("https://example.com/0.epub"));
+    Assert.assertEquals(2, counting_http.requests("https://example.com/1.epub"));
+    Assert.assertFalse(Files.exists(journal));
+
+    final var manifest = this.parseManifest(this.output.resolve("manifest.xml"));
+    for (final var file : manifest.files().values()) {
+      this.verifyManifestFile(file);
+    }
+  }
+
+  /**
+   * A file that changed after it was recorded in the journal (as happens if a retrieval stops
+   * part way through transforming it) is retrieved again rather than restored from the journal.
+   *
+   * @throws Throwable On errors
+   */
+
+  @Test(timeout = 20_000L)
+  public void testFailedRetrievalChangedFileRetrievedAgain()
+    throws Throwable
+  {
+    final var counting_http = new FailingOnceHTTP("https://example.com/1.epub");
+    final var retrievers = this.retrievers(counting_http);
+
+    final var config =
+      OPDSGetConfiguration.builder()
+        .setOutput(this.output)
+        .setRemoteURI(URI.create("https://example.com/1.atom"))
+        .build();
+
+    Assert.assertThrows(
+      ExecutionException.class,
+      () -> retrievers.create(this.exec).retrieve(config).get());
+    Assert.assertEquals(1, counting_http.requests("https://example.com/0.epub"));
+
+    final var book = config.bookFileHashed(URI.create("https://example.com/0.epub"));
+    final var original = Files.readAllBytes(book);
+    Files.write(book, "changed".getBytes(UTF_8));
+
+    retrievers.create(this.exec).retrieve(config).get();
+
+    Assert.assertEquals(2, counting_http.requests("https://example.com/0.epub"));
+    Assert.assertEquals(1, counting_http.requests("https://example.com/cover_0.png"));
+    Assert.assertArrayEquals(original, Files.readAllBytes(book));
+
+    final var manifest = this.parseManifest(this.output.resolve("manifest.xml"));
+    for (final var file : manifest.files().values()) {
+      this.verifyManifestFile(file);
+    }
+  }
+
+  /**
+   * An archive produced during a retrieval is identical to an archive produced after it.
+   *
+   * @throws Throwable On errors
+   */
+
+  @Test(timeout = 20_000L)
+  public void testArchiveModesIdentical()
+    throws Throwable
+  {
+    final var id = UUID.fromString("4c4d6c1c-3e4b-4a57-9d2b-0b4f4b1b0e1d");
+    final var archives = new ArrayList<Path>();
+
+    for (final var mode : OPDSArchiveMode.values()) {
+      final var mock_http = booksAndCoversHTTP();
+      final var output = TestDirectories.temporaryDirectory();
+      final var archive = TestDirectories.temporaryDirectory().resolve("output.zip");
+
+      final var config =
+        OPDSGetConfiguration.builder()
+          .setOutput(output)
+          .setOutputArchive(archive)
+          .setOutputArchiveMode(mode)
+          .setOutputManifestID(id)
+          .setScaleImages(OptionalDouble.of(0.5))
+          .setRemoteURI(URI.create("https://example.com/1.atom"))
+          .build();
+
+      try {
+        this.retrievers(mock_http).create(this.exec).retrieve(config).get();
+      } catch (final ExecutionException e) {
+        throw e.getCause();
+      }
+
+      final var spool = config.stateDirectory().resolve("archive");
+      if (Files.isDirectory(spool)) {
+        try (var stream = Files.list(spool)) {
+          Assert.assertEquals(0L, stream.count());
+        }
+      }
+      archives.add(archive);
+    }
+
+    /*
+     * The manifest contains the time at which it was written, and so is the only entry that
+     * differs between the archives.
+     */
+
+    try (var zip0 = new ZipFile(archives.get(0).toFile());
+         var zip1 = new ZipFile(archives.get(1).toFile())) {
+      final var entries0 = zip0.stream().collect(Collectors.toList());
+      final var entries1 = zip1.stream().collect(Collectors.toList());
+      final var names =
+        entries0.stream()
+          .map(ZipEntry::getName)
+          .collect(Collectors.toList());
+
+      Assert.assertTrue(names.toString(), names.contains("manifest.xml"));
+      Assert.assertTrue(names.toString(), names.contains("info.properties"));
+      Assert.assertEquals(
+        names,
+        entries1.stream()
+          .map(ZipEntry::getName)
+          .collect(Collectors.toList()));
+
+      for (int index = 0; index < entries0.size(); ++index) {
+        final var entry0 = entries0.get(index);
+        final var entry1 = entries1.get(index);
+        if (Objects.equals(entry0.getName(), "manifest.xml")) {
+          continue;
+        }
+        Assert.assertEquals(entry0.getName(), entry0.getCrc(), entry1.getCrc());
+        Assert.assertEquals(
+          entry0.getName(), entry0.getCompressedSize(), entry1.getCompressedSize());
+        Assert.assertArrayEquals(
+          entry0.getName(),
+          zip0.getInputStream(entry0).readAllBytes(),
+          zip1.getInputStream(entry1).readAllBytes());
+      }
+    }
+  }
+
   /**
    * Downloading data from a mocked server (and squashing and scaling) works.
    *
@@ -432,69 +1159,525 @@ public abstract class OPDSRetrieverContract
    */
 
   @Test(timeout = 20_000L)
-  public void testDownloadBooksAndCoversFromMockedServerScaleSquash()
+  public void testDownloadBooksAndCoversFromMockedServerScaleSquash()
+    throws Throwable
+  {
+    final var mock_http =
+      new MockingHTTP(Map.of(
+        "https://example.com/1.atom",
+        () -> httpDataOf(resourceStream("books_and_covers.xml")),
+        "https://example.com/thumbnail_0.png",
+        () -> httpDataOf(stringStream("thumbnail_0.txt")),
+        "https://example.com/thumbnail_1.png",
+        () -> httpDataOf(stringStream("thumbnail_1.txt")),
+        "https://example.com/cover_0.png",
+        () -> httpDataOf(stringStream("cover_0.txt")),
+        "https://example.com/cover_1.png",
+        () -> httpDataOf(stringStream("cover_1.txt")),
+        "https://example.com/0.epub",
+        () -> httpDataOf(resourceStream("henry_v.epub")),
+        "https://example.com/1.epub",
+        () -> httpDataOf(resourceStream("henry_v.epub"))
+      ));
+
+    final var retrievers =
+      this.retrievers(mock_http);
+    final var retriever =
+      retrievers.create(this.exec);
+
+    final var config =
+      OPDSGetConfiguration.builder()
+        .setOutput(this.output)
+        .setRemoteURI(URI.create("https://example.com/1.atom"))
+        .setScaleImages(OptionalDouble.of(0.5))
+        .setSquash(
+          OPDSSquashConfiguration.builder()
+            .setMaximumImageWidth(1024.0)
+            .setMaximumImageHeight(1024.0)
+            .setScaleFactor(0.5)
+            .build())
+        .build();
+
+    try {
+      retriever.retrieve(config).get();
+    } catch (final InterruptedException e) {
+      throw e;
+    } catch (final ExecutionException e) {
+      throw e.getCause();
+    }
+
+    mock_http.checkAllCalled();
+
+    assertFileExists(this.output.resolve("manifest.xml"));
+
+    final var manifest = this.parseManifest(this.output.resolve("manifest.xml"));
+    this.verifyManifest(
+      manifest,
+      "feeds/EC7DD5867707ED7B2A7E3A57BCF9994E1178AEF0B8C18977FB1011AD10709FA0.atom",
+      "images/C20256EE994470033BCC12D37F08898A06304557FECA4849BF09DBFAFD9E4B12",
+      "images/AA739188B2729F243D0E679A9B76E71957CED3F3E7A59B567B47C4A35C7B4B20",
+      "images/36AD7C41A6CDBF7CBD9D6165FFA469A1B142E233F772AFCDA9443716C24E8737",
+      "images/1607A41005DB48491D47DDAA77A7BF7979CF25714DF07D06EA358880967015D2",
+      "books/CC6BAB78A232CC63D8DE8D8F2F2FFFB452762C0464478409982DB78034FAC80E.epub",
+      "books/E6CAB9F69F8408D271A7605C86857F63D38E9AB80964A7BEF9B13053D5B8305E.epub",
+      "index.txt"
+    );
+  }
+
+  /**
+   * Books and images whose content is the same as content that was squashed or scaled in an
+   * earlier run are replaced with the earlier output rather than being transformed again.
+   *
+   * @throws Throwable On errors
+   */
+
+  @Test(timeout = 20_000L)
+  public void testTransformCacheRerun()
+    throws Throwable
+  {
+    final var config =
+      OPDSGetConfiguration.builder()
+        .setOutput(this.output)
+        .setRemoteURI(URI.create("https://example.com/1.atom"))
+        .setScaleImages(OptionalDouble.of(0.5))
+        .setSquash(
+          OPDSSquashConfiguration.builder()
+            .setMaximumImageWidth(1024.0)
+            .setMaximumImageHeight(1024.0)
+            .setScaleFactor(0.5)
+            .build())
+        .build();
+
+    try {
+      this.retrievers(squashableBooksAndCoversHTTP()).create(this.exec).retrieve(config).get();
+    } catch (final ExecutionException e) {
+      throw e.getCause();
+    }
+
+    /*
+     * Both books have the same content, and so share an output.
+     */
+
+    final var transforms = config.stateDirectory().resolve("transforms");
+    final List<Path> books;
+    try (var stream = Files.list(transforms.resolve("books"))) {
+      books = stream.collect(Collectors.toList());
+    }
+    Assert.assertEquals(1L, (long) books.size());
+    try (var stream = Files.list(transforms.resolve("images"))) {
+      Assert.assertEquals(4L, stream.count());
+    }
+
+    final var marker = "cached".getBytes(UTF_8);
+    Files.write(books.get(0), marker);
+
+    try {
+      this.retrievers(squashableBooksAndCoversHTTP()).create(this.exec).retrieve(config).get();
+    } catch (final ExecutionException e) {
+      throw e.getCause();
+    }
+
+    Assert.assertArrayEquals(
+      marker,
+      Files.readAllBytes(config.bookFileHashed(URI.create("https://example.com/0.epub"))));
+    Assert.assertArrayEquals(
+      marker,
+      Files.readAllBytes(config.bookFileHashed(URI.create("https://example.com/1.epub"))));
+
+    final var manifest = this.parseManifest(this.output.resolve("manifest.xml"));
+    for (final var file : manifest.files().values()) {
+      this.verifyManifestFile(file);
+    }
+  }
+
+  /**
+   * A book that cannot be squashed does not prevent other books from being squashed, and the
+   * temporary directories used to squash books are removed.
+   *
+   * @throws Throwable On errors
+   */
+
+  @Test(timeout = 20_000L)
+  public void testSquashFailuresCollected()
+    throws Throwable
+  {
+    final var mock_http =
+      new MockingHTTP(Map.of(
+        "https://example.com/1.atom",
+        () -> httpDataOf(resourceStream("books_and_covers.xml")),
+        "https://example.com/thumbnail_0.png",
+        () -> httpDataOf(stringStream("thumbnail_0.txt")),
+        "https://example.com/thumbnail_1.png",
+        () -> httpDataOf(stringStream("thumbnail_1.txt")),
+        "https://example.com/cover_0.png",
+        () -> httpDataOf(stringStream("cover_0.txt")),
+        "https://example.com/cover_1.png",
+        () -> httpDataOf(stringStream("cover_1.txt")),
+        "https://example.com/0.epub",
+        () -> httpDataOf(resourceStream("henry_v.epub")),
+        "https://example.com/1.epub",
+        () -> httpDataOf(stringStream("not an epub"))
+      ));
+
+    final var config =
+      OPDSGetConfiguration.builder()
+        .setOutput(this.output)
+        .setRemoteURI(URI.create("https://example.com/1.atom"))
+        .setTransformLimits(
+          OPDSTransformLimits.builder()
+            .setSquashThreads(2)
+            .build())
+        .setSquash(
+          OPDSSquashConfiguration.builder()
+            .setMaximumImageWidth(1024.0)
+            .setMaximumImageHeight(1024.0)
+            .setScaleFactor(0.5)
+            .build())
+        .build();
+
+    final var ex =
+      Assert.assertThrows(
+        ExecutionException.class,
+        () -> this.retrievers(mock_http).create(this.exec).retrieve(config).get());
+    this.logger().debug("retrieval failed: ", ex);
+
+    Throwable cause = ex;
+    while (cause != null && !(cause instanceof IOException)) {
+      cause = cause.getCause();
+    }
+    Assert.assertNotNull(cause);
+    Assert.assertEquals(1L, (long) cause.getSuppressed().length);
+
+    /*
+     * The book that could be squashed was squashed, and so its output was cached.
+     */
+
+    try (var stream = Files.list(config.stateDirectory().resolve("transforms").resolve("books"))) {
+      Assert.assertEquals(1L, stream.count());
+    }
+    Assert.assertFalse(Files.exists(config.stateDirectory().resolve("squash")));
+  }
+
+  /**
+   * Books are squashed during the retrieval if requested, and so a book is squashed before the
+   * other has been retrieved.
+   *
+   * @throws Throwable On errors
+   */
+
+  @Test(timeout = 20_000L)
+  public void testTransformDuringRetrieval()
+    throws Throwable
+  {
+    final var config =
+      OPDSGetConfiguration.builder()
+        .setOutput(this.output)
+        .setRemoteURI(URI.create("https://example.com/1.atom"))
+        .setTransformMode(OPDSTransformMode.DURING_RETRIEVAL)
+        .setScaleImages(OptionalDouble.of(0.5))
+        .setSquash(
+          OPDSSquashConfiguration.builder()
+            .setMaximumImageWidth(1024.0)
+            .setMaximumImageHeight(1024.0)
+            .setScaleFactor(0.5)
+            .build())
+        .build();
+
+    final var books = config.stateDirectory().resolve("transforms").resolve("books");
+    final var gated_http =
+      new GatedHTTP(squashableBooksAndCoversHTTP(), () -> cachedOutputs(books) > 0L);
+
+    try {
+      this.retrievers(gated_http).create(this.exec).retrieve(config).get();
+    } catch (final ExecutionException e) {
+      throw e.getCause();
+    }
+
+    Assert.assertTrue(
+      "A book must have been squashed whilst the other was being retrieved",
+      gated_http.wasOpened());
+
+    final byte[] original;
+    try (var stream = resourceStream("henry_v.epub")) {
+      original = stream.readAllBytes();
+    }
+    for (final var name : List.of("0.epub", "1.epub")) {
+      final var file = config.bookFileHashed(URI.create("https://example.com/" + name));
+      Assert.assertFalse(Arrays.equals(original, Files.readAllBytes(file)));
+    }
+
+    Assert.assertEquals(1L, cachedOutputs(books));
+    Assert.assertEquals(
+      4L, cachedOutputs(config.stateDirectory().resolve("transforms").resolve("images")));
+    Assert.assertFalse(Files.exists(config.stateDirectory().resolve("squash")));
+
+    final var manifest = this.parseManifest(this.output.resolve("manifest.xml"));
+    for (final var file : manifest.files().values()) {
+      this.verifyManifestFile(file);
+    }
+  }
+
+  /**
+   * A book that cannot be squashed during the retrieval is squashed again after the retrieval,
+   * where the failure is reported.
+   *
+   * @throws Throwable On errors
+   */
+
+  @Test(timeout = 20_000L)
+  public void testTransformDuringRetrievalFailuresCollected()
+    throws Throwable
+  {
+    final var mock_http =
+      new MockingHTTP(Map.of(
+        "https://example.com/1.atom",
+        () -> httpDataOf(resourceStream("books_and_covers.xml")),
+        "https://example.com/thumbnail_0.png",
+        () -> httpDataOf(stringStream("thumbnail_0.txt")),
+        "https://example.com/thumbnail_1.png",
+        () -> httpDataOf(stringStream("thumbnail_1.txt")),
+        "https://example.com/cover_0.png",
+        () -> httpDataOf(stringStream("cover_0.txt")),
+        "https://example.com/cover_1.png",
+        () -> httpDataOf(stringStream("cover_1.txt")),
+        "https://example.com/0.epub",
+        () -> httpDataOf(resourceStream("henry_v.epub")),
+        "https://example.com/1.epub",
+        () -> httpDataOf(stringStream("not an epub"))
+      ));
+
+    final var config =
+      OPDSGetConfiguration.builder()
+        .setOutput(this.output)
+        .setRemoteURI(URI.create("https://example.com/1.atom"))
+        .setTransformMode(OPDSTransformMode.DURING_RETRIEVAL)
+        .setSquash(
+          OPDSSquashConfiguration.builder()
+            .setMaximumImageWidth(1024.0)
+            .setMaximumImageHeight(1024.0)
+            .setScaleFactor(0.5)
+            .build())
+        .build();
+
+    final var ex =
+      Assert.assertThrows(
+        ExecutionException.class,
+        () -> this.retrievers(mock_http).create(this.exec).retrieve(config).get());
+    this.logger().debug("retrieval failed: ", ex);
+
+    Throwable cause = ex;
+    while (cause != null && !(cause instanceof IOException)) {
+      cause = cause.getCause();
+    }
+    Assert.assertNotNull(cause);
+    Assert.assertEquals(1L, (long) cause.getSuppressed().length);
+
+    Assert.assertEquals(
+      1L, cachedOutputs(config.stateDirectory().resolve("transforms").resolve("books")));
+    Assert.assertFalse(Files.exists(config.stateDirectory().resolve("squash")));
+  }
+
+  private static long cachedOutputs(
+    final Path directory)
+  {
+    if (!Files.isDirectory(directory)) {
+      return 0L;
+    }
+    try (var stream = Files.list(directory)) {
+      return stream
+        .filter(path -> !path.getFileName().toString().endsWith(".tmp"))
+        .count();
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * A binary search index holds the same terms and documents as the text index, and is removed
+   * when it is no longer requested.
+   *
+   * @throws Throwable On errors
+   */
+
+  @Test(timeout = 20_000L)
+  public void testSearchIndexBinary()
+    throws Throwable
+  {
+    final var config =
+      OPDSGetConfiguration.builder()
+        .setOutput(this.output)
+        .setRemoteURI(URI.create("https://example.com/1.atom"))
+        .setSearchIndexBinary(true)
+        .build();
+
+    try {
+      this.retrievers(entriesHTTP()).create(this.exec).retrieve(config).get();
+    } catch (final ExecutionException e) {
+      throw e.getCause();
+    }
+
+    final var manifest = this.parseManifest(this.output.resolve("manifest.xml"));
+    this.verifyManifest(
+      manifest,
+      "feeds/EC7DD5867707ED7B2A7E3A57BCF9994E1178AEF0B8C18977FB1011AD10709FA0.atom",
+      "feeds/213B17A48F52DB5BAC736C6ABB4245CE94FBA5448BE17F410CC75FCFAD566F0A.atom",
+      "feeds/D28EABBBD10965E1918241F883AF602E8A15A722BF7A0B9D18445B6186D9EC15.atom",
+      "index.txt",
+      "index.bin"
+    );
+
+    final var index = OPDSSearchIndexReader.open(this.output.resolve("index.bin"));
+    Assert.assertEquals(2L, (long) index.documentCount());
+    Assert.assertEquals(4L, (long) index.termCount());
+
+    final var terms = new ArrayList<String>();
+    for (final var line : Files.readAllLines(this.output.resolve("index.txt"), UTF_8)) {
+      final var parts = line.split(" ");
+      if (!terms.contains(parts[0])) {
+        terms.add(parts[0]);
+      }
+      Assert.assertTrue(index.find(parts[0]).contains(URI.create(parts[1])));
+    }
+    Assert.assertEquals((long) terms.size(), (long) index.termCount());
+    for (int termIndex = 0; termIndex < index.termCount(); ++termIndex) {
+      Assert.assertTrue(terms.contains(index.term(termIndex)));
+    }
+
+    Assert.assertEquals(2L, (long) index.find("ALICE").size());
+    Assert.assertEquals(1L, (long) index.find("WONDERLAND").size());
+    Assert.assertEquals(List.of(), index.find("alice"));
+    Assert.assertEquals(List.of(), index.find("BOB"));
+
+    final var configText =
+      OPDSGetConfiguration.builder()
+        .from(config)
+        .setSearchIndexBinary(false)
+        .build();
+
+    try {
+      this.retrievers(entriesHTTP()).create(this.exec).retrieve(configText).get();
+    } catch (final ExecutionException e) {
+      throw e.getCause();
+    }
+
+    assertFileExists(this.output.resolve("index.txt"));
+    assertFileDoesNotExist(this.output.resolve("index.bin"));
+  }
+
+  /**
+   * Terms can be found by prefix in the binary search index, and by substring with the n-gram
+   * search index.
+   *
+   * @throws Throwable On errors
+   */
+
+  @Test(timeout = 20_000L)
+  public void testSearchIndexNGrams()
     throws Throwable
   {
-    final var mock_http =
-      new MockingHTTP(Map.of(
-        "https://example.com/1.atom",
-        () -> httpDataOf(resourceStream("books_and_covers.xml")),
-        "https://example.com/thumbnail_0.png",
-        () -> httpDataOf(stringStream("thumbnail_0.txt")),
-        "https://example.com/thumbnail_1.png",
-        () -> httpDataOf(stringStream("thumbnail_1.txt")),
-        "https://example.com/cover_0.png",
-        () -> httpDataOf(stringStream("cover_0.txt")),
-        "https://example.com/cover_1.png",
-        () -> httpDataOf(stringStream("cover_1.txt")),
-        "https://example.com/0.epub",
-        () -> httpDataOf(resourceStream("henry_v.epub")),
-        "https://example.com/1.epub",
-        () -> httpDataOf(resourceStream("henry_v.epub"))
-      ));
-
-    final var retrievers =
-      this.retrievers(mock_http);
-    final var retriever =
-      retrievers.create(this.exec);
-
     final var config =
       OPDSGetConfiguration.builder()
         .setOutput(this.output)
         .setRemoteURI(URI.create("https://example.com/1.atom"))
-        .setScaleImages(OptionalDouble.of(0.5))
-        .setSquash(
-          OPDSSquashConfiguration.builder()
-            .setMaximumImageWidth(1024.0)
-            .setMaximumImageHeight(1024.0)
-            .setScaleFactor(0.5)
-            .build())
+        .setSearchIndexNGrams(true)
         .build();
 
     try {
-      retriever.retrieve(config).get();
-    } catch (final InterruptedException e) {
-      throw e;
+      this.retrievers(entriesHTTP()).create(this.exec).retrieve(config).get();
     } catch (final ExecutionException e) {
       throw e.getCause();
     }
 
-    mock_http.checkAllCalled();
-
-    assertFileExists(this.output.resolve("manifest.xml"));
-
     final var manifest = this.parseManifest(this.output.resolve("manifest.xml"));
     this.verifyManifest(
       manifest,
       "feeds/EC7DD5867707ED7B2A7E3A57BCF9994E1178AEF0B8C18977FB1011AD10709FA0.atom",
-      "images/C20256EE994470033BCC12D37F08898A06304557FECA4849BF09DBFAFD9E4B12",
-      "images/AA739188B2729F243D0E679A9B76E71957CED3F3E7A59B567B47C4A35C7B4B20",
-      "images/36AD7C41A6CDBF7CBD9D6165FFA469A1B142E233F772AFCDA9443716C24E8737",
-      "images/1607A41005DB48491D47DDAA77A7BF7979CF25714DF07D06EA358880967015D2",
-      "books/CC6BAB78A232CC63D8DE8D8F2F2FFFB452762C0464478409982DB78034FAC80E.epub",
-      "books/E6CAB9F69F8408D271A7605C86857F63D38E9AB80964A7BEF9B13053D5B8305E.epub",
-      "index.txt"
+      "feeds/213B17A48F52DB5BAC736C6ABB4245CE94FBA5448BE17F410CC75FCFAD566F0A.atom",
+      "feeds/D28EABBBD10965E1918241F883AF602E8A15A722BF7A0B9D18445B6186D9EC15.atom",
+      "index.txt",
+      "index.bin",
+      "index-ngrams.bin"
     );
+
+    final var index =
+      OPDSSearchIndexReader.open(this.output.resolve("index.bin"));
+    final var ngrams =
+      OPDSSearchNGramIndexReader.open(this.output.resolve("index-ngrams.bin"), index);
+
+    final var both = index.find("ALICE");
+    final var wonderland = index.find("WONDERLAND");
+    final var adventures = index.find("ADVENTURES");
+    Assert.assertEquals(2L, (long) both.size());
+
+    Assert.assertEquals(both, index.findPrefix(""));
+    Assert.assertEquals(both, index.findPrefix("AL"));
+    Assert.assertEquals(both, index.findPrefix("A"));
+    Assert.assertEquals(wonderland, index.findPrefix("WON"));
+    Assert.assertEquals(List.of(), index.findPrefix("Q"));
+    Assert.assertEquals(List.of(), index.findPrefix("ALICES"));
+
+    Assert.assertEquals(3L, (long) ngrams.n());
+    Assert.assertEquals(both, ngrams.findSubstring("LIC"));
+    Assert.assertEquals(wonderland, ngrams.findSubstring("DERLA"));
+    Assert.assertEquals(adventures, ngrams.findSubstring("VENTURE"));
+    Assert.assertEquals(wonderland, ngrams.findSubstring("IN"));
+    Assert.assertEquals(both, ngrams.findSubstring("E"));
+    Assert.assertEquals(List.of(), ngrams.findSubstring("ALICEX"));
+    Assert.assertEquals(List.of(), ngrams.findSubstring("NDR"));
+
+    final var configText =
+      OPDSGetConfiguration.builder()
+        .from(config)
+        .setSearchIndexNGrams(false)
+        .build();
+
+    try {
+      this.retrievers(entriesHTTP()).create(this.exec).retrieve(configText).get();
+    } catch (final ExecutionException e) {
+      throw e.getCause();
+    }
+
+    assertFileDoesNotExist(this.output.resolve("index.bin"));
+    assertFileDoesNotExist(this.output.resolve("index-ngrams.bin"));
+  }
+
+  private static MockingHTTP entriesHTTP()
+  {
+    return new MockingHTTP(Map.of(
+      "https://example.com/1.atom",
+      () -> httpDataOf(stringStream(String.join(
+        "\n",
+        "<feed xmlns=\"http://www.w3.org/2005/Atom\">",
+        "  <id>https://example.com/1.atom</id>",
+        "  <title>Catalogue</title>",
+        "  <entry>",
+        "    <id>https://example.com/e0.atom</id>",
+        "    <title>Alice Adventures</title>",
+        "    <link href=\"https://example.com/e0.atom\" rel=\"alternate\"",
+        "          type=\"application/atom+xml;type=entry;profile=opds-catalog\"/>",
+        "  </entry>",
+        "  <entry>",
+        "    <id>https://example.com/e1.atom</id>",
+        "    <title>Alice in Wonderland</title>",
+        "    <link href=\"https://example.com/e1.atom\" rel=\"alternate\"",
+        "          type=\"application/atom+xml;type=entry;profile=opds-catalog\"/>",
+        "  </entry>",
+        "</feed>"))),
+      "https://example.com/e0.atom",
+      () -> httpDataOf(stringStream(String.join(
+        "\n",
+        "<entry xmlns=\"http://www.w3.org/2005/Atom\">",
+        "  <id>https://example.com/e0.atom</id>",
+        "  <title>Alice Adventures</title>",
+        "</entry>"))),
+      "https://example.com/e1.atom",
+      () -> httpDataOf(stringStream(String.join(
+        "\n",
+        "<entry xmlns=\"http://www.w3.org/2005/Atom\">",
+        "  <id>https://example.com/e1.atom</id>",
+        "  <title>Alice in Wonderland</title>",
+        "</entry>")))
+    ));
   }
 
   /**
@@ -636,6 +1819,51 @@ public abstract class OPDSRetrieverContract
     );
   }
 
+  /**
+   * Downloading data from a real server using the asynchronous pooled client works.
+   *
+   * @throws Throwable On errors
+   */
+
+  @Test(timeout = 20_000L)
+  public void testDownloadBooksAndCoversFromRealServerPooled()
+    throws Throwable
+  {
+    final var retrievers =
+      this.retrievers(OPDSHTTPClient.create());
+    final var retriever =
+      retrievers.create(this.exec);
+
+    final var config =
+      OPDSGetConfiguration.builder()
+        .setOutput(this.output)
+        .setRemoteURI(URI.create("http://localhost:" + HTTPD_PORT + "/feed.atom"))
+        .build();
+
+    try {
+      retriever.retrieve(config).get();
+    } catch (final InterruptedException e) {
+      throw e;
+    } catch (final ExecutionException e) {
+      throw e.getCause();
+    }
+
+    assertFileExists(this.output.resolve("manifest.xml"));
+
+    final var manifest = this.parseManifest(this.output.resolve("manifest.xml"));
+    this.verifyManifest(
+      manifest,
+      "feeds/26A1A7550A125B02EB199F90C85C37CEEFEFF046FD0A7A90F46EB9B50DEEB857.atom",
+      "images/A0E6E399D2972A1F558D4F107DF604FF764A9CDC39B8411001549FCCF81FB122",
+      "images/D1614C51D455E2209424D432D282CE95BDE160FFDAE4C61D1BABABE649454A2D",
+      "images/10F54B076C7CD5321035766A533956E0355DD7198ED613D9A7B88FD026A91A0F",
+      "images/16BF055A959114E041C6351EED9982A6DCC1AB07F06101AAC10475F402DA1C90",
+      "books/AB30D8632DE2638B8746C3D9E7184F705CB234CD5FDF4CC8CD7456A2C1C39850.epub",
+      "books/E541B79B837177FDC14D348067E560DCA5BEBAEB1C07C44B3A8F0D3815D5CE73.epub",
+      "index.txt"
+    );
+  }
+
   private OPDSManifestDescription parseManifest(
     final Path path)
   {
@@ -770,6 +1998,292 @@ public abstract class OPDSRetrieverContract
     }
   }
 
+  /**
+   * A mocked server that returns an entity tag with every response, and responds to conditional
+   * requests with "not modified".
+   */
+
+  private static final class ConditionalHTTP implements OPDSHTTPType
+  {
+    private static final String ENTITY_TAG = "\"v1\"";
+
+    private final Map<String, Supplier<InputStream>> streams;
+    private final AtomicInteger notModified;
+
+    ConditionalHTTP(final Map<String, Supplier<InputStream>> inStreams)
+    {
+      this.streams = Objects.requireNonNull(inStreams, "streams");
+      this.notModified = new AtomicInteger();
+    }
+
+    @Override
+    public OPDSHTTPData get(
+      final URI uri,
+      final Optional<OPDSAuthenticationType> auth)
+    {
+      return this.get(OPDSHTTPRequest.of(uri, auth));
+    }
+
+    @Override
+    public OPDSHTTPData get(
+      final OPDSHTTPRequest request)
+    {
+      final var text = request.uri().toString();
+      if (!this.streams.containsKey(text)) {
+        throw new IllegalStateException("No stream for: " + text);
+      }
+
+      if (request.ifNoneMatch().equals(Optional.of(ENTITY_TAG))) {
+        this.notModified.incrementAndGet();
+        return OPDSHTTPData.builder()
+          .setSize(0L)
+          .setContentType("application/octet-stream")
+          .setStream(InputStream.nullInputStream())
+          .setNotModified(true)
+          .setEntityTag(ENTITY_TAG)
+          .build();
+      }
+
+      return OPDSHTTPData.builder()
+        .setSize(0L)
+        .setContentType("application/octet-stream")
+        .setStream(this.streams.get(text).get())
+        .setEntityTag(ENTITY_TAG)
+        .build();
+    }
+
+    int notModified()
+    {
+      return this.notModified.get();
+    }
+  }
+
+  /**
+   * A mocked server that supports byte ranges for a single book. Whilst {@code interrupt} is set,
+   * the book's content fails half way through.
+   */
+
+  private static final class ResumingHTTP implements OPDSHTTPType
+  {
+    private static final String ENTITY_TAG = "\"v1\"";
+
+    private final byte[] book;
+    private final AtomicBoolean interrupt;
+    private final List<Long> ranges;
+
+    ResumingHTTP(final byte[] inBook)
+    {
+      this.book = Objects.requireNonNull(inBook, "book");
+      this.interrupt = new AtomicBoolean(true);
+      this.ranges = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    @Override
+    public OPDSHTTPData get(
+      final URI uri,
+      final Optional<OPDSAuthenticationType> auth)
+    {
+      return this.get(OPDSHTTPRequest.of(uri, auth));
+    }
+
+    @Override
+    public OPDSHTTPData get(
+      final OPDSHTTPRequest request)
+    {
+      final var text = request.uri().toString();
+      if (Objects.equals(text, "https://example.com/1.atom")) {
+        return OPDSHTTPData.of(0L, "application/atom+xml", resourceStream("books_and_covers.xml"));
+      }
+      if (!Objects.equals(text, "https://example.com/0.epub")) {
+        return OPDSHTTPData.of(0L, "application/octet-stream", stringStream(text));
+      }
+
+      if (request.rangeStart().isPresent() && request.ifRange().equals(Optional.of(ENTITY_TAG))) {
+        final var start = (int) request.rangeStart().getAsLong();
+        this.ranges.add(Long.valueOf(start));
+        return OPDSHTTPData.builder()
+          .setSize((long) (this.book.length - start))
+          .setContentType("application/epub+zip")
+          .setStream(new ByteArrayInputStream(this.book, start, this.book.length - start))
+          .setOffset((long) start)
+          .setEntityTag(ENTITY_TAG)
+          .build();
+      }
+
+      final InputStream stream;
+      if (this.interrupt.get()) {
+        stream = new SequenceInputStream(
+          new ByteArrayInputStream(this.book, 0, this.book.length / 2),
+          new InputStream()
+          {
+            @Override
+            public int read()
+              throws IOException
+            {
+              throw new IOException("Connection reset");
+            }
+          });
+      } else {
+        stream = new ByteArrayInputStream(this.book);
+      }
+
+      return OPDSHTTPData.builder()
+        .setSize((long) this.book.length)
+        .setContentType("application/epub+zip")
+        .setStream(stream)
+        .setEntityTag(ENTITY_TAG)
+        .build();
+    }
+  }
+
+  /**
+   * A mocked server that counts requests, and fails the first request for one URI.
+   */
+
+  private static final class FailingOnceHTTP implements OPDSHTTPType
+  {
+    private final String failing;
+    private final Map<String, AtomicInteger> requests;
+
+    FailingOnceHTTP(final String inFailing)
+    {
+      this.failing = Objects.requireNonNull(inFailing, "failing");
+      this.requests = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public OPDSHTTPData get(
+      final URI uri,
+      final Optional<OPDSAuthenticationType> auth)
+      throws OPDSHTTPException
+    {
+      final var text = uri.toString();
+      final var count =
+        this.requests.computeIfAbsent(text, ignored -> new AtomicInteger()).incrementAndGet();
+
+      if (Objects.equals(text, this.failing) && count == 1) {
+        throw new OPDSHTTPException("Failed!", 500, "Failed!");
+      }
+      if (Objects.equals(text, "https://example.com/1.atom")) {
+        return OPDSHTTPData.of(0L, "application/atom+xml", resourceStream("books_and_covers.xml"));
+      }
+      return OPDSHTTPData.of(0L, "application/octet-stream", stringStream(text));
+    }
+
+    int requests(final String uri)
+    {
+      return Optional.ofNullable(this.requests.get(uri)).map(AtomicInteger::get).orElse(0);
+    }
+  }
+
+  /**
+   * An HTTP implementation that holds back each request for a book after the first, until the
+   * given condition holds or ten seconds have elapsed.
+   */
+
+  private static final class GatedHTTP implements OPDSHTTPType
+  {
+    private final OPDSHTTPType delegate;
+    private final BooleanSupplier condition;
+    private int books;
+    private boolean opened;
+
+    GatedHTTP(
+      final OPDSHTTPType inDelegate,
+      final BooleanSupplier inCondition)
+    {
+      this.delegate = Objects.requireNonNull(inDelegate, "delegate");
+      this.condition = Objects.requireNonNull(inCondition, "condition");
+    }
+
+    @Override
+    public OPDSHTTPData get(
+      final URI uri,
+      final Optional<OPDSAuthenticationType> auth)
+      throws OPDSHTTPException
+    {
+      final boolean gated;
+      synchronized (this) {
+        gated = uri.toString().endsWith(".epub") && ++this.books > 1;
+      }
+
+      if (gated) {
+        try {
+          final var deadline = System.nanoTime() + Duration.ofSeconds(10L).toNanos();
+          while (!this.condition.getAsBoolean() && System.nanoTime() < deadline) {
+            Thread.sleep(10L);
+          }
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new OPDSHTTPException(e, -1, "");
+        }
+        synchronized (this) {
+          this.opened = this.condition.getAsBoolean();
+        }
+      }
+
+      return this.delegate.get(uri, auth);
+    }
+
+    synchronized boolean wasOpened()
+    {
+      return this.opened;
+    }
+  }
+
+  private static final class DelayingHTTP implements OPDSHTTPType
+  {
+    private final OPDSHTTPType delegate;
+    private final long delay;
+    private final List<Long> starts;
+    private int inProgress;
+    private int inProgressMaximum;
+
+    DelayingHTTP(
+      final OPDSHTTPType inDelegate,
+      final long inDelay)
+    {
+      this.delegate = Objects.requireNonNull(inDelegate, "delegate");
+      this.delay = inDelay;
+      this.starts = new ArrayList<>();
+    }
+
+    @Override
+    public OPDSHTTPData get(
+      final URI uri,
+      final Optional<OPDSAuthenticationType> auth)
+      throws OPDSHTTPException
+    {
+      synchronized (this) {
+        this.starts.add(Long.valueOf(System.nanoTime()));
+        this.inProgress += 1;
+        this.inProgressMaximum = Math.max(this.inProgressMaximum, this.inProgress);
+      }
+
+      try {
+        Thread.sleep(this.delay);
+        return this.delegate.get(uri, auth);
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new OPDSHTTPException(e, -1, "");
+      } finally {
+        synchronized (this) {
+          this.inProgress -= 1;
+        }
+      }
+    }
+
+    synchronized int maximumInProgress()
+    {
+      return this.inProgressMaximum;
+    }
+
+    synchronized List<Long> starts()
+    {
+      return List.copyOf(this.starts);
+    }
+  }
+
   private static final class MockingHTTP implements OPDSHTTPType
   {
     private final Map<String, Supplier<OPDSHTTPData>> streams;
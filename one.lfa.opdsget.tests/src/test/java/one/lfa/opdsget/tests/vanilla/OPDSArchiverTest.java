@@ -29,10 +29,19 @@ import java.io.IOException;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 import static java.nio.charset.StandardCharsets.*;
 
@@ -121,4 +130,277 @@ public final class OPDSArchiverTest
       "Hello 2",
       new String(zip.getInputStream(entries.get(2)).readAllBytes(), UTF_8));
   }
+
+  @Test
+  public void testArchiverReproducible()
+    throws Exception
+  {
+    Files.deleteIfExists(this.file_tmp);
+
+    final var text = new StringBuilder(100_000);
+    for (int index = 0; index < 10_000; ++index) {
+      text.append(index);
+      text.append('\n');
+    }
+
+    Files.createDirectories(this.output.resolve("a"));
+    Files.write(this.output.resolve("a").resolve("numbers.txt"), text.toString().getBytes(UTF_8));
+    Files.write(this.output.resolve("empty.txt"), new byte[0]);
+    Files.write(this.output.resolve("z.txt"), "Z".getBytes(UTF_8));
+
+    OPDSArchiver.createArchive(this.output, this.file, this.file_tmp);
+    final var first = Files.readAllBytes(this.file);
+    OPDSArchiver.createArchive(this.output, this.file, this.file_tmp);
+    final var second = Files.readAllBytes(this.file);
+    Assert.assertArrayEquals(first, second);
+
+    /*
+     * The sizes of every entry must be readable from the local headers alone.
+     */
+
+    final var names = new ArrayList<String>();
+    try (var stream = new ZipInputStream(Files.newInputStream(this.file))) {
+      while (true) {
+        final var entry = stream.getNextEntry();
+        if (entry == null) {
+          break;
+        }
+        names.add(entry.getName());
+        final var data = stream.readAllBytes();
+        if (entry.getName().equals("a/numbers.txt")) {
+          Assert.assertEquals(text.toString(), new String(data, UTF_8));
+          Assert.assertTrue(entry.getCompressedSize() < entry.getSize());
+        }
+      }
+    }
+
+    Assert.assertEquals(List.of("a/numbers.txt", "empty.txt", "z.txt"), names);
+  }
+
+  @Test
+  public void testArchiverParallelSameAsSequential()
+    throws Exception
+  {
+    Files.deleteIfExists(this.file_tmp);
+
+    for (int index = 0; index < 200; ++index) {
+      final var directory = this.output.resolve(String.format("d%02d", Integer.valueOf(index % 7)));
+      Files.createDirectories(directory);
+
+      final var text = new StringBuilder(10_000);
+      for (int line = 0; line < index * 10; ++line) {
+        text.append(index * line);
+        text.append('\n');
+      }
+      Files.write(directory.resolve(index + ".txt"), text.toString().getBytes(UTF_8));
+    }
+
+    OPDSArchiver.createArchive(
+      this.output, this.file, this.file_tmp, path -> true, Runnable::run);
+    final var sequential = Files.readAllBytes(this.file);
+
+    final var pool = new ForkJoinPool(8);
+    try {
+      OPDSArchiver.createArchive(this.output, this.file, this.file_tmp, path -> true, pool);
+    } finally {
+      pool.shutdown();
+    }
+    final var parallel = Files.readAllBytes(this.file);
+
+    Assert.assertArrayEquals(sequential, parallel);
+    Assert.assertFalse(Files.exists(this.file_tmp));
+    Assert.assertFalse(Files.exists(Paths.get(this.file_tmp + ".segments")));
+
+    try (var zip = new ZipFile(this.file.toFile())) {
+      Assert.assertEquals(200L, zip.size());
+    }
+  }
+
+  @Test
+  public void testArchiverStoresCompressedFiles()
+    throws Exception
+  {
+    Files.deleteIfExists(this.file_tmp);
+
+    final var text = new StringBuilder(100_000);
+    for (int index = 0; index < 10_000; ++index) {
+      text.append("<entry>");
+      text.append(index);
+      text.append("</entry>\n");
+    }
+    final var textBytes = text.toString().getBytes(UTF_8);
+
+    final var noise = new byte[100_000];
+    new Random(0x5eed).nextBytes(noise);
+
+    final var png = new byte[2_000];
+    png[0] = (byte) 0x89;
+    png[1] = 'P';
+    png[2] = 'N';
+    png[3] = 'G';
+
+    Files.write(this.output.resolve("book.epub"), textBytes);
+    Files.write(this.output.resolve("cover"), png);
+    Files.write(this.output.resolve("feed.atom"), textBytes);
+    Files.write(this.output.resolve("noise"), noise);
+
+    OPDSArchiver.createArchive(this.output, this.file, this.file_tmp);
+
+    try (var zip = new ZipFile(this.file.toFile())) {
+      Assert.assertEquals(ZipEntry.STORED, zip.getEntry("book.epub").getMethod());
+      Assert.assertEquals(ZipEntry.STORED, zip.getEntry("cover").getMethod());
+      Assert.assertEquals(ZipEntry.DEFLATED, zip.getEntry("feed.atom").getMethod());
+      Assert.assertEquals(ZipEntry.STORED, zip.getEntry("noise").getMethod());
+
+      Assert.assertArrayEquals(
+        textBytes, zip.getInputStream(zip.getEntry("book.epub")).readAllBytes());
+      Assert.assertArrayEquals(
+        png, zip.getInputStream(zip.getEntry("cover")).readAllBytes());
+      Assert.assertArrayEquals(
+        textBytes, zip.getInputStream(zip.getEntry("feed.atom")).readAllBytes());
+      Assert.assertArrayEquals(
+        noise, zip.getInputStream(zip.getEntry("noise")).readAllBytes());
+    }
+
+    try (var stream = new ZipInputStream(Files.newInputStream(this.file))) {
+      while (stream.getNextEntry() != null) {
+        stream.readAllBytes();
+      }
+    }
+  }
+
+  private Map<String, byte[]> hashesOf(
+    final Path directory)
+    throws Exception
+  {
+    final var hashes = new HashMap<String, byte[]>();
+    try (var stream = Files.walk(directory)) {
+      for (final var path : stream.filter(Files::isRegularFile).collect(Collectors.toList())) {
+        final var digest = MessageDigest.getInstance("SHA-256");
+        hashes.put(directory.relativize(path).toString(), digest.digest(Files.readAllBytes(path)));
+      }
+    }
+    return hashes;
+  }
+
+  private void writeTextFiles(
+    final int count)
+    throws IOException
+  {
+    for (int index = 0; index < count; ++index) {
+      final var text = new StringBuilder(10_000);
+      for (int line = 0; line < index * 10; ++line) {
+        text.append(index * line);
+        text.append('\n');
+      }
+      Files.write(this.output.resolve(index + ".txt"), text.toString().getBytes(UTF_8));
+    }
+  }
+
+  @Test
+  public void testArchiverUpdateSameAsCreate()
+    throws Exception
+  {
+    Files.deleteIfExists(this.file_tmp);
+    this.writeTextFiles(50);
+
+    OPDSArchiver.createArchive(this.output, this.file, this.file_tmp);
+
+    Files.write(this.output.resolve("3.txt"), "changed".getBytes(UTF_8));
+    Files.write(this.output.resolve("new.txt"), "new".getBytes(UTF_8));
+    Files.delete(this.output.resolve("7.txt"));
+
+    OPDSArchiver.updateArchive(
+      this.output,
+      this.file,
+      this.file_tmp,
+      path -> true,
+      this.hashesOf(this.output),
+      ForkJoinPool.commonPool());
+    final var updated = Files.readAllBytes(this.file);
+
+    Files.delete(this.file);
+    OPDSArchiver.createArchive(this.output, this.file, this.file_tmp);
+    final var created = Files.readAllBytes(this.file);
+
+    Assert.assertArrayEquals(created, updated);
+    Assert.assertFalse(Files.exists(this.file_tmp));
+
+    try (var zip = new ZipFile(this.file.toFile())) {
+      Assert.assertEquals(50L, zip.size());
+      Assert.assertNull(zip.getEntry("7.txt"));
+      Assert.assertArrayEquals(
+        "changed".getBytes(UTF_8), zip.getInputStream(zip.getEntry("3.txt")).readAllBytes());
+    }
+  }
+
+  /**
+   * The compressed data of an entry whose hash and size match the previous archive is copied
+   * without the file being read, so an entry is visibly taken from the previous archive if the
+   * given hash is stale.
+   */
+
+  @Test
+  public void testArchiverUpdateCopiesUnchangedEntries()
+    throws Exception
+  {
+    Files.deleteIfExists(this.file_tmp);
+    this.writeTextFiles(10);
+
+    final var hashes = this.hashesOf(this.output);
+    OPDSArchiver.createArchive(this.output, this.file, this.file_tmp);
+
+    final var original = Files.readAllBytes(this.output.resolve("5.txt"));
+    final var replaced = original.clone();
+    replaced[0] = (byte) 'x';
+    Files.write(this.output.resolve("5.txt"), replaced);
+
+    OPDSArchiver.updateArchive(
+      this.output, this.file, this.file_tmp, path -> true, hashes, ForkJoinPool.commonPool());
+
+    try (var zip = new ZipFile(this.file.toFile())) {
+      Assert.assertArrayEquals(
+        original, zip.getInputStream(zip.getEntry("5.txt")).readAllBytes());
+    }
+
+    OPDSArchiver.updateArchive(
+      this.output,
+      this.file,
+      this.file_tmp,
+      path -> true,
+      this.hashesOf(this.output),
+      ForkJoinPool.commonPool());
+
+    try (var zip = new ZipFile(this.file.toFile())) {
+      Assert.assertArrayEquals(
+        replaced, zip.getInputStream(zip.getEntry("5.txt")).readAllBytes());
+    }
+  }
+
+  @Test
+  public void testArchiverUpdateIgnoresForeignArchive()
+    throws Exception
+  {
+    Files.deleteIfExists(this.file_tmp);
+    this.writeTextFiles(10);
+
+    try (var stream = new ZipOutputStream(Files.newOutputStream(this.file))) {
+      stream.putNextEntry(new ZipEntry("5.txt"));
+      stream.write("foreign".getBytes(UTF_8));
+      stream.closeEntry();
+    }
+
+    OPDSArchiver.updateArchive(
+      this.output,
+      this.file,
+      this.file_tmp,
+      path -> true,
+      this.hashesOf(this.output),
+      ForkJoinPool.commonPool());
+    final var updated = Files.readAllBytes(this.file);
+
+    Files.delete(this.file);
+    OPDSArchiver.createArchive(this.output, this.file, this.file_tmp);
+    Assert.assertArrayEquals(Files.readAllBytes(this.file), updated);
+  }
 }
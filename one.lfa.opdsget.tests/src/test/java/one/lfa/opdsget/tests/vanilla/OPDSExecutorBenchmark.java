@@ -0,0 +1,240 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.tests.vanilla;
+
+import one.lfa.epubsquash.vanilla.EPUBSquashers;
+import one.lfa.opdsget.api.OPDSAuthenticationType;
+import one.lfa.opdsget.api.OPDSExecutors;
+import one.lfa.opdsget.api.OPDSGetConfiguration;
+import one.lfa.opdsget.api.OPDSHTTPData;
+import one.lfa.opdsget.api.OPDSHTTPException;
+import one.lfa.opdsget.api.OPDSHTTPType;
+import one.lfa.opdsget.tests.TestDirectories;
+import one.lfa.opdsget.vanilla.OPDSManifestWriters;
+import one.lfa.opdsget.vanilla.OPDSRetrievers;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.regex.Pattern;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A benchmark comparing the wall-clock time taken to mirror a large mocked catalogue using a fixed
+ * pool of platform threads against a virtual thread per task.
+ *
+ * Usage: {@code OPDSExecutorBenchmark [entries] [entries-per-page] [latency-ms] [threads]}
+ */
+
+public final class OPDSExecutorBenchmark
+{
+  private static final Pattern PAGE =
+    Pattern.compile("/page/([0-9]+)\\.atom");
+
+  private OPDSExecutorBenchmark()
+  {
+
+  }
+
+  public static void main(
+    final String[] args)
+    throws Exception
+  {
+    final var entries =
+      args.length > 0 ? Integer.parseInt(args[0]) : 50_000;
+    final var entriesPerPage =
+      args.length > 1 ? Integer.parseInt(args[1]) : 100;
+    final var latency =
+      args.length > 2 ? Long.parseLong(args[2]) : 5L;
+    final var threads =
+      args.length > 3 ? Integer.parseInt(args[3]) : 4;
+
+    final var http = new CatalogueHTTP(entries, entriesPerPage, latency);
+
+    System.out.printf(
+      "entries %d, entries per page %d, latency %dms%n",
+      Integer.valueOf(entries),
+      Integer.valueOf(entriesPerPage),
+      Long.valueOf(latency));
+
+    final var fixedTime =
+      run(http, OPDSExecutors.fixedThreadPool(threads));
+    System.out.printf(
+      "fixed (%d threads): %dms%n", Integer.valueOf(threads), Long.valueOf(fixedTime));
+
+    if (OPDSExecutors.virtualThreadsSupported()) {
+      final var virtualTime =
+        run(http, OPDSExecutors.virtualThreadPerTask());
+      System.out.printf("virtual: %dms%n", Long.valueOf(virtualTime));
+    } else {
+      System.out.printf("virtual: unsupported on Java %s%n", Runtime.version());
+    }
+  }
+
+  private static long run(
+    final OPDSHTTPType http,
+    final ExecutorService executor)
+    throws Exception
+  {
+    final var output = TestDirectories.temporaryDirectory();
+
+    try {
+      final var retriever =
+        OPDSRetrievers.providerWith(new EPUBSquashers(), new OPDSManifestWriters(), http)
+          .create(executor);
+
+      final var config =
+        OPDSGetConfiguration.builder()
+          .setOutput(output)
+          .setRemoteURI(URI.create("http://example.com/page/0.atom"))
+          .build();
+
+      final var timeThen = System.nanoTime();
+      retriever.retrieve(config).get();
+      return (System.nanoTime() - timeThen) / 1_000_000L;
+    } finally {
+      executor.shutdown();
+      deleteRecursive(output);
+    }
+  }
+
+  private static void deleteRecursive(
+    final Path path)
+    throws IOException
+  {
+    Files.walkFileTree(path, new SimpleFileVisitor<>()
+    {
+      @Override
+      public FileVisitResult visitFile(
+        final Path file,
+        final BasicFileAttributes attrs)
+        throws IOException
+      {
+        Files.deleteIfExists(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(
+        final Path dir,
+        final IOException exc)
+        throws IOException
+      {
+        Files.deleteIfExists(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  /**
+   * A mocked server that serves a paginated acquisition feed. Every request blocks for a fixed
+   * time to simulate network latency.
+   */
+
+  private static final class CatalogueHTTP implements OPDSHTTPType
+  {
+    private final int entries;
+    private final int entriesPerPage;
+    private final long latency;
+
+    CatalogueHTTP(
+      final int inEntries,
+      final int inEntriesPerPage,
+      final long inLatency)
+    {
+      this.entries = inEntries;
+      this.entriesPerPage = inEntriesPerPage;
+      this.latency = inLatency;
+    }
+
+    @Override
+    public OPDSHTTPData get(
+      final URI uri,
+      final Optional<OPDSAuthenticationType> auth)
+      throws OPDSHTTPException
+    {
+      try {
+        Thread.sleep(this.latency);
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new OPDSHTTPException(e, -1, "");
+      }
+
+      final var matcher = PAGE.matcher(uri.getPath());
+      if (matcher.matches()) {
+        return data(this.page(Integer.parseInt(matcher.group(1))));
+      }
+      return data(uri.toString());
+    }
+
+    private static OPDSHTTPData data(
+      final String text)
+    {
+      final var bytes = text.getBytes(UTF_8);
+      return OPDSHTTPData.of(
+        (long) bytes.length,
+        "application/octet-stream",
+        new ByteArrayInputStream(bytes));
+    }
+
+    private String page(
+      final int page)
+    {
+      final var text = new StringBuilder(this.entriesPerPage * 512);
+      text.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+      text.append("<feed xmlns=\"http://www.w3.org/2005/Atom\">\n");
+      text.append("  <id>urn:page:").append(page).append("</id>\n");
+      text.append("  <title>Page ").append(page).append("</title>\n");
+      text.append("  <updated>2020-01-01T00:00:00Z</updated>\n");
+
+      final var first = page * this.entriesPerPage;
+      final var last = Math.min(first + this.entriesPerPage, this.entries);
+      if (last < this.entries) {
+        text.append("  <link rel=\"next\" type=\"application/atom+xml\" href=\"/page/")
+          .append(page + 1)
+          .append(".atom\"/>\n");
+      }
+
+      for (var index = first; index < last; ++index) {
+        text.append("  <entry>\n");
+        text.append("    <id>urn:book:").append(index).append("</id>\n");
+        text.append("    <title>Book ").append(index).append("</title>\n");
+        text.append("    <updated>2020-01-01T00:00:00Z</updated>\n");
+        text.append("    <link rel=\"http://opds-spec.org/image\"")
+          .append(" type=\"image/jpeg\" href=\"/cover/")
+          .append(index)
+          .append(".jpg\"/>\n");
+        text.append("    <link rel=\"http://opds-spec.org/acquisition\"")
+          .append(" type=\"application/epub+zip\" href=\"/book/")
+          .append(index)
+          .append(".epub\"/>\n");
+        text.append("  </entry>\n");
+      }
+
+      text.append("</feed>\n");
+      return text.toString();
+    }
+  }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.tests.vanilla;
+
+import one.lfa.opdsget.api.OPDSHTTPClient;
+import one.lfa.opdsget.api.OPDSHTTPClientConfiguration;
+import one.lfa.opdsget.api.OPDSHTTPRetryConfiguration;
+import one.lfa.opdsget.api.OPDSHTTPRetryPolicies;
+import one.lfa.opdsget.api.OPDSHTTPType;
+import one.lfa.opdsget.tests.api.OPDSHTTPContract;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+
+public class OPDSHTTPClientTest extends OPDSHTTPContract
+{
+  @Override
+  protected Logger logger()
+  {
+    return LoggerFactory.getLogger(OPDSHTTPClientTest.class);
+  }
+
+  @Override
+  protected OPDSHTTPType http()
+  {
+    return OPDSHTTPClient.create(
+      OPDSHTTPClientConfiguration.builder()
+        .setRetryPolicy(OPDSHTTPRetryPolicies.exponential(
+          OPDSHTTPRetryConfiguration.builder()
+            .setInitialDelay(Duration.ofMillis(10L))
+            .setMaximumDelay(Duration.ofMillis(100L))
+            .build()))
+        .build());
+  }
+}
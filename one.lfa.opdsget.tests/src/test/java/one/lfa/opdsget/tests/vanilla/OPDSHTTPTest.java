@@ -17,11 +17,15 @@
 package one.lfa.opdsget.tests.vanilla;
 
 import one.lfa.opdsget.api.OPDSHTTPDefault;
+import one.lfa.opdsget.api.OPDSHTTPRetryConfiguration;
+import one.lfa.opdsget.api.OPDSHTTPRetryPolicies;
 import one.lfa.opdsget.api.OPDSHTTPType;
 import one.lfa.opdsget.tests.api.OPDSHTTPContract;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Duration;
+
 public class OPDSHTTPTest extends OPDSHTTPContract
 {
   @Override
@@ -33,6 +37,11 @@ public class OPDSHTTPTest extends OPDSHTTPContract
   @Override
   protected OPDSHTTPType http()
   {
-    return new OPDSHTTPDefault();
+    return new OPDSHTTPDefault(
+      OPDSHTTPRetryPolicies.exponential(
+        OPDSHTTPRetryConfiguration.builder()
+          .setInitialDelay(Duration.ofMillis(10L))
+          .setMaximumDelay(Duration.ofMillis(100L))
+          .build()));
   }
 }
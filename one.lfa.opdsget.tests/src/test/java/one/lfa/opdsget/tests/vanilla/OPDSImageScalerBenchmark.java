@@ -0,0 +1,177 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.tests.vanilla;
+
+import one.lfa.opdsget.tests.TestDirectories;
+import one.lfa.opdsget.vanilla.OPDSImageScaler;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * A benchmark comparing the time taken to scale a directory of large cover images using the
+ * scaler against decoding each image in full and scaling it with {@link
+ * Image#getScaledInstance(int, int, int)}, as the scaler previously did. Images are scaled on a
+ * single thread in both cases.
+ *
+ * Usage: {@code OPDSImageScalerBenchmark [images] [width] [height] [scale] [iterations]}
+ */
+
+public final class OPDSImageScalerBenchmark
+{
+  private OPDSImageScalerBenchmark()
+  {
+
+  }
+
+  public static void main(
+    final String[] args)
+    throws Exception
+  {
+    final var images =
+      args.length > 0 ? Integer.parseInt(args[0]) : 20;
+    final var width =
+      args.length > 1 ? Integer.parseInt(args[1]) : 4000;
+    final var height =
+      args.length > 2 ? Integer.parseInt(args[2]) : 6000;
+    final var scale =
+      args.length > 3 ? Double.parseDouble(args[3]) : 0.1;
+    final var iterations =
+      args.length > 4 ? Integer.parseInt(args[4]) : 5;
+
+    System.out.printf(
+      "images %d, %dx%d, scale %f%n",
+      Integer.valueOf(images),
+      Integer.valueOf(width),
+      Integer.valueOf(height),
+      Double.valueOf(scale));
+
+    final var originals = TestDirectories.temporaryDirectory();
+    final var random = new Random(0L);
+    for (int index = 0; index < images; ++index) {
+      writeImage(originals.resolve("image" + index), width, height, random);
+    }
+
+    final var work = TestDirectories.temporaryDirectory();
+    for (int iteration = 0; iteration < iterations; ++iteration) {
+      copy(originals, work);
+      final var smoothTime = time(() -> scaleSmooth(work, scale));
+      copy(originals, work);
+      final var scalerTime = time(() -> new OPDSImageScaler(work, (kind, file) -> {
+      }, scale).execute());
+
+      System.out.printf(
+        "iteration %d: getScaledInstance %dms, scaler %dms%n",
+        Integer.valueOf(iteration),
+        Long.valueOf(smoothTime),
+        Long.valueOf(scalerTime));
+    }
+  }
+
+  private interface IOAction
+  {
+    void run()
+      throws IOException;
+  }
+
+  private static long time(
+    final IOAction action)
+    throws IOException
+  {
+    final var timeThen = System.nanoTime();
+    action.run();
+    return (System.nanoTime() - timeThen) / 1_000_000L;
+  }
+
+  private static void writeImage(
+    final Path path,
+    final int width,
+    final int height,
+    final Random random)
+    throws IOException
+  {
+    final var image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    final var g2d = image.createGraphics();
+    try {
+      g2d.setPaint(new GradientPaint(
+        0.0f, 0.0f, new Color(random.nextInt()),
+        (float) width, (float) height, new Color(random.nextInt())));
+      g2d.fillRect(0, 0, width, height);
+      for (int index = 0; index < 200; ++index) {
+        g2d.setColor(new Color(random.nextInt()));
+        g2d.fillOval(
+          random.nextInt(width),
+          random.nextInt(height),
+          random.nextInt(width / 4 + 1),
+          random.nextInt(height / 4 + 1));
+      }
+    } finally {
+      g2d.dispose();
+    }
+    ImageIO.write(image, "jpg", path.toFile());
+  }
+
+  private static void copy(
+    final Path source,
+    final Path target)
+    throws IOException
+  {
+    try (var stream = Files.list(source)) {
+      for (final var path : stream.collect(Collectors.toList())) {
+        Files.copy(path, target.resolve(path.getFileName()), REPLACE_EXISTING);
+      }
+    }
+  }
+
+  private static void scaleSmooth(
+    final Path directory,
+    final double scale)
+    throws IOException
+  {
+    try (var stream = Files.list(directory)) {
+      for (final var path : stream.collect(Collectors.toList())) {
+        final BufferedImage image;
+        try (var input = new BufferedInputStream(Files.newInputStream(path), 8192)) {
+          image = ImageIO.read(input);
+        }
+
+        final var newWidth = (int) (image.getWidth() * scale);
+        final var newHeight = (int) (image.getHeight() * scale);
+        final var scaled = image.getScaledInstance(newWidth, newHeight, Image.SCALE_SMOOTH);
+        final var target = new BufferedImage(newWidth, newHeight, BufferedImage.TYPE_INT_RGB);
+        final var g2d = target.createGraphics();
+        g2d.drawImage(scaled, 0, 0, null);
+        g2d.dispose();
+
+        final var temp = path.resolveSibling(path.getFileName() + ".tmp");
+        ImageIO.write(target, "jpg", temp.toFile());
+        Files.move(temp, path, REPLACE_EXISTING);
+      }
+    }
+  }
+}
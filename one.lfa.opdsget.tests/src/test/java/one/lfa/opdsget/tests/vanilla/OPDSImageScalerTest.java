@@ -16,13 +16,29 @@
 
 package one.lfa.opdsget.tests.vanilla;
 
+import one.lfa.opdsget.tests.TestDirectories;
 import one.lfa.opdsget.vanilla.OPDSImageScaler;
+import one.lfa.opdsget.vanilla.OPDSManifestFileEntryKind;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
 
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
 
 public class OPDSImageScalerTest
 {
+  private Path directory;
+
   public static void main(
     final String[] args)
     throws IOException
@@ -32,4 +48,131 @@ public class OPDSImageScalerTest
     }, 0.5)
       .execute();
   }
+
+  @Before
+  public void setUp()
+    throws IOException
+  {
+    this.directory = TestDirectories.temporaryDirectory();
+  }
+
+  private void writeImages(
+    final int count)
+    throws IOException
+  {
+    for (int index = 0; index < count; ++index) {
+      final var image = new BufferedImage(64, 32, BufferedImage.TYPE_INT_RGB);
+      ImageIO.write(image, "png", this.directory.resolve("image" + index).toFile());
+    }
+  }
+
+  /**
+   * An image that is reduced by a large factor is subsampled as it is decoded, but is still
+   * scaled to exactly the requested size.
+   */
+
+  @Test
+  public void testScaleSubsampled()
+    throws Exception
+  {
+    final var image = new BufferedImage(1001, 503, BufferedImage.TYPE_INT_ARGB);
+    final var file = this.directory.resolve("image");
+    ImageIO.write(image, "png", file.toFile());
+
+    final var changed = new ArrayList<Path>();
+    new OPDSImageScaler(this.directory, (kind, path) -> changed.add(path), 0.1)
+      .execute();
+
+    Assert.assertEquals(1L, (long) changed.size());
+    final var scaled = ImageIO.read(file.toFile());
+    Assert.assertEquals(100L, (long) scaled.getWidth());
+    Assert.assertEquals(50L, (long) scaled.getHeight());
+  }
+
+  /**
+   * Images are scaled on the given executor, and every image is reported as changed only once
+   * all have been scaled.
+   */
+
+  @Test
+  public void testScaleParallel()
+    throws Exception
+  {
+    this.writeImages(32);
+
+    final var changed = Collections.synchronizedList(new ArrayList<Path>());
+    final var pool = Executors.newFixedThreadPool(8);
+
+    try {
+      final var scaler =
+        new OPDSImageScaler(
+          this.directory,
+          (kind, file) -> {
+            Assert.assertEquals(OPDSManifestFileEntryKind.GENERAL, kind);
+            if (changed.isEmpty()) {
+              this.checkAllScaled();
+            }
+            changed.add(file);
+          },
+          path -> true,
+          0.5,
+          pool,
+          3);
+      scaler.execute();
+    } finally {
+      pool.shutdown();
+    }
+
+    Assert.assertEquals(32L, (long) changed.size());
+  }
+
+  private void checkAllScaled()
+  {
+    try (var stream = Files.list(this.directory)) {
+      for (final var path : stream.collect(Collectors.toList())) {
+        final var image = ImageIO.read(path.toFile());
+        Assert.assertEquals(32L, (long) image.getWidth());
+        Assert.assertEquals(16L, (long) image.getHeight());
+      }
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * A failure to scale one image does not prevent the others from being scaled and reported.
+   */
+
+  @Test
+  public void testScaleParallelFailure()
+    throws Exception
+  {
+    this.writeImages(4);
+
+    /*
+     * The scaled image cannot be written over a non-empty directory.
+     */
+
+    Files.createDirectories(this.directory.resolve("image0.tmp").resolve("x"));
+
+    final var changed = Collections.synchronizedList(new ArrayList<Path>());
+    final var pool = Executors.newFixedThreadPool(2);
+
+    try {
+      Assert.assertThrows(
+        IOException.class,
+        () -> new OPDSImageScaler(
+          this.directory,
+          (kind, file) -> changed.add(file),
+          path -> !Files.isDirectory(path),
+          0.5,
+          pool,
+          2)
+          .execute());
+    } finally {
+      pool.shutdown();
+    }
+
+    Assert.assertEquals(3L, (long) changed.size());
+  }
 }
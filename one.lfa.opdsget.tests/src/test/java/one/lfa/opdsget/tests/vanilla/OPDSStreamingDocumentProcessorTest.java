@@ -0,0 +1,193 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.tests.vanilla;
+
+import one.lfa.opdsget.api.OPDSDocumentProcessed;
+import one.lfa.opdsget.api.OPDSGetConfiguration;
+import one.lfa.opdsget.tests.TestDirectories;
+import one.lfa.opdsget.vanilla.OPDSDocumentProcessor;
+import one.lfa.opdsget.vanilla.OPDSStreamingDocumentProcessor;
+import one.lfa.opdsget.vanilla.OPDSXMLParsers;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+public final class OPDSStreamingDocumentProcessorTest
+{
+  private OPDSStreamingDocumentProcessor processor;
+  private Path output;
+  private XPathExpression xpath_links;
+  private XPathExpression xpath_updated;
+
+  @Before
+  public void setUp()
+    throws IOException
+  {
+    this.output = TestDirectories.temporaryDirectory();
+    this.processor = new OPDSStreamingDocumentProcessor();
+
+    final var xpath = XPathFactory.newInstance().newXPath();
+    try {
+      this.xpath_links = xpath.compile(
+        "//*[local-name()='link' and namespace-uri()='http://www.w3.org/2005/Atom']");
+      this.xpath_updated = xpath.compile(
+        "//*[local-name()='updated' and namespace-uri()='http://www.w3.org/2005/Atom']");
+    } catch (final XPathExpressionException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Test
+  public void testRewriteSimple()
+    throws Exception
+  {
+    final var config = this.configuration();
+    final var url = resource("links.xml");
+
+    final var bytes = new ByteArrayOutputStream();
+    final OPDSDocumentProcessed result;
+    try (var stream = url.openStream()) {
+      result = this.processor.process(config, url.toURI(), stream, bytes);
+    }
+
+    Assert.assertTrue(
+      result.feeds().containsKey(URI.create("http://example.com/1.atom")));
+    Assert.assertTrue(
+      result.feeds().containsKey(URI.create("http://example.com/1.entry")));
+    Assert.assertTrue(
+      result.images().containsKey(URI.create("http://example.com/cover.png")));
+    Assert.assertTrue(
+      result.images().containsKey(URI.create("http://example.com/thumbnail.png")));
+    Assert.assertTrue(
+      result.books().containsKey(URI.create("http://example.com/0.epub")));
+    Assert.assertFalse(result.isEntry());
+
+    final var document = parse(url.toURI(), bytes.toByteArray());
+
+    final var updateds_after =
+      (NodeList) this.xpath_updated.evaluate(document, XPathConstants.NODESET);
+
+    Assert.assertTrue(
+      "Document contains 'updated' elements",
+      (long) updateds_after.getLength() > 0L);
+
+    for (var index = 0; index < updateds_after.getLength(); ++index) {
+      final var e = (Element) updateds_after.item(index);
+      Assert.assertEquals("2000-01-01T00:00:00Z", e.getTextContent());
+    }
+
+    final var links_after =
+      (NodeList) this.xpath_links.evaluate(document, XPathConstants.NODESET);
+
+    Assert.assertEquals(
+      "Document contains exactly five links",
+      5L,
+      (long) links_after.getLength());
+  }
+
+  @Test
+  public void testSameAsDOM()
+    throws Exception
+  {
+    final var config = this.configuration();
+    final var url = resource("links.xml");
+
+    final Document dom_document;
+    try (var stream = url.openStream()) {
+      dom_document = new OPDSXMLParsers().parse(url.toURI(), stream);
+    }
+    final var dom_result =
+      new OPDSDocumentProcessor().process(config, dom_document);
+
+    final var bytes = new ByteArrayOutputStream();
+    final OPDSDocumentProcessed result;
+    try (var stream = url.openStream()) {
+      result = this.processor.process(config, url.toURI(), stream, bytes);
+    }
+
+    Assert.assertEquals(dom_result.feeds(), result.feeds());
+    Assert.assertEquals(dom_result.images(), result.images());
+    Assert.assertEquals(dom_result.books(), result.books());
+    Assert.assertEquals(dom_result.file(), result.file());
+    Assert.assertEquals(dom_result.title(), result.title());
+    Assert.assertEquals(dom_result.isEntry(), result.isEntry());
+
+    Assert.assertEquals(
+      this.hrefs(dom_document),
+      this.hrefs(parse(url.toURI(), bytes.toByteArray())));
+  }
+
+  private OPDSGetConfiguration configuration()
+  {
+    return OPDSGetConfiguration.builder()
+      .setOutput(this.output)
+      .setRemoteURI(URI.create("http://www.example.com"))
+      .build();
+  }
+
+  private List<String> hrefs(
+    final Document document)
+    throws XPathExpressionException
+  {
+    final var links =
+      (NodeList) this.xpath_links.evaluate(document, XPathConstants.NODESET);
+    final var results = new ArrayList<String>();
+    for (var index = 0; index < links.getLength(); ++index) {
+      results.add(((Element) links.item(index)).getAttribute("href"));
+    }
+    return results;
+  }
+
+  private static Document parse(
+    final URI uri,
+    final byte[] bytes)
+    throws Exception
+  {
+    try (var stream = new ByteArrayInputStream(bytes)) {
+      return new OPDSXMLParsers().parse(uri, stream);
+    }
+  }
+
+  private static URL resource(final String name)
+    throws FileNotFoundException
+  {
+    final var url =
+      OPDSStreamingDocumentProcessorTest.class.getResource(
+        "/one/lfa/opdsget/tests/vanilla/" + name);
+    if (url == null) {
+      throw new FileNotFoundException(name);
+    }
+    return url;
+  }
+}
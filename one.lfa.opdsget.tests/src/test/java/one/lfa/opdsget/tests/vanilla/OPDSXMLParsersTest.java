@@ -0,0 +1,99 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.tests.vanilla;
+
+import one.lfa.opdsget.vanilla.OPDSXMLParsers;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public final class OPDSXMLParsersTest
+{
+  private static final String FEED =
+    "<feed xmlns=\"http://www.w3.org/2005/Atom\"><title>%s</title></feed>";
+
+  /**
+   * A parser that failed to parse a document can still parse the next one.
+   *
+   * @throws Exception On errors
+   */
+
+  @Test
+  public void testParseAfterError()
+    throws Exception
+  {
+    final var parsers = new OPDSXMLParsers();
+
+    Assert.assertThrows(SAXException.class, () -> {
+      try (var stream = new ByteArrayInputStream("<feed".getBytes(UTF_8))) {
+        parsers.parse(URI.create("urn:broken"), stream);
+      }
+    });
+
+    try (var stream = new ByteArrayInputStream(String.format(FEED, "x").getBytes(UTF_8))) {
+      final var document = parsers.parse(URI.create("urn:ok"), stream);
+      Assert.assertEquals("urn:ok", document.getDocumentURI());
+      Assert.assertEquals("x", document.getDocumentElement().getTextContent());
+    }
+  }
+
+  /**
+   * A single set of parsers can be used by many threads at once.
+   *
+   * @throws Exception On errors
+   */
+
+  @Test(timeout = 20_000L)
+  public void testParseConcurrently()
+    throws Exception
+  {
+    final var parsers = new OPDSXMLParsers();
+    final var executor = Executors.newFixedThreadPool(8);
+
+    try {
+      final var futures = new ArrayList<Future<?>>();
+      for (var index = 0; index < 400; ++index) {
+        final var name = Integer.toString(index);
+        final Callable<Void> task = () -> {
+          final var bytes = String.format(FEED, name).getBytes(UTF_8);
+          try (var stream = new ByteArrayInputStream(bytes)) {
+            final var document = parsers.parse(URI.create("urn:" + name), stream);
+            Assert.assertEquals("urn:" + name, document.getDocumentURI());
+            Assert.assertEquals(name, document.getDocumentElement().getTextContent());
+          }
+          return null;
+        };
+        futures.add(executor.submit(task));
+      }
+
+      for (final var future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
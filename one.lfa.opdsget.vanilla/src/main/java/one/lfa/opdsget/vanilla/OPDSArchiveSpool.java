@@ -0,0 +1,480 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.vanilla;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A store of files that have been compressed ahead of the creation of an archive.
+ *
+ * Files are compressed as soon as they are final, by whichever thread produced them, and the
+ * compressed data is appended to one of a set of segment files. A segment is only ever appended
+ * to by one thread at a time, so threads never wait for each other to compress files. Once the
+ * retrieval has completed, the archive is assembled by copying the compressed data of each file
+ * out of the segments, and only the files that were never spooled, or that have changed since
+ * they were spooled, are read and compressed again.
+ *
+ * If a previous archive is given, files whose content is the same as that of the previous
+ * archive's entries are neither spooled nor compressed again; their compressed data is copied
+ * out of the previous archive instead.
+ */
+
+final class OPDSArchiveSpool implements Closeable
+{
+  private static final Logger LOG = LoggerFactory.getLogger(OPDSArchiveSpool.class);
+
+  private final Path segmentDirectory;
+  private final ConcurrentLinkedDeque<Segment> idle;
+  private final ConcurrentLinkedQueue<Segment> segments;
+  private final AtomicInteger segmentNumber;
+  private final ConcurrentHashMap<String, Spooled> files;
+  private Optional<OPDSZipIndex> previous;
+
+  private OPDSArchiveSpool(
+    final Path inDirectory,
+    final Optional<OPDSZipIndex> inPrevious)
+  {
+    this.segmentDirectory = Objects.requireNonNull(inDirectory, "directory");
+    this.previous = Objects.requireNonNull(inPrevious, "previous");
+    this.idle = new ConcurrentLinkedDeque<>();
+    this.segments = new ConcurrentLinkedQueue<>();
+    this.segmentNumber = new AtomicInteger(0);
+    this.files = new ConcurrentHashMap<>(128);
+  }
+
+  /**
+   * Open a spool in the given directory. Segments left in the directory by a previous retrieval
+   * are deleted.
+   *
+   * @param directory The directory that will hold segments
+   * @param previous  The archive that will be replaced, if any
+   *
+   * @return A spool
+   *
+   * @throws IOException On I/O errors
+   */
+
+  static OPDSArchiveSpool open(
+    final Path directory,
+    final Optional<Path> previous)
+    throws IOException
+  {
+    Objects.requireNonNull(directory, "directory");
+    Objects.requireNonNull(previous, "previous");
+
+    Files.createDirectories(directory);
+    try (var stream = Files.list(directory)) {
+      for (final var path : stream.collect(Collectors.toList())) {
+        LOG.debug("delete stale segment {}", path);
+        Files.deleteIfExists(path);
+      }
+    }
+
+    final var index =
+      previous.filter(Files::isRegularFile)
+        .flatMap(OPDSZipIndex::open);
+    return new OPDSArchiveSpool(directory, index);
+  }
+
+  /**
+   * Compress a file that will not be changed again. If the file was already spooled, the new
+   * data replaces the old.
+   *
+   * @param name The name of the file's entry in the archive
+   * @param file The file
+   * @param hash The SHA-256 hash of the file, if known
+   *
+   * @throws IOException On I/O errors
+   */
+
+  void add(
+    final String name,
+    final Path file,
+    final Optional<byte[]> hash)
+    throws IOException
+  {
+    Objects.requireNonNull(hash, "hash");
+
+    if (hash.isPresent() && this.fromPrevious(name, file, hash.get()).isPresent()) {
+      LOG.debug("unchanged since the previous archive: {}", name);
+      this.files.remove(name);
+      return;
+    }
+    this.spool(name, file);
+  }
+
+  private Optional<OPDSZipWriter.Data> fromPrevious(
+    final String name,
+    final Path file,
+    final byte[] hash)
+    throws IOException
+  {
+    if (this.previous.isEmpty()) {
+      return Optional.empty();
+    }
+    return this.previous.get().unchanged(name, hash, Files.size(file));
+  }
+
+  private Spooled spool(
+    final String name,
+    final Path file)
+    throws IOException
+  {
+    Objects.requireNonNull(name, "name");
+    Objects.requireNonNull(file, "file");
+
+    final var attributes = Files.readAttributes(file, BasicFileAttributes.class);
+    final var segment = this.acquire();
+    try {
+      final var position = segment.channel.position();
+      final var data = OPDSZipWriter.compress(file, segment.channel);
+      LOG.debug("spooled {} ({} -> {})", name, Long.valueOf(data.size()),
+                Long.valueOf(data.compressedSize()));
+      final var spooled =
+        new Spooled(segment, position, data, attributes.size(), attributes.lastModifiedTime());
+      this.files.put(name, spooled);
+      return spooled;
+    } finally {
+      this.idle.push(segment);
+    }
+  }
+
+  private CompletableFuture<Source> spoolAsync(
+    final String name,
+    final Path file,
+    final Executor executor)
+  {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return this.spool(name, file).source();
+      } catch (final IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }, executor);
+  }
+
+  private static Source await(
+    final CompletableFuture<Source> future)
+    throws IOException
+  {
+    try {
+      return future.join();
+    } catch (final CompletionException e) {
+      final var cause = e.getCause();
+      if (cause instanceof UncheckedIOException) {
+        throw ((UncheckedIOException) cause).getCause();
+      }
+      throw e;
+    }
+  }
+
+  private Segment acquire()
+    throws IOException
+  {
+    final var existing = this.idle.poll();
+    if (existing != null) {
+      return existing;
+    }
+
+    final var file =
+      this.segmentDirectory.resolve(
+        String.format("segment-%04d.bin", Integer.valueOf(this.segmentNumber.incrementAndGet())));
+    final var segment =
+      new Segment(file, FileChannel.open(file, CREATE, TRUNCATE_EXISTING, READ, WRITE));
+    this.segments.add(segment);
+    return segment;
+  }
+
+  /**
+   * Create a zip archive of the given directory, in exactly the same form as {@link
+   * OPDSArchiver#createArchive(Path, Path, Path, Predicate)} would. The zip file will be written
+   * to {@code output_tmp} and then atomically renamed to {@code output}. No files may be added
+   * whilst, or after, the archive is created.
+   *
+   * Files that have not been spooled, and that cannot be copied from the previous archive, are
+   * compressed in parallel on the given executor. Entries are written to the archive in order as
+   * soon as they are available, so the archive is written whilst later files are still being
+   * compressed.
+   *
+   * @param directory  The directory
+   * @param output     The output archive
+   * @param output_tmp The temporary file for the output archive
+   * @param include    A predicate that determines, given a path relative to {@code directory},
+   *                   whether a file should be included in the archive
+   * @param hashes     The SHA-256 hashes of the current content of files, by path relative to
+   *                   {@code directory}; files with no hash are never copied from the previous
+   *                   archive
+   * @param executor   The executor used to compress files
+   *
+   * @throws IOException On I/O errors
+   */
+
+  void createArchive(
+    final Path directory,
+    final Path output,
+    final Path output_tmp,
+    final Predicate<Path> include,
+    final Map<String, byte[]> hashes,
+    final Executor executor)
+    throws IOException
+  {
+    Objects.requireNonNull(directory, "directory");
+    Objects.requireNonNull(output, "output");
+    Objects.requireNonNull(output_tmp, "output_tmp");
+    Objects.requireNonNull(include, "include");
+    Objects.requireNonNull(hashes, "hashes");
+    Objects.requireNonNull(executor, "executor");
+
+    final var paths = OPDSArchiver.filesOf(directory, include);
+
+    LOG.debug("create {}", output_tmp);
+
+    var reused = 0;
+    var copied = 0;
+    try (var writer = OPDSZipWriter.create(output_tmp)) {
+      final var pending = new ArrayList<CompletableFuture<Source>>(paths.size());
+      try {
+        for (final var path : paths) {
+          final var name = path.toString();
+          final var file = directory.resolve(path).toAbsolutePath();
+          final var hash = hashes.get(name);
+          final var existing = this.files.get(name);
+
+          final Optional<OPDSZipWriter.Data> unchanged =
+            hash != null ? this.fromPrevious(name, file, hash) : Optional.empty();
+
+          if (existing != null && existing.isCurrent(file)) {
+            pending.add(CompletableFuture.completedFuture(existing.source()));
+            ++reused;
+          } else if (unchanged.isPresent()) {
+            final var index = this.previous.get();
+            pending.add(CompletableFuture.completedFuture(
+              new Source(index.channel(), index.dataPosition(name), unchanged.get())));
+            ++copied;
+          } else {
+            pending.add(this.spoolAsync(name, file, executor));
+          }
+        }
+
+        for (int index = 0; index < paths.size(); ++index) {
+          final var name = paths.get(index).toString();
+          final var source = await(pending.get(index));
+          LOG.debug("copy {}", name);
+          writer.writeCompressed(name, source.data, source.channel, source.position);
+        }
+        writer.finish();
+      } finally {
+
+        /*
+         * Compression that is still in progress after a failure must stop before the
+         * segments can be closed.
+         */
+
+        CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0]))
+          .exceptionally(ignored -> null)
+          .join();
+      }
+    }
+
+    LOG.info(
+      "archived {} files ({} compressed in advance, {} unchanged)",
+      Integer.valueOf(paths.size()),
+      Integer.valueOf(reused),
+      Integer.valueOf(copied));
+
+    this.closePrevious();
+    LOG.debug("rename {} -> {}", output_tmp, output);
+
+    Files.move(
+      output_tmp,
+      output,
+      StandardCopyOption.REPLACE_EXISTING,
+      StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * The previous archive is closed before it is replaced, as open files cannot be replaced on
+   * some platforms.
+   */
+
+  private void closePrevious()
+    throws IOException
+  {
+    final var index = this.previous;
+    this.previous = Optional.empty();
+    if (index.isPresent()) {
+      index.get().close();
+    }
+  }
+
+  /**
+   * Close the spool and delete all of its segments.
+   *
+   * @throws IOException On I/O errors
+   */
+
+  @Override
+  public void close()
+    throws IOException
+  {
+    IOException failure = null;
+    try {
+      this.closePrevious();
+    } catch (final IOException e) {
+      failure = e;
+    }
+
+    for (final var segment : this.segments) {
+      try {
+        segment.channel.close();
+        Files.deleteIfExists(segment.file);
+      } catch (final IOException e) {
+        if (failure == null) {
+          failure = e;
+        } else {
+          failure.addSuppressed(e);
+        }
+      }
+    }
+    this.segments.clear();
+    this.idle.clear();
+    this.files.clear();
+
+    try {
+      Files.deleteIfExists(this.segmentDirectory);
+    } catch (final DirectoryNotEmptyException e) {
+      LOG.debug("segment directory {} is not empty", this.segmentDirectory);
+    } catch (final IOException e) {
+      if (failure == null) {
+        failure = e;
+      } else {
+        failure.addSuppressed(e);
+      }
+    }
+
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private static final class Segment
+  {
+    private final Path file;
+    private final FileChannel channel;
+
+    Segment(
+      final Path inFile,
+      final FileChannel inChannel)
+    {
+      this.file = Objects.requireNonNull(inFile, "file");
+      this.channel = Objects.requireNonNull(inChannel, "channel");
+    }
+  }
+
+  private static final class Spooled
+  {
+    private final Segment segment;
+    private final long position;
+    private final OPDSZipWriter.Data data;
+    private final long size;
+    private final FileTime modified;
+
+    Spooled(
+      final Segment inSegment,
+      final long inPosition,
+      final OPDSZipWriter.Data inData,
+      final long inSize,
+      final FileTime inModified)
+    {
+      this.segment = Objects.requireNonNull(inSegment, "segment");
+      this.position = inPosition;
+      this.data = Objects.requireNonNull(inData, "data");
+      this.size = inSize;
+      this.modified = Objects.requireNonNull(inModified, "modified");
+    }
+
+    Source source()
+    {
+      return new Source(this.segment.channel, this.position, this.data);
+    }
+
+    /**
+     * A file that has been replaced or modified since it was spooled must be compressed again.
+     */
+
+    boolean isCurrent(
+      final Path file)
+      throws IOException
+    {
+      final var attributes = Files.readAttributes(file, BasicFileAttributes.class);
+      return attributes.size() == this.size
+        && this.data.size() == this.size
+        && Objects.equals(attributes.lastModifiedTime(), this.modified);
+    }
+  }
+
+  /**
+   * The location of the compressed data of an entry.
+   */
+
+  private static final class Source
+  {
+    private final FileChannel channel;
+    private final long position;
+    private final OPDSZipWriter.Data data;
+
+    Source(
+      final FileChannel inChannel,
+      final long inPosition,
+      final OPDSZipWriter.Data inData)
+    {
+      this.channel = Objects.requireNonNull(inChannel, "channel");
+      this.position = inPosition;
+      this.data = Objects.requireNonNull(inData, "data");
+    }
+  }
+}
@@ -16,21 +16,18 @@
 
 package one.lfa.opdsget.vanilla;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
-import java.nio.file.attribute.FileTime;
-import java.time.Instant;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
-
-import static java.nio.file.StandardOpenOption.CREATE_NEW;
 
 /**
  * Functions to create zip archives.
@@ -38,8 +35,6 @@ import static java.nio.file.StandardOpenOption.CREATE_NEW;
 
 public final class OPDSArchiver
 {
-  private static final Logger LOG = LoggerFactory.getLogger(OPDSArchiver.class);
-
   private OPDSArchiver()
   {
 
@@ -62,67 +57,137 @@ public final class OPDSArchiver
     final Path output_tmp)
     throws IOException
   {
-    Objects.requireNonNull(directory, "directory");
-    Objects.requireNonNull(output, "output");
-    Objects.requireNonNull(output_tmp, "output_tmp");
+    createArchive(directory, output, output_tmp, path -> true);
+  }
 
-    final var files =
-      Files.walk(directory)
-        .filter(path -> Files.isRegularFile(path))
-        .map(directory::relativize)
-        .sorted()
-        .collect(Collectors.toList());
+  /**
+   * Create a zip archive of the given directory. The zip file will be written to {@code output_tmp}
+   * and then atomically renamed to {@code output}. Files are compressed in parallel on the common
+   * fork/join pool.
+   *
+   * @param directory  The directory
+   * @param output     The output archive
+   * @param output_tmp The temporary file for the output archive
+   * @param include    A predicate that determines, given a path relative to {@code directory},
+   *                   whether a file should be included in the archive
+   *
+   * @throws IOException On I/O errors
+   */
 
-    /*
-     * Use a fixed time for all zip entries in an attempt to ensure that
-     * the produced zip is byte-for-byte reproducible.
-     */
+  public static void createArchive(
+    final Path directory,
+    final Path output,
+    final Path output_tmp,
+    final Predicate<Path> include)
+    throws IOException
+  {
+    createArchive(directory, output, output_tmp, include, ForkJoinPool.commonPool());
+  }
 
-    final var instant = Instant.parse("2001-01-01T00:00:00.00Z");
-    final var time = FileTime.from(instant);
+  /**
+   * Create a zip archive of the given directory. The zip file will be written to {@code output_tmp}
+   * and then atomically renamed to {@code output}.
+   *
+   * Files are compressed in parallel on the given executor, each into one of a set of temporary
+   * segment files next to {@code output_tmp}, and the compressed data is copied into the archive
+   * in order. Every file is compressed in the same way regardless of the thread that compressed
+   * it, so the archive is the same however many threads are used.
+   *
+   * @param directory  The directory
+   * @param output     The output archive
+   * @param output_tmp The temporary file for the output archive
+   * @param include    A predicate that determines, given a path relative to {@code directory},
+   *                   whether a file should be included in the archive
+   * @param executor   The executor used to compress files
+   *
+   * @throws IOException On I/O errors
+   */
 
-    LOG.debug("create {}", output_tmp);
+  public static void createArchive(
+    final Path directory,
+    final Path output,
+    final Path output_tmp,
+    final Predicate<Path> include,
+    final Executor executor)
+    throws IOException
+  {
+    Objects.requireNonNull(directory, "directory");
+    Objects.requireNonNull(output, "output");
+    Objects.requireNonNull(output_tmp, "output_tmp");
+    Objects.requireNonNull(include, "include");
+    Objects.requireNonNull(executor, "executor");
 
-    try (var stream =
-           new ZipOutputStream(Files.newOutputStream(output_tmp, CREATE_NEW))) {
-      for (final var path : files) {
-        compressFile(directory, time, stream, path);
-      }
+    final var segments = Paths.get(output_tmp + ".segments");
+    try (var spool = OPDSArchiveSpool.open(segments, Optional.empty())) {
+      spool.createArchive(directory, output, output_tmp, include, Map.of(), executor);
     }
-
-    LOG.debug("rename {} -> {}", output_tmp, output);
-
-    Files.move(
-      output_tmp,
-      output,
-      StandardCopyOption.REPLACE_EXISTING,
-      StandardCopyOption.ATOMIC_MOVE);
-
-    Files.deleteIfExists(output_tmp);
   }
 
-  private static void compressFile(
+  /**
+   * Update the zip archive of the given directory, producing exactly the archive that {@link
+   * #createArchive(Path, Path, Path, Predicate, Executor)} would produce. The compressed data of
+   * files that are the same as the entries of the existing archive at {@code output} is copied
+   * from that archive, and only new and changed files are compressed. If {@code output} does not
+   * exist, or was not produced by this version of the archiver, the archive is created from
+   * scratch.
+   *
+   * @param directory  The directory
+   * @param output     The output archive
+   * @param output_tmp The temporary file for the output archive
+   * @param include    A predicate that determines, given a path relative to {@code directory},
+   *                   whether a file should be included in the archive
+   * @param hashes     The SHA-256 hashes of the files, by path relative to {@code directory}; a
+   *                   file with no hash is always compressed
+   * @param executor   The executor used to compress files
+   *
+   * @throws IOException On I/O errors
+   */
+
+  public static void updateArchive(
     final Path directory,
-    final FileTime time,
-    final ZipOutputStream stream,
-    final Path path)
+    final Path output,
+    final Path output_tmp,
+    final Predicate<Path> include,
+    final Map<String, byte[]> hashes,
+    final Executor executor)
     throws IOException
   {
-    LOG.debug("compress {}", path);
+    Objects.requireNonNull(directory, "directory");
+    Objects.requireNonNull(output, "output");
+    Objects.requireNonNull(output_tmp, "output_tmp");
+    Objects.requireNonNull(include, "include");
+    Objects.requireNonNull(hashes, "hashes");
+    Objects.requireNonNull(executor, "executor");
 
-    final var real_path = directory.resolve(path).toAbsolutePath();
+    final var segments = Paths.get(output_tmp + ".segments");
+    try (var spool = OPDSArchiveSpool.open(segments, Optional.of(output))) {
+      spool.createArchive(directory, output, output_tmp, include, hashes, executor);
+    }
+  }
 
-    final var entry = new ZipEntry(path.toString());
-    entry.setComment("");
-    entry.setCreationTime(time);
-    entry.setLastAccessTime(time);
-    entry.setLastModifiedTime(time);
-    entry.setSize(Files.size(real_path));
+  /**
+   * @param directory The directory
+   * @param include   A predicate that determines, given a path relative to {@code directory},
+   *                  whether a file should be included in the archive
+   *
+   * @return The paths, relative to {@code directory}, of the files that will be archived, in
+   *   the order in which they are archived
+   *
+   * @throws IOException On I/O errors
+   */
 
-    stream.putNextEntry(entry);
-    try (var input = Files.newInputStream(real_path)) {
-      input.transferTo(stream);
+  static List<Path> filesOf(
+    final Path directory,
+    final Predicate<Path> include)
+    throws IOException
+  {
+    try (var stream = Files.walk(directory)) {
+      return stream
+        .filter(path -> Files.isRegularFile(path))
+        .map(directory::relativize)
+        .filter(include)
+        .sorted()
+        .collect(Collectors.toList());
     }
-    stream.closeEntry();
   }
 }
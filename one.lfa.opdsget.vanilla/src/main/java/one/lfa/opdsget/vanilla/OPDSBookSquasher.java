@@ -0,0 +1,224 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.vanilla;
+
+import one.lfa.epubsquash.api.EPUBSquasherConfiguration;
+import one.lfa.epubsquash.api.EPUBSquasherProviderType;
+import one.lfa.opdsget.api.OPDSGetConfiguration;
+import one.lfa.opdsget.api.OPDSSquashConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
+
+import static one.lfa.opdsget.vanilla.OPDSManifestFileEntryKind.GENERAL;
+
+/**
+ * A squasher of books for a fixed number of workers. Each worker has a temporary directory, in
+ * the state directory, that is emptied after each book and deleted when the squasher is closed.
+ */
+
+final class OPDSBookSquasher implements Closeable
+{
+  private static final Logger LOG = LoggerFactory.getLogger(OPDSBookSquasher.class);
+
+  private final EPUBSquasherProviderType squashers;
+  private final OPDSSquashConfiguration squash;
+  private final Optional<OPDSTransformCache> cache;
+  private final Path temporary;
+  private final BlockingQueue<Path> directories;
+
+  private OPDSBookSquasher(
+    final EPUBSquasherProviderType inSquashers,
+    final OPDSSquashConfiguration inSquash,
+    final Optional<OPDSTransformCache> inCache,
+    final Path inTemporary,
+    final BlockingQueue<Path> inDirectories)
+  {
+    this.squashers =
+      Objects.requireNonNull(inSquashers, "squashers");
+    this.squash =
+      Objects.requireNonNull(inSquash, "squash");
+    this.cache =
+      Objects.requireNonNull(inCache, "cache");
+    this.temporary =
+      Objects.requireNonNull(inTemporary, "temporary");
+    this.directories =
+      Objects.requireNonNull(inDirectories, "directories");
+  }
+
+  /**
+   * Open a squasher, creating a temporary directory for each worker.
+   *
+   * @param configuration The configuration
+   * @param squash        The squash configuration
+   * @param squashers     A provider of squashers
+   * @param workers       The number of books that may be squashed at once
+   *
+   * @return A squasher
+   *
+   * @throws IOException On I/O errors
+   */
+
+  static OPDSBookSquasher open(
+    final OPDSGetConfiguration configuration,
+    final OPDSSquashConfiguration squash,
+    final EPUBSquasherProviderType squashers,
+    final int workers)
+    throws IOException
+  {
+    final var temporary = configuration.stateDirectory().resolve("squash");
+    deleteRecursively(temporary);
+
+    final var directories = new ArrayBlockingQueue<Path>(workers);
+    for (int index = 0; index < workers; ++index) {
+      directories.add(Files.createDirectories(temporary.resolve(Integer.toString(index))));
+    }
+
+    return new OPDSBookSquasher(
+      squashers, squash, openCache(configuration, squash), temporary, directories);
+  }
+
+  /**
+   * @return The cache of squashed books, if the transform cache is enabled
+   */
+
+  Optional<OPDSTransformCache> cache()
+  {
+    return this.cache;
+  }
+
+  /**
+   * Squash a book using one of the temporary directories, which is emptied and returned once the
+   * book has been squashed.
+   *
+   * @param epub     The book
+   * @param onChange The receiver of the squashed book
+   *
+   * @return {@code true} if the book was restored from the transform cache
+   */
+
+  Boolean squash(
+    final Path epub,
+    final OPDSManifestChangeRequiredType onChange)
+  {
+    try {
+      final var restored =
+        OPDSTransformCache.restoreOrTransform(this.cache, epub, this::squashFile);
+      onChange.onFileChanged(GENERAL, epub.toAbsolutePath());
+      return Boolean.valueOf(restored);
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CompletionException(e);
+    } catch (final Exception e) {
+      LOG.error("failed to squash {}: ", epub, e);
+      throw new CompletionException(e);
+    }
+  }
+
+  private void squashFile(
+    final Path epub)
+    throws Exception
+  {
+    LOG.info("squash: {}", epub);
+
+    final var directory = this.directories.take();
+    try {
+      final var squasher =
+        this.squashers.createSquasher(
+          EPUBSquasherConfiguration.builder()
+            .setInputFile(epub)
+            .setTemporaryDirectory(directory)
+            .setOutputFile(epub)
+            .setScale(this.squash.scaleFactor())
+            .setMaximumImageHeight(this.squash.maximumImageHeight())
+            .setMaximumImageWidth(this.squash.maximumImageWidth())
+            .build());
+
+      squasher.squash();
+    } finally {
+      try {
+        deleteContents(directory);
+        Files.createDirectories(directory);
+      } finally {
+        this.directories.add(directory);
+      }
+    }
+  }
+
+  @Override
+  public void close()
+    throws IOException
+  {
+    deleteRecursively(this.temporary);
+  }
+
+  private static void deleteContents(
+    final Path directory)
+    throws IOException
+  {
+    if (!Files.isDirectory(directory)) {
+      return;
+    }
+
+    final List<Path> paths;
+    try (var stream = Files.walk(directory)) {
+      paths = stream
+        .filter(path -> !Objects.equals(path, directory))
+        .sorted(Comparator.reverseOrder())
+        .collect(Collectors.toList());
+    }
+    for (final var path : paths) {
+      Files.deleteIfExists(path);
+    }
+  }
+
+  private static void deleteRecursively(
+    final Path directory)
+    throws IOException
+  {
+    deleteContents(directory);
+    Files.deleteIfExists(directory);
+  }
+
+  private static Optional<OPDSTransformCache> openCache(
+    final OPDSGetConfiguration configuration,
+    final OPDSSquashConfiguration squash)
+  {
+    if (!configuration.transformCache()) {
+      return Optional.empty();
+    }
+    return OPDSTransformCache.openQuietly(
+      configuration.stateDirectory().resolve("transforms"),
+      "books",
+      1,
+      Double.valueOf(squash.scaleFactor()),
+      Double.valueOf(squash.maximumImageWidth()),
+      Double.valueOf(squash.maximumImageHeight()));
+  }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.vanilla;
+
+import one.lfa.opdsget.api.OPDSCrawlLimits;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * The queue of work remaining in a retrieval. Feeds, images, and books are queued separately, and
+ * at most a fixed number of tasks are in progress at any one time. Feeds are only fetched whilst
+ * the number of queued downloads is below a limit, so that a large catalogue cannot be expanded
+ * into more work than can be held in memory. Tasks are started on the given executor, and no
+ * thread is blocked whilst the frontier waits for tasks to complete.
+ */
+
+final class OPDSCrawlFrontier
+{
+  private static final Logger LOG = LoggerFactory.getLogger(OPDSCrawlFrontier.class);
+
+  private final Executor executor;
+  private final int maximumQueuedDownloads;
+  private final int maximumActive;
+  private final ArrayDeque<Supplier<CompletableFuture<?>>> feeds;
+  private final ArrayDeque<Supplier<CompletableFuture<?>>> images;
+  private final ArrayDeque<Supplier<CompletableFuture<?>>> books;
+  private final CompletableFuture<Void> completion;
+  private int active;
+  private Throwable failure;
+
+  OPDSCrawlFrontier(
+    final OPDSCrawlLimits inLimits,
+    final Executor inExecutor)
+  {
+    Objects.requireNonNull(inLimits, "limits");
+    this.executor = Objects.requireNonNull(inExecutor, "executor");
+    this.maximumQueuedDownloads = inLimits.maximumQueuedDownloads();
+    this.maximumActive = inLimits.maximumActiveTasks();
+    this.feeds = new ArrayDeque<>(64);
+    this.images = new ArrayDeque<>(64);
+    this.books = new ArrayDeque<>(64);
+    this.completion = new CompletableFuture<>();
+    this.active = 0;
+  }
+
+  /**
+   * The future returned by this method completes once every submitted task has completed, and
+   * completes exceptionally with the first failure if any task failed. A failed task does not
+   * prevent the remaining tasks from running.
+   *
+   * @return A future that completes when the frontier is empty
+   */
+
+  CompletableFuture<Void> completion()
+  {
+    return this.completion;
+  }
+
+  /**
+   * Submit a task. The task is started by evaluating {@code task} once it reaches the front of
+   * its queue, and is considered to be in progress until the returned future completes. A feed
+   * task should submit the tasks for the feed's links before its future completes.
+   *
+   * @param priority The priority class of the task
+   * @param task     A function that starts the task
+   */
+
+  void submit(
+    final Priority priority,
+    final Supplier<CompletableFuture<?>> task)
+  {
+    Objects.requireNonNull(priority, "priority");
+    Objects.requireNonNull(task, "task");
+
+    synchronized (this) {
+      switch (priority) {
+        case FEED: {
+          this.feeds.push(task);
+          break;
+        }
+        case IMAGE: {
+          this.images.add(task);
+          break;
+        }
+        case BOOK: {
+          this.books.add(task);
+          break;
+        }
+      }
+    }
+    this.dispatch();
+  }
+
+  /**
+   * Feeds are preferred, so that work is discovered early, until the download queues reach their
+   * limit; from then on, downloads are preferred until they drain. Feeds are taken in last-in
+   * first-out order, so that the entries of a page are expanded before the following page is
+   * fetched. Images are small and are preferred to books.
+   */
+
+  private Supplier<CompletableFuture<?>> select()
+  {
+    final var queuedDownloads = this.images.size() + this.books.size();
+    if (!this.feeds.isEmpty() && queuedDownloads < this.maximumQueuedDownloads) {
+      return this.feeds.poll();
+    }
+    if (!this.images.isEmpty()) {
+      return this.images.poll();
+    }
+    if (!this.books.isEmpty()) {
+      return this.books.poll();
+    }
+    return this.feeds.poll();
+  }
+
+  private void dispatch()
+  {
+    while (true) {
+      final Supplier<CompletableFuture<?>> next;
+      final Throwable finalFailure;
+      synchronized (this) {
+        if (this.active >= this.maximumActive) {
+          return;
+        }
+
+        next = this.select();
+        if (next != null) {
+          this.active += 1;
+        } else if (this.active > 0) {
+          return;
+        }
+        finalFailure = this.failure;
+      }
+
+      /*
+       * The completion is triggered outside of the lock, as completing it runs the stages
+       * that follow the retrieval.
+       */
+
+      if (next == null) {
+        this.complete(finalFailure);
+        return;
+      }
+
+      this.executor.execute(() -> this.run(next));
+    }
+  }
+
+  private void run(
+    final Supplier<CompletableFuture<?>> task)
+  {
+    CompletableFuture<?> future;
+    try {
+      future = task.get();
+    } catch (final Exception e) {
+      future = CompletableFuture.failedFuture(e);
+    }
+
+    future.whenComplete((ignored, error) -> {
+      synchronized (this) {
+        this.active -= 1;
+        if (error != null) {
+          if (this.failure == null) {
+            this.failure = error;
+          } else if (this.failure != error) {
+            LOG.debug("suppressing additional failure: ", error);
+          }
+        }
+      }
+      this.dispatch();
+    });
+  }
+
+  private void complete(
+    final Throwable error)
+  {
+    if (error != null) {
+      this.completion.completeExceptionally(error);
+    } else {
+      this.completion.complete(null);
+    }
+  }
+
+  /**
+   * The priority class of a task.
+   */
+
+  enum Priority
+  {
+    /**
+     * The task fetches and expands a feed.
+     */
+
+    FEED,
+
+    /**
+     * The task downloads an image.
+     */
+
+    IMAGE,
+
+    /**
+     * The task downloads a book.
+     */
+
+    BOOK
+  }
+}
@@ -0,0 +1,396 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.vanilla;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * An append-only journal of the work completed by a retrieval. Each completed download, and each
+ * file changed by a transformation, is recorded on its own line as soon as it is complete. If a
+ * retrieval is interrupted, the next retrieval of the same feed into the same directory replays
+ * the journal and does not repeat the recorded work. The journal is deleted when a retrieval
+ * succeeds.
+ */
+
+final class OPDSCrawlJournal implements Closeable
+{
+  private static final Logger LOG = LoggerFactory.getLogger(OPDSCrawlJournal.class);
+  private static final String HEADER = "# opdsget journal 1";
+
+  private final Path file;
+
+  /*
+   * Entries replayed from a previous retrieval. These are never modified after the journal
+   * is opened.
+   */
+
+  private final Map<URI, Entry> downloaded;
+  private final Set<String> transformed;
+  private final BufferedWriter writer;
+
+  private OPDSCrawlJournal(
+    final Path inFile,
+    final Map<URI, Entry> inDownloaded,
+    final Set<String> inTransformed,
+    final BufferedWriter inWriter)
+  {
+    this.file = Objects.requireNonNull(inFile, "file");
+    this.downloaded = Objects.requireNonNull(inDownloaded, "downloaded");
+    this.transformed = Objects.requireNonNull(inTransformed, "transformed");
+    this.writer = Objects.requireNonNull(inWriter, "writer");
+  }
+
+  /**
+   * Open the journal in the given file, replaying any existing entries. Entries recorded for a
+   * different feed are discarded.
+   *
+   * @param file   The file
+   * @param remote The URI of the feed being retrieved
+   *
+   * @return A journal
+   *
+   * @throws IOException On I/O errors
+   */
+
+  static OPDSCrawlJournal open(
+    final Path file,
+    final URI remote)
+    throws IOException
+  {
+    final var header = HEADER + "\t" + remote;
+    final var downloaded = new HashMap<URI, Entry>(128);
+    final var byPath = new HashMap<String, URI>(128);
+    final var transformed = new HashSet<String>(128);
+
+    var replayed = false;
+    if (Files.isRegularFile(file)) {
+      final var content = Files.readAllBytes(file);
+      final var complete = completeLength(content);
+      final var lines =
+        UTF_8.decode(ByteBuffer.wrap(content, 0, complete)).toString().lines().iterator();
+
+      if (lines.hasNext() && Objects.equals(lines.next(), header)) {
+        replayed = true;
+        while (lines.hasNext()) {
+          replay(file, downloaded, byPath, transformed, lines.next());
+        }
+        truncateIncomplete(file, content, complete);
+      } else {
+        LOG.info("{}: journal is for a different feed; discarding it", file);
+      }
+    }
+
+    if (replayed) {
+      LOG.info(
+        "{}: resuming: {} downloads already completed",
+        file,
+        Integer.valueOf(downloaded.size()));
+    }
+
+    Files.createDirectories(file.getParent());
+    final BufferedWriter writer;
+    if (replayed) {
+      writer = Files.newBufferedWriter(file, UTF_8, APPEND, WRITE);
+    } else {
+      writer = Files.newBufferedWriter(file, UTF_8, CREATE, TRUNCATE_EXISTING, WRITE);
+      writer.write(header);
+      writer.newLine();
+      writer.flush();
+    }
+
+    return new OPDSCrawlJournal(file, downloaded, transformed, writer);
+  }
+
+  /**
+   * @return The length of the given content up to and including its last line separator
+   */
+
+  private static int completeLength(
+    final byte[] content)
+  {
+    for (int index = content.length - 1; index >= 0; --index) {
+      if (content[index] == '\n') {
+        return index + 1;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * A line that was only partially written when the previous retrieval stopped has no line
+   * separator. It is never replayed, as even a line that parses may hold a truncated hash, and it
+   * is removed so that the first line appended by this retrieval starts on a line of its own.
+   */
+
+  private static void truncateIncomplete(
+    final Path file,
+    final byte[] content,
+    final int complete)
+    throws IOException
+  {
+    if (complete == content.length) {
+      return;
+    }
+
+    LOG.warn("{}: discarding an incomplete final line", file);
+    try (var channel = FileChannel.open(file, WRITE)) {
+      channel.truncate((long) complete);
+    }
+  }
+
+  /**
+   * Replay a single line. A malformed line is ignored.
+   */
+
+  private static void replay(
+    final Path file,
+    final Map<URI, Entry> downloaded,
+    final Map<String, URI> byPath,
+    final Set<String> transformed,
+    final String line)
+  {
+    final var segments = OPDSTabSeparated.split(line);
+    try {
+      if (segments.length == 6 && Objects.equals(segments[0], "D")) {
+        final var uri = new URI(segments[1]);
+        byPath.put(segments[2], uri);
+
+        /*
+         * A download replaces any transformed content recorded earlier.
+         */
+
+        transformed.remove(segments[2]);
+        downloaded.put(
+          uri,
+          new Entry(
+            segments[2],
+            Hex.decodeHex(segments[3]),
+            OPDSTabSeparated.nonEmpty(segments[4]),
+            OPDSTabSeparated.nonEmpty(segments[5])));
+        return;
+      }
+
+      if (segments.length == 3 && Objects.equals(segments[0], "T")) {
+        final var path = segments[1];
+        final var hash = Hex.decodeHex(segments[2]);
+        final var uri = byPath.get(path);
+        if (uri != null) {
+          final var existing = downloaded.get(uri);
+          downloaded.put(
+            uri, new Entry(path, hash, existing.entityTag(), existing.lastModified()));
+        }
+        transformed.add(path);
+        return;
+      }
+    } catch (final URISyntaxException | DecoderException e) {
+      LOG.warn("{}: ignoring malformed line: {}: {}", file, line, e.getMessage());
+      return;
+    }
+
+    LOG.warn("{}: ignoring malformed line: {}", file, line);
+  }
+
+  /**
+   * @param uri The URI
+   *
+   * @return The download recorded for the given URI in a previous retrieval, if any
+   */
+
+  Optional<Entry> completed(
+    final URI uri)
+  {
+    return Optional.ofNullable(this.downloaded.get(uri));
+  }
+
+  /**
+   * @param path The path of a file, relative to the output directory
+   *
+   * @return {@code true} if the file was transformed in a previous retrieval
+   */
+
+  boolean isTransformed(
+    final String path)
+  {
+    return this.transformed.contains(path);
+  }
+
+  /**
+   * Record a completed download.
+   *
+   * @param uri          The URI
+   * @param path         The path of the file, relative to the output directory
+   * @param hash         The SHA-256 hash of the file
+   * @param entityTag    The entity tag of the content, if any
+   * @param lastModified The modification date of the content, if any
+   *
+   * @throws IOException On I/O errors
+   */
+
+  void downloaded(
+    final URI uri,
+    final String path,
+    final byte[] hash,
+    final Optional<String> entityTag,
+    final Optional<String> lastModified)
+    throws IOException
+  {
+    synchronized (this.writer) {
+      this.writeLine(
+        new StringBuilder(256)
+          .append("D\t")
+          .append(uri)
+          .append('\t')
+          .append(path)
+          .append('\t')
+          .append(Hex.encodeHexString(hash))
+          .append('\t')
+          .append(OPDSTabSeparated.clean(entityTag))
+          .append('\t')
+          .append(OPDSTabSeparated.clean(lastModified))
+          .toString());
+    }
+  }
+
+  /**
+   * Record a file that was changed by a transformation.
+   *
+   * @param path The path of the file, relative to the output directory
+   * @param hash The SHA-256 hash of the changed file
+   *
+   * @throws IOException On I/O errors
+   */
+
+  void transformed(
+    final String path,
+    final byte[] hash)
+    throws IOException
+  {
+    synchronized (this.writer) {
+      this.writeLine(
+        new StringBuilder(128)
+          .append("T\t")
+          .append(path)
+          .append('\t')
+          .append(Hex.encodeHexString(hash))
+          .toString());
+    }
+  }
+
+  /**
+   * Each line is flushed as soon as it is written so that it survives the JVM exiting.
+   */
+
+  private void writeLine(
+    final String line)
+    throws IOException
+  {
+    this.writer.write(line);
+    this.writer.newLine();
+    this.writer.flush();
+  }
+
+  /**
+   * Close and delete the journal.
+   *
+   * @throws IOException On I/O errors
+   */
+
+  void delete()
+    throws IOException
+  {
+    this.close();
+    Files.deleteIfExists(this.file);
+  }
+
+  @Override
+  public void close()
+    throws IOException
+  {
+    synchronized (this.writer) {
+      this.writer.close();
+    }
+  }
+
+  /**
+   * A download recorded in the journal.
+   */
+
+  static final class Entry
+  {
+    private final String path;
+    private final byte[] hash;
+    private final Optional<String> entityTag;
+    private final Optional<String> lastModified;
+
+    Entry(
+      final String inPath,
+      final byte[] inHash,
+      final Optional<String> inEntityTag,
+      final Optional<String> inLastModified)
+    {
+      this.path = Objects.requireNonNull(inPath, "path");
+      this.hash = Objects.requireNonNull(inHash, "hash").clone();
+      this.entityTag = Objects.requireNonNull(inEntityTag, "entityTag");
+      this.lastModified = Objects.requireNonNull(inLastModified, "lastModified");
+    }
+
+    String path()
+    {
+      return this.path;
+    }
+
+    byte[] hash()
+    {
+      return this.hash.clone();
+    }
+
+    Optional<String> entityTag()
+    {
+      return this.entityTag;
+    }
+
+    Optional<String> lastModified()
+    {
+      return this.lastModified;
+    }
+  }
+}
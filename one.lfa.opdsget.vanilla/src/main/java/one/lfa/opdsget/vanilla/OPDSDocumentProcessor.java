@@ -19,7 +19,6 @@ package one.lfa.opdsget.vanilla;
 import one.lfa.opdsget.api.OPDSDocumentProcessed;
 import one.lfa.opdsget.api.OPDSDocumentProcessorType;
 import one.lfa.opdsget.api.OPDSGetConfiguration;
-import one.lfa.opdsget.api.OPDSGetKind;
 import one.lfa.opdsget.api.OPDSLocalFile;
 import one.lfa.opdsget.api.OPDSURIHashing;
 import one.lfa.opdsget.api.OPDSURIRewriterType;
@@ -182,62 +181,24 @@ public final class OPDSDocumentProcessor implements OPDSDocumentProcessorType
     for (var index = 0; index < links.getLength(); ++index) {
       final var link = (Element) links.item(index);
 
-      final var relation = link.getAttribute("rel");
-      switch (relation) {
-        case "http://opds-spec.org/featured":
-        case "subsection":
-        case "collection":
-        case "alternate": {
-          final var type = link.getAttribute("type");
-          if (type != null && type.contains("application/atom+xml")) {
-            final var target = constructLinkURI(document, link);
-            final var path = configuration.feedFileHashed(target);
-            final var file = OPDSLocalFile.of(target, path);
-            feeds.put(target, file);
-            rewriteLinkTarget(rewriter, link, source, file);
-          } else {
-            LOG.debug("removing link with rel {} and type {}", relation, type);
-            removeElement(link);
-          }
-          break;
-        }
-
-        case "next": {
-          final var target = constructLinkURI(document, link);
-          final var path = configuration.feedFileHashed(target);
-          final var file = OPDSLocalFile.of(target, path);
-          feeds.put(target, file);
-          rewriteLinkTarget(rewriter, link, source, file);
-          break;
-        }
+      final var action =
+        OPDSLinks.classify(configuration, link.getAttribute("rel"), link.getAttribute("type"));
 
-        case "http://opds-spec.org/image":
-        case "http://opds-spec.org/image/thumbnail": {
-          if (configuration.fetchedKinds().contains(OPDSGetKind.OPDS_GET_IMAGES)) {
-            final var target = constructLinkURI(document, link);
-            final var path = configuration.imageFileHashed(target);
-            final var file = OPDSLocalFile.of(target, path);
-            images.put(target, file);
-            rewriteLinkTarget(rewriter, link, source, file);
-          }
+      switch (action) {
+        case REMOVE: {
+          removeElement(link);
           break;
         }
-
-        case "http://opds-spec.org/acquisition":
-        case "http://opds-spec.org/acquisition/open-access": {
-          if (configuration.fetchedKinds().contains(OPDSGetKind.OPDS_GET_BOOKS)) {
-            final var target = constructLinkURI(document, link);
-            final var path = configuration.bookFileHashed(target);
-            final var file = OPDSLocalFile.of(target, path);
-            books.put(target, file);
-            rewriteLinkTarget(rewriter, link, source, file);
-          }
+        case KEEP: {
           break;
         }
-
-        default: {
-          LOG.debug("removing link with rel attribute '{}'", relation);
-          removeElement(link);
+        case FEED:
+        case IMAGE:
+        case BOOK: {
+          final var target = constructLinkURI(document, link);
+          final var file =
+            OPDSLinks.collect(configuration, action, target, feeds, images, books);
+          rewriteLinkTarget(rewriter, link, source, file);
           break;
         }
       }
@@ -0,0 +1,265 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.vanilla;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+
+/**
+ * A persistent store of the HTTP validators ({@code ETag} and {@code Last-Modified} values)
+ * returned by servers for fetched URIs. The store is held in memory and written back to a file in
+ * the state directory at the end of a run. The file contains one tab-separated line per URI.
+ *
+ * Each entry also records the transform (such as squashing or scaling) that was applied to the
+ * local copy of the content, as the local copy is only equivalent to the remote content under
+ * that transform.
+ */
+
+final class OPDSHTTPValidatorStore
+{
+  private static final Logger LOG = LoggerFactory.getLogger(OPDSHTTPValidatorStore.class);
+  private static final String HEADER = "# opdsget validators 2";
+
+  private final Path file;
+  private final ConcurrentHashMap<URI, Validators> validators;
+
+  private OPDSHTTPValidatorStore(
+    final Path inFile,
+    final ConcurrentHashMap<URI, Validators> inValidators)
+  {
+    this.file = Objects.requireNonNull(inFile, "file");
+    this.validators = Objects.requireNonNull(inValidators, "validators");
+  }
+
+  /**
+   * Open the store in the given file. A missing or unreadable file yields an empty store.
+   *
+   * @param file The file
+   *
+   * @return A store
+   */
+
+  static OPDSHTTPValidatorStore open(
+    final Path file)
+  {
+    final var validators = new ConcurrentHashMap<URI, Validators>(128);
+
+    if (Files.isRegularFile(file)) {
+      try (var reader = Files.newBufferedReader(file, UTF_8)) {
+        final var header = reader.readLine();
+        if (!Objects.equals(header, HEADER)) {
+          LOG.warn("{}: unrecognized validator file; ignoring it", file);
+        } else {
+          while (true) {
+            final var line = reader.readLine();
+            if (line == null) {
+              break;
+            }
+            parseLine(file, validators, line);
+          }
+        }
+      } catch (final IOException e) {
+        LOG.warn("{}: could not read validators; ignoring them: ", file, e);
+        validators.clear();
+      }
+    }
+
+    LOG.debug("loaded {} validators from {}", Integer.valueOf(validators.size()), file);
+    return new OPDSHTTPValidatorStore(file, validators);
+  }
+
+  private static void parseLine(
+    final Path file,
+    final Map<URI, Validators> validators,
+    final String line)
+  {
+    final var segments = OPDSTabSeparated.split(line);
+    if (segments.length != 4) {
+      LOG.warn("{}: ignoring malformed line: {}", file, line);
+      return;
+    }
+
+    try {
+      final var entry =
+        new Validators(
+          OPDSTabSeparated.nonEmpty(segments[1]),
+          OPDSTabSeparated.nonEmpty(segments[2]),
+          segments[3]);
+      if (entry.isPresent()) {
+        validators.put(new URI(segments[0]), entry);
+      }
+    } catch (final Exception e) {
+      LOG.warn("{}: ignoring malformed line: {}", file, line);
+    }
+  }
+
+  /**
+   * @param uri The URI
+   *
+   * @return The validators stored for the given URI, if any
+   */
+
+  Optional<Validators> get(
+    final URI uri)
+  {
+    return Optional.ofNullable(this.validators.get(uri));
+  }
+
+  /**
+   * Store validators for the given URI. If neither validator is present, any existing validators
+   * are removed.
+   *
+   * @param uri          The URI
+   * @param entityTag    The entity tag, if any
+   * @param lastModified The modification date, if any
+   * @param transform    The transform applied to the local copy, or an empty string if none
+   */
+
+  void put(
+    final URI uri,
+    final Optional<String> entityTag,
+    final Optional<String> lastModified,
+    final String transform)
+  {
+    final var entry = new Validators(entityTag, lastModified, transform);
+    if (entry.isPresent()) {
+      this.validators.put(uri, entry);
+    } else {
+      this.validators.remove(uri);
+    }
+  }
+
+  /**
+   * Remove any validators stored for the given URI, so that the next request for the URI is
+   * unconditional.
+   *
+   * @param uri The URI
+   */
+
+  void remove(
+    final URI uri)
+  {
+    this.validators.remove(uri);
+  }
+
+  /**
+   * Record that the local copy of the content of the given URI has been transformed. Nothing is
+   * recorded if there are no validators for the URI.
+   *
+   * @param uri       The URI
+   * @param transform The transform applied to the local copy
+   */
+
+  void transformed(
+    final URI uri,
+    final String transform)
+  {
+    this.validators.computeIfPresent(
+      uri,
+      (ignored, entry) -> new Validators(entry.entityTag, entry.lastModified, transform));
+  }
+
+  /**
+   * Write the store back to its file.
+   *
+   * @throws IOException On I/O errors
+   */
+
+  void save()
+    throws IOException
+  {
+    final var sorted = new TreeMap<>(this.validators);
+    final var file_tmp = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+
+    Files.createDirectories(this.file.getParent());
+    try (var writer = Files.newBufferedWriter(file_tmp, UTF_8, CREATE, TRUNCATE_EXISTING)) {
+      writer.write(HEADER);
+      writer.newLine();
+      for (final var entry : sorted.entrySet()) {
+        final var value = entry.getValue();
+        writer.write(entry.getKey().toString());
+        writer.write('\t');
+        writer.write(OPDSTabSeparated.clean(value.entityTag));
+        writer.write('\t');
+        writer.write(OPDSTabSeparated.clean(value.lastModified));
+        writer.write('\t');
+        writer.write(OPDSTabSeparated.clean(Optional.of(value.transform)));
+        writer.newLine();
+      }
+    }
+
+    Files.move(file_tmp, this.file, ATOMIC_MOVE, REPLACE_EXISTING);
+    LOG.debug("saved {} validators to {}", Integer.valueOf(sorted.size()), this.file);
+  }
+
+  static final class Validators
+  {
+    private final Optional<String> entityTag;
+    private final Optional<String> lastModified;
+    private final String transform;
+
+    Validators(
+      final Optional<String> inEntityTag,
+      final Optional<String> inLastModified,
+      final String inTransform)
+    {
+      this.entityTag = Objects.requireNonNull(inEntityTag, "entityTag");
+      this.lastModified = Objects.requireNonNull(inLastModified, "lastModified");
+      this.transform = Objects.requireNonNull(inTransform, "transform");
+    }
+
+    boolean isPresent()
+    {
+      return this.entityTag.isPresent() || this.lastModified.isPresent();
+    }
+
+    Optional<String> entityTag()
+    {
+      return this.entityTag;
+    }
+
+    Optional<String> lastModified()
+    {
+      return this.lastModified;
+    }
+
+    /**
+     * @return The transform applied to the local copy, or an empty string if none
+     */
+
+    String transform()
+    {
+      return this.transform;
+    }
+  }
+}
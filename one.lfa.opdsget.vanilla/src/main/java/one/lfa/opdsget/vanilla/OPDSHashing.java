@@ -24,18 +24,42 @@ import java.security.NoSuchAlgorithmException;
 
 final class OPDSHashing
 {
+  private static final int BUFFER_SIZE = 65536;
+
   private OPDSHashing()
   {
 
   }
 
-  static byte[] sha256HashOf(
+  /**
+   * @return A new SHA-256 digest
+   */
+
+  static MessageDigest sha256()
+  {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (final NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Update the given digest with the content of the given file.
+   *
+   * @param digest The digest
+   * @param file   The file
+   *
+   * @throws IOException On I/O errors
+   */
+
+  static void update(
+    final MessageDigest digest,
     final Path file)
     throws IOException
   {
     try (var stream = Files.newInputStream(file)) {
-      final var digest = MessageDigest.getInstance("SHA-256");
-      final var buffer = new byte[4096];
+      final var buffer = new byte[BUFFER_SIZE];
       while (true) {
         final var r = stream.read(buffer);
         if (r == -1) {
@@ -43,9 +67,15 @@ final class OPDSHashing
         }
         digest.update(buffer, 0, r);
       }
-      return digest.digest();
-    } catch (final NoSuchAlgorithmException e) {
-      throw new IllegalStateException(e);
     }
   }
+
+  static byte[] sha256HashOf(
+    final Path file)
+    throws IOException
+  {
+    final var digest = sha256();
+    update(digest, file);
+    return digest.digest();
+  }
 }
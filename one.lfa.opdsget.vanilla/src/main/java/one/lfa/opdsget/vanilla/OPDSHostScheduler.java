@@ -0,0 +1,211 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.vanilla;
+
+import one.lfa.opdsget.api.OPDSHostLimits;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A scheduler that limits the number of requests in progress for each origin (scheme, host, and
+ * port), and optionally enforces a minimum interval between the starts of consecutive requests to
+ * the same origin. Requests that cannot start immediately are queued; no thread is blocked whilst
+ * a request waits for a slot.
+ */
+
+final class OPDSHostScheduler
+{
+  private static final Logger LOG = LoggerFactory.getLogger(OPDSHostScheduler.class);
+
+  private final Function<URI, OPDSHostLimits> limits;
+  private final Executor executor;
+  private final ConcurrentHashMap<String, Origin> origins;
+
+  OPDSHostScheduler(
+    final Function<URI, OPDSHostLimits> inLimits,
+    final Executor inExecutor)
+  {
+    this.limits = Objects.requireNonNull(inLimits, "limits");
+    this.executor = Objects.requireNonNull(inExecutor, "executor");
+    this.origins = new ConcurrentHashMap<>(16);
+  }
+
+  private static String originOf(
+    final URI uri)
+  {
+    final var scheme = uri.getScheme();
+    final var host = uri.getHost();
+    return new StringBuilder(64)
+      .append(scheme == null ? "" : scheme.toLowerCase(Locale.ROOT))
+      .append("://")
+      .append(host == null ? "" : host.toLowerCase(Locale.ROOT))
+      .append(':')
+      .append(uri.getPort())
+      .toString();
+  }
+
+  /**
+   * Schedule a request to the given URI. The request is started by evaluating {@code task} once a
+   * slot is available for the URI's origin, and the slot is held until the returned future
+   * completes.
+   *
+   * @param uri  The URI that will be requested
+   * @param task A function that starts the request
+   * @param <T>  The type of returned values
+   *
+   * @return A future representing the request
+   */
+
+  <T> CompletableFuture<T> schedule(
+    final URI uri,
+    final Supplier<CompletableFuture<T>> task)
+  {
+    Objects.requireNonNull(uri, "uri");
+    Objects.requireNonNull(task, "task");
+
+    final var origin =
+      this.origins.computeIfAbsent(
+        originOf(uri), name -> new Origin(name, this.limits.apply(uri), this.executor));
+
+    final var result = new CompletableFuture<T>();
+    origin.submit(() -> {
+      CompletableFuture<T> future;
+      try {
+        future = task.get();
+      } catch (final Exception e) {
+        future = CompletableFuture.failedFuture(e);
+      }
+
+      future.whenComplete((value, error) -> {
+        origin.finish();
+        if (error != null) {
+          result.completeExceptionally(error);
+        } else {
+          result.complete(value);
+        }
+      });
+    });
+    return result;
+  }
+
+  private static final class Origin
+  {
+    private final String name;
+    private final Executor executor;
+    private final int maximum;
+    private final long intervalNanos;
+    private final ArrayDeque<Runnable> waiting;
+    private int running;
+    private long nextStart;
+
+    Origin(
+      final String inName,
+      final OPDSHostLimits inLimits,
+      final Executor inExecutor)
+    {
+      this.name = Objects.requireNonNull(inName, "name");
+      this.executor = Objects.requireNonNull(inExecutor, "executor");
+      this.maximum = inLimits.maximumConcurrentRequests();
+      this.intervalNanos = inLimits.minimumRequestInterval().toNanos();
+      this.waiting = new ArrayDeque<>(16);
+      this.running = 0;
+      this.nextStart = System.nanoTime();
+    }
+
+    void submit(
+      final Runnable start)
+    {
+      final long delay;
+      synchronized (this) {
+        if (this.running >= this.maximum) {
+          this.waiting.add(start);
+          if (LOG.isTraceEnabled()) {
+            LOG.trace("{}: queued ({} waiting)", this.name, Integer.valueOf(this.waiting.size()));
+          }
+          return;
+        }
+        this.running += 1;
+        delay = this.reserveStart();
+      }
+
+      if (delay == 0L) {
+        start.run();
+      } else {
+        this.startAfter(start, delay);
+      }
+    }
+
+    void finish()
+    {
+      final Runnable next;
+      final long delay;
+      synchronized (this) {
+        next = this.waiting.poll();
+        if (next == null) {
+          this.running -= 1;
+          return;
+        }
+        delay = this.reserveStart();
+      }
+
+      /*
+       * The next request is always started asynchronously, as this method may be called
+       * from the completion of a request that failed immediately, and starting the next
+       * request directly would then recurse once per queued request.
+       */
+
+      this.startAfter(next, delay);
+    }
+
+    /**
+     * Reserve the next permitted start time, returning the delay in nanoseconds until that time.
+     */
+
+    private long reserveStart()
+    {
+      final var now = System.nanoTime();
+      final var delay = Math.max(0L, this.nextStart - now);
+      this.nextStart = now + delay + this.intervalNanos;
+      return delay;
+    }
+
+    private void startAfter(
+      final Runnable start,
+      final long delay)
+    {
+      if (delay == 0L) {
+        this.executor.execute(start);
+        return;
+      }
+
+      CompletableFuture.runAsync(
+        start,
+        CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS, this.executor));
+    }
+  }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.vanilla;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Functions to decode images at a reduced size and resample them.
+ *
+ * An image that is to be reduced by a large factor is subsampled whilst it is decoded, so that
+ * the full image is never held in memory, and is then reduced in steps of no more than half its
+ * size using bilinear interpolation. The last step uses bicubic interpolation. Subsampling keeps
+ * at least twice the target size, so that at least one filtered step follows it.
+ */
+
+final class OPDSImageResampler
+{
+  private OPDSImageResampler()
+  {
+
+  }
+
+  /**
+   * The result of decoding an image.
+   */
+
+  static final class Decoded
+  {
+    private final BufferedImage image;
+    private final int originalWidth;
+    private final int originalHeight;
+
+    Decoded(
+      final BufferedImage inImage,
+      final int inOriginalWidth,
+      final int inOriginalHeight)
+    {
+      this.image = Objects.requireNonNull(inImage, "image");
+      this.originalWidth = inOriginalWidth;
+      this.originalHeight = inOriginalHeight;
+    }
+
+    /**
+     * @return The decoded, possibly subsampled, image
+     */
+
+    BufferedImage image()
+    {
+      return this.image;
+    }
+
+    /**
+     * @return The width of the image before subsampling
+     */
+
+    int originalWidth()
+    {
+      return this.originalWidth;
+    }
+
+    /**
+     * @return The height of the image before subsampling
+     */
+
+    int originalHeight()
+    {
+      return this.originalHeight;
+    }
+  }
+
+  /**
+   * @param original The size of the image
+   * @param target   The size to which the image will be scaled
+   *
+   * @return The largest subsampling factor that keeps at least twice the target size
+   */
+
+  static int subsamplingFor(
+    final int original,
+    final int target)
+  {
+    return Math.max(1, original / Math.max(1, target * 2));
+  }
+
+  /**
+   * Decode the first image in the given stream, subsampling it if it will be scaled by the given
+   * factor.
+   *
+   * @param stream The stream
+   * @param scale  The factor by which the image will be scaled
+   *
+   * @return The decoded image, or nothing if no reader recognizes the stream
+   *
+   * @throws IOException On I/O errors
+   */
+
+  static Optional<Decoded> decode(
+    final InputStream stream,
+    final double scale)
+    throws IOException
+  {
+    Objects.requireNonNull(stream, "stream");
+
+    try (var input = ImageIO.createImageInputStream(stream)) {
+      if (input == null) {
+        return Optional.empty();
+      }
+
+      final var readers = ImageIO.getImageReaders(input);
+      if (!readers.hasNext()) {
+        return Optional.empty();
+      }
+
+      final ImageReader reader = readers.next();
+      try {
+        reader.setInput(input, true, true);
+
+        final var width = reader.getWidth(0);
+        final var height = reader.getHeight(0);
+        final var factor =
+          Math.min(
+            subsamplingFor(width, (int) (width * scale)),
+            subsamplingFor(height, (int) (height * scale)));
+
+        final var parameters = reader.getDefaultReadParam();
+        if (factor > 1) {
+          parameters.setSourceSubsampling(factor, factor, 0, 0);
+        }
+        return Optional.of(new Decoded(reader.read(0, parameters), width, height));
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
+
+  /**
+   * Resample the given image to the given size.
+   *
+   * @param image     The image
+   * @param newWidth  The new width
+   * @param newHeight The new height
+   *
+   * @return An opaque RGB image of the given size
+   */
+
+  static BufferedImage resize(
+    final BufferedImage image,
+    final int newWidth,
+    final int newHeight)
+  {
+    Objects.requireNonNull(image, "image");
+
+    final var targetWidth = Math.max(1, newWidth);
+    final var targetHeight = Math.max(1, newHeight);
+
+    var current = image;
+    var width = image.getWidth();
+    var height = image.getHeight();
+
+    while (width > targetWidth * 2 || height > targetHeight * 2) {
+      width = Math.max(targetWidth, width / 2);
+      height = Math.max(targetHeight, height / 2);
+      current = draw(current, width, height, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+    }
+
+    return draw(current, targetWidth, targetHeight, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+  }
+
+  private static BufferedImage draw(
+    final BufferedImage image,
+    final int width,
+    final int height,
+    final Object interpolation)
+  {
+    final var target = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    final var g2d = target.createGraphics();
+    try {
+      g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+      g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+      g2d.setRenderingHint(
+        RenderingHints.KEY_ALPHA_INTERPOLATION, RenderingHints.VALUE_ALPHA_INTERPOLATION_QUALITY);
+      g2d.setRenderingHint(
+        RenderingHints.KEY_COLOR_RENDERING, RenderingHints.VALUE_COLOR_RENDER_QUALITY);
+      g2d.drawImage(image, 0, 0, width, height, null);
+    } finally {
+      g2d.dispose();
+    }
+    return target;
+  }
+}
@@ -20,13 +20,21 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.imageio.ImageIO;
-import java.awt.Image;
-import java.awt.image.BufferedImage;
 import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 
 import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
@@ -34,6 +42,11 @@ import static one.lfa.opdsget.vanilla.OPDSManifestFileEntryKind.GENERAL;
 
 /**
  * An image scaler that can change the sizes of images in a directory.
+ *
+ * Images are scaled on the given executor, with at most a given number of images decoded at any
+ * one time. The function called when an image is scaled is called on the thread that executes
+ * the scaler, once for each image, after all images have been scaled. If a transform cache is
+ * given, each image is restored from the cache, if possible, rather than being scaled.
  */
 
 public final class OPDSImageScaler
@@ -42,10 +55,14 @@ public final class OPDSImageScaler
 
   private final Path directory;
   private final OPDSManifestChangeRequiredType changeRequired;
+  private final Predicate<Path> scaleRequired;
   private final double scale;
+  private final Executor executor;
+  private final int maximumDecoded;
+  private final Optional<OPDSTransformCache> cache;
 
   /**
-   * Construct a new scaler.
+   * Construct a new scaler that scales images one at a time on the calling thread.
    *
    * @param inDirectory      The input directory
    * @param inChangeRequired A function called when an image is scaled
@@ -56,29 +73,99 @@ public final class OPDSImageScaler
     final Path inDirectory,
     final OPDSManifestChangeRequiredType inChangeRequired,
     final double inScale)
+  {
+    this(inDirectory, inChangeRequired, path -> true, inScale);
+  }
+
+  /**
+   * Construct a new scaler that scales images one at a time on the calling thread.
+   *
+   * @param inDirectory      The input directory
+   * @param inChangeRequired A function called when an image is scaled
+   * @param inScaleRequired  A predicate that determines whether a given image should be scaled
+   * @param inScale          The scaling factor
+   */
+
+  public OPDSImageScaler(
+    final Path inDirectory,
+    final OPDSManifestChangeRequiredType inChangeRequired,
+    final Predicate<Path> inScaleRequired,
+    final double inScale)
+  {
+    this(inDirectory, inChangeRequired, inScaleRequired, inScale, Runnable::run, 1);
+  }
+
+  /**
+   * Construct a new scaler.
+   *
+   * @param inDirectory      The input directory
+   * @param inChangeRequired A function called when an image is scaled
+   * @param inScaleRequired  A predicate that determines whether a given image should be scaled
+   * @param inScale          The scaling factor
+   * @param inExecutor       The executor used to scale images
+   * @param inMaximumDecoded The maximum number of images that may be decoded at any one time
+   */
+
+  public OPDSImageScaler(
+    final Path inDirectory,
+    final OPDSManifestChangeRequiredType inChangeRequired,
+    final Predicate<Path> inScaleRequired,
+    final double inScale,
+    final Executor inExecutor,
+    final int inMaximumDecoded)
+  {
+    this(
+      inDirectory,
+      inChangeRequired,
+      inScaleRequired,
+      inScale,
+      inExecutor,
+      inMaximumDecoded,
+      Optional.empty());
+  }
+
+  /**
+   * Construct a new scaler.
+   *
+   * @param inDirectory      The input directory
+   * @param inChangeRequired A function called when an image is scaled
+   * @param inScaleRequired  A predicate that determines whether a given image should be scaled
+   * @param inScale          The scaling factor
+   * @param inExecutor       The executor used to scale images
+   * @param inMaximumDecoded The maximum number of images that may be decoded at any one time
+   * @param inCache          The cache of scaled images, if any
+   */
+
+  OPDSImageScaler(
+    final Path inDirectory,
+    final OPDSManifestChangeRequiredType inChangeRequired,
+    final Predicate<Path> inScaleRequired,
+    final double inScale,
+    final Executor inExecutor,
+    final int inMaximumDecoded,
+    final Optional<OPDSTransformCache> inCache)
   {
     this.directory =
       Objects.requireNonNull(inDirectory, "directory");
     this.changeRequired =
       Objects.requireNonNull(inChangeRequired, "changeRequired");
+    this.scaleRequired =
+      Objects.requireNonNull(inScaleRequired, "scaleRequired");
 
-    this.scale = inScale;
-  }
+    this.executor =
+      Objects.requireNonNull(inExecutor, "executor");
+    this.cache =
+      Objects.requireNonNull(inCache, "cache");
 
-  private static BufferedImage resize(
-    final BufferedImage image,
-    final int newWidth,
-    final int newHeight)
-  {
-    final var tmp =
-      image.getScaledInstance(newWidth, newHeight, Image.SCALE_SMOOTH);
-    final var targetImage =
-      new BufferedImage(newWidth, newHeight, BufferedImage.TYPE_INT_RGB);
-
-    final var g2d = targetImage.createGraphics();
-    g2d.drawImage(tmp, 0, 0, null);
-    g2d.dispose();
-    return targetImage;
+    if (inMaximumDecoded < 1) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Maximum decoded images %d must be at least 1",
+          Integer.valueOf(inMaximumDecoded)));
+    }
+
+    this.scale = inScale;
+    this.maximumDecoded = inMaximumDecoded;
   }
 
   /**
@@ -99,43 +186,176 @@ public final class OPDSImageScaler
       LOG.debug("format: {}", name);
     }
 
+    final var paths = this.listImages();
+    final var restored = new AtomicInteger();
+    final var pending = this.submitAll(paths, restored);
+
+    final var scaled = new ArrayList<Path>(pending.size());
+    final var failure = collectFailures(pending, scaled);
+
+    for (final var path : scaled) {
+      this.changeRequired.onFileChanged(GENERAL, path);
+    }
+
+    if (this.cache.isPresent()) {
+      LOG.info("restored {} images from the transform cache", Integer.valueOf(restored.get()));
+    }
+
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * The directory is listed before any image is scaled, as scaled images are written to
+   * temporary files in the same directory.
+   */
+
+  private List<Path> listImages()
+    throws IOException
+  {
+    final var paths = new ArrayList<Path>(128);
     try (var directoryStream = Files.newDirectoryStream(this.directory)) {
-      final var iterator = directoryStream.iterator();
-      while (iterator.hasNext()) {
-        final var path = iterator.next();
-
-        LOG.debug("scale {}", path);
-
-        final Path temp;
-        try (var stream = new BufferedInputStream(Files.newInputStream(path), 8192)) {
-          final var image = ImageIO.read(stream);
-          if (image != null) {
-            final var originalWidth = image.getWidth();
-            final var width = (double) originalWidth * this.scale;
-            final var originalHeight = image.getHeight();
-            final var height = (double) originalHeight * this.scale;
-
-            LOG.info(
-              "scale {} {}x{} -> {}x{}", path,
-              Integer.valueOf(originalWidth),
-              Integer.valueOf(originalHeight),
-              Double.valueOf(width),
-              Double.valueOf(height));
-
-            temp = path.resolveSibling(path.getFileName() + ".tmp");
-            final var newImage = resize(image, (int) width, (int) height);
-            final var result = ImageIO.write(newImage, "jpg", temp.toFile());
-            if (!result) {
-              throw new IOException("ImageIO.write returned false!");
-            }
-          } else {
-            LOG.error("unable to parse image {}", path);
-            temp = path;
+      for (final var path : directoryStream) {
+        if (!this.scaleRequired.test(path)) {
+          LOG.debug("scale {}: not required", path);
+          continue;
+        }
+        paths.add(path);
+      }
+    }
+    return paths;
+  }
+
+  /**
+   * A permit is taken before each image is submitted and returned once the image has been
+   * written, so no more than the given number of images are decoded at once. The returned
+   * futures have all completed.
+   */
+
+  private List<CompletableFuture<Path>> submitAll(
+    final List<Path> paths,
+    final AtomicInteger restored)
+  {
+    final var permits = new Semaphore(this.maximumDecoded);
+    final var pending = new ArrayList<CompletableFuture<Path>>(paths.size());
+
+    try {
+      for (final var path : paths) {
+        permits.acquireUninterruptibly();
+        try {
+          pending.add(
+            CompletableFuture.supplyAsync(() -> this.scaleOne(path, restored), this.executor)
+              .whenComplete((ignored, error) -> permits.release()));
+        } catch (final RuntimeException e) {
+          permits.release();
+          throw e;
+        }
+      }
+    } finally {
+      CompletableFuture.allOf(pending.toArray(new CompletableFuture[0]))
+        .exceptionally(error -> null)
+        .join();
+    }
+    return pending;
+  }
+
+  /**
+   * Collect the images that were scaled, and the failures of those that were not.
+   *
+   * @return The first failure, with any others suppressed, or {@code null} if there were none
+   */
+
+  private static IOException collectFailures(
+    final List<CompletableFuture<Path>> pending,
+    final List<Path> scaled)
+  {
+    IOException failure = null;
+    for (final var future : pending) {
+      try {
+        scaled.add(future.join());
+      } catch (final CompletionException e) {
+        final var cause = e.getCause();
+        final var exception =
+          cause instanceof UncheckedIOException
+            ? ((UncheckedIOException) cause).getCause()
+            : new IOException(cause);
+        if (failure == null) {
+          failure = exception;
+        } else {
+          failure.addSuppressed(exception);
+        }
+      }
+    }
+    return failure;
+  }
+
+  private Path scaleOne(
+    final Path path,
+    final AtomicInteger restored)
+  {
+    try {
+      if (OPDSTransformCache.restoreOrTransform(this.cache, path, this::scaleFile)) {
+        restored.incrementAndGet();
+      }
+      return path;
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Scale a single image, without notifying the receiver of manifest changes.
+   *
+   * @param path The image
+   *
+   * @throws IOException On I/O errors
+   */
+
+  void scaleFile(
+    final Path path)
+    throws IOException
+  {
+    LOG.debug("scale {}", path);
+
+    final Path temp;
+    try (var stream = new BufferedInputStream(Files.newInputStream(path), 8192)) {
+      final var decoded = OPDSImageResampler.decode(stream, this.scale);
+      if (decoded.isPresent()) {
+        final var image = decoded.get();
+        final var originalWidth = image.originalWidth();
+        final var width = (double) originalWidth * this.scale;
+        final var originalHeight = image.originalHeight();
+        final var height = (double) originalHeight * this.scale;
+
+        LOG.info(
+          "scale {} {}x{} -> {}x{}", path,
+          Integer.valueOf(originalWidth),
+          Integer.valueOf(originalHeight),
+          Double.valueOf(width),
+          Double.valueOf(height));
+
+        temp = path.resolveSibling(path.getFileName() + ".tmp");
+        final var newImage =
+          OPDSImageResampler.resize(image.image(), (int) width, (int) height);
+        try {
+          final var result = ImageIO.write(newImage, "jpg", temp.toFile());
+          if (!result) {
+            throw new IOException("ImageIO.write returned false!");
+          }
+        } catch (final IOException e) {
+          try {
+            Files.deleteIfExists(temp);
+          } catch (final IOException x) {
+            e.addSuppressed(x);
           }
+          throw e;
         }
-        Files.move(temp, path, REPLACE_EXISTING, ATOMIC_MOVE);
-        this.changeRequired.onFileChanged(GENERAL, path);
+      } else {
+        LOG.error("unable to parse image {}", path);
+        temp = path;
       }
     }
+    Files.move(temp, path, REPLACE_EXISTING, ATOMIC_MOVE);
   }
 }
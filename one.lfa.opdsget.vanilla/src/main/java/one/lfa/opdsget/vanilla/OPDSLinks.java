@@ -0,0 +1,177 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.vanilla;
+
+import one.lfa.opdsget.api.OPDSGetConfiguration;
+import one.lfa.opdsget.api.OPDSGetKind;
+import one.lfa.opdsget.api.OPDSLocalFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.util.Map;
+
+/**
+ * The rules that decide what happens to each link in a feed. These are shared between the
+ * document processors so that they produce the same results.
+ */
+
+final class OPDSLinks
+{
+  private static final Logger LOG = LoggerFactory.getLogger(OPDSLinks.class);
+
+  private OPDSLinks()
+  {
+
+  }
+
+  /**
+   * @param configuration The retriever configuration
+   * @param relation      The value of the link's {@code rel} attribute
+   * @param type          The value of the link's {@code type} attribute
+   *
+   * @return The action to take for a link with the given attributes
+   */
+
+  static Action classify(
+    final OPDSGetConfiguration configuration,
+    final String relation,
+    final String type)
+  {
+    switch (relation) {
+      case "http://opds-spec.org/featured":
+      case "subsection":
+      case "collection":
+      case "alternate": {
+        if (type != null && type.contains("application/atom+xml")) {
+          return Action.FEED;
+        }
+        LOG.debug("removing link with rel {} and type {}", relation, type);
+        return Action.REMOVE;
+      }
+
+      case "next": {
+        return Action.FEED;
+      }
+
+      case "http://opds-spec.org/image":
+      case "http://opds-spec.org/image/thumbnail": {
+        if (configuration.fetchedKinds().contains(OPDSGetKind.OPDS_GET_IMAGES)) {
+          return Action.IMAGE;
+        }
+        return Action.KEEP;
+      }
+
+      case "http://opds-spec.org/acquisition":
+      case "http://opds-spec.org/acquisition/open-access": {
+        if (configuration.fetchedKinds().contains(OPDSGetKind.OPDS_GET_BOOKS)) {
+          return Action.BOOK;
+        }
+        return Action.KEEP;
+      }
+
+      default: {
+        LOG.debug("removing link with rel attribute '{}'", relation);
+        return Action.REMOVE;
+      }
+    }
+  }
+
+  /**
+   * Record the target of a link that will be fetched.
+   *
+   * @param configuration The retriever configuration
+   * @param action        The action chosen for the link
+   * @param target        The absolute target of the link
+   * @param feeds         The feeds that will be fetched
+   * @param images        The images that will be fetched
+   * @param books         The books that will be fetched
+   *
+   * @return The local file that will hold the target
+   */
+
+  static OPDSLocalFile collect(
+    final OPDSGetConfiguration configuration,
+    final Action action,
+    final URI target,
+    final Map<URI, OPDSLocalFile> feeds,
+    final Map<URI, OPDSLocalFile> images,
+    final Map<URI, OPDSLocalFile> books)
+  {
+    switch (action) {
+      case FEED: {
+        final var file = OPDSLocalFile.of(target, configuration.feedFileHashed(target));
+        feeds.put(target, file);
+        return file;
+      }
+      case IMAGE: {
+        final var file = OPDSLocalFile.of(target, configuration.imageFileHashed(target));
+        images.put(target, file);
+        return file;
+      }
+      case BOOK: {
+        final var file = OPDSLocalFile.of(target, configuration.bookFileHashed(target));
+        books.put(target, file);
+        return file;
+      }
+      case REMOVE:
+      case KEEP:
+        break;
+    }
+
+    throw new IllegalArgumentException(
+      String.format("Links with action %s are not fetched", action));
+  }
+
+  /**
+   * The action to take for a link.
+   */
+
+  enum Action
+  {
+    /**
+     * The link is removed.
+     */
+
+    REMOVE,
+
+    /**
+     * The link is kept unchanged.
+     */
+
+    KEEP,
+
+    /**
+     * The link refers to a feed that will be fetched, and is rewritten to refer to the local copy.
+     */
+
+    FEED,
+
+    /**
+     * The link refers to an image that will be fetched, and is rewritten to refer to the local
+     * copy.
+     */
+
+    IMAGE,
+
+    /**
+     * The link refers to a book that will be fetched, and is rewritten to refer to the local copy.
+     */
+
+    BOOK
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.vanilla;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * A pool of objects that are expensive to create and that cannot be used by more than one thread
+ * at a time, such as XML parsers and transformers.
+ *
+ * Objects are borrowed for the duration of a single task rather than being bound to threads, so
+ * that they are reused even when each task runs on a new (virtual) thread, and so that they do
+ * not remain attached to the threads of an executor after a retrieval has finished.
+ *
+ * @param <T> The type of pooled objects
+ */
+
+final class OPDSObjectPool<T>
+{
+  /**
+   * A capacity large enough for the threads of any reasonable executor.
+   */
+
+  static final int DEFAULT_CAPACITY = 64;
+
+  private final Supplier<T> creator;
+  private final Consumer<T> resetter;
+  private final int capacity;
+  private final ConcurrentLinkedDeque<T> idle;
+  private final AtomicInteger idleCount;
+
+  /**
+   * Create a pool.
+   *
+   * @param inCreator  A function that creates a new object
+   * @param inResetter A function that returns a used object to its initial state
+   * @param inCapacity The maximum number of idle objects that are kept
+   */
+
+  OPDSObjectPool(
+    final Supplier<T> inCreator,
+    final Consumer<T> inResetter,
+    final int inCapacity)
+  {
+    this.creator = Objects.requireNonNull(inCreator, "creator");
+    this.resetter = Objects.requireNonNull(inResetter, "resetter");
+    if (inCapacity <= 0) {
+      throw new IllegalArgumentException(
+        String.format("Capacity %d must be positive", Integer.valueOf(inCapacity)));
+    }
+    this.capacity = inCapacity;
+    this.idle = new ConcurrentLinkedDeque<>();
+    this.idleCount = new AtomicInteger(0);
+  }
+
+  /**
+   * Take an idle object from the pool, or create a new one if none are idle. The object must be
+   * returned with {@link #release(Object)} once the caller is finished with it.
+   *
+   * @return An object
+   */
+
+  T acquire()
+  {
+    final var existing = this.idle.pollFirst();
+    if (existing != null) {
+      this.idleCount.decrementAndGet();
+      return existing;
+    }
+    return this.creator.get();
+  }
+
+  /**
+   * Reset an object and return it to the pool. If the object cannot be reset, or the pool already
+   * holds as many idle objects as it may, the object is discarded.
+   *
+   * @param object The object
+   */
+
+  void release(
+    final T object)
+  {
+    Objects.requireNonNull(object, "object");
+
+    try {
+      this.resetter.accept(object);
+    } catch (final RuntimeException e) {
+      return;
+    }
+
+    if (this.idleCount.incrementAndGet() > this.capacity) {
+      this.idleCount.decrementAndGet();
+      return;
+    }
+    this.idle.offerFirst(object);
+  }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.vanilla;
+
+import one.lfa.opdsget.api.OPDSHTTPData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.OptionalLong;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+
+/**
+ * A partially downloaded file. The content received so far is kept in the state directory along
+ * with a small description of the remote content (its entity tag, modification date, and length)
+ * so that a later attempt can request only the rest of the content, and can check that the
+ * content has not changed in the meantime.
+ */
+
+final class OPDSPartialFile
+{
+  private static final Logger LOG = LoggerFactory.getLogger(OPDSPartialFile.class);
+  private static final String HEADER = "# opdsget partial 1";
+
+  private final Path file;
+  private final Path description;
+
+  private OPDSPartialFile(
+    final Path inFile)
+  {
+    this.file = Objects.requireNonNull(inFile, "file");
+    this.description = inFile.resolveSibling(inFile.getFileName() + ".partial");
+  }
+
+  /**
+   * @param file The file that holds the partial content
+   *
+   * @return A partial file
+   */
+
+  static OPDSPartialFile of(
+    final Path file)
+  {
+    return new OPDSPartialFile(file);
+  }
+
+  /**
+   * @return The file that holds the partial content
+   */
+
+  Path file()
+  {
+    return this.file;
+  }
+
+  /**
+   * Determine whether the download can be resumed. A download can be resumed if some content
+   * was received, and the server provided either a validator or the length of the content.
+   *
+   * @return The point at which the download can be resumed, if any
+   */
+
+  Optional<Resume> resume()
+  {
+    try {
+      if (!Files.isRegularFile(this.file) || !Files.isRegularFile(this.description)) {
+        return Optional.empty();
+      }
+
+      final var size = Files.size(this.file);
+      if (size == 0L) {
+        return Optional.empty();
+      }
+
+      return this.parse(size, Files.readAllLines(this.description, UTF_8));
+    } catch (final IOException | NumberFormatException e) {
+      LOG.warn("{}: could not read partial file; ignoring it: ", this.file, e);
+      return Optional.empty();
+    }
+  }
+
+  private Optional<Resume> parse(
+    final long size,
+    final List<String> lines)
+  {
+    if (lines.size() != 2 || !Objects.equals(lines.get(0), HEADER)) {
+      LOG.warn("{}: unrecognized partial file description; ignoring it", this.description);
+      return Optional.empty();
+    }
+
+    final var segments = OPDSTabSeparated.split(lines.get(1));
+    if (segments.length != 2) {
+      LOG.warn("{}: unrecognized partial file description; ignoring it", this.description);
+      return Optional.empty();
+    }
+
+    final var validator = OPDSTabSeparated.nonEmpty(segments[0]);
+    final var length = Long.parseLong(segments[1]);
+    final var lengthOpt = length >= 0L ? OptionalLong.of(length) : OptionalLong.empty();
+    if (validator.isEmpty() && lengthOpt.isEmpty()) {
+      return Optional.empty();
+    }
+    if (lengthOpt.isPresent() && size >= length) {
+      return Optional.empty();
+    }
+
+    return Optional.of(new Resume(size, validator, lengthOpt));
+  }
+
+  /**
+   * Record the description of the remote content before any of the content is written.
+   *
+   * @param data The data returned by the server
+   *
+   * @throws IOException On I/O errors
+   */
+
+  void begin(
+    final OPDSHTTPData data)
+    throws IOException
+  {
+    final var validator = data.rangeValidator();
+    final var length = data.size() >= 0L ? data.offset() + data.size() : -1L;
+
+    Files.createDirectories(this.description.getParent());
+    try (var writer = Files.newBufferedWriter(this.description, UTF_8, CREATE, TRUNCATE_EXISTING)) {
+      writer.write(HEADER);
+      writer.newLine();
+      writer.write(OPDSTabSeparated.clean(validator));
+      writer.write('\t');
+      writer.write(Long.toString(length));
+      writer.newLine();
+    }
+  }
+
+  /**
+   * Delete the partial content and its description.
+   *
+   * @throws IOException On I/O errors
+   */
+
+  void delete()
+    throws IOException
+  {
+    Files.deleteIfExists(this.file);
+    Files.deleteIfExists(this.description);
+  }
+
+  /**
+   * Delete the description of the partial content; used once the content has been moved to its
+   * final location.
+   *
+   * @throws IOException On I/O errors
+   */
+
+  void finish()
+    throws IOException
+  {
+    Files.deleteIfExists(this.description);
+  }
+
+  /**
+   * The point at which a download can be resumed.
+   */
+
+  static final class Resume
+  {
+    private final long offset;
+    private final Optional<String> validator;
+    private final OptionalLong length;
+
+    Resume(
+      final long inOffset,
+      final Optional<String> inValidator,
+      final OptionalLong inLength)
+    {
+      this.offset = inOffset;
+      this.validator = Objects.requireNonNull(inValidator, "validator");
+      this.length = Objects.requireNonNull(inLength, "length");
+    }
+
+    /**
+     * @return The number of bytes already received
+     */
+
+    long offset()
+    {
+      return this.offset;
+    }
+
+    /**
+     * @return The value that the server must match for a range to be returned, if any
+     */
+
+    Optional<String> validator()
+    {
+      return this.validator;
+    }
+
+    /**
+     * Without a validator, the length of the content is the only evidence that the content has
+     * not changed, so a range is only accepted if the length is unchanged.
+     *
+     * @param data The data returned by the server
+     *
+     * @return {@code true} if the returned data continues the partial content
+     */
+
+    boolean isContinuedBy(
+      final OPDSHTTPData data)
+    {
+      if (data.offset() != this.offset) {
+        return false;
+      }
+      if (this.validator.isPresent()) {
+        return true;
+      }
+      return data.size() >= 0L && this.length.getAsLong() == data.offset() + data.size();
+    }
+  }
+}
@@ -21,7 +21,9 @@ import one.lfa.epubsquash.api.EPUBSquasherProviderType;
 import one.lfa.opdsget.api.FileEntry;
 import one.lfa.opdsget.api.OPDSDocumentProcessed;
 import one.lfa.opdsget.api.OPDSGetConfiguration;
-import one.lfa.opdsget.api.OPDSHTTPDefault;
+import one.lfa.opdsget.api.OPDSHTTPClient;
+import one.lfa.opdsget.api.OPDSHTTPData;
+import one.lfa.opdsget.api.OPDSHTTPRequest;
 import one.lfa.opdsget.api.OPDSHTTPType;
 import one.lfa.opdsget.api.OPDSManifestDescription;
 import one.lfa.opdsget.api.OPDSManifestWriterProviderType;
@@ -31,38 +33,37 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
 
-import javax.xml.transform.OutputKeys;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.net.URI;
-import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.ServiceLoader;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 
 import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
 import static java.nio.file.StandardOpenOption.CREATE;
-import static java.nio.file.StandardOpenOption.CREATE_NEW;
 import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
 
 /**
  * The default retriever provider.
@@ -74,6 +75,8 @@ public final class OPDSRetrievers implements OPDSRetrieverProviderType
 
   private final OPDSHTTPType http;
   private final OPDSXMLParsers parsers;
+  private final OPDSXMLSerializers serializers;
+  private final OPDSObjectPool<OPDSDocumentProcessor> processors;
   private final EPUBSquasherProviderType squashers;
   private final OPDSManifestWriterProviderType manifestWriters;
 
@@ -90,14 +93,42 @@ public final class OPDSRetrievers implements OPDSRetrieverProviderType
       Objects.requireNonNull(in_manifest_writers, "in_manifest_writers");
 
     this.parsers = new OPDSXMLParsers();
+    this.serializers = new OPDSXMLSerializers();
+
+    /*
+     * Document processors keep no state between documents, and so need no resetting.
+     */
+
+    this.processors =
+      new OPDSObjectPool<>(
+        OPDSDocumentProcessor::new, processor -> { }, OPDSObjectPool.DEFAULT_CAPACITY);
   }
 
   /**
+   * Create a retriever provider that uses a pooled {@link OPDSHTTPClient} for HTTP requests.
+   *
    * @return A retriever provider
    */
 
   public static OPDSRetrieverProviderType provider()
   {
+    return provider(OPDSHTTPClient.create());
+  }
+
+  /**
+   * Create a retriever provider that uses the given HTTP implementation, and the first available
+   * EPUB squasher and manifest writer providers.
+   *
+   * @param in_http An HTTP request handler
+   *
+   * @return A retriever provider
+   */
+
+  public static OPDSRetrieverProviderType provider(
+    final OPDSHTTPType in_http)
+  {
+    Objects.requireNonNull(in_http, "http");
+
     final var epubSquashers =
       ServiceLoader.load(EPUBSquasherProviderType.class)
         .findFirst()
@@ -108,7 +139,7 @@ public final class OPDSRetrievers implements OPDSRetrieverProviderType
         .findFirst()
         .orElseThrow(() -> new IllegalStateException("No available manifest writer provider"));
 
-    return new OPDSRetrievers(epubSquashers, manifestWriters, new OPDSHTTPDefault());
+    return new OPDSRetrievers(epubSquashers, manifestWriters, in_http);
   }
 
   /**
@@ -130,7 +161,14 @@ public final class OPDSRetrievers implements OPDSRetrieverProviderType
   @Override
   public OPDSRetrieverType create(final ExecutorService executor)
   {
-    return new Retriever(executor, this.parsers, this.http, this.squashers, this.manifestWriters);
+    return new Retriever(
+      executor,
+      this.parsers,
+      this.serializers,
+      this.processors,
+      this.http,
+      this.squashers,
+      this.manifestWriters);
   }
 
   private static final class Retriever implements OPDSRetrieverType
@@ -140,10 +178,14 @@ public final class OPDSRetrievers implements OPDSRetrieverProviderType
     private final EPUBSquasherProviderType squashers;
     private final OPDSManifestWriterProviderType manifestWriters;
     private final OPDSXMLParsers parsers;
+    private final OPDSXMLSerializers serializers;
+    private final OPDSObjectPool<OPDSDocumentProcessor> processors;
 
     Retriever(
       final ExecutorService in_executor,
       final OPDSXMLParsers in_parsers,
+      final OPDSXMLSerializers in_serializers,
+      final OPDSObjectPool<OPDSDocumentProcessor> in_processors,
       final OPDSHTTPType in_http,
       final EPUBSquasherProviderType in_squashers,
       final OPDSManifestWriterProviderType inManifestWriters)
@@ -152,6 +194,10 @@ public final class OPDSRetrievers implements OPDSRetrieverProviderType
         Objects.requireNonNull(in_executor, "executor");
       this.parsers =
         Objects.requireNonNull(in_parsers, "parsers");
+      this.serializers =
+        Objects.requireNonNull(in_serializers, "serializers");
+      this.processors =
+        Objects.requireNonNull(in_processors, "processors");
       this.http =
         Objects.requireNonNull(in_http, "http");
       this.squashers =
@@ -166,14 +212,24 @@ public final class OPDSRetrievers implements OPDSRetrieverProviderType
     {
       Objects.requireNonNull(config, "configuration");
 
-      final var retrieval =
-        new Retrieval(
-          config,
-          this.executor,
-          this.http,
-          this.parsers,
-          this.squashers,
-          this.manifestWriters);
+      final Retrieval retrieval;
+      try {
+        retrieval =
+          new Retrieval(
+            config,
+            this.executor,
+            this.http.forRetrieval(),
+            this.parsers,
+            this.serializers,
+            this.processors,
+            this.squashers,
+            this.manifestWriters);
+      } catch (final IOException e) {
+        return CompletableFuture.failedFuture(e);
+      }
+
+      final Function<Void, CompletionStage<Void>> transformsTask =
+        ignored -> retrieval.finishTransforms();
 
       final Function<Void, CompletionStage<Void>> indexTask =
         ignored -> OPDSTaskIndex.task(
@@ -187,14 +243,19 @@ public final class OPDSRetrievers implements OPDSRetrieverProviderType
           config,
           this.squashers,
           retrieval::onFileChanged,
+          retrieval::isTransformRequired,
           this.executor);
 
       final Function<Void, CompletionStage<Void>> imageScaleTask =
         ignored -> OPDSTaskImageScale.task(
           config,
           retrieval::onFileChanged,
+          retrieval::isTransformRequired,
           this.executor);
 
+      final Function<Void, CompletionStage<Void>> validatorsTask =
+        ignored -> CompletableFuture.runAsync(retrieval::saveValidators, this.executor);
+
       final Function<Void, CompletionStage<Void>> manifestWriteTask =
         ignored -> OPDSTaskWriteManifest.task(
           config,
@@ -203,15 +264,30 @@ public final class OPDSRetrievers implements OPDSRetrieverProviderType
           this.executor);
 
       final Function<Void, CompletionStage<Void>> archiveTask =
-        ignored -> OPDSTaskArchive.task(config, this.executor);
+        ignored -> OPDSTaskArchive.task(
+          config,
+          retrieval.archiveSpool(),
+          retrieval.manifest(),
+          this.executor);
+
+      final Function<Void, CompletionStage<Void>> journalTask =
+        ignored -> CompletableFuture.runAsync(retrieval::deleteJournal, this.executor);
 
       return retrieval
-        .processFeed(Optional.empty(), config.remoteURI())
+        .crawl()
+        .thenCompose(transformsTask)
         .thenCompose(indexTask)
         .thenCompose(squashTask)
         .thenCompose(imageScaleTask)
+        .thenCompose(validatorsTask)
         .thenCompose(manifestWriteTask)
-        .thenCompose(archiveTask);
+        .thenCompose(archiveTask)
+        .thenCompose(journalTask)
+        .whenComplete((ignored, error) -> {
+          retrieval.closeTransforms();
+          retrieval.closeJournal();
+          retrieval.closeArchiveSpool();
+        });
     }
   }
 
@@ -219,23 +295,43 @@ public final class OPDSRetrievers implements OPDSRetrieverProviderType
   {
     private final EPUBSquasherProviderType squashers;
     private final ExecutorService executor;
-    private final HashMap<URI, FileEntry> manifestFiles;
-    private final HashSet<URI> retrieved;
-    private final Map<URI, OPDSDocumentProcessed> processed;
-    private final Object manifestLock;
+    private final ConcurrentHashMap<URI, FileEntry> manifestFiles;
+
+    /*
+     * The inverse of manifestFiles, from the relative path of each file to its URI.
+     */
+
+    private final ConcurrentHashMap<String, URI> manifestPaths;
+    private final AtomicReference<Optional<String>> manifestRootFile;
+    private final AtomicReference<Optional<String>> manifestSearchIndex;
+    private final Set<URI> retrieved;
+    private final ConcurrentHashMap<URI, OPDSDocumentProcessed> processed;
     private final OPDSGetConfiguration configuration;
     private final OPDSHTTPType http;
-    private final OPDSManifestDescription.Builder manifestBuilder;
     private final OPDSManifestWriterProviderType manifestWriters;
     private final OPDSXMLParsers parsers;
+    private final OPDSXMLSerializers serializers;
+    private final OPDSObjectPool<OPDSDocumentProcessor> processors;
+    private final OPDSHostScheduler scheduler;
+    private final OPDSHTTPValidatorStore validators;
+    private final Set<Path> unmodified;
+    private final Set<Path> downloads;
+    private final OPDSCrawlFrontier frontier;
+    private final OPDSCrawlJournal journal;
+    private final OPDSStreamingDocumentProcessor streaming;
+    private final Optional<OPDSArchiveSpool> archiveSpool;
+    private final Optional<OPDSTransformPipeline> transforms;
 
     Retrieval(
       final OPDSGetConfiguration inConfiguration,
       final ExecutorService inExecutor,
       final OPDSHTTPType inHttp,
       final OPDSXMLParsers inParsers,
+      final OPDSXMLSerializers inSerializers,
+      final OPDSObjectPool<OPDSDocumentProcessor> inProcessors,
       final EPUBSquasherProviderType inSquashers,
       final OPDSManifestWriterProviderType inManifestWriters)
+      throws IOException
     {
       this.configuration =
         Objects.requireNonNull(inConfiguration, "configuration");
@@ -245,23 +341,45 @@ public final class OPDSRetrievers implements OPDSRetrieverProviderType
         Objects.requireNonNull(inHttp, "http");
       this.parsers =
         Objects.requireNonNull(inParsers, "parsers");
+      this.serializers =
+        Objects.requireNonNull(inSerializers, "serializers");
+      this.processors =
+        Objects.requireNonNull(inProcessors, "processors");
       this.squashers =
         Objects.requireNonNull(inSquashers, "squashers");
       this.manifestWriters =
         Objects.requireNonNull(inManifestWriters, "manifestWriters");
 
-      this.retrieved = new HashSet<>(128);
-      this.processed = new HashMap<>(128);
-
-      this.manifestBuilder = OPDSManifestDescription.builder();
-      this.manifestBuilder.setBase(this.configuration.outputManifestBaseURI());
-      this.manifestFiles = new HashMap<>(128);
-      this.manifestLock = new Object();
-
-      synchronized (this.manifestLock) {
-        this.manifestBuilder.setTitle(this.configuration.outputManifestTitle());
-        this.manifestBuilder.setId(this.configuration.outputManifestID());
-      }
+      this.scheduler =
+        new OPDSHostScheduler(this.configuration::hostLimitsFor, this.executor);
+      this.validators =
+        OPDSHTTPValidatorStore.open(
+          this.configuration.stateDirectory().resolve("validators.tsv"));
+      this.unmodified =
+        ConcurrentHashMap.newKeySet();
+      this.downloads =
+        ConcurrentHashMap.newKeySet(128);
+      this.frontier =
+        new OPDSCrawlFrontier(this.configuration.crawlLimits(), this.executor);
+      this.journal =
+        OPDSCrawlJournal.open(
+          this.configuration.stateDirectory().resolve("journal.tsv"),
+          this.configuration.remoteURI());
+      this.streaming =
+        new OPDSStreamingDocumentProcessor();
+      this.archiveSpool =
+        openArchiveSpool(this.configuration);
+
+      this.retrieved = ConcurrentHashMap.newKeySet(128);
+      this.processed = new ConcurrentHashMap<>(128);
+
+      this.manifestFiles = new ConcurrentHashMap<>(128);
+      this.manifestPaths = new ConcurrentHashMap<>(128);
+      this.manifestRootFile = new AtomicReference<>(Optional.empty());
+      this.manifestSearchIndex = new AtomicReference<>(Optional.empty());
+
+      this.transforms =
+        OPDSTransformPipeline.open(this.configuration, this.squashers, this::onFileTransformed);
     }
 
     private static Path temporaryFile(final Path path)
@@ -272,174 +390,565 @@ public final class OPDSRetrievers implements OPDSRetrieverProviderType
                          .toString());
     }
 
-    private CompletableFuture<Void> processFeed(
-      final Optional<OPDSDocumentProcessed> document,
+    private static Optional<OPDSArchiveSpool> openArchiveSpool(
+      final OPDSGetConfiguration configuration)
+      throws IOException
+    {
+      if (configuration.outputArchive().isEmpty()) {
+        return Optional.empty();
+      }
+
+      switch (configuration.outputArchiveMode()) {
+        case AFTER_RETRIEVAL: {
+          return Optional.empty();
+        }
+        case DURING_RETRIEVAL: {
+          return Optional.of(
+            OPDSArchiveSpool.open(
+              configuration.stateDirectory().resolve("archive"),
+              configuration.outputArchive()));
+        }
+      }
+
+      throw new IllegalStateException(
+        String.format("Unrecognized archive mode %s", configuration.outputArchiveMode()));
+    }
+
+    /**
+     * Crawl the feed, starting at the configured remote URI.
+     *
+     * @return A future that completes when every feed, image, and book has been retrieved
+     */
+
+    CompletableFuture<Void> crawl()
+    {
+      this.processFeed(Optional.empty(), this.configuration.remoteURI());
+      return this.frontier.completion();
+    }
+
+    private void processFeed(
+      final Optional<URI> source,
       final URI uri)
     {
       LOG.debug("processFeed: {}", uri);
 
-      return CompletableFuture
-        .supplyAsync(() -> this.processOne(document, uri), this.executor)
-        .thenComposeAsync(this::runSubTasksIfNecessary, ForkJoinPool.commonPool());
+      /*
+       * Don't process URIs that have already been processed.
+       */
+
+      if (!this.retrieved.add(uri)) {
+        return;
+      }
+
+      this.frontier.submit(OPDSCrawlFrontier.Priority.FEED, () -> {
+        LOG.info(
+          "feed GET {} {}",
+          uri,
+          source.map(from -> "(from " + from + ")").orElse(""));
+
+        /*
+         * The host slot is released once the feed has been parsed and written, and before
+         * any of the feed's links are queued.
+         */
+
+        return this.scheduler.schedule(
+          uri,
+          () -> this.fetch(uri, Optional.empty(), Optional.empty())
+            .thenApplyAsync(data -> this.processOne(uri, data), this.executor))
+          .thenAccept(this::queueLinks);
+      });
     }
 
-    private CompletableFuture<Void> runSubTasksIfNecessary(
-      final Optional<OPDSDocumentProcessed> next)
+    /**
+     * Start fetching the given URI. The returned future completes when the response headers have
+     * been received, and no executor thread is held while waiting for them. If an existing local
+     * copy of the content is given, and validators were stored for the URI in a previous run, the
+     * request is made conditional on the content having changed. The request is only conditional
+     * if the local copy was transformed in the way that the current configuration requires, as
+     * otherwise the content is needed again even if it has not changed. If part of the content
+     * was received in a previous attempt, only the rest of the content is requested.
+     */
+
+    private CompletableFuture<OPDSHTTPData> fetch(
+      final URI uri,
+      final Optional<Path> existing,
+      final Optional<OPDSPartialFile.Resume> resume)
     {
-      return next.map(this::runSubTasks)
-        .orElse(CompletableFuture.completedFuture(null));
+      try {
+        if (!uri.isAbsolute()) {
+          throw new IllegalArgumentException(String.format("URI %s is not absolute", uri));
+        }
+
+        final var request =
+          OPDSHTTPRequest.builder()
+            .setUri(uri)
+            .setAuthentication(this.configuration.authenticationSupplier().apply(uri));
+
+        existing.filter(Files::isRegularFile)
+          .flatMap(path -> this.validators.get(uri)
+            .filter(stored -> Objects.equals(stored.transform(), this.transformOf(path))))
+          .ifPresent(stored -> {
+            request.setIfNoneMatch(stored.entityTag());
+            request.setIfModifiedSince(stored.lastModified());
+          });
+
+        resume.ifPresent(partial -> {
+          request.setRangeStart(partial.offset());
+          request.setIfRange(partial.validator());
+        });
+
+        return this.http.getAsync(request.build(), this.executor);
+      } catch (final Exception e) {
+        return CompletableFuture.failedFuture(e);
+      }
     }
 
-    private CompletableFuture<Void> runSubTasks(
+    private void queueLinks(
       final OPDSDocumentProcessed document)
     {
-      final var feedTasks =
-        document.feeds()
-          .values()
-          .stream()
-          .map(f -> this.processFeed(Optional.of(document), f.uri()))
-          .collect(Collectors.toList());
-
-      final var imageTasks =
-        document.images()
-          .values()
-          .stream()
-          .map(f -> this.downloadImageTask(document, f.uri()))
-          .collect(Collectors.toList());
+      final var source = Optional.of(document.file().uri());
+      for (final var feed : document.feeds().values()) {
+        this.processFeed(source, feed.uri());
+      }
+      for (final var image : document.images().values()) {
+        final var uri = image.uri();
+        final var path = this.configuration.imageFileHashed(uri);
+        this.queueDownload(OPDSCrawlFrontier.Priority.IMAGE, "image", source, uri, path);
+      }
+      for (final var book : document.books().values()) {
+        final var uri = book.uri();
+        final var path = this.configuration.bookFileHashed(uri);
+        this.queueDownload(OPDSCrawlFrontier.Priority.BOOK, "book", source, uri, path);
+      }
+    }
 
-      final var bookTasks =
-        document.books()
-          .values()
-          .stream()
-          .map(f -> this.downloadBookTask(document, f.uri()))
-          .collect(Collectors.toList());
+    private void queueDownload(
+      final OPDSCrawlFrontier.Priority priority,
+      final String kind,
+      final Optional<URI> source,
+      final URI uri,
+      final Path path)
+    {
+      /*
+       * The same file may be linked from many feeds, but must only be downloaded once.
+       */
 
-      final var tasks =
-        List.of(feedTasks, bookTasks, imageTasks)
-          .stream()
-          .flatMap(List::stream)
-          .collect(Collectors.toList());
+      if (!this.downloads.add(path)) {
+        return;
+      }
 
-      return CompletableFuture.allOf(tasks.toArray(new CompletableFuture[tasks.size()]));
+      this.frontier.submit(priority, () -> {
+        LOG.info("{} GET {} -> {} (from {})", kind, uri, path, source.orElse(uri));
+        return this.downloadFileTask(uri, path);
+      });
     }
 
+    /**
+     * Write the content to the partial file, and move the partial file into place once all of the
+     * content has been received. If the transfer fails, the partial file is kept so that a later
+     * attempt can resume it.
+     */
+
     private void downloadFile(
       final URI uri,
       final Path path,
-      final Path path_tmp)
+      final OPDSPartialFile partial,
+      final OPDSHTTPData data)
     {
       try {
-        final var authentication =
-          this.configuration.authenticationSupplier().apply(uri);
-        final var data =
-          this.http.get(uri, authentication);
+        final var append = data.offset() > 0L;
+        if (append) {
+          LOG.info("resuming {} at offset {}", uri, Long.valueOf(data.offset()));
+        } else {
+          partial.begin(data);
+        }
+
+        final var options =
+          append
+            ? new OpenOption[]{APPEND}
+            : new OpenOption[]{CREATE, TRUNCATE_EXISTING, WRITE};
+
+        /*
+         * The file is hashed as it is written, so that it doesn't need to be read again to
+         * produce the manifest entry. Only the part received in a previous attempt, if any,
+         * needs to be read.
+         */
+
+        final var digest = OPDSHashing.sha256();
+        if (append) {
+          OPDSHashing.update(digest, partial.file());
+        }
 
-        Files.createDirectories(path_tmp.getParent());
-        try (var output = Files.newOutputStream(path_tmp, CREATE_NEW)) {
+        try (var output =
+               new DigestOutputStream(Files.newOutputStream(partial.file(), options), digest)) {
           try (var input = data.stream()) {
             input.transferTo(output);
-            Files.move(path_tmp, path, ATOMIC_MOVE, REPLACE_EXISTING);
           }
-          this.saveFileInManifest(uri, path, OPDSManifestFileEntryKind.GENERAL);
-        } catch (final FileAlreadyExistsException e) {
-          LOG.debug("file already exists: {}", path_tmp);
         }
+
+        Files.createDirectories(path.getParent());
+        Files.move(partial.file(), path, ATOMIC_MOVE, REPLACE_EXISTING);
+        partial.finish();
+
+        final var hash = digest.digest();
+        this.saveFileInManifest(uri, path, OPDSManifestFileEntryKind.GENERAL, hash);
+        this.validators.put(uri, data.entityTag(), data.lastModified(), "");
+        this.journal.downloaded(
+          uri, this.relativeName(path), hash, data.entityTag(), data.lastModified());
+        this.archiveIfFinal(path, hash);
+        this.transformIfRequired(path);
       } catch (final IOException e) {
         throw new CompletionException(e);
       }
     }
 
-    private void downloadImage(
-      final OPDSDocumentProcessed document,
-      final URI uri)
-    {
-      final var path = this.configuration.imageFileHashed(uri);
-      final var path_tmp = temporaryFile(path);
-      LOG.info("image GET {} -> {} (from {})", uri, path, document.file().uri());
-      this.downloadFile(uri, path, path_tmp);
-    }
+    /**
+     * Partial downloads are kept in the state directory rather than next to the final file, so
+     * that they are never mistaken for complete files or included in archives.
+     */
 
-    private CompletableFuture<Void> downloadImageTask(
-      final OPDSDocumentProcessed document,
-      final URI uri)
+    private OPDSPartialFile partialFile(
+      final Path path)
     {
-      return CompletableFuture
-        .runAsync(() -> this.downloadImage(document, uri), this.executor);
+      final var output = this.configuration.output();
+      return OPDSPartialFile.of(
+        this.configuration.stateDirectory()
+          .resolve("partial")
+          .resolve(output.relativize(path).toString()));
     }
 
-    private void downloadBook(
-      final OPDSDocumentProcessed document,
-      final URI uri)
+    private CompletableFuture<Void> downloadFileTask(
+      final URI uri,
+      final Path path)
     {
-      final var path = this.configuration.bookFileHashed(uri);
-      final var path_tmp = temporaryFile(path);
-      LOG.info("book GET {} -> {} (from {})", uri, path, document.file().uri());
-      this.downloadFile(uri, path, path_tmp);
-    }
+      try {
+        if (this.restoreFromJournal(uri, path)) {
+          return CompletableFuture.completedFuture(null);
+        }
+      } catch (final IOException e) {
+        return CompletableFuture.failedFuture(e);
+      }
 
-    private CompletableFuture<Void> downloadBookTask(
-      final OPDSDocumentProcessed document,
-      final URI uri)
-    {
-      return CompletableFuture.runAsync(() -> this.downloadBook(document, uri), this.executor);
+      final var partial = this.partialFile(path);
+      return this.scheduler.schedule(
+        uri,
+        () -> {
+          final var resume = partial.resume();
+          return this.fetch(uri, Optional.of(path), resume)
+            .thenComposeAsync(
+              data -> this.onFileData(uri, path, partial, resume, data),
+              this.executor);
+        });
     }
 
-    private Optional<OPDSDocumentProcessed> processOne(
-      final Optional<OPDSDocumentProcessed> parent_document,
-      final URI uri)
+    private CompletableFuture<Void> onFileData(
+      final URI uri,
+      final Path path,
+      final OPDSPartialFile partial,
+      final Optional<OPDSPartialFile.Resume> resume,
+      final OPDSHTTPData data)
     {
       try {
-
         /*
-         * Don't process URIs that have already been processed.
+         * Requests are only conditional if the local copy was transformed as the current
+         * configuration requires, so an unmodified file needs no further transformation.
          */
 
-        synchronized (this.manifestLock) {
-          if (this.retrieved.contains(uri)) {
-            return Optional.empty();
-          }
-          this.retrieved.add(uri);
+        if (data.notModified()) {
+          LOG.info("not modified: {} -> {}", uri, path);
+          this.unmodified.add(path.toAbsolutePath());
+          partial.delete();
+
+          final var hash = OPDSHashing.sha256HashOf(path);
+          final var relative = this.relativeName(path);
+          this.saveFileInManifest(uri, path, OPDSManifestFileEntryKind.GENERAL, hash);
+          this.journal.downloaded(uri, relative, hash, data.entityTag(), data.lastModified());
+          this.journal.transformed(relative, hash);
+          this.archiveIfFinal(path, hash);
+          return CompletableFuture.completedFuture(null);
         }
 
         /*
-         * Fetch the remote document.
+         * If the server returned a range that doesn't continue the partial file, the partial file
+         * can't be trusted, and the entire content is requested again. The request is not
+         * conditional, so that the server can't reply with an empty "not modified" response.
          */
 
-        LOG.info(
-          "feed GET {} {}",
-          uri,
-          parent_document.map(doc -> "(from " + doc.file().uri() + ")").orElse(""));
-
-        if (!uri.isAbsolute()) {
-          throw new IllegalArgumentException(String.format("URI %s is not absolute", uri));
+        if (data.offset() > 0L
+          && !resume.map(r -> Boolean.valueOf(r.isContinuedBy(data))).orElse(Boolean.FALSE)) {
+          LOG.warn("{}: returned range does not continue the partial file; restarting", uri);
+          data.stream().close();
+          partial.delete();
+          return this.fetch(uri, Optional.empty(), Optional.empty())
+            .thenAcceptAsync(full -> this.onFullData(uri, path, partial, full), this.executor);
         }
 
-        final var data =
-          this.http.get(
-            uri,
-            this.configuration.authenticationSupplier().apply(uri));
+        this.downloadFile(uri, path, partial, data);
+        return CompletableFuture.completedFuture(null);
+      } catch (final IOException e) {
+        return CompletableFuture.failedFuture(e);
+      }
+    }
 
-        /*
-         * Parse the remote document.
-         */
+    private void onFullData(
+      final URI uri,
+      final Path path,
+      final OPDSPartialFile partial,
+      final OPDSHTTPData data)
+    {
+      if (data.offset() != 0L) {
+        throw new CompletionException(new IOException(
+          String.format("Server returned a range of %s that was not requested", uri)));
+      }
+      if (data.notModified()) {
+        throw new CompletionException(new IOException(
+          String.format("Server returned no content for an unconditional request of %s", uri)));
+      }
+      this.downloadFile(uri, path, partial, data);
+    }
+
+    /**
+     * If the file was downloaded by a previous retrieval that didn't complete, restore its
+     * manifest entry and validators from the journal rather than downloading it again. The file
+     * is only restored if its content is the content that the journal last recorded for it; a
+     * file that changed after its last journal entry (for example, because the previous
+     * retrieval stopped part way through transforming it) is downloaded again in full.
+     *
+     * @return {@code true} if the file was restored
+     */
+
+    private boolean restoreFromJournal(
+      final URI uri,
+      final Path path)
+      throws IOException
+    {
+      final var relative = this.relativeName(path);
+      final var entryOpt =
+        this.journal.completed(uri)
+          .filter(entry -> Objects.equals(entry.path(), relative))
+          .filter(entry -> Files.isRegularFile(path));
+
+      if (entryOpt.isEmpty()) {
+        return false;
+      }
+
+      final var entry = entryOpt.get();
+      final var hash = OPDSHashing.sha256HashOf(path);
+      if (!Arrays.equals(hash, entry.hash())) {
+        LOG.warn("{}: changed since it was last recorded in the journal; retrieving again", path);
+        this.validators.remove(uri);
+        return false;
+      }
+
+      LOG.info("already retrieved: {} -> {}", uri, path);
+      final String transform;
+      if (this.journal.isTransformed(relative)) {
+        this.unmodified.add(path.toAbsolutePath());
+        transform = this.transformOf(path);
+      } else {
+        transform = "";
+      }
+      this.validators.put(uri, entry.entityTag(), entry.lastModified(), transform);
+      this.saveFileInManifest(uri, path, OPDSManifestFileEntryKind.GENERAL, hash);
+      this.archiveIfFinal(path, hash);
+      this.transformIfRequired(path);
+      return true;
+    }
+
+    private String relativeName(
+      final Path path)
+    {
+      return this.configuration.output().relativize(path).toString();
+    }
+
+    /**
+     * Files that were kept because the server reported that they had not been modified have
+     * already been transformed (by squashing or scaling) in a previous run, and must not be
+     * transformed again. Neither must files that were transformed during the retrieval.
+     */
+
+    boolean isTransformRequired(
+      final Path path)
+    {
+      return !this.unmodified.contains(path.toAbsolutePath());
+    }
+
+    /**
+     * Books are squashed, and images are scaled, during or after the retrieval. Such files are
+     * archived once they have been transformed, and are not final until then.
+     */
+
+    private boolean isFinal(
+      final Path path)
+    {
+      if (!this.isTransformRequired(path)) {
+        return true;
+      }
+      return this.transformOf(path).isEmpty();
+    }
+
+    /**
+     * @return A description of the transform that the current configuration applies to the given
+     *   file, including the transform's parameters, or an empty string if the file is not
+     *   transformed
+     */
+
+    private String transformOf(
+      final Path path)
+    {
+      final var config = this.configuration;
+      final var squash = config.squash();
+      if (squash.isPresent() && path.startsWith(config.bookDirectory())) {
+        final var parameters = squash.get();
+        return String.format(
+          "squash %s %s %s",
+          Double.valueOf(parameters.scaleFactor()),
+          Double.valueOf(parameters.maximumImageWidth()),
+          Double.valueOf(parameters.maximumImageHeight()));
+      }
+
+      final var scale = config.scaleImages();
+      if (scale.isPresent()
+        && scale.getAsDouble() != 1.0
+        && path.startsWith(config.imageDirectory())) {
+        return String.format("scale %s", Double.valueOf(scale.getAsDouble()));
+      }
+      return "";
+    }
+
+    /**
+     * Submit a retrieved file to be transformed, if files are transformed during the retrieval
+     * and the file is not final.
+     */
+
+    private void transformIfRequired(
+      final Path path)
+    {
+      if (this.transforms.isPresent() && !this.isFinal(path)) {
+        this.transforms.get().submit(path);
+      }
+    }
+
+    CompletableFuture<Void> finishTransforms()
+    {
+      if (this.transforms.isPresent()) {
+        return this.transforms.get().finish(this.executor);
+      }
+      return CompletableFuture.completedFuture(null);
+    }
 
-        LOG.debug("processOne: parse: {}", uri);
+    void closeTransforms()
+    {
+      this.transforms.ifPresent(OPDSTransformPipeline::close);
+    }
+
+    private void archiveIfFinal(
+      final Path path,
+      final byte[] hash)
+      throws IOException
+    {
+      if (this.isFinal(path)) {
+        this.archive(path, Optional.of(hash));
+      }
+    }
 
-        final Document document;
-        try (var stream = data.stream()) {
-          document = this.parsers.parse(uri, stream);
+    /**
+     * Compress a file into the archive spool, if the archive is being produced during the
+     * retrieval. A file with the given hash that is unchanged since the previous archive is not
+     * compressed again.
+     */
+
+    private void archive(
+      final Path path,
+      final Optional<byte[]> hash)
+      throws IOException
+    {
+      if (this.archiveSpool.isPresent()) {
+        this.archiveSpool.get().add(this.relativeName(path), path, hash);
+      }
+    }
+
+    Optional<OPDSArchiveSpool> archiveSpool()
+    {
+      return this.archiveSpool;
+    }
+
+    void closeArchiveSpool()
+    {
+      if (this.archiveSpool.isPresent()) {
+        try {
+          this.archiveSpool.get().close();
+        } catch (final IOException e) {
+          LOG.error("could not close archive spool: ", e);
         }
+      }
+    }
 
-        final var result =
-          new OPDSDocumentProcessor()
-            .process(this.configuration, document);
+    void deleteJournal()
+    {
+      try {
+        this.journal.delete();
+      } catch (final IOException e) {
+        throw new CompletionException(e);
+      }
+    }
+
+    void closeJournal()
+    {
+      try {
+        this.journal.close();
+      } catch (final IOException e) {
+        LOG.error("could not close journal: ", e);
+      }
+    }
 
-        synchronized (this.manifestLock) {
-          if (this.processed.containsKey(uri)) {
+    void saveValidators()
+    {
+      try {
+        this.validators.save();
+      } catch (final IOException e) {
+        throw new CompletionException(e);
+      }
+    }
+
+    private OPDSDocumentProcessed processOne(
+      final URI uri,
+      final OPDSHTTPData data)
+    {
+      try {
+        final var digest = OPDSHashing.sha256();
+        final OPDSDocumentProcessed result;
+        switch (this.configuration.feedProcessor()) {
+          case STREAMING: {
+            result = this.processStreaming(uri, data, digest);
+            break;
+          }
+          case DOM: {
+            result = this.processDOM(uri, data, digest);
+            break;
+          }
+          default: {
             throw new IllegalStateException(
-              String.format("URI %s should not already have been processed", uri));
+              String.format("Unrecognized feed processor %s", this.configuration.feedProcessor()));
           }
-          this.processed.put(uri, result);
+        }
+
+        /*
+         * Only the parts of the document that the search index needs are kept once the
+         * document's links have been queued, so that the links of every feed in a large
+         * catalogue are not held until the end of the retrieval.
+         */
+
+        final var summary =
+          OPDSDocumentProcessed.builder()
+            .setFile(result.file())
+            .setTitle(result.title())
+            .setEntry(result.isEntry())
+            .build();
+
+        if (this.processed.putIfAbsent(uri, summary) != null) {
+          throw new IllegalStateException(
+            String.format("URI %s should not already have been processed", uri));
         }
 
         /*
@@ -452,29 +961,85 @@ public final class OPDSRetrievers implements OPDSRetrieverProviderType
           this.serializeProperties(result);
         }
 
-        /*
-         * Serialize the feed.
-         */
-
-        final var file = result.file().file();
-        LOG.debug("processOne: serialize: {} -> {}", uri, file);
-        this.serializeFeed(document, result);
-
         final var entryKind =
           isRootFeed ? OPDSManifestFileEntryKind.ROOT_FEED : OPDSManifestFileEntryKind.GENERAL;
 
-        this.saveFileInManifest(uri, file, entryKind);
-        return Optional.of(result);
+        final var hash = digest.digest();
+        this.saveFileInManifest(uri, result.file().file(), entryKind, hash);
+        this.archive(result.file().file(), Optional.of(hash));
+        return result;
       } catch (final Exception e) {
         throw new CompletionException(e);
       }
     }
 
+    /**
+     * Rewrite the remote document directly into its local file as it is received.
+     */
+
+    private OPDSDocumentProcessed processStreaming(
+      final URI uri,
+      final OPDSHTTPData data,
+      final MessageDigest digest)
+      throws Exception
+    {
+      final var path = this.configuration.feedFileHashed(uri);
+      final var path_tmp = temporaryFile(path);
+      LOG.debug("processOne: rewrite: {} -> {}", uri, path);
+
+      Files.createDirectories(path_tmp.getParent());
+
+      final OPDSDocumentProcessed result;
+      try (var stream = data.stream();
+           var output = new DigestOutputStream(
+             new BufferedOutputStream(
+               Files.newOutputStream(path_tmp, CREATE, TRUNCATE_EXISTING, WRITE)),
+             digest)) {
+        result = this.streaming.process(this.configuration, uri, stream, output);
+      } catch (final Exception e) {
+        Files.deleteIfExists(path_tmp);
+        throw e;
+      }
+
+      Files.move(path_tmp, path, ATOMIC_MOVE, REPLACE_EXISTING);
+      return result;
+    }
+
+    /**
+     * Parse the remote document, rewrite it in memory, and then serialize it to its local file.
+     */
+
+    private OPDSDocumentProcessed processDOM(
+      final URI uri,
+      final OPDSHTTPData data,
+      final MessageDigest digest)
+      throws Exception
+    {
+      LOG.debug("processOne: parse: {}", uri);
+
+      final Document document;
+      try (var stream = data.stream()) {
+        document = this.parsers.parse(uri, stream);
+      }
+
+      final var processor = this.processors.acquire();
+      final OPDSDocumentProcessed result;
+      try {
+        result = processor.process(this.configuration, document);
+      } finally {
+        this.processors.release(processor);
+      }
+
+      LOG.debug("processOne: serialize: {} -> {}", uri, result.file().file());
+      this.serializeFeed(document, result, digest);
+      return result;
+    }
+
     private void saveFileInManifest(
       final URI uri,
       final Path file,
-      final OPDSManifestFileEntryKind kind)
-      throws IOException
+      final OPDSManifestFileEntryKind kind,
+      final byte[] hash)
     {
       Preconditions.checkPreconditionV(
         file,
@@ -483,31 +1048,40 @@ public final class OPDSRetrievers implements OPDSRetrieverProviderType
 
       final var relative = this.configuration.output().relativize(file);
       final var relativeName = relative.toString();
-      final var hash = OPDSHashing.sha256HashOf(file);
 
       LOG.debug("manifest: {} -> {}", uri, relative);
-      synchronized (this.manifestLock) {
-        final var entry =
-          FileEntry.builder()
-            .setHash(hash)
-            .setHashAlgorithm("SHA-256")
-            .setPath(relativeName)
-            .build();
 
-        this.manifestFiles.put(uri, entry);
+      final var entry =
+        FileEntry.builder()
+          .setHash(hash)
+          .setHashAlgorithm("SHA-256")
+          .setPath(relativeName)
+          .build();
+
+      /*
+       * The path index is updated while the entry's own bin of the file map is locked, so that
+       * concurrent updates to the same URI cannot leave a stale path behind.
+       */
+
+      this.manifestFiles.compute(uri, (key, previous) -> {
+        if (previous != null && !Objects.equals(previous.path(), relativeName)) {
+          this.manifestPaths.remove(previous.path(), key);
+        }
+        this.manifestPaths.put(relativeName, key);
+        return entry;
+      });
 
-        switch (kind) {
-          case GENERAL: {
-            break;
-          }
-          case ROOT_FEED: {
-            this.manifestBuilder.setRootFile(relativeName);
-            break;
-          }
-          case SEARCH_INDEX: {
-            this.manifestBuilder.setSearchIndex(relativeName);
-            break;
-          }
+      switch (kind) {
+        case GENERAL: {
+          break;
+        }
+        case ROOT_FEED: {
+          this.manifestRootFile.set(Optional.of(relativeName));
+          break;
+        }
+        case SEARCH_INDEX: {
+          this.manifestSearchIndex.set(Optional.of(relativeName));
+          break;
         }
       }
     }
@@ -533,51 +1107,46 @@ public final class OPDSRetrievers implements OPDSRetrieverProviderType
       }
 
       Files.move(file_tmp, file, ATOMIC_MOVE, REPLACE_EXISTING);
+      this.archive(file, Optional.empty());
     }
 
     /**
-     * Serialize a feed XML document.
+     * Serialize a feed XML document, updating the given digest with the serialized bytes.
      */
 
     private void serializeFeed(
       final Document document,
-      final OPDSDocumentProcessed result)
+      final OPDSDocumentProcessed result,
+      final MessageDigest digest)
       throws TransformerException, IOException
     {
-      final var transformer_factory = TransformerFactory.newInstance();
-      final var transformer = transformer_factory.newTransformer();
-
-      transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-      transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "no");
-      transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
-
       final var path = result.file().file();
       final var path_tmp = temporaryFile(path);
 
       Files.createDirectories(path_tmp.getParent());
-      try (var output = Files.newOutputStream(path_tmp, CREATE_NEW)) {
-        transformer.transform(
-          new DOMSource(document),
-          new StreamResult(output));
-        Files.move(path_tmp, path, ATOMIC_MOVE, REPLACE_EXISTING);
-      } catch (final FileAlreadyExistsException e) {
-        LOG.debug("file already exists: {}", path_tmp);
+      try (var output = new DigestOutputStream(
+        Files.newOutputStream(path_tmp, CREATE, TRUNCATE_EXISTING, WRITE), digest)) {
+        this.serializers.serialize(document, output);
       }
+
+      Files.move(path_tmp, path, ATOMIC_MOVE, REPLACE_EXISTING);
     }
 
     Map<URI, OPDSDocumentProcessed> processed()
     {
-      synchronized (this.manifestLock) {
-        return Map.copyOf(this.processed);
-      }
+      return Map.copyOf(this.processed);
     }
 
     OPDSManifestDescription manifest()
     {
-      synchronized (this.manifestLock) {
-        this.manifestBuilder.putAllFiles(this.manifestFiles);
-        return this.manifestBuilder.build();
-      }
+      final var builder = OPDSManifestDescription.builder();
+      builder.setBase(this.configuration.outputManifestBaseURI());
+      builder.setTitle(this.configuration.outputManifestTitle());
+      builder.setId(this.configuration.outputManifestID());
+      this.manifestRootFile.get().ifPresent(builder::setRootFile);
+      builder.setSearchIndex(this.manifestSearchIndex.get());
+      builder.putAllFiles(this.manifestFiles);
+      return builder.build();
     }
 
     void onFileChanged(
@@ -591,35 +1160,42 @@ public final class OPDSRetrievers implements OPDSRetrieverProviderType
         path.isAbsolute(),
         "Path %s must be absolute", path);
 
-      final var relativeFile =
-        this.configuration.output()
-          .relativize(path)
-          .toString();
-
-      synchronized (this.manifestLock) {
-        for (final var entry : this.manifestFiles.entrySet()) {
-          final var uri = entry.getKey();
-          final var file = entry.getValue();
-
-          if (Objects.equals(file.path(), relativeFile)) {
-            LOG.debug("onFileChanged: found existing file for {} ({})", path, uri);
-
-            try {
-              this.saveFileInManifest(uri, path, kind);
-            } catch (final IOException e) {
-              throw new UncheckedIOException(e);
-            }
-            return;
-          }
-        }
+      final var relativeFile = this.relativeName(path);
 
-        try {
-          LOG.debug("onFileChanged: could not find existing file for {}", path);
-          this.saveFileInManifest(URI.create(path.getFileName().toString()), path, kind);
-        } catch (final IOException e) {
-          throw new UncheckedIOException(e);
-        }
+      try {
+        final var hash = OPDSHashing.sha256HashOf(path);
+        this.saveChangedFileInManifest(kind, path, relativeFile, hash);
+        this.journal.transformed(relativeFile, hash);
+        this.archive(path, Optional.of(hash));
+      } catch (final IOException e) {
+        throw new UncheckedIOException(e);
       }
     }
+
+    private void onFileTransformed(
+      final OPDSManifestFileEntryKind kind,
+      final Path path)
+    {
+      this.onFileChanged(kind, path);
+      this.unmodified.add(path.toAbsolutePath());
+    }
+
+    private void saveChangedFileInManifest(
+      final OPDSManifestFileEntryKind kind,
+      final Path path,
+      final String relativeFile,
+      final byte[] hash)
+    {
+      final var uri = this.manifestPaths.get(relativeFile);
+      if (uri != null) {
+        LOG.debug("onFileChanged: found existing file for {} ({})", path, uri);
+        this.saveFileInManifest(uri, path, kind, hash);
+        this.validators.transformed(uri, this.transformOf(path));
+        return;
+      }
+
+      LOG.debug("onFileChanged: could not find existing file for {}", path);
+      this.saveFileInManifest(URI.create(path.getFileName().toString()), path, kind, hash);
+    }
   }
 }
@@ -0,0 +1,178 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.vanilla;
+
+import java.nio.ByteBuffer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Functions shared by the readers of binary search indexes. Only absolute reads are made, so that
+ * a buffer may be shared between threads.
+ */
+
+final class OPDSSearchIndexBuffers
+{
+  private OPDSSearchIndexBuffers()
+  {
+
+  }
+
+  /**
+   * Binary search a table of entries that each begin with the offset and length of their UTF-8
+   * text, and that are sorted by the unsigned order of that text.
+   *
+   * @param buffer    The buffer
+   * @param table     The offset of the table
+   * @param entrySize The size of each entry
+   * @param count     The number of entries
+   * @param key       The UTF-8 text to find
+   *
+   * @return The index of the entry, or {@code -(insertion point) - 1} if there is no such entry
+   */
+
+  static int find(
+    final ByteBuffer buffer,
+    final int table,
+    final int entrySize,
+    final int count,
+    final byte[] key)
+  {
+    var low = 0;
+    var high = count - 1;
+    while (low <= high) {
+      final var middle = (low + high) >>> 1;
+      final var entry = table + middle * entrySize;
+      final var order =
+        compare(buffer, buffer.getInt(entry), buffer.getInt(entry + 4), key, key.length);
+      if (order < 0) {
+        low = middle + 1;
+      } else if (order > 0) {
+        high = middle - 1;
+      } else {
+        return middle;
+      }
+    }
+    return -(low + 1);
+  }
+
+  /**
+   * @return {@code true} if the UTF-8 text at the given offset begins with the given key
+   */
+
+  static boolean startsWith(
+    final ByteBuffer buffer,
+    final int offset,
+    final int length,
+    final byte[] key)
+  {
+    return length >= key.length && compare(buffer, offset, key.length, key, key.length) == 0;
+  }
+
+  /**
+   * Compare the UTF-8 text at the given offset with the first {@code keyLength} bytes of the
+   * given key, as unsigned bytes.
+   */
+
+  private static int compare(
+    final ByteBuffer buffer,
+    final int offset,
+    final int length,
+    final byte[] key,
+    final int keyLength)
+  {
+    final var common = Math.min(length, keyLength);
+    for (int index = 0; index < common; ++index) {
+      final var order =
+        Integer.compare(
+          Byte.toUnsignedInt(buffer.get(offset + index)),
+          Byte.toUnsignedInt(key[index]));
+      if (order != 0) {
+        return order;
+      }
+    }
+    return Integer.compare(length, keyLength);
+  }
+
+  /**
+   * Read a list of ascending values, each written as the unsigned LEB128 difference from the
+   * previous value (or from zero, for the first).
+   *
+   * @param buffer The buffer
+   * @param offset The offset of the first value
+   * @param count  The number of values
+   *
+   * @return The values
+   */
+
+  static int[] postings(
+    final ByteBuffer buffer,
+    final int offset,
+    final int count)
+  {
+    final var results = new int[count];
+    var position = offset;
+    var value = 0;
+    for (int index = 0; index < count; ++index) {
+      var delta = 0;
+      var shift = 0;
+      while (true) {
+        final var b = buffer.get(position);
+        position += 1;
+        delta |= (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) {
+          break;
+        }
+        shift += 7;
+      }
+      value += delta;
+      results[index] = value;
+    }
+    return results;
+  }
+
+  static String text(
+    final ByteBuffer buffer,
+    final int offset,
+    final int length)
+  {
+    final var view = buffer.duplicate();
+    view.position(offset);
+    view.limit(offset + length);
+    return UTF_8.decode(view).toString();
+  }
+
+  /**
+   * @param codePoints The code points of a string
+   * @param start      The index of the first code point
+   * @param count      The number of code points
+   *
+   * @return A string of the given code points
+   */
+
+  static String codePoints(
+    final int[] codePoints,
+    final int start,
+    final int count)
+  {
+    final var text = new StringBuilder(count * 2);
+    for (int index = start; index < start + count; ++index) {
+      text.appendCodePoint(codePoints[index]);
+    }
+    return text.toString();
+  }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.vanilla;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.TreeSet;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+import static one.lfa.opdsget.vanilla.OPDSSearchIndexWriter.DOCUMENT_ENTRY_SIZE;
+import static one.lfa.opdsget.vanilla.OPDSSearchIndexWriter.HEADER_SIZE;
+import static one.lfa.opdsget.vanilla.OPDSSearchIndexWriter.MAGIC;
+import static one.lfa.opdsget.vanilla.OPDSSearchIndexWriter.TERM_ENTRY_SIZE;
+import static one.lfa.opdsget.vanilla.OPDSSearchIndexWriter.VERSION;
+
+/**
+ * A reader of binary search indexes. The index is memory-mapped, and terms are found by binary
+ * search of the term table, so only the parts of the index that a search touches are read.
+ *
+ * Readers are safe to use from multiple threads.
+ */
+
+public final class OPDSSearchIndexReader
+{
+  private final ByteBuffer buffer;
+  private final int documentCount;
+  private final int termCount;
+  private final int documentTable;
+  private final int termTable;
+
+  private OPDSSearchIndexReader(
+    final ByteBuffer inBuffer)
+    throws IOException
+  {
+    this.buffer =
+      Objects.requireNonNull(inBuffer, "buffer").order(ByteOrder.BIG_ENDIAN);
+
+    if (this.buffer.capacity() < HEADER_SIZE) {
+      throw new IOException("Search index is truncated");
+    }
+
+    final var magic = this.buffer.getInt(0);
+    if (magic != MAGIC) {
+      throw new IOException(
+        String.format(
+          "Expected magic number 0x%08x but received 0x%08x",
+          Integer.valueOf(MAGIC),
+          Integer.valueOf(magic)));
+    }
+
+    final var version = this.buffer.getInt(4);
+    if (version != VERSION) {
+      throw new IOException(
+        String.format("Unsupported search index version %d", Integer.valueOf(version)));
+    }
+
+    this.documentCount = this.buffer.getInt(8);
+    this.termCount = this.buffer.getInt(12);
+    this.documentTable = this.buffer.getInt(16);
+    this.termTable = this.buffer.getInt(20);
+
+    final var tablesEnd =
+      (long) this.termTable + (long) TERM_ENTRY_SIZE * (long) this.termCount;
+    final var documentsEnd =
+      (long) this.documentTable + (long) DOCUMENT_ENTRY_SIZE * (long) this.documentCount;
+    if (this.documentCount < 0 || this.termCount < 0) {
+      throw new IOException(
+        String.format(
+          "Search index has a negative count (%d documents, %d terms)",
+          Integer.valueOf(this.documentCount),
+          Integer.valueOf(this.termCount)));
+    }
+    if (this.documentTable < HEADER_SIZE) {
+      throw new IOException(
+        String.format(
+          "Search index document table at %d overlaps the header",
+          Integer.valueOf(this.documentTable)));
+    }
+    if ((long) this.termTable < documentsEnd) {
+      throw new IOException(
+        String.format(
+          "Search index term table at %d overlaps the document table",
+          Integer.valueOf(this.termTable)));
+    }
+    if (tablesEnd > (long) this.buffer.capacity()) {
+      throw new IOException(
+        String.format(
+          "Search index tables end at %d, beyond the end of the index at %d",
+          Long.valueOf(tablesEnd),
+          Integer.valueOf(this.buffer.capacity())));
+    }
+  }
+
+  /**
+   * Memory-map a binary search index.
+   *
+   * @param file The index file
+   *
+   * @return A reader
+   *
+   * @throws IOException On I/O errors, or if the file is not a binary search index
+   */
+
+  public static OPDSSearchIndexReader open(
+    final Path file)
+    throws IOException
+  {
+    Objects.requireNonNull(file, "file");
+
+    try (var channel = FileChannel.open(file, READ)) {
+      return new OPDSSearchIndexReader(
+        channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size()));
+    }
+  }
+
+  /**
+   * @return The number of documents in the index
+   */
+
+  public int documentCount()
+  {
+    return this.documentCount;
+  }
+
+  /**
+   * @return The number of distinct terms in the index
+   */
+
+  public int termCount()
+  {
+    return this.termCount;
+  }
+
+  /**
+   * @param ordinal The ordinal of a document, in the range {@code [0, documentCount())}
+   *
+   * @return The URI of the document
+   */
+
+  public URI document(
+    final int ordinal)
+  {
+    Objects.checkIndex(ordinal, this.documentCount);
+    final var entry = this.documentTable + ordinal * DOCUMENT_ENTRY_SIZE;
+    return URI.create(
+      OPDSSearchIndexBuffers.text(
+        this.buffer, this.buffer.getInt(entry), this.buffer.getInt(entry + 4)));
+  }
+
+  /**
+   * @param index The position of a term, in the range {@code [0, termCount())}
+   *
+   * @return The term, in the order of the terms' UTF-8 bytes
+   */
+
+  public String term(
+    final int index)
+  {
+    Objects.checkIndex(index, this.termCount);
+    final var entry = this.termTable + index * TERM_ENTRY_SIZE;
+    return OPDSSearchIndexBuffers.text(
+      this.buffer, this.buffer.getInt(entry), this.buffer.getInt(entry + 4));
+  }
+
+  /**
+   * Find the documents that contain the given term. Terms are recorded in the same form as in
+   * the text index, so the term must be given in upper case.
+   *
+   * @param term The term
+   *
+   * @return The URIs of the documents that contain the term, in the order of their ordinals
+   */
+
+  public List<URI> find(
+    final String term)
+  {
+    Objects.requireNonNull(term, "term");
+
+    final var index =
+      OPDSSearchIndexBuffers.find(
+        this.buffer, this.termTable, TERM_ENTRY_SIZE, this.termCount, term.getBytes(UTF_8));
+    if (index < 0) {
+      return List.of();
+    }
+    return this.documents(new int[]{index});
+  }
+
+  /**
+   * Find the documents that contain a term that begins with the given prefix. As the terms are
+   * sorted by their UTF-8 bytes, the terms with a given prefix are adjacent in the term table,
+   * and are found by a single binary search.
+   *
+   * @param prefix The prefix, in upper case
+   *
+   * @return The URIs of the documents that contain a matching term, in the order of their
+   *   ordinals
+   */
+
+  public List<URI> findPrefix(
+    final String prefix)
+  {
+    Objects.requireNonNull(prefix, "prefix");
+
+    final var key = prefix.getBytes(UTF_8);
+    final var found =
+      OPDSSearchIndexBuffers.find(
+        this.buffer, this.termTable, TERM_ENTRY_SIZE, this.termCount, key);
+
+    var end = found < 0 ? -(found + 1) : found;
+    final var start = end;
+    while (end < this.termCount) {
+      final var entry = this.termTable + end * TERM_ENTRY_SIZE;
+      if (!OPDSSearchIndexBuffers.startsWith(
+        this.buffer, this.buffer.getInt(entry), this.buffer.getInt(entry + 4), key)) {
+        break;
+      }
+      ++end;
+    }
+
+    final var terms = new int[end - start];
+    for (int index = 0; index < terms.length; ++index) {
+      terms[index] = start + index;
+    }
+    return this.documents(terms);
+  }
+
+  /**
+   * @return The URIs of the documents that contain any of the given terms, in the order of their
+   *   ordinals
+   */
+
+  List<URI> documents(
+    final int[] terms)
+  {
+    final var ordinals = new TreeSet<Integer>();
+    for (final var term : terms) {
+      final var entry = this.termTable + term * TERM_ENTRY_SIZE;
+      final var postings =
+        OPDSSearchIndexBuffers.postings(
+          this.buffer, this.buffer.getInt(entry + 8), this.buffer.getInt(entry + 12));
+      for (final var ordinal : postings) {
+        ordinals.add(Integer.valueOf(ordinal));
+      }
+    }
+
+    final var results = new ArrayList<URI>(ordinals.size());
+    for (final var ordinal : ordinals) {
+      results.add(this.document(ordinal.intValue()));
+    }
+    return results;
+  }
+}
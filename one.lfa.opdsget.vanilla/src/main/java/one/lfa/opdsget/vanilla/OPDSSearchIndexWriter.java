@@ -0,0 +1,353 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.vanilla;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeSet;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A writer of binary search indexes. A binary index holds the same terms and documents as the
+ * text index, laid out so that it can be memory-mapped and searched without being parsed (see
+ * {@link OPDSSearchIndexReader}).
+ *
+ * All integers are 32-bit big-endian values, and all offsets are from the start of the file. The
+ * file consists of:
+ *
+ * <ul>
+ *   <li>A header: the magic number {@code 0x4F504458} ("OPDX"), the version {@code 1}, the number
+ *   of documents, the number of terms, the offset of the document table, and the offset of the
+ *   term table.</li>
+ *   <li>The document table: the offset and length of the UTF-8 URI of each document, in the order
+ *   of the URIs. The position of a document in the table is its ordinal.</li>
+ *   <li>The term table: the offset and length of the UTF-8 text of each term, and the offset and
+ *   number of its postings, in the unsigned order of the terms' UTF-8 bytes.</li>
+ *   <li>The text of the terms and URIs.</li>
+ *   <li>The postings of each term: the ascending ordinals of the documents that contain the term,
+ *   each written as the difference from the previous ordinal (or from zero, for the first) in
+ *   unsigned LEB128 form.</li>
+ * </ul>
+ */
+
+final class OPDSSearchIndexWriter
+{
+  static final int MAGIC = 0x4F504458;
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 24;
+  static final int DOCUMENT_ENTRY_SIZE = 8;
+  static final int TERM_ENTRY_SIZE = 16;
+  static final int NGRAM_MAGIC = 0x4F50444E;
+  static final int NGRAM_HEADER_SIZE = 24;
+
+  private OPDSSearchIndexWriter()
+  {
+
+  }
+
+  /**
+   * Write a binary index. The index is written to a temporary file that is then atomically
+   * renamed to the given file.
+   *
+   * @param file  The output file
+   * @param index The URIs of the documents that contain each term
+   *
+   * @throws IOException On I/O errors
+   */
+
+  static void write(
+    final Path file,
+    final Map<String, ? extends Collection<URI>> index)
+    throws IOException
+  {
+    Objects.requireNonNull(file, "file");
+    Objects.requireNonNull(index, "index");
+
+    final var uris = urisOf(index);
+    final var ordinals = new HashMap<String, Integer>(uris.size());
+    final var documents = new ArrayList<byte[]>(uris.size());
+    for (final var uri : uris) {
+      ordinals.put(uri, Integer.valueOf(documents.size()));
+      documents.add(uri.getBytes(UTF_8));
+    }
+
+    final var terms = termsOf(index, ordinals);
+    final var tables =
+      (long) HEADER_SIZE
+        + (long) DOCUMENT_ENTRY_SIZE * documents.size()
+        + (long) TERM_ENTRY_SIZE * terms.size();
+    final var layout = new Layout(tables, terms, documents);
+
+    final var file_tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (var output = openOutput(file_tmp)) {
+      output.writeInt(MAGIC);
+      output.writeInt(VERSION);
+      output.writeInt(documents.size());
+      output.writeInt(terms.size());
+      output.writeInt(HEADER_SIZE);
+      output.writeInt(HEADER_SIZE + DOCUMENT_ENTRY_SIZE * documents.size());
+
+      for (int documentIndex = 0; documentIndex < documents.size(); ++documentIndex) {
+        output.writeInt((int) layout.documentOffsets[documentIndex]);
+        output.writeInt(documents.get(documentIndex).length);
+      }
+      writeTermTable(output, terms, layout);
+      layout.writeTo(output);
+    }
+
+    Files.move(file_tmp, file, ATOMIC_MOVE, REPLACE_EXISTING);
+  }
+
+  private static TreeSet<String> urisOf(
+    final Map<String, ? extends Collection<URI>> index)
+  {
+    final var uris = new TreeSet<String>();
+    for (final var documents : index.values()) {
+      for (final var uri : documents) {
+        uris.add(uri.toString());
+      }
+    }
+    return uris;
+  }
+
+  private static List<Term> termsOf(
+    final Map<String, ? extends Collection<URI>> index,
+    final Map<String, Integer> ordinals)
+  {
+    final var terms = new ArrayList<Term>(index.size());
+    for (final var entry : index.entrySet()) {
+      final var postings = new TreeSet<Integer>();
+      for (final var uri : entry.getValue()) {
+        postings.add(ordinals.get(uri.toString()));
+      }
+      terms.add(new Term(entry.getKey().getBytes(UTF_8), postings));
+    }
+    terms.sort((x, y) -> Arrays.compareUnsigned(x.text, y.text));
+    return terms;
+  }
+
+  private static DataOutputStream openOutput(
+    final Path file)
+    throws IOException
+  {
+    return new DataOutputStream(new BufferedOutputStream(
+      Files.newOutputStream(file, CREATE, TRUNCATE_EXISTING, WRITE)));
+  }
+
+  private static void writeTermTable(
+    final DataOutputStream output,
+    final List<Term> terms,
+    final Layout layout)
+    throws IOException
+  {
+    for (int termIndex = 0; termIndex < terms.size(); ++termIndex) {
+      final var term = terms.get(termIndex);
+      output.writeInt((int) layout.termOffsets[termIndex]);
+      output.writeInt(term.text.length);
+      output.writeInt((int) layout.postingOffsets[termIndex]);
+      output.writeInt(term.postings.size());
+    }
+  }
+
+  /**
+   * Write an n-gram index for the terms of a binary index. The n-gram index holds, for each
+   * sequence of {@code n} code points that occurs in a term, the ordinals of the terms in which
+   * it occurs, where the ordinal of a term is its position in the term table of the binary index.
+   *
+   * All integers are 32-bit big-endian values, and all offsets are from the start of the file.
+   * The file consists of a header (the magic number {@code 0x4F50444E} ("OPDN"), the version
+   * {@code 1}, {@code n}, the number of terms in the binary index, the number of n-grams, and the
+   * offset of the n-gram table), followed by an n-gram table, text, and postings laid out in the
+   * same way as the term table, text, and postings of the binary index.
+   *
+   * @param file  The output file
+   * @param terms The terms of the binary index
+   * @param n     The number of code points in each n-gram
+   *
+   * @throws IOException On I/O errors
+   */
+
+  static void writeNGrams(
+    final Path file,
+    final Collection<String> terms,
+    final int n)
+    throws IOException
+  {
+    Objects.requireNonNull(file, "file");
+    Objects.requireNonNull(terms, "terms");
+
+    final var sorted = new ArrayList<byte[]>(terms.size());
+    for (final var term : terms) {
+      sorted.add(term.getBytes(UTF_8));
+    }
+    sorted.sort(Arrays::compareUnsigned);
+
+    final var grams = new HashMap<String, TreeSet<Integer>>(sorted.size() * 4);
+    for (int termIndex = 0; termIndex < sorted.size(); ++termIndex) {
+      final var term = sorted.get(termIndex);
+      final var codePoints =
+        OPDSSearchIndexBuffers.text(ByteBuffer.wrap(term), 0, term.length)
+          .codePoints()
+          .toArray();
+      for (int start = 0; start + n <= codePoints.length; ++start) {
+        grams.computeIfAbsent(
+          OPDSSearchIndexBuffers.codePoints(codePoints, start, n), key -> new TreeSet<>())
+          .add(Integer.valueOf(termIndex));
+      }
+    }
+
+    final var entries = new ArrayList<Term>(grams.size());
+    for (final var entry : grams.entrySet()) {
+      entries.add(new Term(entry.getKey().getBytes(UTF_8), entry.getValue()));
+    }
+    entries.sort((x, y) -> Arrays.compareUnsigned(x.text, y.text));
+
+    final var table = (long) NGRAM_HEADER_SIZE + (long) TERM_ENTRY_SIZE * entries.size();
+    final var layout = new Layout(table, entries, List.of());
+
+    final var file_tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (var output = openOutput(file_tmp)) {
+      output.writeInt(NGRAM_MAGIC);
+      output.writeInt(VERSION);
+      output.writeInt(n);
+      output.writeInt(sorted.size());
+      output.writeInt(entries.size());
+      output.writeInt(NGRAM_HEADER_SIZE);
+      writeTermTable(output, entries, layout);
+      layout.writeTo(output);
+    }
+
+    Files.move(file_tmp, file, ATOMIC_MOVE, REPLACE_EXISTING);
+  }
+
+  private static void writePostings(
+    final ByteArrayOutputStream output,
+    final List<Integer> values)
+  {
+    var previous = 0;
+    for (final var value : values) {
+      writeVarInt(output, value.intValue() - previous);
+      previous = value.intValue();
+    }
+  }
+
+  private static void checkOffset(
+    final long size)
+    throws IOException
+  {
+    if (size > (long) Integer.MAX_VALUE) {
+      throw new IOException(
+        String.format("Search index size %d exceeds the maximum size", Long.valueOf(size)));
+    }
+  }
+
+  private static void writeVarInt(
+    final ByteArrayOutputStream output,
+    final int value)
+  {
+    var remaining = value;
+    while ((remaining & ~0x7f) != 0) {
+      output.write((remaining & 0x7f) | 0x80);
+      remaining >>>= 7;
+    }
+    output.write(remaining);
+  }
+
+  /**
+   * The text and postings that follow the tables of an index, and the offsets of each term's
+   * text and postings, and of each document's text.
+   */
+
+  private static final class Layout
+  {
+    private final ByteArrayOutputStream text;
+    private final ByteArrayOutputStream postings;
+    private final long[] termOffsets;
+    private final long[] documentOffsets;
+    private final long[] postingOffsets;
+
+    Layout(
+      final long tables,
+      final List<Term> terms,
+      final List<byte[]> documents)
+      throws IOException
+    {
+      this.text = new ByteArrayOutputStream((terms.size() + documents.size()) * 32);
+      this.termOffsets = new long[terms.size()];
+      for (int termIndex = 0; termIndex < terms.size(); ++termIndex) {
+        this.termOffsets[termIndex] = tables + this.text.size();
+        this.text.writeBytes(terms.get(termIndex).text);
+      }
+      this.documentOffsets = new long[documents.size()];
+      for (int documentIndex = 0; documentIndex < documents.size(); ++documentIndex) {
+        this.documentOffsets[documentIndex] = tables + this.text.size();
+        this.text.writeBytes(documents.get(documentIndex));
+      }
+
+      this.postings = new ByteArrayOutputStream(terms.size() * 4);
+      this.postingOffsets = new long[terms.size()];
+      final var base = tables + this.text.size();
+      for (int termIndex = 0; termIndex < terms.size(); ++termIndex) {
+        this.postingOffsets[termIndex] = base + this.postings.size();
+        writePostings(this.postings, terms.get(termIndex).postings);
+      }
+
+      checkOffset(base + this.postings.size());
+    }
+
+    void writeTo(
+      final DataOutputStream output)
+      throws IOException
+    {
+      this.text.writeTo(output);
+      this.postings.writeTo(output);
+    }
+  }
+
+  private static final class Term
+  {
+    private final byte[] text;
+    private final List<Integer> postings;
+
+    Term(
+      final byte[] inText,
+      final TreeSet<Integer> inPostings)
+    {
+      this.text = inText;
+      this.postings = List.copyOf(inPostings);
+    }
+  }
+}
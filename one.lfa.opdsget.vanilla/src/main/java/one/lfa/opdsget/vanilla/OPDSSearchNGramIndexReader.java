@@ -0,0 +1,225 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.vanilla;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+import static one.lfa.opdsget.vanilla.OPDSSearchIndexWriter.NGRAM_HEADER_SIZE;
+import static one.lfa.opdsget.vanilla.OPDSSearchIndexWriter.NGRAM_MAGIC;
+import static one.lfa.opdsget.vanilla.OPDSSearchIndexWriter.TERM_ENTRY_SIZE;
+import static one.lfa.opdsget.vanilla.OPDSSearchIndexWriter.VERSION;
+
+/**
+ * A reader of n-gram search indexes, used to find the documents that contain a term with a given
+ * substring. The n-grams of the substring are found by binary search of the memory-mapped n-gram
+ * table, and the terms that contain all of them are checked against the substring.
+ *
+ * Readers are safe to use from multiple threads.
+ */
+
+public final class OPDSSearchNGramIndexReader
+{
+  private final ByteBuffer buffer;
+  private final OPDSSearchIndexReader index;
+  private final int n;
+  private final int gramCount;
+  private final int gramTable;
+
+  private OPDSSearchNGramIndexReader(
+    final ByteBuffer inBuffer,
+    final OPDSSearchIndexReader inIndex)
+    throws IOException
+  {
+    this.buffer =
+      Objects.requireNonNull(inBuffer, "buffer").order(ByteOrder.BIG_ENDIAN);
+    this.index =
+      Objects.requireNonNull(inIndex, "index");
+
+    if (this.buffer.capacity() < NGRAM_HEADER_SIZE) {
+      throw new IOException("N-gram index is truncated");
+    }
+
+    final var magic = this.buffer.getInt(0);
+    if (magic != NGRAM_MAGIC) {
+      throw new IOException(
+        String.format(
+          "Expected magic number 0x%08x but received 0x%08x",
+          Integer.valueOf(NGRAM_MAGIC),
+          Integer.valueOf(magic)));
+    }
+
+    final var version = this.buffer.getInt(4);
+    if (version != VERSION) {
+      throw new IOException(
+        String.format("Unsupported n-gram index version %d", Integer.valueOf(version)));
+    }
+
+    this.n = this.buffer.getInt(8);
+    final var termCount = this.buffer.getInt(12);
+    if (termCount != this.index.termCount()) {
+      throw new IOException(
+        String.format(
+          "N-gram index has %d terms, but the search index has %d terms",
+          Integer.valueOf(termCount),
+          Integer.valueOf(this.index.termCount())));
+    }
+
+    this.gramCount = this.buffer.getInt(16);
+    this.gramTable = this.buffer.getInt(20);
+
+    final var tableEnd =
+      (long) this.gramTable + (long) TERM_ENTRY_SIZE * (long) this.gramCount;
+    if (this.n < 1
+      || this.gramCount < 0
+      || this.gramTable < NGRAM_HEADER_SIZE
+      || tableEnd > (long) this.buffer.capacity()) {
+      throw new IOException("N-gram index is truncated or corrupt");
+    }
+  }
+
+  /**
+   * Memory-map an n-gram search index.
+   *
+   * @param file  The n-gram index file
+   * @param index The binary search index from which the n-gram index was produced
+   *
+   * @return A reader
+   *
+   * @throws IOException On I/O errors, or if the file is not an n-gram index of the given index
+   */
+
+  public static OPDSSearchNGramIndexReader open(
+    final Path file,
+    final OPDSSearchIndexReader index)
+    throws IOException
+  {
+    Objects.requireNonNull(file, "file");
+    Objects.requireNonNull(index, "index");
+
+    try (var channel = FileChannel.open(file, READ)) {
+      return new OPDSSearchNGramIndexReader(
+        channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size()), index);
+    }
+  }
+
+  /**
+   * @return The number of code points in each n-gram
+   */
+
+  public int n()
+  {
+    return this.n;
+  }
+
+  /**
+   * Find the documents that contain a term that contains the given text. Text that is shorter
+   * than an n-gram is found by examining every term.
+   *
+   * @param text The text, in upper case
+   *
+   * @return The URIs of the documents that contain a matching term, in the order of their
+   *   ordinals
+   */
+
+  public List<URI> findSubstring(
+    final String text)
+  {
+    Objects.requireNonNull(text, "text");
+
+    final var codePoints = text.codePoints().toArray();
+    if (codePoints.length < this.n) {
+      final var matches = new int[this.index.termCount()];
+      var count = 0;
+      for (int term = 0; term < this.index.termCount(); ++term) {
+        if (this.index.term(term).contains(text)) {
+          matches[count] = term;
+          count += 1;
+        }
+      }
+      return this.index.documents(Arrays.copyOf(matches, count));
+    }
+
+    /*
+     * The candidate terms are those that contain every n-gram of the text. They are not
+     * necessarily terms that contain the text, and so each is checked.
+     */
+
+    int[] candidates = null;
+    for (int start = 0; start + this.n <= codePoints.length; ++start) {
+      final var gram =
+        OPDSSearchIndexBuffers.codePoints(codePoints, start, this.n).getBytes(UTF_8);
+      final var found =
+        OPDSSearchIndexBuffers.find(
+          this.buffer, this.gramTable, TERM_ENTRY_SIZE, this.gramCount, gram);
+      if (found < 0) {
+        return List.of();
+      }
+
+      final var entry = this.gramTable + found * TERM_ENTRY_SIZE;
+      final var terms =
+        OPDSSearchIndexBuffers.postings(
+          this.buffer, this.buffer.getInt(entry + 8), this.buffer.getInt(entry + 12));
+      candidates = candidates == null ? terms : intersect(candidates, terms);
+      if (candidates.length == 0) {
+        return List.of();
+      }
+    }
+
+    var count = 0;
+    final var matches = new int[candidates.length];
+    for (final var term : candidates) {
+      if (this.index.term(term).contains(text)) {
+        matches[count] = term;
+        count += 1;
+      }
+    }
+    return this.index.documents(Arrays.copyOf(matches, count));
+  }
+
+  private static int[] intersect(
+    final int[] x,
+    final int[] y)
+  {
+    final var result = new int[Math.min(x.length, y.length)];
+    var count = 0;
+    var i = 0;
+    var j = 0;
+    while (i < x.length && j < y.length) {
+      if (x[i] < y[j]) {
+        ++i;
+      } else if (x[i] > y[j]) {
+        ++j;
+      } else {
+        result[count] = x[i];
+        count += 1;
+        ++i;
+        ++j;
+      }
+    }
+    return Arrays.copyOf(result, count);
+  }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.vanilla;
+
+import one.lfa.opdsget.api.OPDSDocumentProcessed;
+import one.lfa.opdsget.api.OPDSGetConfiguration;
+import one.lfa.opdsget.api.OPDSLocalFile;
+import one.lfa.opdsget.api.OPDSStreamingDocumentProcessorType;
+import one.lfa.opdsget.api.OPDSURIRewriterType;
+import org.xml.sax.SAXParseException;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * A document processor that rewrites feeds in a single pass with StAX. Unlike {@link
+ * OPDSDocumentProcessor}, the feed is never held in memory as a tree: each element is rewritten
+ * as it is read and written straight to the output.
+ */
+
+public final class OPDSStreamingDocumentProcessor implements OPDSStreamingDocumentProcessorType
+{
+  private static final String ATOM = "http://www.w3.org/2005/Atom";
+  private static final String UPDATED = "2000-01-01T00:00:00Z";
+  private static final QName HREF = new QName("href");
+  private static final QName REL = new QName("rel");
+  private static final QName TYPE = new QName("type");
+
+  private final XMLInputFactory inputs;
+  private final XMLOutputFactory outputs;
+  private final XMLEventFactory events;
+
+  /**
+   * Construct a new processor.
+   */
+
+  public OPDSStreamingDocumentProcessor()
+  {
+    this.inputs = XMLInputFactory.newFactory();
+    this.inputs.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+    this.inputs.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    this.inputs.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    this.outputs = XMLOutputFactory.newFactory();
+    this.events = XMLEventFactory.newFactory();
+  }
+
+  private static boolean isAtom(
+    final StartElement element,
+    final String name)
+  {
+    final var qname = element.getName();
+    return Objects.equals(qname.getNamespaceURI(), ATOM)
+      && Objects.equals(qname.getLocalPart(), name);
+  }
+
+  private static String attribute(
+    final StartElement element,
+    final QName name)
+  {
+    final var attribute = element.getAttributeByName(name);
+    if (attribute == null) {
+      return "";
+    }
+    return attribute.getValue();
+  }
+
+  /**
+   * Discard the content of the element whose start has just been read, up to and including the
+   * end of the element.
+   *
+   * @return The end of the element
+   */
+
+  private static XMLEvent skipElement(
+    final XMLEventReader reader)
+    throws XMLStreamException
+  {
+    var depth = 1;
+    while (true) {
+      final var event = reader.nextEvent();
+      if (event.isStartElement()) {
+        depth += 1;
+      } else if (event.isEndElement()) {
+        depth -= 1;
+        if (depth == 0) {
+          return event;
+        }
+      }
+    }
+  }
+
+  @Override
+  public OPDSDocumentProcessed process(
+    final OPDSGetConfiguration configuration,
+    final URI uri,
+    final InputStream input,
+    final OutputStream output)
+    throws Exception
+  {
+    Objects.requireNonNull(configuration, "configuration");
+    Objects.requireNonNull(uri, "uri");
+    Objects.requireNonNull(input, "input");
+    Objects.requireNonNull(output, "output");
+
+    try {
+      final var reader = this.inputs.createXMLEventReader(uri.toString(), input);
+      try {
+        final var writer = this.outputs.createXMLEventWriter(output, "UTF-8");
+        try {
+          return new Process(configuration, uri, reader, writer).run();
+        } finally {
+          writer.close();
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (final XMLStreamException e) {
+      throw parseError(uri, e);
+    }
+  }
+
+  /**
+   * Report errors in the same way as the DOM parser does, so that callers do not need to know
+   * which processor was used. Errors that were caused by I/O are reported as such.
+   */
+
+  private static Exception parseError(
+    final URI uri,
+    final XMLStreamException e)
+  {
+    if (e.getNestedException() instanceof IOException) {
+      return (IOException) e.getNestedException();
+    }
+
+    final var location = e.getLocation();
+    if (location == null) {
+      return new SAXParseException(e.getMessage(), null, uri.toString(), -1, -1, e);
+    }
+    return new SAXParseException(
+      e.getMessage(),
+      location.getPublicId(),
+      uri.toString(),
+      location.getLineNumber(),
+      location.getColumnNumber(),
+      e);
+  }
+
+  /**
+   * The state of the processing of a single document.
+   */
+
+  private final class Process
+  {
+    private final OPDSGetConfiguration configuration;
+    private final OPDSURIRewriterType rewriter;
+    private final URI uri;
+    private final XMLEventReader reader;
+    private final XMLEventWriter writer;
+    private final OPDSLocalFile currentFile;
+    private final Map<URI, OPDSLocalFile> feeds;
+    private final Map<URI, OPDSLocalFile> images;
+    private final Map<URI, OPDSLocalFile> books;
+    private Optional<String> title;
+    private Optional<Boolean> isEntry;
+
+    Process(
+      final OPDSGetConfiguration inConfiguration,
+      final URI inUri,
+      final XMLEventReader inReader,
+      final XMLEventWriter inWriter)
+    {
+      this.configuration = Objects.requireNonNull(inConfiguration, "configuration");
+      this.rewriter = this.configuration.uriRewriter();
+      this.uri = Objects.requireNonNull(inUri, "uri");
+      this.reader = Objects.requireNonNull(inReader, "reader");
+      this.writer = Objects.requireNonNull(inWriter, "writer");
+      this.currentFile = OPDSLocalFile.of(this.uri, this.configuration.feedFileHashed(this.uri));
+      this.feeds = new HashMap<>();
+      this.images = new HashMap<>();
+      this.books = new HashMap<>();
+      this.title = Optional.empty();
+      this.isEntry = Optional.empty();
+    }
+
+    OPDSDocumentProcessed run()
+      throws XMLStreamException
+    {
+      while (this.reader.hasNext()) {
+        final var event = this.reader.nextEvent();
+
+        if (event.isStartDocument()) {
+          this.writer.add(OPDSStreamingDocumentProcessor.this.events.createStartDocument(
+            "UTF-8", "1.0"));
+          continue;
+        }
+
+        if (event.isStartElement()) {
+          this.onStartElement(event.asStartElement());
+          continue;
+        }
+
+        this.writer.add(event);
+      }
+
+      this.writer.flush();
+
+      return OPDSDocumentProcessed.builder()
+        .setFeeds(this.feeds)
+        .setBooks(this.books)
+        .setImages(this.images)
+        .setFile(this.currentFile)
+        .setTitle(this.title.orElse(""))
+        .setEntry(this.isEntry.orElse(Boolean.FALSE).booleanValue())
+        .build();
+    }
+
+    private void onStartElement(
+      final StartElement element)
+      throws XMLStreamException
+    {
+      if (this.isEntry.isEmpty()) {
+        this.isEntry = Optional.of(
+          Boolean.valueOf(Objects.equals(element.getName().getLocalPart(), "entry")));
+      }
+
+      if (isAtom(element, "link")) {
+        this.onLink(element);
+        return;
+      }
+
+      if (isAtom(element, "updated")) {
+        this.writer.add(element);
+        final var end = skipElement(this.reader);
+        this.writer.add(OPDSStreamingDocumentProcessor.this.events.createCharacters(UPDATED));
+        this.writer.add(end);
+        return;
+      }
+
+      if (this.title.isEmpty() && isAtom(element, "title")) {
+        this.writer.add(element);
+        this.title = Optional.of(this.copyCollectingText());
+        return;
+      }
+
+      this.writer.add(element);
+    }
+
+    /**
+     * Copy the content of the element whose start has just been written, up to and including the
+     * end of the element, and return the text that the element contains.
+     */
+
+    private String copyCollectingText()
+      throws XMLStreamException
+    {
+      final var text = new StringBuilder(64);
+      var depth = 1;
+      while (true) {
+        final var event = this.reader.nextEvent();
+        if (event.isStartElement()) {
+          depth += 1;
+        } else if (event.isEndElement()) {
+          depth -= 1;
+        } else if (event.isCharacters()) {
+          text.append(event.asCharacters().getData());
+        }
+
+        this.writer.add(event);
+        if (depth == 0) {
+          return text.toString();
+        }
+      }
+    }
+
+    private void onLink(
+      final StartElement link)
+      throws XMLStreamException
+    {
+      final var action =
+        OPDSLinks.classify(this.configuration, attribute(link, REL), attribute(link, TYPE));
+
+      switch (action) {
+        case REMOVE: {
+          skipElement(this.reader);
+          return;
+        }
+        case KEEP: {
+          this.writer.add(link);
+          return;
+        }
+        case FEED:
+        case IMAGE:
+        case BOOK: {
+          final var target = this.uri.resolve(URI.create(attribute(link, HREF)));
+          final var file =
+            OPDSLinks.collect(
+              this.configuration, action, target, this.feeds, this.images, this.books);
+          final var rewritten =
+            this.rewriter.rewrite(Optional.of(this.currentFile), file).toString();
+          this.writer.add(this.withHref(link, rewritten));
+          return;
+        }
+      }
+    }
+
+    private StartElement withHref(
+      final StartElement link,
+      final String href)
+    {
+      final var factory = OPDSStreamingDocumentProcessor.this.events;
+      final var attributes = new ArrayList<Attribute>();
+      final var iterator = link.getAttributes();
+      while (iterator.hasNext()) {
+        final var attribute = iterator.next();
+        if (Objects.equals(attribute.getName(), HREF)) {
+          attributes.add(factory.createAttribute(HREF, href));
+        } else {
+          attributes.add(attribute);
+        }
+      }
+
+      final var name = link.getName();
+      return factory.createStartElement(
+        name.getPrefix(),
+        name.getNamespaceURI(),
+        name.getLocalPart(),
+        attributes.iterator(),
+        link.getNamespaces(),
+        link.getNamespaceContext());
+    }
+  }
+}
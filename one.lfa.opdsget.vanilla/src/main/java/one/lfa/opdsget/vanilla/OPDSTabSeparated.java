@@ -0,0 +1,71 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.vanilla;
+
+import java.util.Optional;
+import java.util.regex.Pattern;
+
+/**
+ * Functions shared by the tab-separated files kept in the state directory.
+ */
+
+final class OPDSTabSeparated
+{
+  private static final Pattern TAB = Pattern.compile("\t");
+
+  private OPDSTabSeparated()
+  {
+
+  }
+
+  /**
+   * @param line A line of a file
+   *
+   * @return The fields of the given line, including any empty trailing fields
+   */
+
+  static String[] split(
+    final String line)
+  {
+    return TAB.split(line, -1);
+  }
+
+  /**
+   * @param field A field read from a file
+   *
+   * @return The value of the given field, or nothing if the field is empty
+   */
+
+  static Optional<String> nonEmpty(
+    final String field)
+  {
+    return field.isEmpty() ? Optional.empty() : Optional.of(field);
+  }
+
+  /**
+   * @param value A value to be written to a file
+   *
+   * @return The given value with any characters that would break the line replaced, or an empty
+   *   field if there is no value
+   */
+
+  static String clean(
+    final Optional<String> value)
+  {
+    return value.map(t -> t.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ')).orElse("");
+  }
+}
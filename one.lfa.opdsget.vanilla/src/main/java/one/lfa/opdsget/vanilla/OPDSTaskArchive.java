@@ -17,39 +17,70 @@
 package one.lfa.opdsget.vanilla;
 
 import one.lfa.opdsget.api.OPDSGetConfiguration;
+import one.lfa.opdsget.api.OPDSManifestDescription;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
 
 final class OPDSTaskArchive
 {
   private static final Logger LOG = LoggerFactory.getLogger(OPDSTaskArchive.class);
 
   private final OPDSGetConfiguration configuration;
+  private final Optional<OPDSArchiveSpool> spool;
+  private final OPDSManifestDescription manifest;
 
   private OPDSTaskArchive(
-    final OPDSGetConfiguration inConfiguration)
+    final OPDSGetConfiguration inConfiguration,
+    final Optional<OPDSArchiveSpool> inSpool,
+    final OPDSManifestDescription inManifest)
   {
     this.configuration = Objects.requireNonNull(inConfiguration, "configuration");
+    this.spool = Objects.requireNonNull(inSpool, "spool");
+    this.manifest = Objects.requireNonNull(inManifest, "manifest");
   }
 
   public static CompletionStage<Void> task(
     final OPDSGetConfiguration configuration,
+    final Optional<OPDSArchiveSpool> spool,
+    final OPDSManifestDescription manifest,
     final ExecutorService executor)
   {
     return CompletableFuture.runAsync(
-      () -> new OPDSTaskArchive(configuration).execute(),
+      () -> new OPDSTaskArchive(configuration, spool, manifest).execute(),
       executor);
   }
 
+  /**
+   * The hashes of the files in the manifest allow the entries of the previous archive that are
+   * still current to be copied rather than compressed again.
+   */
+
+  private static Map<String, byte[]> hashesOf(
+    final OPDSManifestDescription manifest)
+  {
+    final var hashes = new HashMap<String, byte[]>(manifest.files().size() * 2);
+    for (final var entry : manifest.files().values()) {
+      if (Objects.equals(entry.hashAlgorithm(), "SHA-256")) {
+        hashes.put(entry.path(), entry.hash());
+      }
+    }
+    return hashes;
+  }
+
   private static Path temporaryFile(final Path path)
   {
     return Paths.get(new StringBuilder(64)
@@ -66,11 +97,27 @@ final class OPDSTaskArchive
       final var archive_opt = this.configuration.outputArchive();
       if (archive_opt.isPresent()) {
         final var archive = archive_opt.get();
-        LOG.info("zip {} -> {}", this.configuration.output(), archive);
-        OPDSArchiver.createArchive(
-          this.configuration.output(),
-          archive,
-          temporaryFile(archive));
+        final var output = this.configuration.output();
+        final var state = output.relativize(this.configuration.stateDirectory());
+
+        final Predicate<Path> include = path -> !path.startsWith(state);
+
+        /*
+         * Compression is CPU-bound, and so is performed on the common fork/join pool rather
+         * than on the executor used for I/O.
+         */
+
+        final var compression = ForkJoinPool.commonPool();
+        final var hashes = hashesOf(this.manifest);
+
+        LOG.info("zip {} -> {}", output, archive);
+        if (this.spool.isPresent()) {
+          this.spool.get()
+            .createArchive(output, archive, temporaryFile(archive), include, hashes, compression);
+        } else {
+          OPDSArchiver.updateArchive(
+            output, archive, temporaryFile(archive), include, hashes, compression);
+        }
       }
     } catch (final IOException e) {
       throw new CompletionException(e);
@@ -22,10 +22,13 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutorService;
+import java.util.function.Predicate;
 
 final class OPDSTaskImageScale
 {
@@ -34,24 +37,29 @@ final class OPDSTaskImageScale
 
   private final OPDSGetConfiguration configuration;
   private final OPDSManifestChangeRequiredType changeRequired;
+  private final Predicate<Path> scaleRequired;
 
   private OPDSTaskImageScale(
     final OPDSGetConfiguration inConfiguration,
-    final OPDSManifestChangeRequiredType inChangeRequired)
+    final OPDSManifestChangeRequiredType inChangeRequired,
+    final Predicate<Path> inScaleRequired)
   {
     this.configuration =
       Objects.requireNonNull(inConfiguration, "configuration");
     this.changeRequired =
       Objects.requireNonNull(inChangeRequired, "inChangeRequired");
+    this.scaleRequired =
+      Objects.requireNonNull(inScaleRequired, "scaleRequired");
   }
 
   public static CompletionStage<Void> task(
     final OPDSGetConfiguration configuration,
     final OPDSManifestChangeRequiredType inChangeRequired,
+    final Predicate<Path> scaleRequired,
     final ExecutorService executor)
   {
     return CompletableFuture.runAsync(
-      () -> new OPDSTaskImageScale(configuration, inChangeRequired).execute(),
+      () -> new OPDSTaskImageScale(configuration, inChangeRequired, scaleRequired).execute(),
       executor);
   }
 
@@ -65,15 +73,44 @@ final class OPDSTaskImageScale
       return;
     }
 
+    final var limits = this.configuration.transformLimits();
+    final var pool =
+      OPDSTransformPools.create("one.lfa.opdsget.image", limits.imageScaleThreads());
+
+    final var scale = scaleOpt.getAsDouble();
+    final var cache = openCache(this.configuration, scale);
+
     try {
       final var scaler =
         new OPDSImageScaler(
           this.configuration.imageDirectory(),
           this.changeRequired,
-          scaleOpt.getAsDouble());
+          this.scaleRequired,
+          scale,
+          pool,
+          limits.maximumDecodedImages(),
+          cache);
       scaler.execute();
     } catch (final IOException e) {
       throw new UncheckedIOException(e);
+    } finally {
+      pool.shutdown();
+    }
+
+    cache.ifPresent(OPDSTransformCache::pruneQuietly);
+  }
+
+  static Optional<OPDSTransformCache> openCache(
+    final OPDSGetConfiguration configuration,
+    final double scale)
+  {
+    if (!configuration.transformCache()) {
+      return Optional.empty();
     }
+    return OPDSTransformCache.openQuietly(
+      configuration.stateDirectory().resolve("transforms"),
+      "images",
+      1,
+      Double.valueOf(scale));
   }
 }
@@ -38,6 +38,7 @@ import java.util.regex.Pattern;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.nio.file.StandardOpenOption.CREATE;
 import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static one.lfa.opdsget.vanilla.OPDSManifestFileEntryKind.GENERAL;
 import static one.lfa.opdsget.vanilla.OPDSManifestFileEntryKind.SEARCH_INDEX;
 
 final class OPDSTaskIndex
@@ -45,6 +46,8 @@ final class OPDSTaskIndex
   private static final Logger LOG =
     LoggerFactory.getLogger(OPDSTaskIndex.class);
 
+  private static final int NGRAM_LENGTH = 3;
+
   private static final Pattern WHITESPACE =
     Pattern.compile("\\s+");
   private static final Pattern NOT_UPPERCASE_ALPHA_NUMERIC =
@@ -122,6 +125,30 @@ final class OPDSTaskIndex
       }
 
       this.onChangeRequired.onFileChanged(SEARCH_INDEX, indexPath);
+
+      /*
+       * Binary and n-gram indexes left behind by an earlier run that wrote them are removed, so
+       * that they cannot disagree with the text index.
+       */
+
+      final var ngrams = this.configuration.searchIndexNGrams();
+      final var binaryPath = this.configuration.output().resolve("index.bin");
+      if (this.configuration.searchIndexBinary() || ngrams) {
+        LOG.info("index {}", binaryPath);
+        OPDSSearchIndexWriter.write(binaryPath, index);
+        this.onChangeRequired.onFileChanged(GENERAL, binaryPath);
+      } else {
+        Files.deleteIfExists(binaryPath);
+      }
+
+      final var ngramPath = this.configuration.output().resolve("index-ngrams.bin");
+      if (ngrams) {
+        LOG.info("index {}", ngramPath);
+        OPDSSearchIndexWriter.writeNGrams(ngramPath, index.keySet(), NGRAM_LENGTH);
+        this.onChangeRequired.onFileChanged(GENERAL, ngramPath);
+      } else {
+        Files.deleteIfExists(ngramPath);
+      }
     } catch (final Exception e) {
       throw new CompletionException(e);
     }
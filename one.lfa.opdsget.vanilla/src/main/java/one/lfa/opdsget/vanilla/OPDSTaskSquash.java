@@ -16,21 +16,33 @@
 
 package one.lfa.opdsget.vanilla;
 
-import one.lfa.epubsquash.api.EPUBSquasherConfiguration;
 import one.lfa.epubsquash.api.EPUBSquasherProviderType;
 import one.lfa.opdsget.api.OPDSGetConfiguration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutorService;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
-import static one.lfa.opdsget.vanilla.OPDSManifestFileEntryKind.GENERAL;
+/**
+ * A task that squashes books.
+ *
+ * Books are squashed in parallel on a pool of their own, with a temporary directory for each
+ * thread of the pool (see {@link OPDSBookSquasher}). A failure to squash one book does not prevent
+ * the others from being squashed; the failures are raised together once all books have been
+ * squashed.
+ */
 
 final class OPDSTaskSquash
 {
@@ -39,11 +51,13 @@ final class OPDSTaskSquash
   private final OPDSGetConfiguration configuration;
   private final EPUBSquasherProviderType squashers;
   private final OPDSManifestChangeRequiredType onChangeRequired;
+  private final Predicate<Path> squashRequired;
 
   private OPDSTaskSquash(
     final OPDSGetConfiguration inConfiguration,
     final EPUBSquasherProviderType inSquashers,
-    final OPDSManifestChangeRequiredType inOnChangeRequired)
+    final OPDSManifestChangeRequiredType inOnChangeRequired,
+    final Predicate<Path> inSquashRequired)
   {
     this.configuration =
       Objects.requireNonNull(inConfiguration, "configuration");
@@ -51,16 +65,23 @@ final class OPDSTaskSquash
       Objects.requireNonNull(inSquashers, "squashers");
     this.onChangeRequired =
       Objects.requireNonNull(inOnChangeRequired, "onChangeRequired");
+    this.squashRequired =
+      Objects.requireNonNull(inSquashRequired, "squashRequired");
   }
 
   public static CompletionStage<Void> task(
     final OPDSGetConfiguration configuration,
     final EPUBSquasherProviderType inSquashers,
     final OPDSManifestChangeRequiredType onChangeRequired,
+    final Predicate<Path> squashRequired,
     final ExecutorService executor)
   {
     return CompletableFuture.runAsync(
-      () -> new OPDSTaskSquash(configuration, inSquashers, onChangeRequired).execute(),
+      () -> new OPDSTaskSquash(
+        configuration,
+        inSquashers,
+        onChangeRequired,
+        squashRequired).execute(),
       executor);
   }
 
@@ -69,50 +90,121 @@ final class OPDSTaskSquash
     LOG.debug("executing epub squashing task");
 
     try {
-      final var squash_opt = this.configuration.squash();
-      if (!squash_opt.isPresent()) {
-        return;
-      }
+      this.squashAll();
+    } catch (final Exception e) {
+      throw new CompletionException(e);
+    }
+  }
 
-      final var squash = squash_opt.get();
-      if (!Files.isDirectory(this.configuration.bookDirectory())) {
-        return;
-      }
+  private void squashAll()
+    throws IOException
+  {
+    final var squash_opt = this.configuration.squash();
+    if (!squash_opt.isPresent()) {
+      return;
+    }
+
+    final var squash = squash_opt.get();
+    if (!Files.isDirectory(this.configuration.bookDirectory())) {
+      return;
+    }
+
+    final List<Path> epubs;
+    try (var stream = Files.list(this.configuration.bookDirectory())) {
+      epubs = stream.filter(this.squashRequired).collect(Collectors.toList());
+    }
+
+    final var workers =
+      Math.max(1, Math.min(this.configuration.transformLimits().squashThreads(), epubs.size()));
+
+    final List<CompletableFuture<Boolean>> pending;
+    final Optional<OPDSTransformCache> cache;
+    try (var squasher =
+           OPDSBookSquasher.open(this.configuration, squash, this.squashers, workers)) {
+      cache = squasher.cache();
+      pending = this.squashOnPool(squasher, epubs, workers);
+    }
+
+    final var failures = new ArrayList<Throwable>();
+    final var restored = collectResults(pending, failures);
+    if (cache.isPresent()) {
+      LOG.info("restored {} books from the transform cache", Integer.valueOf(restored));
+      cache.get().pruneQuietly();
+    }
+
+    raiseFailures(failures);
+  }
 
-      final var epubs =
-        Files.list(this.configuration.bookDirectory())
-          .collect(Collectors.toList());
+  /**
+   * Squash the given books on a pool of their own, waiting for all of them to be squashed.
+   */
 
+  private List<CompletableFuture<Boolean>> squashOnPool(
+    final OPDSBookSquasher squasher,
+    final List<Path> epubs,
+    final int workers)
+  {
+    final var pending = new ArrayList<CompletableFuture<Boolean>>(epubs.size());
+    final var pool = OPDSTransformPools.create("one.lfa.opdsget.squash", workers);
+    try {
       for (final var epub : epubs) {
-        LOG.info("squash: {}", epub);
-
-        try {
-          final var squasher =
-            this.squashers.createSquasher(
-              EPUBSquasherConfiguration.builder()
-                .setInputFile(epub)
-                .setTemporaryDirectory(Files.createTempDirectory("opdsget-retriever-"))
-                .setOutputFile(epub)
-                .setScale(squash.scaleFactor())
-                .setMaximumImageHeight(squash.maximumImageHeight())
-                .setMaximumImageWidth(squash.maximumImageWidth())
-                .build());
-
-          squasher.squash();
-          this.onChangeRequired.onFileChanged(GENERAL, epub.toAbsolutePath());
-        } catch (final Exception e) {
-          LOG.error("failed to squash {}: ", epub, e);
-
-          if (System.getProperty("one.lfa.epubsquash.unsupported.IgnoreSquashErrors") != null) {
-            LOG.warn("ignoring epubsquash errors");
-            continue;
-          }
-
-          throw e;
+        pending.add(CompletableFuture.supplyAsync(
+          () -> squasher.squash(epub, this.onChangeRequired),
+          pool));
+      }
+      CompletableFuture.allOf(pending.toArray(new CompletableFuture[0]))
+        .exceptionally(error -> null)
+        .join();
+    } finally {
+      pool.shutdown();
+    }
+    return pending;
+  }
+
+  /**
+   * Collect the failures of the given completed squashes.
+   *
+   * @return The number of books that were restored from the transform cache
+   */
+
+  private static int collectResults(
+    final List<CompletableFuture<Boolean>> pending,
+    final List<Throwable> failures)
+  {
+    var restored = 0;
+    for (final var future : pending) {
+      try {
+        if (future.join().booleanValue()) {
+          ++restored;
         }
+      } catch (final CompletionException e) {
+        failures.add(e.getCause());
       }
-    } catch (final Exception e) {
-      throw new CompletionException(e);
     }
+    return restored;
+  }
+
+  private static void raiseFailures(
+    final List<Throwable> failures)
+    throws IOException
+  {
+    if (failures.isEmpty()) {
+      return;
+    }
+
+    LOG.error("failed to squash {} books", Integer.valueOf(failures.size()));
+
+    if (System.getProperty("one.lfa.epubsquash.unsupported.IgnoreSquashErrors") != null) {
+      LOG.warn("ignoring epubsquash errors");
+      return;
+    }
+
+    final var exception =
+      new IOException(
+        String.format("Failed to squash %d books", Integer.valueOf(failures.size())));
+    for (final var failure : failures) {
+      exception.addSuppressed(failure);
+    }
+    throw exception;
   }
 }
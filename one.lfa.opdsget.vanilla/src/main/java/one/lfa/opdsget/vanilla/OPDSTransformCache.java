@@ -0,0 +1,364 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.vanilla;
+
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * A persistent cache of the outputs of transforms, such as squashing books and scaling images,
+ * kept in the state directory between runs. Each output is stored in a file named by the hash of
+ * the transform's name, its parameters, and the SHA-256 hash of its input, so a file that has
+ * the same content as a file that was transformed in an earlier run can be replaced by the
+ * earlier output rather than being transformed again.
+ *
+ * Outputs that have not been used for {@link #UNUSED_LIFETIME} are removed by {@link #prune()}.
+ * Files that the server reports as unmodified are not transformed, and so do not use the cache,
+ * which is why outputs are not removed as soon as a run does not use them.
+ */
+
+final class OPDSTransformCache
+{
+  private static final Logger LOG = LoggerFactory.getLogger(OPDSTransformCache.class);
+
+  /**
+   * The time after which an output that has been neither used nor stored is removed.
+   */
+
+  static final Duration UNUSED_LIFETIME = Duration.ofDays(30L);
+
+  private final Path directory;
+  private final String transform;
+
+  private OPDSTransformCache(
+    final Path inDirectory,
+    final String inTransform)
+  {
+    this.directory = Objects.requireNonNull(inDirectory, "directory");
+    this.transform = Objects.requireNonNull(inTransform, "transform");
+  }
+
+  /**
+   * Open the cache for a transform. The transform's name, and its parameters, must change
+   * whenever the transform would produce different output for the same input.
+   *
+   * @param directory  The directory holding the outputs of all transforms
+   * @param name       The name of the transform
+   * @param version    The version of the transform's implementation
+   * @param parameters The parameters of the transform
+   *
+   * @return A cache
+   *
+   * @throws IOException On I/O errors
+   */
+
+  static OPDSTransformCache open(
+    final Path directory,
+    final String name,
+    final int version,
+    final Object... parameters)
+    throws IOException
+  {
+    Objects.requireNonNull(directory, "directory");
+    Objects.requireNonNull(name, "name");
+    Objects.requireNonNull(parameters, "parameters");
+
+    final var transform = new StringBuilder(64);
+    transform.append(name);
+    transform.append(' ');
+    transform.append(version);
+    for (final var parameter : parameters) {
+      transform.append(' ');
+      transform.append(parameter);
+    }
+
+    final var transformDirectory = directory.resolve(name);
+    Files.createDirectories(transformDirectory);
+    LOG.debug("{}: {}", transformDirectory, transform);
+    return new OPDSTransformCache(transformDirectory, transform.toString());
+  }
+
+  /**
+   * @param file The input file
+   *
+   * @return The key of the given input
+   *
+   * @throws IOException On I/O errors
+   */
+
+  String keyOf(
+    final Path file)
+    throws IOException
+  {
+    final var digest = OPDSHashing.sha256();
+    digest.update(this.transform.getBytes(UTF_8));
+    digest.update((byte) 0);
+    digest.update(OPDSHashing.sha256HashOf(file));
+    return Hex.encodeHexString(digest.digest());
+  }
+
+  /**
+   * Replace the given file with the stored output for the given key, if there is one.
+   *
+   * @param key  The key of the file's current content
+   * @param file The file
+   *
+   * @return {@code true} if the file was replaced
+   *
+   * @throws IOException On I/O errors
+   */
+
+  boolean restore(
+    final String key,
+    final Path file)
+    throws IOException
+  {
+    Objects.requireNonNull(key, "key");
+    Objects.requireNonNull(file, "file");
+
+    final var output = this.directory.resolve(key);
+    if (!Files.isRegularFile(output)) {
+      return false;
+    }
+
+    final var temp = Files.createTempFile(this.directory, key, ".tmp");
+    try {
+      Files.copy(output, temp, REPLACE_EXISTING);
+      Files.move(temp, file, ATOMIC_MOVE, REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+    Files.setLastModifiedTime(output, FileTime.from(Instant.now()));
+    LOG.debug("restored {} from {}", file, output);
+    return true;
+  }
+
+  /**
+   * Store the given file as the output for the given key.
+   *
+   * @param key  The key of the content that was transformed
+   * @param file The output of the transform
+   *
+   * @throws IOException On I/O errors
+   */
+
+  void store(
+    final String key,
+    final Path file)
+    throws IOException
+  {
+    Objects.requireNonNull(key, "key");
+    Objects.requireNonNull(file, "file");
+
+    final var temp = Files.createTempFile(this.directory, key, ".tmp");
+    try {
+      Files.copy(file, temp, REPLACE_EXISTING);
+      Files.move(temp, this.directory.resolve(key), ATOMIC_MOVE, REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /**
+   * Remove every output that has been neither used nor stored for {@link #UNUSED_LIFETIME}.
+   *
+   * @throws IOException On I/O errors
+   */
+
+  void prune()
+    throws IOException
+  {
+    final var oldest = FileTime.from(Instant.now().minus(UNUSED_LIFETIME));
+
+    final List<Path> files;
+    try (var stream = Files.list(this.directory)) {
+      files = stream.collect(Collectors.toList());
+    }
+
+    var removed = 0;
+    for (final var file : files) {
+      if (Files.getLastModifiedTime(file).compareTo(oldest) < 0) {
+        Files.deleteIfExists(file);
+        ++removed;
+      }
+    }
+    LOG.debug("{}: removed {} unused outputs", this.directory, Integer.valueOf(removed));
+  }
+
+  /**
+   * Open the cache for a transform as {@link #open(Path, String, int, Object...)} does. The
+   * cache is not required for a transform to run, so errors are logged rather than raised.
+   *
+   * @param directory  The directory holding the outputs of all transforms
+   * @param name       The name of the transform
+   * @param version    The version of the transform's implementation
+   * @param parameters The parameters of the transform
+   *
+   * @return A cache, if it could be opened
+   */
+
+  static Optional<OPDSTransformCache> openQuietly(
+    final Path directory,
+    final String name,
+    final int version,
+    final Object... parameters)
+  {
+    try {
+      return Optional.of(open(directory, name, version, parameters));
+    } catch (final IOException e) {
+      LOG.warn("unable to open the transform cache: ", e);
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Replace the given file with the stored output for its current content, if there is one.
+   * Failures to read the stored output are logged, and treated as if there were no output.
+   *
+   * @param file The file
+   *
+   * @return The key of the file's content, or nothing if the file was replaced
+   *
+   * @throws IOException If the file cannot be read
+   */
+
+  Optional<String> restoreOrKey(
+    final Path file)
+    throws IOException
+  {
+    final var key = this.keyOf(file);
+    try {
+      if (this.restore(key, file)) {
+        return Optional.empty();
+      }
+    } catch (final IOException e) {
+      LOG.warn("unable to restore {} from the transform cache: ", file, e);
+    }
+    return Optional.of(key);
+  }
+
+  /**
+   * Replace the given file with the stored output for its current content if there is one, and
+   * otherwise transform the file and store the output.
+   *
+   * @param cache     The cache, if the transform cache is enabled
+   * @param file      The file
+   * @param transform The transform, which replaces the file with its output
+   * @param <E>       The type of exceptions raised by the transform
+   *
+   * @return {@code true} if the file was restored from the cache rather than transformed
+   *
+   * @throws IOException If the file cannot be read
+   * @throws E           If the transform fails
+   */
+
+  static <E extends Exception> boolean restoreOrTransform(
+    final Optional<OPDSTransformCache> cache,
+    final Path file,
+    final TransformType<E> transform)
+    throws IOException, E
+  {
+    Objects.requireNonNull(cache, "cache");
+    Objects.requireNonNull(file, "file");
+    Objects.requireNonNull(transform, "transform");
+
+    final Optional<String> key;
+    if (cache.isPresent()) {
+      key = cache.get().restoreOrKey(file);
+      if (key.isEmpty()) {
+        LOG.debug("{}: restored from the transform cache", file);
+        return true;
+      }
+    } else {
+      key = Optional.empty();
+    }
+
+    transform.transform(file);
+    if (key.isPresent()) {
+      cache.get().storeQuietly(key.get(), file);
+    }
+    return false;
+  }
+
+  /**
+   * Store the given file as {@link #store(String, Path)} does, logging rather than raising errors.
+   *
+   * @param key  The key of the content that was transformed
+   * @param file The output of the transform
+   */
+
+  void storeQuietly(
+    final String key,
+    final Path file)
+  {
+    try {
+      this.store(key, file);
+    } catch (final IOException e) {
+      LOG.warn("unable to store {} in the transform cache: ", file, e);
+    }
+  }
+
+  /**
+   * Remove unused outputs as {@link #prune()} does, logging rather than raising errors.
+   */
+
+  void pruneQuietly()
+  {
+    try {
+      this.prune();
+    } catch (final IOException e) {
+      LOG.warn("{}: unable to remove unused outputs: ", this.directory, e);
+    }
+  }
+
+  /**
+   * A transform that replaces a file with its output.
+   *
+   * @param <E> The type of exceptions raised by the transform
+   */
+
+  @FunctionalInterface
+  interface TransformType<E extends Exception>
+  {
+    /**
+     * Transform the given file in place.
+     *
+     * @param file The file
+     *
+     * @throws E On errors
+     */
+
+    void transform(Path file)
+      throws E;
+  }
+}
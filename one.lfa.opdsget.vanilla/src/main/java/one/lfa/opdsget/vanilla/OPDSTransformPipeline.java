@@ -0,0 +1,242 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.vanilla;
+
+import one.lfa.epubsquash.api.EPUBSquasherProviderType;
+import one.lfa.opdsget.api.OPDSGetConfiguration;
+import one.lfa.opdsget.api.OPDSTransformMode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import static one.lfa.opdsget.vanilla.OPDSManifestFileEntryKind.GENERAL;
+
+/**
+ * Books and images that are transformed during the retrieval. Each file is submitted as soon as it
+ * has been retrieved, and is squashed or scaled on a pool of its own, so that the transforms, which
+ * are bound by the processors, overlap the retrieval of the other files, which is bound by the
+ * network.
+ *
+ * A file that cannot be transformed here is left as it was retrieved, and is transformed again
+ * once the retrieval has completed, where any failure is reported as usual.
+ */
+
+final class OPDSTransformPipeline
+{
+  private static final Logger LOG = LoggerFactory.getLogger(OPDSTransformPipeline.class);
+
+  private final OPDSGetConfiguration configuration;
+  private final OPDSManifestChangeRequiredType onTransformed;
+  private final Optional<OPDSBookSquasher> bookSquasher;
+  private final Optional<ExecutorService> bookPool;
+  private final Optional<OPDSImageScaler> imageScaler;
+  private final Optional<OPDSTransformCache> imageCache;
+  private final Optional<ExecutorService> imagePool;
+  private final ConcurrentLinkedQueue<CompletableFuture<Void>> pending;
+
+  private OPDSTransformPipeline(
+    final OPDSGetConfiguration inConfiguration,
+    final OPDSManifestChangeRequiredType inOnTransformed,
+    final Optional<OPDSBookSquasher> inBookSquasher,
+    final Optional<ExecutorService> inBookPool,
+    final Optional<OPDSImageScaler> inImageScaler,
+    final Optional<OPDSTransformCache> inImageCache,
+    final Optional<ExecutorService> inImagePool)
+  {
+    this.configuration =
+      Objects.requireNonNull(inConfiguration, "configuration");
+    this.onTransformed =
+      Objects.requireNonNull(inOnTransformed, "onTransformed");
+    this.bookSquasher =
+      Objects.requireNonNull(inBookSquasher, "bookSquasher");
+    this.bookPool =
+      Objects.requireNonNull(inBookPool, "bookPool");
+    this.imageScaler =
+      Objects.requireNonNull(inImageScaler, "imageScaler");
+    this.imageCache =
+      Objects.requireNonNull(inImageCache, "imageCache");
+    this.imagePool =
+      Objects.requireNonNull(inImagePool, "imagePool");
+    this.pending =
+      new ConcurrentLinkedQueue<>();
+  }
+
+  /**
+   * Open a pipeline, if the configuration requires files to be transformed during the retrieval.
+   *
+   * @param configuration The configuration
+   * @param squashers     A provider of squashers
+   * @param onTransformed The receiver of transformed files
+   *
+   * @return A pipeline, or nothing if no files are transformed during the retrieval
+   *
+   * @throws IOException On I/O errors
+   */
+
+  static Optional<OPDSTransformPipeline> open(
+    final OPDSGetConfiguration configuration,
+    final EPUBSquasherProviderType squashers,
+    final OPDSManifestChangeRequiredType onTransformed)
+    throws IOException
+  {
+    if (configuration.transformMode() != OPDSTransformMode.DURING_RETRIEVAL) {
+      return Optional.empty();
+    }
+
+    final var limits = configuration.transformLimits();
+    final var squash = configuration.squash();
+    final var scale = configuration.scaleImages();
+    final var scaling = scale.isPresent() && scale.getAsDouble() != 1.0;
+    if (squash.isEmpty() && !scaling) {
+      return Optional.empty();
+    }
+
+    Optional<OPDSBookSquasher> bookSquasher = Optional.empty();
+    Optional<ExecutorService> bookPool = Optional.empty();
+    if (squash.isPresent()) {
+      final var threads = limits.squashThreads();
+      bookSquasher =
+        Optional.of(OPDSBookSquasher.open(configuration, squash.get(), squashers, threads));
+      bookPool =
+        Optional.of(OPDSTransformPools.create("one.lfa.opdsget.squash", threads));
+    }
+
+    /*
+     * Each thread of the image pool decodes one image at a time, so the pool is no larger than
+     * the number of images that may be decoded at once.
+     */
+
+    Optional<OPDSImageScaler> imageScaler = Optional.empty();
+    Optional<OPDSTransformCache> imageCache = Optional.empty();
+    Optional<ExecutorService> imagePool = Optional.empty();
+    if (scaling) {
+      final var threads = Math.min(limits.imageScaleThreads(), limits.maximumDecodedImages());
+      final var pool = OPDSTransformPools.create("one.lfa.opdsget.image", threads);
+      imagePool = Optional.of(pool);
+      imageCache = OPDSTaskImageScale.openCache(configuration, scale.getAsDouble());
+      imageScaler =
+        Optional.of(new OPDSImageScaler(
+          configuration.imageDirectory(),
+          onTransformed,
+          path -> true,
+          scale.getAsDouble(),
+          pool,
+          threads));
+    }
+
+    return Optional.of(
+      new OPDSTransformPipeline(
+        configuration,
+        onTransformed,
+        bookSquasher,
+        bookPool,
+        imageScaler,
+        imageCache,
+        imagePool));
+  }
+
+  /**
+   * Submit a retrieved file to be transformed. Files that are neither books to be squashed nor
+   * images to be scaled are ignored.
+   *
+   * @param path The file
+   */
+
+  void submit(
+    final Path path)
+  {
+    try {
+      if (this.bookSquasher.isPresent() && path.startsWith(this.configuration.bookDirectory())) {
+        this.pending.add(
+          CompletableFuture.runAsync(() -> this.squashBook(path), this.bookPool.get()));
+        return;
+      }
+      if (this.imageScaler.isPresent() && path.startsWith(this.configuration.imageDirectory())) {
+        this.pending.add(
+          CompletableFuture.runAsync(() -> this.scaleImage(path), this.imagePool.get()));
+      }
+    } catch (final RejectedExecutionException e) {
+      LOG.debug("transform {}: pipeline closed", path);
+    }
+  }
+
+  private void squashBook(
+    final Path path)
+  {
+    try {
+      this.bookSquasher.get().squash(path, this.onTransformed);
+    } catch (final Exception e) {
+      LOG.warn("squash {}: failed during the retrieval; retrying after the retrieval", path);
+    }
+  }
+
+  private void scaleImage(
+    final Path path)
+  {
+    try {
+      OPDSTransformCache.restoreOrTransform(
+        this.imageCache, path, this.imageScaler.get()::scaleFile);
+      this.onTransformed.onFileChanged(GENERAL, path.toAbsolutePath());
+    } catch (final Exception e) {
+      LOG.warn("scale {}: failed during the retrieval; retrying after the retrieval: ", path, e);
+    }
+  }
+
+  /**
+   * Finish the pipeline once no more files will be submitted.
+   *
+   * @param executor The executor used to close the pipeline
+   *
+   * @return A future that completes once every submitted file has been transformed, or has failed
+   *   to be transformed, and the pipeline has been closed
+   */
+
+  CompletableFuture<Void> finish(
+    final Executor executor)
+  {
+    return CompletableFuture.allOf(this.pending.toArray(new CompletableFuture[0]))
+      .thenRunAsync(this::close, executor);
+  }
+
+  /**
+   * Close the pipeline. Files that have been submitted but not yet transformed are left as they
+   * were retrieved.
+   */
+
+  void close()
+  {
+    this.bookPool.ifPresent(ExecutorService::shutdownNow);
+    this.imagePool.ifPresent(ExecutorService::shutdownNow);
+
+    if (this.bookSquasher.isPresent()) {
+      try {
+        this.bookSquasher.get().close();
+      } catch (final IOException e) {
+        LOG.error("could not close book squasher: ", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.vanilla;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Functions to create the pools on which transforms are executed. Transforms are CPU-bound, so
+ * they are executed on pools of their own rather than on the executor used for I/O, which may
+ * hold far more threads than there are processors.
+ */
+
+final class OPDSTransformPools
+{
+  private OPDSTransformPools()
+  {
+
+  }
+
+  /**
+   * @param name    The prefix of the names of the pool's threads
+   * @param threads The number of threads
+   *
+   * @return A new fixed-size pool
+   */
+
+  static ExecutorService create(
+    final String name,
+    final int threads)
+  {
+    return Executors.newFixedThreadPool(
+      threads,
+      runnable -> {
+        final var th = new Thread(runnable);
+        th.setName(name + "[" + th.getId() + "]");
+        return th;
+      });
+  }
+}
@@ -22,6 +22,7 @@ import org.w3c.dom.Document;
 import org.xml.sax.SAXException;
 
 import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import java.io.IOException;
@@ -30,7 +31,8 @@ import java.net.URI;
 import java.util.Objects;
 
 /**
- * Functions to parse XML.
+ * Functions to parse XML. Document builders are pooled and reused between documents, so a single
+ * instance should be shared by all of the threads that parse documents.
  */
 
 public final class OPDSXMLParsers
@@ -38,7 +40,8 @@ public final class OPDSXMLParsers
   private static final Logger LOG =
     LoggerFactory.getLogger(OPDSXMLParsers.class);
 
-  private final DocumentBuilderFactory builders;
+  private final DocumentBuilderFactory factory;
+  private final OPDSObjectPool<DocumentBuilder> builders;
 
   /**
    * Construct a new parser provider.
@@ -47,10 +50,25 @@ public final class OPDSXMLParsers
   public OPDSXMLParsers()
   {
     try {
-      this.builders = DocumentBuilderFactory.newDefaultInstance();
-      this.builders.setValidating(false);
-      this.builders.setNamespaceAware(true);
-      this.builders.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+      this.factory = DocumentBuilderFactory.newDefaultInstance();
+      this.factory.setValidating(false);
+      this.factory.setNamespaceAware(true);
+      this.factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+    } catch (final ParserConfigurationException e) {
+      throw new IllegalStateException(e);
+    }
+
+    this.builders =
+      new OPDSObjectPool<>(
+        this::newBuilder, DocumentBuilder::reset, OPDSObjectPool.DEFAULT_CAPACITY);
+  }
+
+  private DocumentBuilder newBuilder()
+  {
+    try {
+      synchronized (this.factory) {
+        return this.factory.newDocumentBuilder();
+      }
     } catch (final ParserConfigurationException e) {
       throw new IllegalStateException(e);
     }
@@ -78,10 +96,11 @@ public final class OPDSXMLParsers
     Objects.requireNonNull(stream, "stream");
 
     LOG.debug("parse {}", uri);
-    final var builder = this.builders.newDocumentBuilder();
+    final var builder = this.builders.acquire();
     try {
       return builder.parse(stream, uri.toString());
     } finally {
+      this.builders.release(builder);
       LOG.debug("parsed {}", uri);
     }
   }
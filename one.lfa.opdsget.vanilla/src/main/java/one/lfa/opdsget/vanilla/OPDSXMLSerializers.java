@@ -0,0 +1,110 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.vanilla;
+
+import org.w3c.dom.Document;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.OutputStream;
+import java.util.Objects;
+
+/**
+ * Functions to serialize XML. Transformers are pooled and reused between documents, so a single
+ * instance should be shared by all of the threads that serialize documents.
+ */
+
+final class OPDSXMLSerializers
+{
+  private final TransformerFactory factory;
+  private final OPDSObjectPool<Transformer> transformers;
+
+  /**
+   * Construct a new serializer provider.
+   */
+
+  OPDSXMLSerializers()
+  {
+    this.factory = TransformerFactory.newInstance();
+    this.transformers =
+      new OPDSObjectPool<>(
+        this::newTransformer, OPDSXMLSerializers::reset, OPDSObjectPool.DEFAULT_CAPACITY);
+  }
+
+  private static void configure(
+    final Transformer transformer)
+  {
+    transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+    transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "no");
+    transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
+  }
+
+  /**
+   * Resetting a transformer also discards its output properties, so they are set again.
+   */
+
+  private static void reset(
+    final Transformer transformer)
+  {
+    transformer.reset();
+    configure(transformer);
+  }
+
+  private Transformer newTransformer()
+  {
+    try {
+      final Transformer transformer;
+      synchronized (this.factory) {
+        transformer = this.factory.newTransformer();
+      }
+      configure(transformer);
+      return transformer;
+    } catch (final TransformerConfigurationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Serialize a document to the given stream, indented. The stream is not closed.
+   *
+   * @param document The document
+   * @param output   The output stream
+   *
+   * @throws TransformerException On serialization errors
+   */
+
+  void serialize(
+    final Document document,
+    final OutputStream output)
+    throws TransformerException
+  {
+    Objects.requireNonNull(document, "document");
+    Objects.requireNonNull(output, "output");
+
+    final var transformer = this.transformers.acquire();
+    try {
+      transformer.transform(new DOMSource(document), new StreamResult(output));
+    } finally {
+      this.transformers.release(transformer);
+    }
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.vanilla;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * The policy that decides how each archive entry is compressed. Files that are already
+ * compressed, such as EPUBs (which are zip files) and cover images, gain almost nothing from
+ * being deflated again, and so are stored. Everything else, such as feeds and the search index,
+ * is deflated.
+ *
+ * The decision depends only on the name and the content of a file, so that the same files always
+ * produce the same archive.
+ */
+
+final class OPDSZipCompression
+{
+  /**
+   * The number of bytes from the start of a file that are examined.
+   */
+
+  static final int HEAD_SIZE = 65536;
+
+  /**
+   * Files shorter than this are always deflated; a probe of so little data says little about
+   * the rest of the file, and the cost of deflating it is negligible.
+   */
+
+  private static final int PROBE_MINIMUM = 512;
+
+  /**
+   * A file is stored if deflating its head saves less than this percentage of its size.
+   */
+
+  private static final int PROBE_SAVING_PERCENT = 5;
+
+  private static final int ANY = -1;
+
+  /**
+   * The first bytes of zip (and therefore EPUB), JPEG, PNG, GIF, gzip, and WebP files.
+   */
+
+  private static final List<int[]> SIGNATURES =
+    List.of(
+      new int[]{'P', 'K', 0x03, 0x04},
+      new int[]{0xFF, 0xD8, 0xFF},
+      new int[]{0x89, 'P', 'N', 'G'},
+      new int[]{'G', 'I', 'F', '8'},
+      new int[]{0x1F, 0x8B},
+      new int[]{'R', 'I', 'F', 'F', ANY, ANY, ANY, ANY, 'W', 'E', 'B', 'P'});
+
+  private static final Set<String> STORED_EXTENSIONS =
+    Set.of(
+      "7z",
+      "bz2",
+      "epub",
+      "gif",
+      "gz",
+      "jpeg",
+      "jpg",
+      "mp3",
+      "mp4",
+      "png",
+      "webp",
+      "xz",
+      "zip");
+
+  private OPDSZipCompression()
+  {
+
+  }
+
+  /**
+   * @param name   The file name
+   * @param head   The first bytes of the file
+   * @param length The number of bytes in {@code head}
+   *
+   * @return The compression method for the file, either {@link ZipEntry#STORED} or {@link
+   *   ZipEntry#DEFLATED}
+   */
+
+  static int methodFor(
+    final String name,
+    final byte[] head,
+    final int length)
+  {
+    Objects.requireNonNull(name, "name");
+    Objects.requireNonNull(head, "head");
+
+    if (hasStoredExtension(name)
+      || hasCompressedSignature(head, length)
+      || isIncompressible(head, length)) {
+      return ZipEntry.STORED;
+    }
+    return ZipEntry.DEFLATED;
+  }
+
+  private static boolean hasStoredExtension(
+    final String name)
+  {
+    final var dot = name.lastIndexOf('.');
+    if (dot == -1) {
+      return false;
+    }
+    return STORED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+  }
+
+  /**
+   * Downloaded images are named by the hash of their URI and have no extension, so the formats
+   * of compressed files are also recognized by their first bytes.
+   */
+
+  private static boolean hasCompressedSignature(
+    final byte[] head,
+    final int length)
+  {
+    for (final var signature : SIGNATURES) {
+      if (startsWith(head, length, signature)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean startsWith(
+    final byte[] head,
+    final int length,
+    final int[] signature)
+  {
+    if (length < signature.length) {
+      return false;
+    }
+    for (int index = 0; index < signature.length; ++index) {
+      final var expected = signature[index];
+      if (expected != ANY && (head[index] & 0xFF) != expected) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Deflate the head of the file as quickly as possible, and see how much smaller it becomes.
+   */
+
+  private static boolean isIncompressible(
+    final byte[] head,
+    final int length)
+  {
+    if (length < PROBE_MINIMUM) {
+      return false;
+    }
+
+    final var deflater = new Deflater(Deflater.BEST_SPEED, true);
+    try {
+      deflater.setInput(head, 0, length);
+      deflater.finish();
+
+      final var output = new byte[8192];
+      var compressed = 0L;
+      while (!deflater.finished()) {
+        compressed += deflater.deflate(output);
+      }
+      return compressed * 100L > (long) length * (100L - PROBE_SAVING_PERCENT);
+    } finally {
+      deflater.end();
+    }
+  }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.vanilla;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+import static one.lfa.opdsget.vanilla.OPDSZipWriter.LIMIT_16;
+import static one.lfa.opdsget.vanilla.OPDSZipWriter.LIMIT_32;
+
+/**
+ * The central directory of an archive previously produced by {@link OPDSZipWriter}, from which
+ * the compressed data of unchanged entries can be copied into a new archive.
+ */
+
+final class OPDSZipIndex implements Closeable
+{
+  private static final Logger LOG = LoggerFactory.getLogger(OPDSZipIndex.class);
+
+  private static final int END_SIZE = 22;
+  private static final int ZIP64_LOCATOR_SIZE = 20;
+  private static final int ZIP64_END_SIZE = 56;
+  private static final int LOCAL_SIZE = 30;
+
+  private final FileChannel channel;
+  private final Map<String, Entry> entries;
+
+  private OPDSZipIndex(
+    final FileChannel inChannel,
+    final Map<String, Entry> inEntries)
+  {
+    this.channel = Objects.requireNonNull(inChannel, "channel");
+    this.entries = Objects.requireNonNull(inEntries, "entries");
+  }
+
+  /**
+   * Read the central directory of the given archive. Archives that were not produced by the
+   * current version of {@link OPDSZipWriter}, or that cannot be read, are ignored.
+   *
+   * @param file The archive
+   *
+   * @return The archive's index, if the archive can be used
+   */
+
+  static Optional<OPDSZipIndex> open(
+    final Path file)
+  {
+    Objects.requireNonNull(file, "file");
+
+    FileChannel channel = null;
+    try {
+      channel = FileChannel.open(file, READ);
+      final var entries = readEntries(channel);
+      if (entries.isPresent()) {
+        LOG.debug("{}: {} reusable entries", file, Integer.valueOf(entries.get().size()));
+        return Optional.of(new OPDSZipIndex(channel, entries.get()));
+      }
+      LOG.info("{} was not produced by this version of opdsget, and will be replaced", file);
+    } catch (final IOException | RuntimeException e) {
+      LOG.warn("{} could not be read, and will be replaced: ", file, e);
+    }
+
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (final IOException e) {
+        LOG.debug("close: ", e);
+      }
+    }
+    return Optional.empty();
+  }
+
+  private static ByteBuffer read(
+    final FileChannel channel,
+    final long position,
+    final int size)
+    throws IOException
+  {
+    final var buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    while (buffer.hasRemaining()) {
+      final var r = channel.read(buffer, position + buffer.position());
+      if (r == -1) {
+        throw new IOException("Unexpected end of archive");
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  private static void checkSignature(
+    final ByteBuffer buffer,
+    final int expected)
+    throws IOException
+  {
+    final var signature = buffer.getInt();
+    if (signature != expected) {
+      throw new IOException(
+        String.format(
+          "Expected signature 0x%08x but received 0x%08x",
+          Integer.valueOf(expected),
+          Integer.valueOf(signature)));
+    }
+  }
+
+  /**
+   * The writer always ends an archive with the same comment, so the end of the central
+   * directory is at a known position.
+   */
+
+  private static Optional<Map<String, Entry>> readEntries(
+    final FileChannel channel)
+    throws IOException
+  {
+    final var comment = OPDSZipWriter.COMMENT.getBytes(UTF_8);
+    final var endPosition = channel.size() - END_SIZE - comment.length;
+    if (endPosition < 0L) {
+      return Optional.empty();
+    }
+
+    final var end = read(channel, endPosition, END_SIZE + comment.length);
+    if (end.getInt() != OPDSZipWriter.END_SIGNATURE) {
+      return Optional.empty();
+    }
+    end.position(10);
+    long count = end.getShort() & LIMIT_16;
+    long directorySize = end.getInt() & LIMIT_32;
+    long directoryOffset = end.getInt() & LIMIT_32;
+    final var commentLength = end.getShort() & LIMIT_16;
+    final var commentBytes = new byte[comment.length];
+    end.get(commentBytes);
+    if (commentLength != comment.length || !Arrays.equals(commentBytes, comment)) {
+      return Optional.empty();
+    }
+
+    if (count == LIMIT_16 || directorySize == LIMIT_32 || directoryOffset == LIMIT_32) {
+      final var locator = read(channel, endPosition - ZIP64_LOCATOR_SIZE, ZIP64_LOCATOR_SIZE);
+      checkSignature(locator, OPDSZipWriter.ZIP64_LOCATOR_SIGNATURE);
+      locator.getInt();
+      final var zip64End = read(channel, locator.getLong(), ZIP64_END_SIZE);
+      checkSignature(zip64End, OPDSZipWriter.ZIP64_END_SIGNATURE);
+      zip64End.position(32);
+      count = zip64End.getLong();
+      directorySize = zip64End.getLong();
+      directoryOffset = zip64End.getLong();
+    }
+
+    if (directorySize > Integer.MAX_VALUE) {
+      throw new IOException("Central directory is too large");
+    }
+
+    final var directory = read(channel, directoryOffset, (int) directorySize);
+    final var entries = new HashMap<String, Entry>((int) Math.min(count * 2L, 1_000_000L));
+    for (long index = 0L; index < count; ++index) {
+      final var entry = readCentralHeader(directory);
+      entries.put(entry.name, entry);
+    }
+    return Optional.of(entries);
+  }
+
+  private static Entry readCentralHeader(
+    final ByteBuffer directory)
+    throws IOException
+  {
+    final var start = directory.position();
+    checkSignature(directory, OPDSZipWriter.CENTRAL_SIGNATURE);
+    directory.position(start + 10);
+    final var method = directory.getShort() & LIMIT_16;
+    directory.position(start + 16);
+    final var crc = directory.getInt() & LIMIT_32;
+    var compressedSize = directory.getInt() & LIMIT_32;
+    var size = directory.getInt() & LIMIT_32;
+    final var nameLength = directory.getShort() & LIMIT_16;
+    final var extraLength = directory.getShort() & LIMIT_16;
+    final var commentLength = directory.getShort() & LIMIT_16;
+    directory.position(start + 42);
+    var offset = directory.getInt() & LIMIT_32;
+
+    final var nameBytes = new byte[nameLength];
+    directory.get(nameBytes);
+
+    final var extraEnd = directory.position() + extraLength;
+    byte[] hash = null;
+    while (directory.position() < extraEnd) {
+      final var id = directory.getShort() & LIMIT_16;
+      final var length = directory.getShort() & LIMIT_16;
+      final var next = directory.position() + length;
+      if (id == OPDSZipWriter.ZIP64_EXTRA) {
+        if (size == LIMIT_32) {
+          size = directory.getLong();
+        }
+        if (compressedSize == LIMIT_32) {
+          compressedSize = directory.getLong();
+        }
+        if (offset == LIMIT_32) {
+          offset = directory.getLong();
+        }
+      } else if (id == OPDSZipWriter.HASH_EXTRA && length == OPDSZipWriter.HASH_SIZE) {
+        hash = new byte[OPDSZipWriter.HASH_SIZE];
+        directory.get(hash);
+      }
+      directory.position(next);
+    }
+    directory.position(extraEnd + commentLength);
+
+    if (hash == null) {
+      throw new IOException("Central header has no hash");
+    }
+
+    return new Entry(
+      UTF_8.decode(ByteBuffer.wrap(nameBytes)).toString(),
+      new OPDSZipWriter.Data(method, crc, compressedSize, size, hash),
+      offset);
+  }
+
+  /**
+   * @param name   The name of an entry
+   * @param sha256 The SHA-256 hash of the current content of the entry
+   * @param size   The current size of the entry
+   *
+   * @return The compressed data of the entry if the archive holds exactly the given content
+   */
+
+  Optional<OPDSZipWriter.Data> unchanged(
+    final String name,
+    final byte[] sha256,
+    final long size)
+  {
+    Objects.requireNonNull(name, "name");
+    Objects.requireNonNull(sha256, "sha256");
+
+    final var entry = this.entries.get(name);
+    if (entry == null) {
+      return Optional.empty();
+    }
+    final var data = entry.data;
+    if (data.size() != size || !Arrays.equals(data.sha256(), sha256)) {
+      return Optional.empty();
+    }
+    return Optional.of(data);
+  }
+
+  /**
+   * @param name The name of an entry
+   *
+   * @return The position of the entry's compressed data within {@link #channel()}
+   *
+   * @throws IOException On I/O errors
+   */
+
+  long dataPosition(
+    final String name)
+    throws IOException
+  {
+    final var entry = this.entries.get(name);
+    if (entry == null) {
+      throw new IllegalArgumentException(String.format("No entry %s", name));
+    }
+
+    final var local = read(this.channel, entry.offset, LOCAL_SIZE);
+    checkSignature(local, OPDSZipWriter.LOCAL_SIGNATURE);
+    local.position(26);
+    final var nameLength = local.getShort() & LIMIT_16;
+    final var extraLength = local.getShort() & LIMIT_16;
+    return entry.offset + LOCAL_SIZE + nameLength + extraLength;
+  }
+
+  /**
+   * @return The channel from which compressed data can be copied
+   */
+
+  FileChannel channel()
+  {
+    return this.channel;
+  }
+
+  @Override
+  public void close()
+    throws IOException
+  {
+    this.channel.close();
+  }
+
+  private static final class Entry
+  {
+    private final String name;
+    private final OPDSZipWriter.Data data;
+    private final long offset;
+
+    Entry(
+      final String inName,
+      final OPDSZipWriter.Data inData,
+      final long inOffset)
+    {
+      this.name = Objects.requireNonNull(inName, "name");
+      this.data = Objects.requireNonNull(inData, "data");
+      this.offset = inOffset;
+    }
+  }
+}
@@ -0,0 +1,560 @@
+/*
+ * Copyright © 2018 Library For All
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.lfa.opdsget.vanilla;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Objects;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A writer of zip files. Unlike {@link java.util.zip.ZipOutputStream}, entries can be written
+ * from data that was compressed in advance, which is copied into the archive without being
+ * decompressed. The size and checksum of every entry are written into its local header, and all
+ * entries are given the same fixed time, so that the same files always produce the same archive.
+ */
+
+final class OPDSZipWriter implements Closeable
+{
+  /**
+   * 2001-01-01 in MS-DOS date format. The time of day is zero.
+   */
+
+  private static final int DOS_DATE = ((2001 - 1980) << 9) | (1 << 5) | 1;
+
+  static final int LOCAL_SIGNATURE = 0x04034b50;
+  static final int CENTRAL_SIGNATURE = 0x02014b50;
+  static final int END_SIGNATURE = 0x06054b50;
+  static final int ZIP64_END_SIGNATURE = 0x06064b50;
+  static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+  static final int ZIP64_EXTRA = 0x0001;
+  static final long LIMIT_32 = 0xFFFFFFFFL;
+  static final int LIMIT_16 = 0xFFFF;
+
+  /**
+   * A private extra field, present in the central header of every entry, that holds the SHA-256
+   * hash of the entry's uncompressed content.
+   */
+
+  static final int HASH_EXTRA = 0x4853;
+  static final int HASH_SIZE = 32;
+
+  private static final int FLAG_UTF8 = 0x0800;
+  private static final int VERSION = 20;
+  private static final int VERSION_ZIP64 = 45;
+
+  private static final int BUFFER_SIZE = 65536;
+
+  /**
+   * The comment written into every archive. Entries are only copied out of a previous archive
+   * that has this comment, as only then are they known to have been compressed in exactly the
+   * way that they would be compressed now. This must be changed whenever the compression of
+   * entries changes.
+   */
+
+  static final String COMMENT = "one.lfa.opdsget.archive 1";
+
+  private final FileChannel channel;
+  private final ArrayList<Central> entries;
+  private final ByteBuffer header;
+
+  private OPDSZipWriter(
+    final FileChannel inChannel)
+  {
+    this.channel = Objects.requireNonNull(inChannel, "channel");
+    this.entries = new ArrayList<>(128);
+    this.header = ByteBuffer.allocate(512).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * Create a new zip file. The file must not already exist.
+   *
+   * @param file The file
+   *
+   * @return A writer
+   *
+   * @throws IOException On I/O errors
+   */
+
+  static OPDSZipWriter create(
+    final Path file)
+    throws IOException
+  {
+    return new OPDSZipWriter(FileChannel.open(file, CREATE_NEW, WRITE));
+  }
+
+  /**
+   * Compress the given file, writing the compressed data to {@code output}. The file is either
+   * deflated or stored, as decided by {@link OPDSZipCompression}.
+   *
+   * @param file   The file
+   * @param output The channel to which compressed data is written
+   *
+   * @return A description of the compressed data
+   *
+   * @throws IOException On I/O errors
+   */
+
+  static Data compress(
+    final Path file,
+    final WritableByteChannel output)
+    throws IOException
+  {
+    Objects.requireNonNull(file, "file");
+    Objects.requireNonNull(output, "output");
+
+    try (var stream = Files.newInputStream(file)) {
+      final var head = new byte[OPDSZipCompression.HEAD_SIZE];
+      final var headLength = stream.readNBytes(head, 0, head.length);
+      final var method =
+        OPDSZipCompression.methodFor(file.getFileName().toString(), head, headLength);
+
+      if (method == ZipEntry.STORED) {
+        return store(head, headLength, stream, output);
+      }
+      return deflate(head, headLength, stream, output);
+    }
+  }
+
+  private static Data store(
+    final byte[] head,
+    final int headLength,
+    final InputStream stream,
+    final WritableByteChannel output)
+    throws IOException
+  {
+    final var crc = new CRC32();
+    final var digest = OPDSHashing.sha256();
+    final var buffer = ByteBuffer.wrap(head);
+
+    var size = 0L;
+    var length = headLength;
+    while (length > 0) {
+      size += length;
+      crc.update(head, 0, length);
+      digest.update(head, 0, length);
+      buffer.clear();
+      buffer.limit(length);
+      while (buffer.hasRemaining()) {
+        output.write(buffer);
+      }
+      length = stream.readNBytes(head, 0, head.length);
+    }
+
+    return new Data(ZipEntry.STORED, crc.getValue(), size, size, digest.digest());
+  }
+
+  private static Data deflate(
+    final byte[] head,
+    final int headLength,
+    final InputStream stream,
+    final WritableByteChannel output)
+    throws IOException
+  {
+    final var crc = new CRC32();
+    final var digest = OPDSHashing.sha256();
+    final var deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    final var compressedBuffer = ByteBuffer.wrap(new byte[BUFFER_SIZE]);
+
+    var size = 0L;
+    var compressedSize = 0L;
+    try {
+      var length = headLength;
+      while (length > 0) {
+        size += length;
+        crc.update(head, 0, length);
+        digest.update(head, 0, length);
+        deflater.setInput(head, 0, length);
+        while (!deflater.needsInput()) {
+          compressedSize += drain(deflater, compressedBuffer, output);
+        }
+        length = stream.readNBytes(head, 0, head.length);
+      }
+
+      deflater.finish();
+      while (!deflater.finished()) {
+        compressedSize += drain(deflater, compressedBuffer, output);
+      }
+    } finally {
+      deflater.end();
+    }
+
+    return new Data(ZipEntry.DEFLATED, crc.getValue(), compressedSize, size, digest.digest());
+  }
+
+  private static long drain(
+    final Deflater deflater,
+    final ByteBuffer buffer,
+    final WritableByteChannel output)
+    throws IOException
+  {
+    final var count = deflater.deflate(buffer.array());
+    buffer.clear();
+    buffer.limit(count);
+    while (buffer.hasRemaining()) {
+      output.write(buffer);
+    }
+    return count;
+  }
+
+  /**
+   * Write an entry for data that was compressed in advance. The compressed data is copied from
+   * {@code source} without being decompressed.
+   *
+   * @param name     The name of the entry
+   * @param data     A description of the compressed data
+   * @param source   The channel holding the compressed data
+   * @param position The position of the compressed data within {@code source}
+   *
+   * @throws IOException On I/O errors
+   */
+
+  void writeCompressed(
+    final String name,
+    final Data data,
+    final FileChannel source,
+    final long position)
+    throws IOException
+  {
+    Objects.requireNonNull(name, "name");
+    Objects.requireNonNull(data, "data");
+    Objects.requireNonNull(source, "source");
+
+    final var nameBytes = name.getBytes(UTF_8);
+    final var offset = this.channel.position();
+    final var zip64 = data.compressedSize() >= LIMIT_32 || data.size() >= LIMIT_32;
+
+    this.writeLocalHeader(nameBytes, data, zip64, offset);
+
+    var copied = 0L;
+    while (copied < data.compressedSize()) {
+      final var count =
+        source.transferTo(position + copied, data.compressedSize() - copied, this.channel);
+      if (count <= 0L) {
+        throw new IOException(
+          String.format("Compressed data for %s is truncated", name));
+      }
+      copied += count;
+    }
+
+    this.entries.add(new Central(nameBytes, data, offset, zip64));
+  }
+
+  /**
+   * Write the central directory. No entries may be written afterwards.
+   *
+   * @throws IOException On I/O errors
+   */
+
+  void finish()
+    throws IOException
+  {
+    final var directoryOffset = this.channel.position();
+    for (final var entry : this.entries) {
+      this.writeCentralHeader(entry);
+    }
+    final var directoryEnd = this.channel.position();
+    final var directorySize = directoryEnd - directoryOffset;
+    final var count = this.entries.size();
+
+    final var zip64 =
+      count >= LIMIT_16 || directorySize >= LIMIT_32 || directoryOffset >= LIMIT_32;
+
+    final var buffer = this.header;
+    buffer.clear();
+    if (zip64) {
+      buffer.putInt(ZIP64_END_SIGNATURE);
+      buffer.putLong(44L);
+      buffer.putShort((short) VERSION_ZIP64);
+      buffer.putShort((short) VERSION_ZIP64);
+      buffer.putInt(0);
+      buffer.putInt(0);
+      buffer.putLong(count);
+      buffer.putLong(count);
+      buffer.putLong(directorySize);
+      buffer.putLong(directoryOffset);
+
+      buffer.putInt(ZIP64_LOCATOR_SIGNATURE);
+      buffer.putInt(0);
+      buffer.putLong(directoryEnd);
+      buffer.putInt(1);
+    }
+
+    buffer.putInt(END_SIGNATURE);
+    buffer.putShort((short) 0);
+    buffer.putShort((short) 0);
+    buffer.putShort((short) Math.min(count, LIMIT_16));
+    buffer.putShort((short) Math.min(count, LIMIT_16));
+    buffer.putInt((int) Math.min(directorySize, LIMIT_32));
+    buffer.putInt((int) Math.min(directoryOffset, LIMIT_32));
+    final var comment = COMMENT.getBytes(UTF_8);
+    buffer.putShort((short) comment.length);
+    buffer.put(comment);
+    this.flushHeader();
+  }
+
+  private void writeLocalHeader(
+    final byte[] name,
+    final Data data,
+    final boolean zip64,
+    final long offset)
+    throws IOException
+  {
+    final var buffer = this.header;
+    buffer.clear();
+    buffer.putInt(LOCAL_SIGNATURE);
+    buffer.putShort((short) versionOf(zip64 || offset >= LIMIT_32));
+    buffer.putShort((short) FLAG_UTF8);
+    buffer.putShort((short) data.method());
+    buffer.putShort((short) 0);
+    buffer.putShort((short) DOS_DATE);
+    buffer.putInt((int) data.crc());
+    buffer.putInt((int) (zip64 ? LIMIT_32 : data.compressedSize()));
+    buffer.putInt((int) (zip64 ? LIMIT_32 : data.size()));
+    buffer.putShort((short) name.length);
+    buffer.putShort((short) (zip64 ? 20 : 0));
+    this.flushHeader();
+    this.writeFully(ByteBuffer.wrap(name));
+
+    if (zip64) {
+      buffer.clear();
+      buffer.putShort((short) ZIP64_EXTRA);
+      buffer.putShort((short) 16);
+      buffer.putLong(data.size());
+      buffer.putLong(data.compressedSize());
+      this.flushHeader();
+    }
+  }
+
+  private void writeCentralHeader(
+    final Central entry)
+    throws IOException
+  {
+    final var data = entry.data;
+    final var largeSize = data.size() >= LIMIT_32;
+    final var largeCompressedSize = data.compressedSize() >= LIMIT_32;
+    final var largeOffset = entry.offset >= LIMIT_32;
+    final var zip64Size =
+      (largeSize ? 8 : 0) + (largeCompressedSize ? 8 : 0) + (largeOffset ? 8 : 0);
+    final var extraSize =
+      (zip64Size == 0 ? 0 : zip64Size + 4) + 4 + HASH_SIZE;
+
+    final var version = versionOf(entry.zip64 || largeOffset);
+    final var buffer = this.header;
+    buffer.clear();
+    buffer.putInt(CENTRAL_SIGNATURE);
+    buffer.putShort((short) version);
+    buffer.putShort((short) version);
+    buffer.putShort((short) FLAG_UTF8);
+    buffer.putShort((short) data.method());
+    buffer.putShort((short) 0);
+    buffer.putShort((short) DOS_DATE);
+    buffer.putInt((int) data.crc());
+    buffer.putInt((int) Math.min(data.compressedSize(), LIMIT_32));
+    buffer.putInt((int) Math.min(data.size(), LIMIT_32));
+    buffer.putShort((short) entry.name.length);
+    buffer.putShort((short) extraSize);
+    buffer.putShort((short) 0);
+    buffer.putShort((short) 0);
+    buffer.putShort((short) 0);
+    buffer.putInt(0);
+    buffer.putInt((int) Math.min(entry.offset, LIMIT_32));
+    this.flushHeader();
+    this.writeFully(ByteBuffer.wrap(entry.name));
+
+    if (zip64Size != 0) {
+      this.writeCentralZip64Extra(entry, zip64Size);
+    }
+
+    /*
+     * The hash of each entry's content is kept in the central directory, so that a later
+     * archive can tell which entries are unchanged without decompressing them.
+     */
+
+    buffer.clear();
+    buffer.putShort((short) HASH_EXTRA);
+    buffer.putShort((short) HASH_SIZE);
+    buffer.put(data.sha256());
+    this.flushHeader();
+  }
+
+  /**
+   * The ZIP64 extra field of a central header holds only the values that did not fit into the
+   * header itself, in a fixed order.
+   */
+
+  private void writeCentralZip64Extra(
+    final Central entry,
+    final int extraSize)
+    throws IOException
+  {
+    final var data = entry.data;
+    final var buffer = this.header;
+    buffer.clear();
+    buffer.putShort((short) ZIP64_EXTRA);
+    buffer.putShort((short) extraSize);
+    if (data.size() >= LIMIT_32) {
+      buffer.putLong(data.size());
+    }
+    if (data.compressedSize() >= LIMIT_32) {
+      buffer.putLong(data.compressedSize());
+    }
+    if (entry.offset >= LIMIT_32) {
+      buffer.putLong(entry.offset);
+    }
+    this.flushHeader();
+  }
+
+  private static int versionOf(
+    final boolean zip64)
+  {
+    return zip64 ? VERSION_ZIP64 : VERSION;
+  }
+
+  private void flushHeader()
+    throws IOException
+  {
+    this.header.flip();
+    this.writeFully(this.header);
+  }
+
+  private void writeFully(
+    final ByteBuffer buffer)
+    throws IOException
+  {
+    while (buffer.hasRemaining()) {
+      this.channel.write(buffer);
+    }
+  }
+
+  @Override
+  public void close()
+    throws IOException
+  {
+    this.channel.close();
+  }
+
+  /**
+   * A description of the compressed data of an entry.
+   */
+
+  static final class Data
+  {
+    private final int method;
+    private final long crc;
+    private final long compressedSize;
+    private final long size;
+    private final byte[] sha256;
+
+    Data(
+      final int inMethod,
+      final long inCrc,
+      final long inCompressedSize,
+      final long inSize,
+      final byte[] inSha256)
+    {
+      this.method = inMethod;
+      this.crc = inCrc;
+      this.compressedSize = inCompressedSize;
+      this.size = inSize;
+      this.sha256 = Objects.requireNonNull(inSha256, "sha256").clone();
+      if (this.sha256.length != HASH_SIZE) {
+        throw new IllegalArgumentException(
+          String.format("SHA-256 hash must be %d bytes", Integer.valueOf(HASH_SIZE)));
+      }
+    }
+
+    /**
+     * @return The compression method, such as {@link ZipEntry#DEFLATED}
+     */
+
+    int method()
+    {
+      return this.method;
+    }
+
+    /**
+     * @return The CRC-32 of the uncompressed data
+     */
+
+    long crc()
+    {
+      return this.crc;
+    }
+
+    /**
+     * @return The size of the compressed data
+     */
+
+    long compressedSize()
+    {
+      return this.compressedSize;
+    }
+
+    /**
+     * @return The size of the uncompressed data
+     */
+
+    long size()
+    {
+      return this.size;
+    }
+
+    /**
+     * @return The SHA-256 hash of the uncompressed data
+     */
+
+    byte[] sha256()
+    {
+      return this.sha256.clone();
+    }
+  }
+
+  private static final class Central
+  {
+    private final byte[] name;
+    private final Data data;
+    private final long offset;
+    private final boolean zip64;
+
+    Central(
+      final byte[] inName,
+      final Data inData,
+      final long inOffset,
+      final boolean inZip64)
+    {
+      this.name = Objects.requireNonNull(inName, "name");
+      this.data = Objects.requireNonNull(inData, "data");
+      this.offset = inOffset;
+      this.zip64 = inZip64;
+    }
+  }
+}